@@ -35,6 +35,61 @@ static void JNICALL CompiledMethodLoad(jvmtiEnv* jvmti, jmethodID method,
     // Needed to enable DebugNonSafepoints info by default
 }
 
+// The line number tables of methods are cached, and only change when their class is redefined or retransformed. The
+// hook runs before the new version of the class is installed, so a lookup in between may still cache an old table.
+static void JNICALL OnClassFileLoadHook(jvmtiEnv *jvmti, JNIEnv *jni_env, jclass class_being_redefined,
+        jobject loader, const char *name, jobject protection_domain, jint class_data_len,
+        const unsigned char *class_data, jint *new_class_data_len, unsigned char **new_class_data) {
+    IMPLICITLY_USE(jni_env);
+    IMPLICITLY_USE(loader);
+    IMPLICITLY_USE(name);
+    IMPLICITLY_USE(protection_domain);
+    IMPLICITLY_USE(class_data_len);
+    IMPLICITLY_USE(class_data);
+    IMPLICITLY_USE(new_class_data_len);
+    IMPLICITLY_USE(new_class_data);
+    if (class_being_redefined == NULL || prof == NULL) {
+        return;
+    }
+
+    jint method_count;
+    JvmtiScopedPtr<jmethodID> methods(jvmti);
+    if (jvmti->GetClassMethods(class_being_redefined, &method_count, methods.GetRef()) != JVMTI_ERROR_NONE) {
+        methods.AbandonBecauseOfError();
+        prof->invalidateAllLineNumbers();
+        return;
+    }
+    for (jint i = 0; i < method_count; i++) {
+        prof->invalidateLineNumbers(methods.Get()[i]);
+    }
+}
+
+// HotSpot extension event, which doesn't tell which methods were unloaded, so all cached line numbers are dropped
+static void JNICALL OnClassUnload(jvmtiEnv *jvmti, ...) {
+    IMPLICITLY_USE(jvmti);
+    if (prof != NULL) {
+        prof->invalidateAllLineNumbers();
+    }
+}
+
+static void RegisterClassUnload(jvmtiEnv *jvmti) {
+    jint count;
+    JvmtiScopedPtr<jvmtiExtensionEventInfo> events(jvmti);
+    if (jvmti->GetExtensionEvents(&count, events.GetRef()) != JVMTI_ERROR_NONE) {
+        events.AbandonBecauseOfError();
+        return;
+    }
+
+    jvmtiExtensionEventInfo *eventList = events.Get();
+    for (int i = 0; i < count; i++) {
+        if (strcmp(eventList[i].id, "com.sun.hotspot.events.ClassUnload") == 0) {
+            JVMTI_ERROR(jvmti->SetExtensionEventCallback(eventList[i].extension_event_index,
+                    (jvmtiExtensionEvent) &OnClassUnload));
+        }
+    }
+    // The strings and parameter arrays inside the event infos are not deallocated, this only happens once
+}
+
 // Calls GetClassMethods on a given class to force the creation of
 // jmethodIDs of it.
 void CreateJMethodIDsForClass(jvmtiEnv *jvmti, jclass klass) {
@@ -58,6 +113,9 @@ void JNICALL OnVMInit(jvmtiEnv *jvmti, JNIEnv *jniEnv, jthread thread) {
 
     TimeUtils::init(); // required to init OS X's clock service
 
+    // Only enabled once the VM is live, class loading during startup is left alone
+    JVMTI_ERROR(jvmti->SetEventNotificationMode(JVMTI_ENABLE, JVMTI_EVENT_CLASS_FILE_LOAD_HOOK, NULL));
+
     // Forces the creation of jmethodIDs of the classes that had already
     // been loaded (eg java.lang.Object, java.lang.ClassLoader) and
     // OnClassPrepare() misses.
@@ -227,6 +285,7 @@ static bool RegisterJvmti(jvmtiEnv *jvmti) {
     callbacks->ClassPrepare = &OnClassPrepare;
 
     callbacks->CompiledMethodLoad = &CompiledMethodLoad;
+    callbacks->ClassFileLoadHook = &OnClassFileLoadHook;
 
     callbacks->NativeMethodBind = &OnNativeMethodBind;
     callbacks->ThreadStart = &OnThreadStart;
@@ -254,6 +313,8 @@ static bool RegisterJvmti(jvmtiEnv *jvmti) {
                 false);
     }
 
+    RegisterClassUnload(jvmti);
+
     return true;
 }
 
@@ -300,6 +361,22 @@ static void parseArguments(char *options, ConfigurationOptions &configuration) {
                 configuration.port = safe_copy_string(value, next);
             } else if (strstr(key, "maxFrames") == key) {
                 configuration.maxFramesToCapture = atoi(value);
+            } else if (strstr(key, "stackDictionary") == key) {
+                configuration.stackDictionary = atoi(value);
+            } else if (strstr(key, "compactEncoding") == key) {
+                configuration.compactEncoding = atoi(value);
+            } else if (strstr(key, "compressLog") == key) {
+                configuration.compressLog = atoi(value);
+            } else if (strstr(key, "compressionDelay") == key) {
+                configuration.compressionDelay = atoi(value);
+            } else if (strstr(key, "logBufferSize") == key) {
+                configuration.logBufferSize = atoi(value);
+            } else if (strstr(key, "logFlushInterval") == key) {
+                configuration.logFlushInterval = atoi(value);
+            } else if (strstr(key, "queueStripes") == key) {
+                configuration.queueStripes = atoi(value);
+            } else if (strstr(key, "queueSize") == key) {
+                configuration.queueSize = atoi(value);
             } else {
                 logError("WARN: Unknown configuration option: %s\n", key);
             }
@@ -16,10 +16,12 @@ bool CircularQueue::push(const timespec &ts, const JVMPI_CallTrace &item, Thread
         currentInput = input.load(std::memory_order_relaxed);
         nextInput = advance(currentInput);
         if (output.load(std::memory_order_relaxed) == nextInput) {
+            dropped_.fetch_add(1, std::memory_order_relaxed);
             return false;
         }
         // TODO: have someone review the memory ordering constraints
     } while (!input.compare_exchange_strong(currentInput, nextInput, std::memory_order_relaxed));
+    updateHighWaterMark(nextInput);
     write(item, currentInput);
     buffer[currentInput].tspec.tv_sec = ts.tv_sec;
     buffer[currentInput].tspec.tv_nsec = ts.tv_nsec;
@@ -57,6 +59,7 @@ bool CircularQueue::pop() {
         usleep(1);
     }
 
+    updateDrainLatency(buffer[current_output].tspec);
     listener_.record(buffer[current_output].tspec, buffer[current_output].trace, buffer[current_output].info);
     
     // 0 out all frames so the next write is clean
@@ -75,6 +78,44 @@ bool CircularQueue::pop() {
     return true;
 }
 
+bool CircularQueue::peek(timespec &ts) {
+    const auto current_output = output.load(std::memory_order_relaxed);
+
+    if (current_output == input.load(std::memory_order_relaxed)) {
+        return false;
+    }
+
+    while (buffer[current_output].is_committed.load(std::memory_order_acquire) != COMMITTED) {
+        usleep(1);
+    }
+
+    ts = buffer[current_output].tspec;
+    return true;
+}
+
+// Only uses lock free atomics, so it can be called from the signal handler
+void CircularQueue::updateHighWaterMark(size_t nextInput) {
+    size_t size = (nextInput + capacity_ - output.load(std::memory_order_relaxed)) % capacity_;
+    size_t mark = highWaterMark_.load(std::memory_order_relaxed);
+    while (size > mark && !highWaterMark_.compare_exchange_weak(mark, size, std::memory_order_relaxed)) {
+    }
+}
+
+void CircularQueue::updateDrainLatency(const timespec &ts) {
+    timespec now;
+    TimeUtils::current_utc_time(&now);
+
+    int64_t latency = (int64_t) (now.tv_sec - ts.tv_sec) * 1000000000 + (now.tv_nsec - ts.tv_nsec);
+    // The clock may have been adjusted since the trace was pushed
+    if (latency < 0) {
+        return;
+    }
+    drainLatencyNanos_ += latency;
+    if ((uint64_t) latency > maxDrainLatencyNanos_) {
+        maxDrainLatencyNanos_ = latency;
+    }
+}
+
 size_t CircularQueue::advance(size_t index) const {
-    return (index + 1) % Capacity;
+    return (index + 1) % capacity_;
 }
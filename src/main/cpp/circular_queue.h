@@ -11,15 +11,12 @@
 #include <time.h>
 #include <string.h>
 #include <cstddef>
+#include <atomic>
+#include <stdint.h>
 
+// The default number of traces a queue can hold
 const size_t Size = 1024;
 
-// Capacity is 1 larger than size to make sure
-// we can use input = output as our "can't read" invariant
-// and advance(output) = input as our "can't write" invariant
-// effective the gap acts as a sentinel
-const size_t Capacity = Size + 1;
-
 class QueueListener {
 public:
     virtual void record(const timespec &ts, const JVMPI_CallTrace &item, ThreadBucket *info = nullptr) = 0;
@@ -40,37 +37,84 @@ struct TraceHolder {
 
 class CircularQueue {
 public:
-    explicit CircularQueue(QueueListener &listener, int maxFrameSize)
-            : listener_(listener), input(0), output(0) {
-        memset(buffer, 0, sizeof(buffer));
-        for (int i = 0; i < Capacity; ++i)
+    // Capacity is 1 larger than size to make sure
+    // we can use input = output as our "can't read" invariant
+    // and advance(output) = input as our "can't write" invariant
+    // effective the gap acts as a sentinel
+    explicit CircularQueue(QueueListener &listener, int maxFrameSize, size_t size = Size)
+            : listener_(listener), capacity_(size + 1), input(0), output(0), dropped_(0), highWaterMark_(0),
+              drainLatencyNanos_(0), maxDrainLatencyNanos_(0) {
+        buffer = new TraceHolder[capacity_]();
+        frame_buffer_ = new JVMPI_CallFrame*[capacity_];
+        for (size_t i = 0; i < capacity_; ++i)
             frame_buffer_[i] = new JVMPI_CallFrame[maxFrameSize]();
     }
 
     ~CircularQueue() {
-        for (int i = 0; i < Capacity; ++i)
+        for (size_t i = 0; i < capacity_; ++i)
             delete[] frame_buffer_[i];
+        delete[] frame_buffer_;
+        delete[] buffer;
     }
 
+    // Returns false, and counts the trace as dropped, if the queue is full
     bool push(const timespec &ts, const JVMPI_CallTrace &item, ThreadBucket *info = nullptr);
 
     bool push(const JVMPI_CallTrace &item, ThreadBucket *info = nullptr);
 
     bool pop();
 
+    // Sets ts to the timestamp of the trace the next pop will record, returning false if the queue is empty. Like pop,
+    // this waits for a trace which is still being written. Only to be called by the consumer.
+    bool peek(timespec &ts);
+
+    // The number of traces which couldn't be pushed because the queue was full
+    uint64_t dropped() const {
+        return dropped_.load(std::memory_order_relaxed);
+    }
+
+    // The highest number of traces the queue has held at once
+    size_t highWaterMark() const {
+        return highWaterMark_.load(std::memory_order_relaxed);
+    }
+
+    // The total time in nanoseconds the popped traces have spent in the queue, only to be read by the consumer
+    uint64_t drainLatencyNanos() const {
+        return drainLatencyNanos_;
+    }
+
+    // The longest time in nanoseconds a popped trace has spent in the queue, only to be read by the consumer
+    uint64_t maxDrainLatencyNanos() const {
+        return maxDrainLatencyNanos_;
+    }
+
 private:
 
     QueueListener &listener_;
 
+    const size_t capacity_;
+
     std::atomic<size_t> input;
     std::atomic<size_t> output;
 
-    TraceHolder buffer[Capacity];
-    JVMPI_CallFrame *frame_buffer_[Capacity];
+    std::atomic<uint64_t> dropped_;
+
+    std::atomic<size_t> highWaterMark_;
+
+    uint64_t drainLatencyNanos_;
+
+    uint64_t maxDrainLatencyNanos_;
+
+    TraceHolder *buffer;
+    JVMPI_CallFrame **frame_buffer_;
 
     size_t advance(size_t index) const;
 
     void write(const JVMPI_CallTrace &item, const size_t slot);
+
+    void updateHighWaterMark(size_t nextInput);
+
+    void updateDrainLatency(const timespec &ts);
 };
 
 #endif /* CIRCULAR_QUEUE_H */
@@ -0,0 +1,168 @@
+#include "compressed_stream.h"
+#include <string.h>
+
+static const size_t MIN_MATCH = 4;
+// The LZ4 block format requires the last 5 bytes to be literals, and the last match to start 12 bytes before the end
+static const size_t LAST_LITERALS = 5;
+static const size_t MATCH_FIND_LIMIT = 12;
+static const size_t MAX_OFFSET = 65535;
+
+static inline uint32_t read32(const char *p) {
+    uint32_t value;
+    memcpy(&value, p, sizeof(value));
+    return value;
+}
+
+static inline uint32_t hash(uint32_t sequence) {
+    return (sequence * 2654435761U) >> 20;
+}
+
+static inline char *writeLength(char *out, size_t length) {
+    while (length >= 255) {
+        *out++ = (char) 255;
+        length -= 255;
+    }
+    *out++ = (char) length;
+    return out;
+}
+
+static char *writeSequence(char *out, const char *literals, size_t literalLength, size_t offset, size_t matchLength) {
+    char *token = out++;
+    *token = (char) ((literalLength < 15 ? literalLength : 15) << 4);
+    if (literalLength >= 15) {
+        out = writeLength(out, literalLength - 15);
+    }
+    memcpy(out, literals, literalLength);
+    out += literalLength;
+
+    if (matchLength == 0) {
+        // the last sequence only has literals
+        return out;
+    }
+
+    *out++ = (char) (offset & 0xFF);
+    *out++ = (char) (offset >> 8);
+    matchLength -= MIN_MATCH;
+    *token |= (char) (matchLength < 15 ? matchLength : 15);
+    if (matchLength >= 15) {
+        out = writeLength(out, matchLength - 15);
+    }
+    return out;
+}
+
+size_t compressBlock(const char *src, size_t length, char *dst, int32_t *hashTable) {
+    char *out = dst;
+    size_t anchor = 0;
+
+    if (length > MATCH_FIND_LIMIT) {
+        for (size_t i = 0; i < COMPRESSION_HASH_SIZE; i++) {
+            hashTable[i] = -1;
+        }
+
+        size_t matchLimit = length - LAST_LITERALS;
+        size_t position = 0;
+        while (position < length - MATCH_FIND_LIMIT) {
+            uint32_t sequence = read32(src + position);
+            uint32_t slot = hash(sequence);
+            int32_t candidate = hashTable[slot];
+            hashTable[slot] = (int32_t) position;
+
+            if (candidate < 0 || position - candidate > MAX_OFFSET || read32(src + candidate) != sequence) {
+                position++;
+                continue;
+            }
+
+            size_t matchLength = MIN_MATCH;
+            while (position + matchLength < matchLimit && src[candidate + matchLength] == src[position + matchLength]) {
+                matchLength++;
+            }
+
+            out = writeSequence(out, src + anchor, position - anchor, position - candidate, matchLength);
+            position += matchLength;
+            anchor = position;
+        }
+    }
+
+    out = writeSequence(out, src + anchor, length - anchor, 0, 0);
+    return out - dst;
+}
+
+BlockCompressingBuffer::BlockCompressingBuffer(ostream &sink, int maxDelayMillis)
+        : sink_(sink), maxDelay_(maxDelayMillis), pending_(false), blockStart_(),
+          block_(COMPRESSED_BLOCK_SIZE), compressed_(maxCompressedSize(COMPRESSED_BLOCK_SIZE)),
+          hashTable_(COMPRESSION_HASH_SIZE) {
+    writeHeaderValue(COMPRESSED_LOG_MAGIC);
+    sink_.flush();
+    setp(block_.data(), block_.data() + block_.size());
+}
+
+BlockCompressingBuffer::~BlockCompressingBuffer() {
+    writeBlock();
+}
+
+void BlockCompressingBuffer::writeHeaderValue(uint32_t value) {
+    sink_.put((char) (value >> 24));
+    sink_.put((char) (value >> 16));
+    sink_.put((char) (value >> 8));
+    sink_.put((char) value);
+}
+
+void BlockCompressingBuffer::writeBlock() {
+    size_t length = pptr() - pbase();
+    if (length == 0) {
+        return;
+    }
+
+    size_t compressedLength = compressBlock(block_.data(), length, compressed_.data(), hashTable_.data());
+    if (compressedLength < length) {
+        writeHeaderValue((uint32_t) compressedLength);
+        writeHeaderValue((uint32_t) length);
+        sink_.write(compressed_.data(), compressedLength);
+    } else {
+        writeHeaderValue((uint32_t) length | STORED_BLOCK_FLAG);
+        writeHeaderValue((uint32_t) length);
+        sink_.write(block_.data(), length);
+    }
+    sink_.flush();
+
+    setp(block_.data(), block_.data() + block_.size());
+    pending_ = false;
+}
+
+BlockCompressingBuffer::int_type BlockCompressingBuffer::overflow(int_type c) {
+    writeBlock();
+    if (!traits_type::eq_int_type(c, traits_type::eof())) {
+        *pptr() = traits_type::to_char_type(c);
+        pbump(1);
+    }
+    return traits_type::not_eof(c);
+}
+
+int BlockCompressingBuffer::sync() {
+    if (pptr() == pbase()) {
+        return 0;
+    }
+
+    std::chrono::steady_clock::time_point now = std::chrono::steady_clock::now();
+    if (!pending_) {
+        // the delay counts from the first flush of data in a block
+        pending_ = true;
+        blockStart_ = now;
+    }
+    if (now - blockStart_ >= maxDelay_) {
+        writeBlock();
+    }
+    return sink_.good() ? 0 : -1;
+}
+
+CompressedFileStream::CompressedFileStream(const char *fileName, int maxDelayMillis)
+        : ostream(NULL), file_(fileName, ofstream::out | ofstream::binary), buffer_(file_, maxDelayMillis) {
+    init(&buffer_);
+    if (file_.fail()) {
+        setstate(std::ios::failbit);
+    }
+}
+
+CompressedFileStream::~CompressedFileStream() {
+    buffer_.writeBlock();
+}
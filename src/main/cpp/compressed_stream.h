@@ -0,0 +1,92 @@
+#include <fstream>
+#include <streambuf>
+#include <vector>
+#include <chrono>
+#include <stdint.h>
+
+#include "globals.h"
+
+#ifndef COMPRESSED_STREAM_H
+#define COMPRESSED_STREAM_H
+
+using std::ostream;
+using std::ofstream;
+using std::vector;
+
+// A compressed log starts with this magic number, followed by independently compressed blocks. Every block has a header
+// of two big-endian 32 bit values: the size of the data following the header, and the uncompressed size. If the high
+// bit of the first value is set the data is stored uncompressed, which happens when compression doesn't save anything.
+const uint32_t COMPRESSED_LOG_MAGIC = 0x48504C5A; // "HPLZ"
+const uint32_t STORED_BLOCK_FLAG = 0x80000000;
+const size_t BLOCK_HEADER_SIZE = 8;
+
+// The uncompressed size of a full block, the LZ4 block format can't refer back further than 64 KB anyway
+const size_t COMPRESSED_BLOCK_SIZE = 64 * 1024;
+
+// Upper bound on the size of the compressed form of `length` bytes
+inline size_t maxCompressedSize(size_t length) {
+    return length + length / 255 + 16;
+}
+
+const size_t COMPRESSION_HASH_SIZE = 1 << 12;
+
+// Compresses `length` bytes from `src` into `dst` in the LZ4 block format, returning the compressed size. `dst` must
+// hold at least maxCompressedSize(length) bytes, `hashTable` COMPRESSION_HASH_SIZE entries.
+size_t compressBlock(const char *src, size_t length, char *dst, int32_t *hashTable);
+
+// Stream buffer which writes the magic number, then collects the data written to it into blocks, writing every block
+// compressed to the sink once it is full. On a flush, a partially filled block is only written when it has been pending
+// for longer than the configured delay, so the many small flushes of the LogWriter don't result in tiny blocks. The
+// LogWriter keeps flushing the stream on the processor's flush interval when no samples are coming in, so readers
+// tailing the file lag behind by at most about the delay.
+class BlockCompressingBuffer : public std::streambuf {
+public:
+    explicit BlockCompressingBuffer(ostream &sink, int maxDelayMillis = DEFAULT_COMPRESSION_DELAY_MILLIS);
+
+    virtual ~BlockCompressingBuffer();
+
+    // Writes the pending data as a (possibly partial) block
+    void writeBlock();
+
+protected:
+    virtual int_type overflow(int_type c);
+
+    virtual int sync();
+
+private:
+    ostream &sink_;
+
+    const std::chrono::milliseconds maxDelay_;
+
+    // Whether the current block contains flushed data, which must be written within the delay
+    bool pending_;
+
+    std::chrono::steady_clock::time_point blockStart_;
+
+    vector<char> block_;
+
+    vector<char> compressed_;
+
+    vector<int32_t> hashTable_;
+
+    void writeHeaderValue(uint32_t value);
+
+    DISALLOW_COPY_AND_ASSIGN(BlockCompressingBuffer);
+};
+
+// Output file stream writing the compressed log format
+class CompressedFileStream : public ostream {
+public:
+    CompressedFileStream(const char *fileName, int maxDelayMillis = DEFAULT_COMPRESSION_DELAY_MILLIS);
+
+    virtual ~CompressedFileStream();
+
+private:
+    ofstream file_;
+
+    BlockCompressingBuffer buffer_;
+
+    DISALLOW_COPY_AND_ASSIGN(CompressedFileStream);
+};
+
+#endif // COMPRESSED_STREAM_H
@@ -163,6 +163,10 @@ void Controller::getProfilerParam(int clientConnection, char *param) {
         buffer << profiler_->getMaxFramesToCapture();
     } else if (strstr(param, "logPath") == param) {
         buffer << profiler_->getFilePath();
+    } else if (strstr(param, "lineNumberCache") == param) {
+        buffer << profiler_->getLineNumberCacheHits()
+            << ' '
+            << profiler_->getLineNumberCacheMisses();
     } else {
         logError("WARN: Unknown parameter, ignoring: %s\n", param);
         return;
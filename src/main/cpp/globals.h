@@ -23,6 +23,11 @@ void setProfiler(Profiler *p);
 
 const int DEFAULT_SAMPLING_INTERVAL = 1;
 const int DEFAULT_MAX_FRAMES_TO_CAPTURE = 128;
+const int DEFAULT_COMPRESSION_DELAY_MILLIS = 1000;
+const int DEFAULT_LOG_BUFFER_SIZE = 64 * 1024;
+const int DEFAULT_LOG_FLUSH_INTERVAL_MILLIS = 100;
+// The total number of traces the sample queue holds, split across its stripes
+const int DEFAULT_QUEUE_SIZE = 1024;
 const int MAX_FRAMES_TO_CAPTURE = 2048;
 
 #if defined(STATIC_ALLOCATION_ALLOCA)
@@ -44,6 +49,14 @@ struct ConfigurationOptions {
     char* port;
     bool start;
     int maxFramesToCapture;
+    bool stackDictionary;
+    bool compactEncoding;
+    bool compressLog;
+    int compressionDelay;
+    int logBufferSize;
+    int logFlushInterval;
+    int queueStripes;
+    int queueSize;
 
     ConfigurationOptions() :
             samplingIntervalMin(DEFAULT_SAMPLING_INTERVAL),
@@ -52,7 +65,15 @@ struct ConfigurationOptions {
             host(NULL),
             port(NULL),
             start(true),
-            maxFramesToCapture(DEFAULT_MAX_FRAMES_TO_CAPTURE) {
+            maxFramesToCapture(DEFAULT_MAX_FRAMES_TO_CAPTURE),
+            stackDictionary(false),
+            compactEncoding(false),
+            compressLog(false),
+            compressionDelay(DEFAULT_COMPRESSION_DELAY_MILLIS),
+            logBufferSize(DEFAULT_LOG_BUFFER_SIZE),
+            logFlushInterval(DEFAULT_LOG_FLUSH_INTERVAL_MILLIS),
+            queueStripes(0),
+            queueSize(DEFAULT_QUEUE_SIZE) {
     }
 
     virtual ~ConfigurationOptions() {
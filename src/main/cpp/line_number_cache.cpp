@@ -0,0 +1,115 @@
+#include "line_number_cache.h"
+#include <algorithm>
+
+jint bci2line(jint bci, const LineNumberEntry *table, size_t entryCount) {
+    if (entryCount == 0) {
+        return -101;
+    }
+
+    // The first entry whose start location is >= bci
+    const LineNumberEntry *entry = std::lower_bound(table, table + entryCount, bci,
+            [](const LineNumberEntry &candidate, jint value) { return candidate.startLocation < value; });
+
+    if (entry != table + entryCount && entry->startLocation == bci) {
+        // gotcha
+        return entry->lineNumber;
+    }
+    if (entry == table) {
+        // the line starts after the bci
+        return -102;
+    }
+    // the line starts after the bci, we'll take the previous match
+    return (entry - 1)->lineNumber;
+}
+
+jint LineNumberCache::lineNumber(jint bci, jmethodID methodId) {
+    if (hasInvalidations_.load(std::memory_order_acquire)) {
+        applyInvalidations();
+    }
+
+    auto cached = tables_.find(methodId);
+    if (cached != tables_.end()) {
+        hits_.fetch_add(1, std::memory_order_relaxed);
+    } else {
+        misses_.fetch_add(1, std::memory_order_relaxed);
+        if (tables_.size() >= capacity_) {
+            tables_.erase(tables_.begin());
+        }
+        cached = tables_.emplace(methodId, LineNumberTable()).first;
+        std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
+        load(methodId, cached->second);
+        lookupNanos_.fetch_add(std::chrono::duration_cast<std::chrono::nanoseconds>(
+                std::chrono::steady_clock::now() - start).count(), std::memory_order_relaxed);
+    }
+
+    const LineNumberTable &table = cached->second;
+    if (!table.available) {
+        return -100;
+    }
+    return bci2line(bci, table.entries.data(), table.entries.size());
+}
+
+void LineNumberCache::load(jmethodID methodId, LineNumberTable &table) {
+    JvmtiScopedPtr<jvmtiLineNumberEntry> jvmtiTable(jvmti_);
+    jint entryCount;
+
+    if (jvmti_->GetLineNumberTable(methodId, &entryCount, jvmtiTable.GetRef()) != JVMTI_ERROR_NONE) {
+        jvmtiTable.AbandonBecauseOfError();
+        table.available = false;
+        return;
+    }
+
+    table.available = true;
+    table.entries.reserve(entryCount);
+    for (jint i = 0; i < entryCount; i++) {
+        LineNumberEntry entry = {(jint) jvmtiTable.Get()[i].start_location, jvmtiTable.Get()[i].line_number};
+        table.entries.push_back(entry);
+    }
+    // Line number tables are usually, but not necessarily, sorted
+    std::stable_sort(table.entries.begin(), table.entries.end(),
+            [](const LineNumberEntry &a, const LineNumberEntry &b) { return a.startLocation < b.startLocation; });
+}
+
+void LineNumberCache::invalidate(jmethodID methodId) {
+    std::lock_guard<std::mutex> guard(invalidationLock_);
+    invalidations_.push_back(methodId);
+    hasInvalidations_.store(true, std::memory_order_release);
+}
+
+void LineNumberCache::invalidateAll() {
+    std::lock_guard<std::mutex> guard(invalidationLock_);
+    invalidateAll_ = true;
+    hasInvalidations_.store(true, std::memory_order_release);
+}
+
+bool LineNumberCache::takeInvalidated(vector<jmethodID> &methods) {
+    if (hasInvalidations_.load(std::memory_order_acquire)) {
+        applyInvalidations();
+    }
+
+    bool complete = !invalidatedOverflow_;
+    if (complete) {
+        methods.insert(methods.end(), invalidated_.begin(), invalidated_.end());
+    }
+    invalidated_.clear();
+    invalidatedOverflow_ = false;
+    return complete;
+}
+
+void LineNumberCache::applyInvalidations() {
+    std::lock_guard<std::mutex> guard(invalidationLock_);
+    if (invalidateAll_) {
+        tables_.clear();
+    }
+    for (jmethodID methodId : invalidations_) {
+        tables_.erase(methodId);
+        if (invalidated_.size() < capacity_) {
+            invalidated_.push_back(methodId);
+        } else {
+            invalidatedOverflow_ = true;
+        }
+    }
+    invalidateAll_ = false;
+    invalidations_.clear();
+    hasInvalidations_.store(false, std::memory_order_relaxed);
+}
@@ -0,0 +1,121 @@
+#include <jvmti.h>
+#include <atomic>
+#include <chrono>
+#include <mutex>
+#include <unordered_map>
+#include <vector>
+#include <stdint.h>
+
+#include "globals.h"
+
+#ifndef LINE_NUMBER_CACHE_H
+#define LINE_NUMBER_CACHE_H
+
+using std::unordered_map;
+using std::vector;
+
+// Upper bound on the number of methods whose line number table is cached
+const size_t DEFAULT_LINE_NUMBER_CACHE_SIZE = 16 * 1024;
+
+struct LineNumberEntry {
+    jint startLocation;
+    jint lineNumber;
+};
+
+// Maps a bci to a line number using a line number table sorted by start location. Returns -101 for empty tables, and
+// -102 when the bci precedes the first entry.
+jint bci2line(jint bci, const LineNumberEntry *table, size_t entryCount);
+
+// Caches the line number tables of methods, so GetLineNumberTable is only called once for every method rather than
+// for every frame. The tables are stored as compact arrays sorted by start location. When the cache is full, an
+// arbitrary entry is evicted.
+//
+// Lookups must all happen on one thread (the processor thread). Invalidations may come from any thread, they are
+// queued and applied on the next lookup. The methods invalidated individually, i.e. those of redefined classes, are
+// also handed over to the stack dictionary of the LogWriter, whose stack definitions embed line numbers.
+class LineNumberCache {
+public:
+    explicit LineNumberCache(jvmtiEnv *jvmti, size_t capacity = DEFAULT_LINE_NUMBER_CACHE_SIZE)
+            : jvmti_(jvmti), capacity_(capacity), invalidateAll_(false), invalidatedOverflow_(false),
+              hasInvalidations_(false),
+              hits_(0), misses_(0), lookupNanos_(0) {
+    }
+
+    // Returns the line number of the bci in the method, or -100 if the method has no line number table
+    jint lineNumber(jint bci, jmethodID methodId);
+
+    // Drops the cached table of a method, and reports it through takeInvalidated, when its class is redefined
+    void invalidate(jmethodID methodId);
+
+    // Drops all cached tables when a class is unloaded, which isn't reported through takeInvalidated as the methods of
+    // an unloaded class don't appear in later samples
+    void invalidateAll();
+
+    // Whether takeInvalidated has anything to report, only to be called by the lookup thread
+    bool hasInvalidated() const {
+        return hasInvalidations_.load(std::memory_order_acquire) || !invalidated_.empty() || invalidatedOverflow_;
+    }
+
+    // Applies the queued invalidations, and moves the methods invalidated individually since the last call into
+    // methods. Returns false if there were more than the capacity of the cache, in which case methods isn't filled and
+    // anything derived from the line numbers of any method should be dropped. Only to be called by the lookup thread.
+    bool takeInvalidated(vector<jmethodID> &methods);
+
+    uint64_t hits() const {
+        return hits_.load(std::memory_order_relaxed);
+    }
+
+    uint64_t misses() const {
+        return misses_.load(std::memory_order_relaxed);
+    }
+
+    // The total time in nanoseconds spent in GetLineNumberTable
+    uint64_t lookupNanos() const {
+        return lookupNanos_.load(std::memory_order_relaxed);
+    }
+
+    size_t size() const {
+        return tables_.size();
+    }
+
+private:
+    // A table without line number information is cached as well, so the lookup isn't repeated
+    struct LineNumberTable {
+        bool available;
+        vector<LineNumberEntry> entries;
+    };
+
+    jvmtiEnv *jvmti_;
+
+    const size_t capacity_;
+
+    unordered_map<jmethodID, LineNumberTable> tables_;
+
+    std::mutex invalidationLock_;
+
+    vector<jmethodID> invalidations_;
+
+    bool invalidateAll_;
+
+    // The methods invalidated individually which haven't been taken yet, bounded by the capacity
+    vector<jmethodID> invalidated_;
+
+    bool invalidatedOverflow_;
+
+    // Lets lookups skip the lock when there is nothing to invalidate
+    std::atomic_bool hasInvalidations_;
+
+    std::atomic<uint64_t> hits_;
+
+    std::atomic<uint64_t> misses_;
+
+    std::atomic<uint64_t> lookupNanos_;
+
+    void applyInvalidations();
+
+    void load(jmethodID methodId, LineNumberTable &table);
+
+    DISALLOW_COPY_AND_ASSIGN(LineNumberCache);
+};
+
+#endif // LINE_NUMBER_CACHE_H
@@ -1,5 +1,6 @@
 #include "log_writer.h"
 #include <cstdlib>
+#include <iterator>
 using std::copy;
 
 bool isLittleEndian() {
@@ -10,72 +11,68 @@ bool isLittleEndian() {
 
 static bool IS_LITTLE_ENDIAN = isLittleEndian();
 
-template<typename T>
-void LogWriter::writeValue(const T &value) {
-    if (IS_LITTLE_ENDIAN) {
-        const char *data = reinterpret_cast<const char *>(&value);
-        for (int i = sizeof(value) - 1; i >= 0; i--) {
-            output_.put(data[i]);
-        }
-    } else {
-        output_.write(reinterpret_cast<const char *>(&value), sizeof(value));
-    }
-}
-
-static jint bci2line(jint bci, jvmtiLineNumberEntry *table, jint entry_count) {
-	jint line_number = -101;
-	if ( entry_count == 0 ) {
-		return line_number;
-	}
-	line_number = -102;
-    // We're looking for a line whose 'start_location' is nearest AND >= BCI
-	// We assume the table is sorted by 'start_location'
-    // Do a binary search to quickly approximate 'start_index" in table
-	int half = entry_count >> 1;
-    int start_index = 0;
-    while ( half > 0 ) {
-        jint start_location = table[start_index + half].start_location;
-        if ( bci > start_location ) {
-            start_index = start_index + half;
-        } else if ( bci == start_location ) {
-        	// gotcha
-            return table[start_index + half].line_number;
-        }
-        half = half >> 1;
+static const int64_t NANOS_PER_SECOND = 1000000000;
+
+// Converts values of a given size to big endian with a single byte swap instruction
+template<size_t Size>
+struct BigEndian;
+
+template<>
+struct BigEndian<4> {
+    typedef uint32_t Bits;
+
+    static Bits convert(Bits value) {
+        return IS_LITTLE_ENDIAN ? __builtin_bswap32(value) : value;
     }
+};
 
-    /* Now start the table search from approximated start_index */
-    for (int i = start_index ; i < entry_count ; i++ ) {
-    	// start_location > BCI: means line starts after the BCI, we'll take the previous match
-        if ( bci < table[i].start_location ) {
-            break;
-        }
-        else if (bci == table[i].start_location) {
-        	// gotcha
-        	return table[i].line_number;
-        }
-        line_number = table[i].line_number;
+template<>
+struct BigEndian<8> {
+    typedef uint64_t Bits;
+
+    static Bits convert(Bits value) {
+        return IS_LITTLE_ENDIAN ? __builtin_bswap64(value) : value;
     }
-    return line_number;
+};
+
+template<typename T>
+void LogWriter::writeValue(const T &value) {
+    typename BigEndian<sizeof(T)>::Bits bits;
+    memcpy(&bits, &value, sizeof(T));
+    bits = BigEndian<sizeof(T)>::convert(bits);
+    putBytes(reinterpret_cast<const char *>(&bits), sizeof(T));
 }
 
-jint LogWriter::getLineNo(jint bci, jmethodID methodId) {
-  if(bci <= 0) {
-      return bci;
+void LogWriter::writeVarint(uint64_t value) {
+    // 7 bits per byte, least significant group first, the high bit marks that more bytes follow
+    while (value >= 0x80) {
+        put((byte) ((value & 0x7F) | 0x80));
+        value >>= 7;
     }
+    put((byte) value);
+}
 
-    JvmtiScopedPtr<jvmtiLineNumberEntry> jvmti_table(jvmti_);
-    jint entry_count;
-
-    JVMTI_ERROR_CLEANUP_RET_NO_MESSAGE(
-        jvmti_->GetLineNumberTable(methodId, &entry_count, jvmti_table.GetRef()),
-        -100,
-        jvmti_table.AbandonBecauseOfError());
+void LogWriter::writeSignedVarint(int64_t value) {
+    // zig-zag encoding keeps small negative values (e.g. error bcis) short
+    writeVarint(((uint64_t) value << 1) ^ (uint64_t) (value >> 63));
+}
 
-    jint lineno = bci2line(bci, jvmti_table.Get(), entry_count);
+int64_t LogWriter::denseMethodId(method_id methodId) {
+    auto known = denseMethodIds.find(methodId);
+    if (known != denseMethodIds.end()) {
+        return known->second;
+    }
 
+    int64_t denseId = (int64_t) denseMethodIds.size() + 1;
+    denseMethodIds.emplace(methodId, denseId);
+    return denseId;
+}
 
-    return lineno;
+jint LogWriter::getLineNo(jint bci, jmethodID methodId) {
+    if (bci <= 0) {
+        return bci;
+    }
+    return lineNumbers_->lineNumber(bci, methodId);
 }
 
 void LogWriter::record(const JVMPI_CallTrace &trace, ThreadBucket *info) {
@@ -86,8 +83,67 @@ void LogWriter::record(const JVMPI_CallTrace &trace, ThreadBucket *info) {
 }
 
 void LogWriter::record(const timespec &ts, const JVMPI_CallTrace &trace, ThreadBucket *info) {
+    inTrace_ = true;
     recordTraceStart(trace.num_frames, (map::HashType)trace.env_id, ts, info);
 
+    if (stackDictionary_ && trace.num_frames > 0) {
+        recordStack(trace);
+    } else {
+        recordFrames(trace);
+    }
+    inTrace_ = false;
+    flushIfDue();
+
+    if (info != nullptr)
+        info->release();
+}
+
+void LogWriter::flushIfDue() {
+    if (inTrace_) {
+        return;
+    }
+
+    if ((!buffer_.empty() && buffer_.size() >= flushThreshold_)
+            || std::chrono::steady_clock::now() - lastFlush_ >= flushInterval_) {
+        flush();
+    }
+}
+
+void LogWriter::flush() {
+    if (!buffer_.empty()) {
+        output_.write(buffer_.data(), buffer_.size());
+        bytesWritten_ += buffer_.size();
+        buffer_.clear();
+    }
+    output_.flush();
+    lastFlush_ = std::chrono::steady_clock::now();
+}
+
+void LogWriter::recordStack(const JVMPI_CallTrace &trace) {
+    if (lineNumbers_->hasInvalidated()) {
+        dropInvalidatedStacks();
+    }
+
+    stackKey_.clear();
+    for (int i = 0; i < trace.num_frames; i++) {
+        stackKey_.push_back(trace.frames[i].lineno);
+        stackKey_.push_back((method_id) trace.frames[i].method_id);
+    }
+
+    auto known = knownStacks.find(stackKey_);
+    if (known != knownStacks.end()) {
+        recordStackRef(known->second);
+    } else if (knownStacks.size() < MAX_KNOWN_STACKS) {
+        int64_t stackId = nextStackId_++;
+        knownStacks.emplace(stackKey_, stackId);
+        recordNewStack(stackId, trace);
+        recordStackRef(stackId);
+    } else {
+        recordFrames(trace);
+    }
+}
+
+void LogWriter::recordFrames(const JVMPI_CallTrace &trace) {
     for (int i = 0; i < trace.num_frames; i++) {
         JVMPI_CallFrame frame = trace.frames[i];
         method_id methodId = (method_id) frame.method_id;
@@ -103,9 +159,6 @@ void LogWriter::record(const timespec &ts, const JVMPI_CallTrace &trace, ThreadB
         }
         inspectMethod(methodId, frame);
     }
-
-    if (info != nullptr)
-        info->release();
 }
 
 void LogWriter::inspectMethod(const method_id methodId,
@@ -115,7 +168,10 @@ void LogWriter::inspectMethod(const method_id methodId,
     }
 
     knownMethods.insert(methodId);
+    std::chrono::steady_clock::time_point start = std::chrono::steady_clock::now();
     frameLookup_(frame, jvmti_, *this);
+    methodLookupNanos_ += std::chrono::duration_cast<std::chrono::nanoseconds>(
+            std::chrono::steady_clock::now() - start).count();
 }
 
 void LogWriter::inspectThread(map::HashType &threadId, ThreadBucket *info) {
@@ -132,10 +188,14 @@ void LogWriter::inspectThread(map::HashType &threadId, ThreadBucket *info) {
 
     knownThreads.insert(threadId);
 
-    output_.put(THREAD_META);
-    writeValue(threadId);
+    put(THREAD_META);
+    if (compact_) {
+        writeSignedVarint(threadId);
+    } else {
+        writeValue(threadId);
+    }
     writeWithSize(threadName);
-    output_.flush();
+    flushIfDue();
 }
 
 void LogWriter::recordTraceStart(const jint numFrames, map::HashType envHash, ThreadBucket *info) {
@@ -143,10 +203,15 @@ void LogWriter::recordTraceStart(const jint numFrames, map::HashType envHash, Th
 
     inspectThread(threadId, info);
 
-    output_.put(TRACE_START);
-    writeValue(numFrames);
-    writeValue(threadId);
-    output_.flush();
+    put(TRACE_START);
+    if (compact_) {
+        writeSignedVarint(numFrames);
+        writeSignedVarint(threadId);
+    } else {
+        writeValue(numFrames);
+        writeValue(threadId);
+    }
+    flushIfDue();
 }
 
 void LogWriter::recordTraceStart(const jint numFrames, map::HashType envHash, const timespec &ts, ThreadBucket *info) {
@@ -154,42 +219,179 @@ void LogWriter::recordTraceStart(const jint numFrames, map::HashType envHash, co
     
     inspectThread(threadId, info);
 
-    output_.put(TRACE_WITH_TIME);
-    writeValue(numFrames);
-    writeValue(threadId);
-    writeValue((int64_t)ts.tv_sec);
-    writeValue((int64_t)ts.tv_nsec);
-    output_.flush();
+    put(TRACE_WITH_TIME);
+    if (compact_) {
+        int64_t time = (int64_t) ts.tv_sec * NANOS_PER_SECOND + ts.tv_nsec;
+        writeSignedVarint(numFrames);
+        writeSignedVarint(threadId);
+        writeSignedVarint(time - lastTraceTime_);
+        lastTraceTime_ = time;
+    } else {
+        writeValue(numFrames);
+        writeValue(threadId);
+        writeValue((int64_t)ts.tv_sec);
+        writeValue((int64_t)ts.tv_nsec);
+    }
+    flushIfDue();
 }
 
 void LogWriter::recordFrame(const jint bci, const jint lineNumber, const method_id methodId) {
-    output_.put(FRAME_FULL);
-    writeValue(bci);
-    writeValue(lineNumber);
-    writeValue(methodId);
-    output_.flush();
+    put(FRAME_FULL);
+    if (compact_) {
+        writeSignedVarint(bci);
+        writeSignedVarint(lineNumber);
+        writeVarint(denseMethodId(methodId));
+    } else {
+        writeValue(bci);
+        writeValue(lineNumber);
+        writeValue(methodId);
+    }
+    flushIfDue();
 }
 
 // kept for old format tests
 void LogWriter::recordFrame(const jint bci, const method_id methodId) {
-    output_.put(FRAME_BCI_ONLY);
-    writeValue(bci);
-    writeValue(methodId);
-    output_.flush();
+    put(FRAME_BCI_ONLY);
+    if (compact_) {
+        writeSignedVarint(bci);
+        writeVarint(denseMethodId(methodId));
+    } else {
+        writeValue(bci);
+        writeValue(methodId);
+    }
+    flushIfDue();
+}
+
+void LogWriter::recordNewStack(int64_t stackId, const JVMPI_CallTrace &trace) {
+    // The method metadata has to be written before the stack definition, records can't be nested
+    for (int i = 0; i < trace.num_frames; i++) {
+        inspectMethod((method_id) trace.frames[i].method_id, trace.frames[i]);
+    }
+
+    put(NEW_STACK);
+    if (compact_) {
+        writeVarint(stackId);
+        writeVarint(trace.num_frames);
+    } else {
+        writeValue(stackId);
+        writeValue((jint) trace.num_frames);
+    }
+    for (int i = 0; i < trace.num_frames; i++) {
+        JVMPI_CallFrame frame = trace.frames[i];
+        // lineno is in fact BCI, needs converting to lineno
+        jint bci = frame.lineno;
+        jint lineNumber = bci > 0 ? getLineNo(bci, frame.method_id) : ERR_NO_LINE_INFO;
+        if (compact_) {
+            writeSignedVarint(bci);
+            writeSignedVarint(lineNumber);
+            writeVarint(denseMethodId((method_id) frame.method_id));
+        } else {
+            writeValue(bci);
+            writeValue(lineNumber);
+            writeValue((method_id) frame.method_id);
+        }
+    }
+    flushIfDue();
+}
+
+void LogWriter::dropInvalidatedStacks() {
+    invalidatedMethods_.clear();
+    if (!lineNumbers_->takeInvalidated(invalidatedMethods_)) {
+        knownStacks.clear();
+        return;
+    }
+
+    unordered_set<method_id> methods;
+    for (jmethodID methodId : invalidatedMethods_) {
+        methods.insert((method_id) methodId);
+    }
+    for (auto it = knownStacks.begin(); it != knownStacks.end();) {
+        bool stale = false;
+        // The keys hold (bci, method id) pairs
+        for (size_t i = 1; i < it->first.size() && !stale; i += 2) {
+            stale = methods.count(it->first[i]) > 0;
+        }
+        it = stale ? knownStacks.erase(it) : std::next(it);
+    }
+}
+
+void LogWriter::recordStackRef(int64_t stackId) {
+    put(STACK_REF);
+    if (compact_) {
+        writeVarint(stackId);
+    } else {
+        writeValue(stackId);
+    }
+    flushIfDue();
+}
+
+void LogWriter::recordHeader() {
+    put(LOG_HEADER);
+    writeValue(LOG_MAGIC);
+    writeValue(compact_ ? LOG_VERSION_COMPACT : LOG_VERSION_STACK_DICTIONARY);
+    writeValue(lastTraceTime_);
+    writeValue(samplingIntervalNanos_);
+    flushIfDue();
+}
+
+void LogWriter::setSamplingInterval(int64_t samplingIntervalNanos) {
+    if (samplingIntervalNanos == samplingIntervalNanos_) {
+        return;
+    }
+    samplingIntervalNanos_ = samplingIntervalNanos;
+    if (compact_ || stackDictionary_) {
+        recordHeader();
+    }
+}
+
+void LogWriter::recordAgentStats(const AgentStats &stats) {
+    put(AGENT_STATS);
+    jint count = 7;
+    if (compact_) {
+        writeVarint(count);
+    } else {
+        writeValue(count);
+    }
+    writeStat(STAT_SAMPLES_WRITTEN, stats.samplesWritten);
+    writeStat(STAT_SAMPLES_DROPPED, stats.samplesDropped);
+    writeStat(STAT_QUEUE_HIGH_WATER_MARK, stats.queueHighWaterMark);
+    writeStat(STAT_DRAIN_LATENCY_NANOS, stats.drainLatencyNanos);
+    writeStat(STAT_MAX_DRAIN_LATENCY_NANOS, stats.maxDrainLatencyNanos);
+    writeStat(STAT_JVMTI_LOOKUP_NANOS, stats.jvmtiLookupNanos);
+    writeStat(STAT_BYTES_WRITTEN, stats.bytesWritten);
+    flushIfDue();
+}
+
+void LogWriter::writeStat(jint id, int64_t value) {
+    if (compact_) {
+        writeVarint(id);
+        writeVarint(value);
+    } else {
+        writeValue(id);
+        writeValue(value);
+    }
 }
 
 void LogWriter::writeWithSize(const char *value) {
     jint size = (jint) strlen(value);
-    writeValue(size);
-    output_.write(value, size);
+    if (compact_) {
+        writeVarint(size);
+    } else {
+        writeValue(size);
+    }
+    putBytes(value, size);
 }
 
 void LogWriter::recordNewMethod(const map::HashType methodId, const char *fileName,
         const char *className, const char *methodName) {
-    output_.put(NEW_METHOD);
-    writeValue(methodId);
+    put(NEW_METHOD);
+    if (compact_) {
+        writeVarint(denseMethodId(methodId));
+    } else {
+        writeValue(methodId);
+    }
     writeWithSize(fileName);
     writeWithSize(className);
     writeWithSize(methodName);
-    output_.flush();
+    flushIfDue();
 }
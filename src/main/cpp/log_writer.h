@@ -1,17 +1,24 @@
 #include <jvmti.h>
 #include <unordered_set>
+#include <unordered_map>
+#include <vector>
 #include <iostream>
+#include <chrono>
+#include <memory>
 #include <string.h>
 
 #include "thread_map.h"
 #include "circular_queue.h"
 #include "stacktraces.h"
+#include "line_number_cache.h"
 
 #ifndef LOG_WRITER_H
 #define LOG_WRITER_H
 
 using std::ostream;
 using std::unordered_set;
+using std::unordered_map;
+using std::vector;
 
 typedef unsigned char byte;
 typedef int64_t method_id;
@@ -36,19 +43,111 @@ const byte FRAME_BCI_ONLY = 2; // maintain backward compatibility
 const byte FRAME_FULL = 21;
 const byte NEW_METHOD = 3;
 const byte THREAD_META = 4;
+const byte NEW_STACK = 5;
+const byte STACK_REF = 6;
+const byte LOG_HEADER = 7;
+const byte AGENT_STATS = 8;
+// The header is written at the start of logs which don't use the original version 1 format, i.e. logs using the stack
+// dictionary or the compact encoding. It consists of the magic number, the format version, the timestamp (in
+// nanoseconds) the first timestamp delta is relative to and the sampling interval in nanoseconds, 0 if unknown. A new
+// header is written whenever the sampling interval changes.
+const jint LOG_MAGIC = 0x48504C47; // "HPLG"
+// Version 2 encodes integers as (zig-zag) varints, timestamps as deltas from the previous timestamp and method ids as
+// small dense integers. Logs without header use the fixed width version 1 encoding.
+const jint LOG_VERSION_COMPACT = 2;
+// Version 3 is the fixed width encoding of version 1 extended with the stack dictionary records (NEW_STACK, STACK_REF),
+// which readers of version 1 don't know. The compact encoding always includes them.
+const jint LOG_VERSION_STACK_DICTIONARY = 3;
 // Error values for line number. If BCI is an error value we report the BCI error value.
 const jint ERR_NO_LINE_INFO = -100;
 const jint ERR_NO_LINE_FOUND= -101;
 // For the record, known BCI error values
 
+// Counters describing the agent itself. They are written as (id, value) pairs, so readers can skip the ones they don't
+// know. The values are totals, or maxima, since the start of the log.
+const jint STAT_SAMPLES_WRITTEN = 1;
+const jint STAT_SAMPLES_DROPPED = 2;
+const jint STAT_QUEUE_HIGH_WATER_MARK = 3;
+const jint STAT_DRAIN_LATENCY_NANOS = 4;
+const jint STAT_MAX_DRAIN_LATENCY_NANOS = 5;
+const jint STAT_JVMTI_LOOKUP_NANOS = 6;
+const jint STAT_BYTES_WRITTEN = 7;
+
+struct AgentStats {
+    // Samples taken from the queue and written to the log
+    int64_t samplesWritten;
+    // Samples lost because the queue was full
+    int64_t samplesDropped;
+    // The highest number of samples a queue has held at once
+    int64_t queueHighWaterMark;
+    // The total time the written samples spent in the queue
+    int64_t drainLatencyNanos;
+    // The longest time a written sample spent in the queue
+    int64_t maxDrainLatencyNanos;
+    // The total time spent looking up method names and line number tables
+    int64_t jvmtiLookupNanos;
+    // Bytes written to the log, not including the records which are still buffered
+    int64_t bytesWritten;
+};
+
+// Upper bound on the number of distinct stacks kept in the stack dictionary. Stacks encountered once the dictionary is
+// full are written frame by frame.
+const size_t MAX_KNOWN_STACKS = 64 * 1024;
+
+// Room reserved in the record buffer beyond the flush threshold, enough for the records of most samples
+const size_t INITIAL_RECORD_BUFFER_SIZE = 16 * 1024;
+
+// Identifies a stack by the (bci, method id) pairs of its frames, innermost frame first.
+typedef vector<int64_t> StackKey;
+
+struct StackKeyHash {
+    size_t operator()(const StackKey &key) const {
+        size_t hash = key.size();
+        for (int64_t value : key) {
+            hash = hash * 31 + (size_t) (value ^ (value >> 32));
+        }
+        return hash;
+    }
+};
 
 // LogWriter should be independently testable without spinning up a JVM
+//
+// Records are serialized into a reusable buffer, which is written to the output in one go once it holds at least
+// flushThreshold bytes, or when flushIntervalMillis have passed since the last flush. The buffer only ever contains
+// complete records, and the records of a sample are written together, so readers never see a partial record unless the
+// output itself splits the write. The defaults write every record as soon as it is complete.
+//
+// Line numbers are looked up through the given LineNumberCache, which outlives the writer so it can be invalidated by
+// JVMTI events at any time. Without one, the writer uses a cache of its own. Stack definitions embed line numbers, so
+// the known stacks containing a method invalidated by the cache, i.e. a method of a redefined class, are forgotten and
+// defined again the next time they are sampled.
+//
+// The sampling interval is written in the LOG_HEADER, so readers can attribute time per thread based on the interval
+// the samples were actually taken at.
 class LogWriter : public QueueListener, public MethodListener {
 
 public:
     explicit LogWriter(ostream &output, GetFrameInformation frameLookup,
-            jvmtiEnv *jvmti)
-            : output_(output), frameLookup_(frameLookup), jvmti_(jvmti) {
+            jvmtiEnv *jvmti, bool stackDictionary = false, bool compact = false,
+            size_t flushThreshold = 0, int flushIntervalMillis = 0, LineNumberCache *lineNumbers = nullptr,
+            int64_t samplingIntervalNanos = 0)
+            : output_(output), frameLookup_(frameLookup), jvmti_(jvmti),
+              stackDictionary_(stackDictionary), nextStackId_(0), compact_(compact), lastTraceTime_(0),
+              flushThreshold_(flushThreshold), flushInterval_(flushIntervalMillis), inTrace_(false),
+              lastFlush_(std::chrono::steady_clock::now()), lineNumbers_(lineNumbers), bytesWritten_(0),
+              methodLookupNanos_(0), samplingIntervalNanos_(samplingIntervalNanos) {
+        if (lineNumbers_ == nullptr) {
+            ownedLineNumbers_.reset(new LineNumberCache(jvmti));
+            lineNumbers_ = ownedLineNumbers_.get();
+        }
+        buffer_.reserve(flushThreshold_ + INITIAL_RECORD_BUFFER_SIZE);
+        if (compact_ || stackDictionary_) {
+            recordHeader();
+        }
+    }
+
+    virtual ~LogWriter() {
+        flush();
     }
 
     virtual void record(const timespec &ts, const JVMPI_CallTrace &trace, ThreadBucket *info = nullptr);
@@ -65,9 +164,39 @@ public:
 
     void recordFrame(const jint bci, method_id methodId);
 
+    // Writes the definition of a stack, which later samples refer to by its id
+    void recordNewStack(int64_t stackId, const JVMPI_CallTrace &trace);
+
+    void recordStackRef(int64_t stackId);
+
+    void recordHeader();
+
+    // Records a new LOG_HEADER if the interval differs from the one in the current header, and the log has headers
+    void setSamplingInterval(int64_t samplingIntervalNanos);
+
+    void recordAgentStats(const AgentStats &stats);
+
     virtual void recordNewMethod(method_id methodId, const char *file_name,
             const char *class_name, const char *method_name);
 
+    // Writes the buffered records if the buffer has reached the flush threshold or the flush interval has passed. Once
+    // the interval has passed the output is flushed even without buffered records, so an output which holds data back,
+    // like the partial block of a compressed stream, gets to write it out when no samples are coming in.
+    void flushIfDue();
+
+    // Writes the buffered records and flushes the output
+    void flush();
+
+    // The number of bytes written to the output so far
+    uint64_t bytesWritten() const {
+        return bytesWritten_;
+    }
+
+    // The total time in nanoseconds spent looking up method information and line number tables through JVMTI
+    uint64_t jvmtiLookupNanos() const {
+        return methodLookupNanos_ + lineNumbers_->lookupNanos();
+    }
+
 private:
     ostream &output_;
 
@@ -79,13 +208,81 @@ private:
 
     unordered_set<map::HashType> knownThreads;
 
+    // When enabled, every distinct stack is written once as a NEW_STACK definition, and samples only refer to it
+    bool stackDictionary_;
+
+    unordered_map<StackKey, int64_t, StackKeyHash> knownStacks;
+
+    // Reused for taking the methods invalidated by the line number cache
+    vector<jmethodID> invalidatedMethods_;
+
+    int64_t nextStackId_;
+
+    // Reused for the dictionary lookups, to avoid allocating for every sample
+    StackKey stackKey_;
+
+    // When enabled, records use the compact version 2 encoding
+    bool compact_;
+
+    // Maps jmethodIDs to the dense ids written in compact records, which are assigned sequentially starting from 1
+    unordered_map<method_id, int64_t> denseMethodIds;
+
+    // The timestamp in nanoseconds of the last trace start, which the next timestamp is written relative to
+    int64_t lastTraceTime_;
+
+    // The serialized records which haven't been written to the output yet
+    vector<char> buffer_;
+
+    const size_t flushThreshold_;
+
+    const std::chrono::milliseconds flushInterval_;
+
+    // Set while the records of a sample are being serialized, which must not be flushed separately
+    bool inTrace_;
+
+    std::chrono::steady_clock::time_point lastFlush_;
+
+    LineNumberCache *lineNumbers_;
+
+    std::unique_ptr<LineNumberCache> ownedLineNumbers_;
+
+    uint64_t bytesWritten_;
+
+    uint64_t methodLookupNanos_;
+
+    // The sampling interval written in the LOG_HEADER
+    int64_t samplingIntervalNanos_;
+
+    void put(byte value) {
+        buffer_.push_back((char) value);
+    }
+
+    void putBytes(const char *data, size_t length) {
+        buffer_.insert(buffer_.end(), data, data + length);
+    }
+
     template<typename T>
     void writeValue(const T &value);
 
     void writeWithSize(const char *value);
 
+    void writeVarint(uint64_t value);
+
+    void writeSignedVarint(int64_t value);
+
+    void writeStat(jint id, int64_t value);
+
+    int64_t denseMethodId(method_id methodId);
+
+    // Forgets the known stacks containing a method whose line numbers were invalidated
+    void dropInvalidatedStacks();
+
     void inspectMethod(const method_id methodId, const JVMPI_CallFrame &frame);
 
+    void recordFrames(const JVMPI_CallTrace &trace);
+
+    void recordStack(const JVMPI_CallTrace &trace);
+
     void inspectThread(map::HashType &threadId, ThreadBucket *info);
 
     jint getLineNo(jint bci, jmethodID methodId);
@@ -33,6 +33,9 @@ void Processor::run() {
         while (buffer_.pop()) {
             ++popped;
         }
+        recordStats(false);
+        // Writes out the buffered records once the flush interval has passed, even when no samples are coming in
+        logWriter_.flushIfDue();
 
         if (popped > 200) {
             if (!handler_.updateSigprofInterval()) {
@@ -49,10 +52,33 @@ void Processor::run() {
     }
 
     handler_.stopSigprof();
+    recordStats(true);
+    logWriter_.flush();
     workerDone.clear(std::memory_order_relaxed);
     // no shared data access after this point, can be safely deleted
 }
 
+void Processor::recordStats(bool force) {
+    std::chrono::steady_clock::time_point now = std::chrono::steady_clock::now();
+    if (!force && now - lastStatsTime_ < std::chrono::milliseconds(STATS_INTERVAL_MILLIS)) {
+        return;
+    }
+
+    AgentStats stats = {};
+    stats.samplesWritten = (int64_t) buffer_.popped();
+    stats.samplesDropped = (int64_t) buffer_.dropped();
+    stats.queueHighWaterMark = (int64_t) buffer_.highWaterMark();
+    stats.drainLatencyNanos = (int64_t) buffer_.drainLatencyNanos();
+    stats.maxDrainLatencyNanos = (int64_t) buffer_.maxDrainLatencyNanos();
+    stats.jvmtiLookupNanos = (int64_t) logWriter_.jvmtiLookupNanos();
+    stats.bytesWritten = (int64_t) logWriter_.bytesWritten();
+    if (stats.samplesWritten != lastStats_.samplesWritten || stats.samplesDropped != lastStats_.samplesDropped) {
+        logWriter_.recordAgentStats(stats);
+        lastStats_ = stats;
+    }
+    lastStatsTime_ = now;
+}
+
 void callbackToRunProcessor(jvmtiEnv *jvmti_env, JNIEnv *jni_env, void *arg) {
     IMPLICITLY_USE(jvmti_env);
     IMPLICITLY_USE(jni_env);
@@ -4,6 +4,8 @@
 #include <jvmti.h>
 #include "common.h"
 #include "log_writer.h"
+#include "striped_queue.h"
+#include <chrono>
 #include "signal_handler.h"
 
 #include "trace.h"
@@ -14,6 +16,9 @@ const int kTraceProcessorStart = 0;
 const int kTraceProcessorStop = 1;
 const int kTraceProcessorRunning = 2;
 
+// How often the agent statistics are written to the log, if they changed
+const int STATS_INTERVAL_MILLIS = 1000;
+
 TRACE_DECLARE(Processor, kTraceProcessorTotal);
 
 
@@ -21,9 +26,10 @@ class Processor {
 
 public:
     explicit Processor(jvmtiEnv* jvmti, LogWriter& logWriter,
-                       CircularQueue& buffer, SignalHandler& handler, int interval)
+                       StripedQueue& buffer, SignalHandler& handler, int interval)
         : jvmti_(jvmti), logWriter_(logWriter), buffer_(buffer),
-          isRunning_(false), handler_(handler), interval_(interval) {
+          isRunning_(false), handler_(handler), interval_(interval),
+          lastStats_(), lastStatsTime_(std::chrono::steady_clock::now()) {
     }
 
     void start(JNIEnv *jniEnv);
@@ -39,7 +45,7 @@ private:
 
     LogWriter& logWriter_;
 
-    CircularQueue& buffer_;
+    StripedQueue& buffer_;
 
     std::atomic_bool isRunning_;
 
@@ -49,6 +55,13 @@ private:
 
     int interval_;
 
+    // The statistics which were last written to the log, and when
+    AgentStats lastStats_;
+
+    std::chrono::steady_clock::time_point lastStatsTime_;
+
+    void recordStats(bool force);
+
     void startCallback(jvmtiEnv *jvmti_env, JNIEnv *jni_env, void *arg);
 
     DISALLOW_COPY_AND_ASSIGN(Processor);
@@ -229,14 +229,36 @@ int Profiler::getMaxFramesToCapture() {
     return liveConfiguration->maxFramesToCapture;
 }
 
+uint64_t Profiler::getLineNumberCacheHits() {
+    return lineNumbers_.hits();
+}
+
+uint64_t Profiler::getLineNumberCacheMisses() {
+    return lineNumbers_.misses();
+}
+
+void Profiler::invalidateLineNumbers(jmethodID methodId) {
+    lineNumbers_.invalidate(methodId);
+}
+
+void Profiler::invalidateAllLineNumbers() {
+    lineNumbers_.invalidateAll();
+}
+
+// The mean interval of the randomized sampling interval, which is configured in microseconds
+static int64_t samplingIntervalNanos(const ConfigurationOptions &configuration) {
+    return ((int64_t) configuration.samplingIntervalMin + configuration.samplingIntervalMax) * 1000 / 2;
+}
+
 void Profiler::configure() {
     /* nested critical section, no need to acquire or CAS */
     bool needsUpdate = processor == NULL;
 
     needsUpdate = needsUpdate || configuration_->logFilePath != liveConfiguration->logFilePath;
     if (needsUpdate) {
-        if (logFile) delete logFile;
+        // The writer flushes its buffered records to the log file when deleted
         if (writer) delete writer;
+        if (logFile) delete logFile;
         if (configuration_->logFilePath)
             safe_free_string(configuration_->logFilePath);
 
@@ -253,19 +275,31 @@ void Profiler::configure() {
             configuration_->logFilePath = liveConfiguration->logFilePath;
         }
 
-        logFile = new ofstream(fileName, ofstream::out | ofstream::binary);
+        if (liveConfiguration->compressLog) {
+            logFile = new CompressedFileStream(fileName, liveConfiguration->compressionDelay);
+        } else {
+            logFile = new ofstream(fileName, ofstream::out | ofstream::binary);
+        }
         if (logFile->fail()) {
             // The JVM will still continue to run though; could call abort() to terminate the JVM abnormally.
             logError("ERROR: Failed to open file %s for writing\n", fileName);
         }
-        writer = new LogWriter(*logFile, &Profiler::lookupFrameInformation, jvmti_);
+        writer = new LogWriter(*logFile, &Profiler::lookupFrameInformation, jvmti_,
+                               liveConfiguration->stackDictionary, liveConfiguration->compactEncoding,
+                               liveConfiguration->logBufferSize, liveConfiguration->logFlushInterval,
+                               &lineNumbers_, samplingIntervalNanos(*liveConfiguration));
     }
 
     needsUpdate = needsUpdate || configuration_->maxFramesToCapture != liveConfiguration->maxFramesToCapture;
     if (needsUpdate) {
         if (buffer) delete buffer;
         configuration_->maxFramesToCapture = liveConfiguration->maxFramesToCapture;
-        buffer = new CircularQueue(*writer, configuration_->maxFramesToCapture);
+        // The queue size is the total capacity, split across the stripes
+        int stripes = StripedQueue::stripesFor(liveConfiguration->queueStripes, configuration_->maxFramesToCapture);
+        int queueSize = liveConfiguration->queueSize > 0 ? liveConfiguration->queueSize : DEFAULT_QUEUE_SIZE;
+        size_t capacity = (size_t) queueSize;
+        buffer = new StripedQueue(*writer, configuration_->maxFramesToCapture, stripes,
+                                  StripedQueue::stripeSizeFor(stripes, capacity, configuration_->maxFramesToCapture));
     }
 
     needsUpdate = needsUpdate ||
@@ -277,7 +311,9 @@ void Profiler::configure() {
         configuration_->samplingIntervalMin = liveConfiguration->samplingIntervalMin;
         configuration_->samplingIntervalMax = liveConfiguration->samplingIntervalMax;
         handler_ = new SignalHandler(configuration_->samplingIntervalMin, configuration_->samplingIntervalMax);
-        int processor_interval = Size * configuration_->samplingIntervalMin / 1000 / 2;
+        writer->setSamplingInterval(samplingIntervalNanos(*configuration_));
+        // A single busy thread fills up its stripe, the processor has to drain it in time
+        int processor_interval = (int) buffer->stripeSize() * configuration_->samplingIntervalMin / 1000 / 2;
         processor = new Processor(jvmti_, *writer, *buffer, *handler_, processor_interval > 0 ? processor_interval : 1);
     }
     reloadConfig = false;
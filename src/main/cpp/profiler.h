@@ -13,6 +13,7 @@
 #include "stacktraces.h"
 #include "processor.h"
 #include "log_writer.h"
+#include "compressed_stream.h"
 
 using namespace std::chrono;
 using std::ofstream;
@@ -71,7 +72,7 @@ public:
     explicit Profiler(JavaVM *jvm, jvmtiEnv *jvmti, ConfigurationOptions *configuration, ThreadMap &tMap)
         : jvm_(jvm), jvmti_(jvmti), tMap_(tMap), liveConfiguration(configuration),
           logFile(NULL), writer(NULL), buffer(NULL), processor(NULL), handler_(NULL),
-          ongoingConf(false) {
+          ongoingConf(false), lineNumbers_(jvmti) {
         // main object graph instantiated here
         // these objects all live for the lifecycle of the program
 
@@ -112,6 +113,16 @@ public:
 
     void setMaxFramesToCapture(int maxFramesToCapture);
 
+    uint64_t getLineNumberCacheHits();
+
+    uint64_t getLineNumberCacheMisses();
+
+    /* Invalidation of cached line numbers, called from JVMTI events */
+
+    void invalidateLineNumbers(jmethodID methodId);
+
+    void invalidateAllLineNumbers();
+
     ~Profiler();
 
 private:
@@ -129,7 +140,7 @@ private:
 
     LogWriter *writer;
 
-    CircularQueue *buffer;
+    StripedQueue *buffer;
 
     Processor *processor;
 
@@ -142,6 +153,9 @@ private:
     // indicates change of internal state
     std::atomic<bool> ongoingConf;
 
+    // shared by the successive writers, so it can be invalidated while the log file changes
+    LineNumberCache lineNumbers_;
+
     static bool lookupFrameInformation(const JVMPI_CallFrame &frame,
                                        jvmtiEnv *jvmti,
                                        MethodListener &logWriter);
@@ -0,0 +1,113 @@
+#include "striped_queue.h"
+#include <unistd.h>
+#include <algorithm>
+
+static int defaultStripes() {
+    long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+    return (int) std::max(1L, std::min(cpus, (long) MAX_DEFAULT_QUEUE_STRIPES));
+}
+
+static size_t slotBytes(int maxFrameSize) {
+    return std::max((size_t) maxFrameSize, (size_t) 1) * sizeof(JVMPI_CallFrame);
+}
+
+int StripedQueue::stripesFor(int stripes, int maxFrameSize) {
+    if (stripes <= 0) {
+        stripes = defaultStripes();
+    }
+    size_t maxStripes = MAX_QUEUE_FRAME_BYTES / (MIN_QUEUE_STRIPE_SIZE * slotBytes(maxFrameSize));
+    return (int) std::max((size_t) 1, std::min((size_t) stripes, maxStripes));
+}
+
+size_t StripedQueue::stripeSizeFor(int stripes, size_t capacity, int maxFrameSize) {
+    size_t count = (size_t) std::max(stripes, 1);
+    size_t size = std::max(MIN_QUEUE_STRIPE_SIZE, (capacity + count - 1) / count);
+    size_t maxSize = MAX_QUEUE_FRAME_BYTES / (count * slotBytes(maxFrameSize));
+    return std::max(MIN_QUEUE_STRIPE_SIZE, std::min(size, maxSize));
+}
+
+StripedQueue::StripedQueue(QueueListener &listener, int maxFrameSize, int stripes, size_t stripeSize)
+        : stripeSize_(stripeSize), popped_(0) {
+    if (stripes <= 0) {
+        stripes = defaultStripes();
+    }
+    for (int i = 0; i < stripes; i++) {
+        stripes_.push_back(new CircularQueue(listener, maxFrameSize, stripeSize));
+    }
+}
+
+StripedQueue::~StripedQueue() {
+    for (CircularQueue *stripe : stripes_) {
+        delete stripe;
+    }
+}
+
+size_t StripedQueue::stripeFor(const JVMPI_CallTrace &item) const {
+    // The JNIEnv identifies the thread, its low bits are always 0 due to alignment
+    uint64_t hash = ((uint64_t) (uintptr_t) item.env_id >> 4) * 0x9E3779B97F4A7C15ULL;
+    return (size_t) (hash >> 32) % stripes_.size();
+}
+
+bool StripedQueue::push(const JVMPI_CallTrace &item, ThreadBucket *info) {
+    timespec spec;
+    TimeUtils::current_utc_time(&spec);
+
+    return push(spec, item, info);
+}
+
+bool StripedQueue::push(const timespec &ts, const JVMPI_CallTrace &item, ThreadBucket *info) {
+    return stripes_[stripeFor(item)]->push(ts, item, info);
+}
+
+static bool isBefore(const timespec &a, const timespec &b) {
+    return a.tv_sec < b.tv_sec || (a.tv_sec == b.tv_sec && a.tv_nsec < b.tv_nsec);
+}
+
+bool StripedQueue::pop() {
+    CircularQueue *oldest = nullptr;
+    timespec oldestTs = {};
+    for (CircularQueue *stripe : stripes_) {
+        timespec ts;
+        if (stripe->peek(ts) && (oldest == nullptr || isBefore(ts, oldestTs))) {
+            oldest = stripe;
+            oldestTs = ts;
+        }
+    }
+    if (oldest == nullptr || !oldest->pop()) {
+        return false;
+    }
+    popped_++;
+    return true;
+}
+
+uint64_t StripedQueue::dropped() const {
+    uint64_t total = 0;
+    for (CircularQueue *stripe : stripes_) {
+        total += stripe->dropped();
+    }
+    return total;
+}
+
+size_t StripedQueue::highWaterMark() const {
+    size_t mark = 0;
+    for (CircularQueue *stripe : stripes_) {
+        mark = std::max(mark, stripe->highWaterMark());
+    }
+    return mark;
+}
+
+uint64_t StripedQueue::drainLatencyNanos() const {
+    uint64_t total = 0;
+    for (CircularQueue *stripe : stripes_) {
+        total += stripe->drainLatencyNanos();
+    }
+    return total;
+}
+
+uint64_t StripedQueue::maxDrainLatencyNanos() const {
+    uint64_t latency = 0;
+    for (CircularQueue *stripe : stripes_) {
+        latency = std::max(latency, stripe->maxDrainLatencyNanos());
+    }
+    return latency;
+}
@@ -0,0 +1,87 @@
+#ifndef STRIPED_QUEUE_H
+#define STRIPED_QUEUE_H
+
+#include <vector>
+#include <stdint.h>
+
+#include "globals.h"
+#include "circular_queue.h"
+
+using std::vector;
+
+// Upper bound on the default number of stripes, which is the number of CPUs
+const int MAX_DEFAULT_QUEUE_STRIPES = 16;
+
+// The minimum number of traces a stripe holds, however many stripes the total capacity is split across
+const size_t MIN_QUEUE_STRIPE_SIZE = 64;
+
+// Upper bound on the memory reserved for the frames of all stripes together, every slot of a stripe reserves room for
+// the maximum number of frames
+const size_t MAX_QUEUE_FRAME_BYTES = 32 * 1024 * 1024;
+
+// Spreads the traces over several CircularQueues, picked by a hash of the sampled thread, so the signal handlers
+// running on different cores rarely contend on the same queue. A thread always uses the same stripe, which keeps its
+// traces in order. The single consumer always pops the trace with the oldest timestamp across the stripes, so the
+// traces of different threads are recorded in timestamp order too.
+class StripedQueue {
+public:
+    // A stripe count <= 0 selects the number of CPUs, capped at MAX_DEFAULT_QUEUE_STRIPES
+    explicit StripedQueue(QueueListener &listener, int maxFrameSize, int stripes = 0, size_t stripeSize = Size);
+
+    ~StripedQueue();
+
+    // The number of stripes to use for the requested count, where a count <= 0 selects the number of CPUs, capped at
+    // MAX_DEFAULT_QUEUE_STRIPES. The count is reduced if stripes of MIN_QUEUE_STRIPE_SIZE would already exceed
+    // MAX_QUEUE_FRAME_BYTES.
+    static int stripesFor(int stripes, int maxFrameSize);
+
+    // The size of every stripe when the total capacity is split across the stripes, at least MIN_QUEUE_STRIPE_SIZE and
+    // reduced if the frames of all stripes would exceed MAX_QUEUE_FRAME_BYTES
+    static size_t stripeSizeFor(int stripes, size_t capacity, int maxFrameSize);
+
+    bool push(const timespec &ts, const JVMPI_CallTrace &item, ThreadBucket *info = nullptr);
+
+    bool push(const JVMPI_CallTrace &item, ThreadBucket *info = nullptr);
+
+    // Pops the trace with the oldest timestamp from the heads of the stripes, returning false if all stripes are empty.
+    // A trace pushed concurrently with an older timestamp than the popped one can still be recorded after it.
+    bool pop();
+
+    int stripes() const {
+        return (int) stripes_.size();
+    }
+
+    size_t stripeSize() const {
+        return stripeSize_;
+    }
+
+    // The number of traces which couldn't be pushed because their stripe was full
+    uint64_t dropped() const;
+
+    // The highest number of traces any single stripe has held at once
+    size_t highWaterMark() const;
+
+    // The total time in nanoseconds the popped traces have spent in the queue
+    uint64_t drainLatencyNanos() const;
+
+    // The longest time in nanoseconds a popped trace has spent in the queue
+    uint64_t maxDrainLatencyNanos() const;
+
+    // The number of traces which have been popped
+    uint64_t popped() const {
+        return popped_;
+    }
+
+private:
+    vector<CircularQueue *> stripes_;
+
+    const size_t stripeSize_;
+
+    uint64_t popped_;
+
+    size_t stripeFor(const JVMPI_CallTrace &item) const;
+
+    DISALLOW_COPY_AND_ASSIGN(StripedQueue);
+};
+
+#endif // STRIPED_QUEUE_H
@@ -27,6 +27,7 @@ import com.insightfullogic.honest_profiler.core.collector.LogCollector;
 import com.insightfullogic.honest_profiler.core.collector.lean.LeanLogCollector;
 import com.insightfullogic.honest_profiler.core.parser.LogEventListener;
 import com.insightfullogic.honest_profiler.core.parser.LogParser;
+import com.insightfullogic.honest_profiler.core.parser.PrimitiveLogEventListener;
 import com.insightfullogic.honest_profiler.core.profiles.ProfileListener;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfileListener;
 import com.insightfullogic.honest_profiler.core.sources.LogSource;
@@ -71,6 +72,11 @@ public final class Monitor
         pipe(logSource, listener, false).run();
     }
 
+    public static void consumeFile(final LogSource logSource, final PrimitiveLogEventListener listener)
+    {
+        pipe(logSource, listener, false).run();
+    }
+
     private static Conductor pipe(final LogSource logSource, final ProfileListener listener,
         final boolean continuous)
     {
@@ -85,4 +91,11 @@ public final class Monitor
         return new Conductor(getLogger(Conductor.class), logSource, parser, continuous);
     }
 
+    public static Conductor pipe(final LogSource logSource, PrimitiveLogEventListener listener,
+        final boolean continuous)
+    {
+        LogParser parser = new LogParser(getLogger(LogParser.class), listener);
+        return new Conductor(getLogger(Conductor.class), logSource, parser, continuous);
+    }
+
 }
@@ -1,32 +1,54 @@
 package com.insightfullogic.honest_profiler.core.aggregation;
 
+import static java.util.concurrent.ForkJoinPool.commonPool;
+
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import com.insightfullogic.honest_profiler.core.aggregation.aggregator.FlatProfileAggregator;
+import com.insightfullogic.honest_profiler.core.aggregation.aggregator.ThreadPartials;
 import com.insightfullogic.honest_profiler.core.aggregation.aggregator.TreeProfileAggregator;
 import com.insightfullogic.honest_profiler.core.aggregation.grouping.CombinedGrouping;
+import com.insightfullogic.honest_profiler.core.aggregation.grouping.KeyTable;
 import com.insightfullogic.honest_profiler.core.aggregation.result.Aggregation;
+import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Entry;
 import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Flat;
 import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Node;
 import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Tree;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNodeCursor;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
 import com.insightfullogic.honest_profiler.core.profiles.lean.info.NumericInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.SampleTimeline;
 
 /**
  * An AggregationProfile is a wrapper for a {@link LeanProfile} which provides methods for creating {@link Aggregation}s
  * on the wrapped {@link LeanProfile}. The class caches these {@link Aggregation}s.
  * <p>
  * It also calculates the "global aggregated data", i.e. the result of aggregating all data from the profile.
+ * <p>
+ * The {@link Tree}s are aggregated lazily : only the thread-level {@link Node}s are aggregated up front, and the
+ * descendants of a {@link Node} are aggregated when they are first accessed.
+ * <p>
+ * When a source emits {@link LeanProfile}s repeatedly, an AggregationProfile for a new snapshot can be created from the
+ * one for the previous snapshot. The partial aggregations kept for the {@link Flat} and {@link Tree} aggregations of
+ * the previous one are then carried forward, and an aggregation is only brought up to date when it is requested,
+ * reusing the partial aggregations of the threads which haven't received any samples since. The cost of a refresh
+ * therefore depends on the aggregations which are actually shown, and on the threads which received samples rather
+ * than on the whole profile. The aggregations which were requested from the previous snapshot can be brought up to
+ * date on a background thread by {@link #prepare()}, before the AggregationProfile is handed to the views requesting
+ * them.
  */
 public class AggregationProfile
 {
     // Instance Properties
 
     private static final FlatProfileAggregator flatAggregator = new FlatProfileAggregator();
-    private static final TreeProfileAggregator treeAggregator = new TreeProfileAggregator();
+    private static final TreeProfileAggregator treeAggregator = new TreeProfileAggregator(commonPool(), true);
 
     private final LeanProfile source;
 
@@ -34,6 +56,23 @@ public class AggregationProfile
 
     private Map<CombinedGrouping, Flat> cachedFlats;
     private Map<CombinedGrouping, Tree> cachedTrees;
+    private Map<CombinedGrouping, KeyTable> keyTables;
+
+    // The partial aggregations of the threads for every cached aggregation, or null if they aren't kept.
+    private Map<CombinedGrouping, ThreadPartials> flatPartials;
+    private Map<CombinedGrouping, ThreadPartials> treePartials;
+
+    // The partial aggregations and KeyTables carried forward from previous snapshots, for the groupings which haven't
+    // been requested from this AggregationProfile yet.
+    private Map<CombinedGrouping, ThreadPartials> carriedFlats;
+    private Map<CombinedGrouping, ThreadPartials> carriedTrees;
+    private Map<CombinedGrouping, KeyTable> carriedKeyTables;
+
+    // The groupings requested through getFlat() and getTree(), and those requested from the previous snapshot.
+    private Set<CombinedGrouping> requestedFlats;
+    private Set<CombinedGrouping> requestedTrees;
+    private Set<CombinedGrouping> previousFlats;
+    private Set<CombinedGrouping> previousTrees;
 
     // Instance Constructors
 
@@ -43,19 +82,59 @@ public class AggregationProfile
      * @param source the wrapped {@link LeanProfile}
      */
     public AggregationProfile(LeanProfile source)
+    {
+        this(source, null, false);
+    }
+
+    /**
+     * Constructor which specifies the wrapped {@link LeanProfile} and the AggregationProfile wrapping the previous
+     * snapshot emitted by the same source. The partial aggregations kept by the previous AggregationProfile are carried
+     * forward, so when an aggregation is requested for the new snapshot, only the threads which changed since are
+     * aggregated. The AggregationProfile keeps the partial aggregations of its threads, so it can in turn be used to
+     * update the aggregations of the next one.
+     * <p>
+     * @param source the wrapped {@link LeanProfile}
+     * @param previous the AggregationProfile for the previous snapshot from the same source, or null
+     */
+    public AggregationProfile(LeanProfile source, AggregationProfile previous)
+    {
+        this(source, previous, true);
+    }
+
+    /**
+     * Internal constructor.
+     * <p>
+     * @param source the wrapped {@link LeanProfile}
+     * @param previous the AggregationProfile for the previous snapshot from the same source, or null
+     * @param incremental a boolean specifying whether the partial aggregations of the threads are kept
+     */
+    private AggregationProfile(LeanProfile source, AggregationProfile previous, boolean incremental)
     {
         this.source = source;
         global = new NumericInfo();
         cachedFlats = new HashMap<>();
         cachedTrees = new HashMap<>();
-
-        // ThreadInfo objects are stored separately in the LeanLogCollector (to avoid the assumption that a ThreadMeta
-        // will always be emitted before the first sample for the thread comes in), so we put them into the root
-        // LeanThreadNodes here.
-        source.getThreads().forEach((id, node) -> node.setThreadInfo(source.getThreadInfo(id)));
+        keyTables = new HashMap<>();
+        carriedFlats = new HashMap<>();
+        carriedTrees = new HashMap<>();
+        carriedKeyTables = new HashMap<>();
+        requestedFlats = new HashSet<>();
+        requestedTrees = new HashSet<>();
+        previousFlats = new HashSet<>();
+        previousTrees = new HashSet<>();
 
         // Calculate the overall aggregation for the LeanProfile
         global = aggregateGlobal();
+
+        if (incremental)
+        {
+            flatPartials = new HashMap<>();
+            treePartials = new HashMap<>();
+            if (previous != null)
+            {
+                update(previous);
+            }
+        }
     }
 
     // Instance Accessors
@@ -87,9 +166,10 @@ public class AggregationProfile
      * @param grouping the {@link CombinedGrouping} which determines the aggregation key while aggregating
      * @return the resulting {@link Flat} aggregation
      */
-    public Flat getFlat(CombinedGrouping grouping)
+    public synchronized Flat getFlat(CombinedGrouping grouping)
     {
-        return cachedFlats.computeIfAbsent(grouping, g -> flatAggregator.aggregate(this, g));
+        requestedFlats.add(grouping);
+        return cachedFlats.computeIfAbsent(grouping, g -> aggregateFlat(g, carriedFlats.remove(g)));
     }
 
     /**
@@ -99,24 +179,160 @@ public class AggregationProfile
      * @param grouping the {@link CombinedGrouping} which determines the aggregation key while aggregating
      * @return the resulting {@link Tree} aggregation
      */
-    public Tree getTree(CombinedGrouping grouping)
+    public synchronized Tree getTree(CombinedGrouping grouping)
+    {
+        requestedTrees.add(grouping);
+        return cachedTrees.computeIfAbsent(grouping, g -> aggregateTree(g, carriedTrees.remove(g)));
+    }
+
+    /**
+     * Returns the {@link KeyTable} which interns the keys calculated by the provided {@link CombinedGrouping} for the
+     * nodes of the wrapped {@link LeanProfile}. Aggregations use it to group nodes by int key id, so the String keys
+     * are only built once per distinct key.
+     * <p>
+     * @param grouping the {@link CombinedGrouping} which calculates the keys
+     * @return the {@link KeyTable} for the {@link CombinedGrouping}
+     */
+    public synchronized KeyTable getKeyTable(CombinedGrouping grouping)
+    {
+        return keyTables.computeIfAbsent(grouping, g ->
+        {
+            KeyTable previous = carriedKeyTables.remove(g);
+            return previous == null ? new KeyTable(this, g) : new KeyTable(this, previous);
+        });
+    }
+
+    /**
+     * Returns the {@link SampleTimeline} describing when the samples aggregated into the specified {@link Entry} or
+     * {@link Node} were taken, by adding up the timelines of the aggregated {@link LeanNode}s. Like the totals of the
+     * {@link Entry}, the result counts a sample once for every aggregated {@link LeanNode} it passed through.
+     * <p>
+     * Timelines are only available if the {@link LeanProfile} was collected with timelines enabled.
+     * <p>
+     * @param entry the {@link Entry} or {@link Node} for which the timeline is requested
+     * @return a new {@link SampleTimeline}, or null if none of the aggregated {@link LeanNode}s has a timeline
+     */
+    public SampleTimeline getTimeline(Entry entry)
     {
-        return cachedTrees.computeIfAbsent(grouping, g -> treeAggregator.aggregate(this, g));
+        SampleTimeline result = null;
+        for (LeanNode node : entry.getAggregatedNodes())
+        {
+            SampleTimeline timeline = node.getTimeline();
+            if (timeline != null)
+            {
+                result = result == null ? timeline.copy() : result.add(timeline);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Brings the {@link Flat} and {@link Tree} aggregations which were requested from the AggregationProfile for the
+     * previous snapshot up to date, so they are ready when they are requested again. This is meant to be called on a
+     * background thread before the AggregationProfile is handed over to the views, which would otherwise aggregate the
+     * changes on their own thread when they request the aggregations they show.
+     * <p>
+     * Preparing an aggregation doesn't count as requesting it, so an aggregation which isn't requested anymore is only
+     * prepared for the next snapshot.
+     */
+    public synchronized void prepare()
+    {
+        previousFlats.forEach(
+            grouping -> cachedFlats.computeIfAbsent(grouping, g -> aggregateFlat(g, carriedFlats.remove(g))));
+        previousTrees.forEach(
+            grouping -> cachedTrees.computeIfAbsent(grouping, g -> aggregateTree(g, carriedTrees.remove(g))));
     }
 
     // Helper Methods
 
+    /**
+     * Carries the {@link KeyTable}s and the partial aggregations of the AggregationProfile for the previous snapshot
+     * forward, so the aggregations it cached can be brought up to date for the snapshot wrapped by this
+     * AggregationProfile when they are requested. The ones the previous AggregationProfile carried itself, because they
+     * weren't requested from it, are carried forward as well.
+     * <p>
+     * @param previous the AggregationProfile for the previous snapshot from the same source
+     */
+    private void update(AggregationProfile previous)
+    {
+        synchronized (previous)
+        {
+            carriedKeyTables.putAll(previous.carriedKeyTables);
+            carriedKeyTables.putAll(previous.keyTables);
+            carriedFlats.putAll(previous.carriedFlats);
+            carriedTrees.putAll(previous.carriedTrees);
+            previousFlats.addAll(previous.requestedFlats);
+            previousTrees.addAll(previous.requestedTrees);
+            if (previous.flatPartials != null)
+            {
+                carriedFlats.putAll(previous.flatPartials);
+                carriedTrees.putAll(previous.treePartials);
+            }
+        }
+    }
+
+    /**
+     * Aggregates the {@link LeanProfile} into a {@link Flat}, reusing the partial aggregations of unchanged threads if
+     * partial aggregations are kept.
+     * <p>
+     * @param grouping the {@link CombinedGrouping} which determines the aggregation key while aggregating
+     * @param previous the partial aggregations of the previous snapshot, or null
+     * @return the resulting {@link Flat} aggregation
+     */
+    private Flat aggregateFlat(CombinedGrouping grouping, ThreadPartials previous)
+    {
+        if (flatPartials == null)
+        {
+            return flatAggregator.aggregate(this, grouping);
+        }
+
+        ThreadPartials partials = new ThreadPartials(previous);
+        flatPartials.put(grouping, partials);
+        return flatAggregator.aggregate(this, grouping, partials);
+    }
+
+    /**
+     * Aggregates the {@link LeanProfile} into a {@link Tree}, reusing the partial aggregations of unchanged threads if
+     * partial aggregations are kept.
+     * <p>
+     * @param grouping the {@link CombinedGrouping} which determines the aggregation key while aggregating
+     * @param previous the partial aggregations of the previous snapshot, or null
+     * @return the resulting {@link Tree} aggregation
+     */
+    private Tree aggregateTree(CombinedGrouping grouping, ThreadPartials previous)
+    {
+        if (treePartials == null)
+        {
+            return treeAggregator.aggregate(this, grouping);
+        }
+
+        ThreadPartials partials = new ThreadPartials(previous);
+        treePartials.put(grouping, partials);
+        return treeAggregator.aggregate(this, grouping, partials);
+    }
+
     /**
      * Calculate the global aggregation of the {@link LeanProfile}. This is obtained by summing the {@link NumericInfo}
      * from all {@link LeanThreadNode}s in the {@link LeanProfile}.
      * <p>
      * The {@link LeanThreadNode}s, which are the root {@link Node}s in the {@link LeanProfile}, are themselves already
-     * aggregations of all their descendant Frame {@link LeanNode}s, so we don't need to descend any further.
+     * aggregations of all their descendant Frame {@link LeanNode}s, so we don't need to descend any further. If the
+     * {@link LeanProfile} is backed by a {@link LeanTree}, the root nodes are read through a {@link LeanNodeCursor}, so
+     * the {@link LeanNode} trees don't need to be constructed.
      * <p>
      * @return the {@link NumericInfo} containing the aggregated data
      */
     private NumericInfo aggregateGlobal()
     {
+        LeanTree tree = source.getTree();
+        if (tree != null)
+        {
+            NumericInfo result = new NumericInfo();
+            LeanNodeCursor cursor = tree.cursor();
+            tree.getRoots().values().forEach(root -> result.add(cursor.moveTo(root).getData()));
+            return result;
+        }
+
         return source.getThreads().values().stream().collect(
             // Supplier, which creates a new NumericInfo which will contain the results
             NumericInfo::new,
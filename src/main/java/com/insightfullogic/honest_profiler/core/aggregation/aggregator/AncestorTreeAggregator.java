@@ -7,6 +7,7 @@ import java.util.Map;
 
 import com.insightfullogic.honest_profiler.core.aggregation.AggregationProfile;
 import com.insightfullogic.honest_profiler.core.aggregation.grouping.CombinedGrouping;
+import com.insightfullogic.honest_profiler.core.aggregation.grouping.KeyTable;
 import com.insightfullogic.honest_profiler.core.aggregation.result.Aggregation;
 import com.insightfullogic.honest_profiler.core.aggregation.result.Keyed;
 import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Entry;
@@ -37,7 +38,7 @@ public class AncestorTreeAggregator implements SubAggregator<Entry, Node>
         Node root = new Node(input);
         result.getData().add(root);
 
-        addAncestors(source, root, result, grouping);
+        addAncestors(source, root, result, source.getKeyTable(grouping));
         return result;
     }
 
@@ -48,12 +49,12 @@ public class AncestorTreeAggregator implements SubAggregator<Entry, Node>
      * @param source the original {@link AggregationProfile}
      * @param child the input {@link Node} whose ancestors will be aggregated and added as children
      * @param tree the resulting {@link Tree}
-     * @param grouping the key calculation grouping
+     * @param keys the {@link KeyTable} of the key calculation grouping
      */
-    private void addAncestors(AggregationProfile source, Node child, Tree tree,
-        CombinedGrouping grouping)
+    private void addAncestors(AggregationProfile source, Node child, Tree tree, KeyTable keys)
     {
-        Map<String, Node> result = child.getAggregatedNodes().stream().map(node -> node.getParent())
+        Map<String, Node> result = child.getAggregatedNodes().stream()
+            .map(node -> source.getSource().getParent(node))
             // Parent of a root LeanNode is null, we don't want those.
             .filter(node -> node != null)
             // Filter out duplicate parents, using the unique LeanNode id (which is used in the LeanNode.equals()).
@@ -62,7 +63,7 @@ public class AncestorTreeAggregator implements SubAggregator<Entry, Node>
             .distinct()
             .collect(groupingBy(
                 // Group LeanNodes by calculated key
-                node -> grouping.apply(source, node),
+                node -> keys.keyOf(node),
                 // Downstream collector, aggregates LeanNodes in a single group
                 of(
                     // Supplier, creates an empty Node
@@ -77,7 +78,7 @@ public class AncestorTreeAggregator implements SubAggregator<Entry, Node>
                     (node, leanNode) ->
                     {
                         node.add(leanNode);
-                        node.setKey(grouping.apply(source, leanNode));
+                        node.setKey(keys.keyOf(leanNode));
                     },
                     // Combiner, combines two Nodes with the same key
                     (node1, node2) -> node1.combine(node2)
@@ -90,7 +91,7 @@ public class AncestorTreeAggregator implements SubAggregator<Entry, Node>
             // The "child" Node in the ancestor Tree has its parents (the values of the calculated map) as children.
             child.addChild(mapEntry.getValue());
             // Recursively add ancestors
-            addAncestors(source, mapEntry.getValue(), tree, grouping);
+            addAncestors(source, mapEntry.getValue(), tree, keys);
         });
     }
 }
@@ -7,6 +7,7 @@ import java.util.Map;
 
 import com.insightfullogic.honest_profiler.core.aggregation.AggregationProfile;
 import com.insightfullogic.honest_profiler.core.aggregation.grouping.CombinedGrouping;
+import com.insightfullogic.honest_profiler.core.aggregation.grouping.KeyTable;
 import com.insightfullogic.honest_profiler.core.aggregation.result.Aggregation;
 import com.insightfullogic.honest_profiler.core.aggregation.result.Keyed;
 import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Entry;
@@ -37,7 +38,7 @@ public class DescendantTreeAggregator implements SubAggregator<Entry, Node>
         Node root = new Node(input);
         result.getData().add(root);
 
-        addChildren(source, root, result, grouping);
+        addChildren(source, root, result, source.getKeyTable(grouping));
         return result;
     }
 
@@ -48,17 +49,16 @@ public class DescendantTreeAggregator implements SubAggregator<Entry, Node>
      * @param source the original {@link AggregationProfile}
      * @param child the input {@link Node}
      * @param tree the resulting {@link Tree}
-     * @param grouping the key calculation grouping
+     * @param keys the {@link KeyTable} of the key calculation grouping
      */
-    private void addChildren(AggregationProfile source, Node child, Tree tree,
-        CombinedGrouping grouping)
+    private void addChildren(AggregationProfile source, Node child, Tree tree, KeyTable keys)
     {
         Map<String, Node> result = child.getAggregatedNodes().stream()
             // Create a stream of all LeanNodes aggregated by the Entry, and aggregate according to the Grouping
             .flatMap(node -> node.getChildren().stream())
             .collect(groupingBy(
                 // Group LeanNodes by calculated key
-                node -> grouping.apply(source, node),
+                node -> keys.keyOf(node),
                 // Downstream collector, collects LeanNodes in a single group
                 of(
                     // Supplier, creates an empty Node
@@ -73,7 +73,7 @@ public class DescendantTreeAggregator implements SubAggregator<Entry, Node>
                     (x, y) ->
                     {
                         x.add(y);
-                        x.setKey(grouping.apply(source, y));
+                        x.setKey(keys.keyOf(y));
                     },
                     // Combiner, combines two Nodes with the same key
                     (x, y) -> x.combine(y)
@@ -85,7 +85,7 @@ public class DescendantTreeAggregator implements SubAggregator<Entry, Node>
         {
             child.addChild(parent);
             // Recursively add descendants
-            addChildren(source, parent, tree, grouping);
+            addChildren(source, parent, tree, keys);
         });
     }
 }
@@ -1,24 +1,78 @@
 package com.insightfullogic.honest_profiler.core.aggregation.aggregator;
 
-import static java.util.stream.Collector.of;
-import static java.util.stream.Collectors.groupingBy;
-import static java.util.stream.Collectors.toList;
+import static java.lang.Math.max;
+import static java.util.Arrays.copyOf;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.ForkJoinTask.adapt;
+import static java.util.concurrent.ForkJoinTask.invokeAll;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import com.insightfullogic.honest_profiler.core.aggregation.AggregationProfile;
 import com.insightfullogic.honest_profiler.core.aggregation.grouping.CombinedGrouping;
+import com.insightfullogic.honest_profiler.core.aggregation.grouping.KeyTable;
 import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Entry;
 import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Flat;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNodeCursor;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
 
 /**
  * Aggregator which takes an {@link AggregationProfile}, and uses the data to aggregate the values into a {@link Flat}
  * aggregation.
+ * <p>
+ * The aggregation runs on a {@link ForkJoinPool}. Subtrees of the {@link LeanProfile} containing a large enough share of
+ * the samples are aggregated into partial results by separate tasks, and the partial results are merged in the order in
+ * which a sequential walk of the trees would have visited the subtrees. The result is therefore identical to that of a
+ * sequential aggregation, including the order of the Entries and of the {@link LeanNode}s aggregated by every Entry. A
+ * pool with parallelism 1 aggregates sequentially.
+ * <p>
+ * A {@link LeanProfile} stored in a {@link LeanTree} is read through a {@link LeanNodeCursor}, and the Entries keep the
+ * indices of the aggregated nodes, so the aggregation doesn't create any {@link LeanNode}s.
  */
 public class FlatProfileAggregator implements ProfileAggregator<Entry>
 {
+    // Class Properties
+
+    // The number of tasks created per worker thread, to even out the load when subtrees differ in size.
+    private static final int TASKS_PER_THREAD = 8;
+    // Subtrees with fewer samples are never split off, since the cost of a task would outweigh the gain.
+    private static final long MIN_TASK_SAMPLES = 4096;
+
+    // Instance Properties
+
+    private final ForkJoinPool pool;
+
+    // Instance Constructors
+
+    /**
+     * Constructor for an aggregator which runs on the common {@link ForkJoinPool}.
+     */
+    public FlatProfileAggregator()
+    {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor for an aggregator which runs on the specified {@link ForkJoinPool}.
+     * <p>
+     * @param pool the {@link ForkJoinPool} the aggregation runs on
+     */
+    public FlatProfileAggregator(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    // Aggregator Implementation
+
     /**
      * Aggregates an {@link AggregationProfile} into a {@link Flat}. The {@link CombinedGrouping} specifies which
      * {@link LeanNode}s are aggregated together.
@@ -32,37 +86,465 @@ public class FlatProfileAggregator implements ProfileAggregator<Entry>
         Flat result = new Flat(input, grouping);
 
         LeanProfile source = input.getSource();
+        KeyTable keys = input.getKeyTable(grouping);
+
+        // Aggregate all LeanNodes below the LeanThreadNodes into the Entry for their key.
+        Part part = pool.invoke(newTask(source, source.getThreads().values(), keys, result, threshold(input)));
+
+        return collect(input, result, keys, part);
+    }
+
+    /**
+     * Aggregates an {@link AggregationProfile} into a {@link Flat}, like {@link #aggregate(AggregationProfile,
+     * CombinedGrouping)}, but aggregates every thread separately, and reuses the partial aggregations of the threads
+     * which are unchanged since the previous aggregation the {@link ThreadPartials} were created from. That
+     * aggregation must have used the same {@link CombinedGrouping} and the {@link KeyTable} of the input must assign
+     * the same key ids, which is the case if the {@link AggregationProfile} was created from the previous one.
+     * <p>
+     * The result is the same as that of a full aggregation. The work done is proportional to the size of the changed
+     * threads and the number of Entries, rather than to the size of the profile.
+     * <p>
+     * @param input the {@link AggregationProfile} to be aggregated
+     * @param grouping the {@link CombinedGrouping} which specifies which {@link LeanNode}s are aggregated together
+     * @param partials the {@link ThreadPartials} receiving the partial aggregations of the threads
+     * @return the resulting {@link Flat}
+     */
+    public Flat aggregate(AggregationProfile input, CombinedGrouping grouping, ThreadPartials partials)
+    {
+        // Prepare result.
+        Flat result = new Flat(input, grouping);
+
+        LeanProfile source = input.getSource();
+        Collection<LeanThreadNode> threads = source.getThreads().values();
+        KeyTable keys = input.getKeyTable(grouping);
+        long threshold = threshold(input);
+
+        // Aggregate the changed threads into a Part each. The Parts are kept for later aggregations, so their Entries
+        // don't belong to any Flat, to avoid references to previous results.
+        Map<LeanThreadNode, RecursiveTask<Part>> tasks = new IdentityHashMap<>();
+        for (LeanThreadNode thread : threads)
+        {
+            if (partials.<Part> reuse(thread) == null)
+            {
+                tasks.put(thread, newTask(source, singletonList(thread), keys, null, threshold));
+            }
+        }
+        pool.invoke(adapt(() -> invokeAll(tasks.values())));
+        tasks.forEach((thread, task) -> partials.put(thread, task.join()));
 
-        // Flatten all LeanNodes into a Stream, then collect it into a Map where the key is calculated by the groupings,
-        // and the value is the aggregation of the LeanNodes corresponding to the key.
-        Map<String, Entry> entryMap = source.getThreads().values().stream()
-            // Stream all LeanNodes in the profile
-            .flatMap(LeanNode::flatten)
-            // Filter out the LeanThreadNodes
-            .filter(node -> !node.isThreadNode()).collect(
-                groupingBy(
-                    // Group LeanNodes by calculated key
-                    node -> grouping.apply(input, node),
-                    // Downstream collector, aggregates LeanNodes in a single group
-                    of(
-                        // Supplier, creates an empty Entry
-                        () -> new Entry(result),
-                        // Accumulator, aggregates a LeanNode into the Entry accumulator
-                        (entry, leanNode) -> entry.add(leanNode),
-                        // Combiner, combines two Entries with the same key
-                        (entry1, entry2) -> entry1.combine(entry2))));
-
-        // Add the aggregated Entries to the result list, after setting their key and reference.
-        result.getData().addAll(entryMap.entrySet().stream().map(mapEntry ->
-        {
-            Entry entry = mapEntry.getValue();
-            // The key must be set explicitly here because it isn't set in the collector.
-            entry.setKey(mapEntry.getKey());
+        // Combine the Parts in thread order. The Entries of the Parts are kept for later aggregations, so they are
+        // combined into new Entries rather than into each other.
+        Part part = new Part();
+        for (LeanThreadNode thread : threads)
+        {
+            RecursiveTask<Part> task = tasks.get(thread);
+            part.combine(task == null ? partials.reuse(thread) : task.join(), result);
+        }
+        partials.release();
+
+        return collect(input, result, keys, part);
+    }
+
+    // Helper Methods
+
+    /**
+     * Creates the task aggregating the specified {@link LeanNode}s of the profile, which reads the nodes through a
+     * {@link LeanNodeCursor} if the profile is stored in a {@link LeanTree}.
+     * <p>
+     * @param source the {@link LeanProfile} being aggregated
+     * @param nodes the {@link LeanNode}s to be aggregated
+     * @param keys the {@link KeyTable} determining the key ids
+     * @param result the {@link Flat} the Entries belong to, or null
+     * @param threshold the minimum number of samples in a subtree aggregated by a separate task
+     * @return the new task
+     */
+    private static RecursiveTask<Part> newTask(LeanProfile source,
+                                               Collection<? extends LeanNode> nodes,
+                                               KeyTable keys,
+                                               Flat result,
+                                               long threshold)
+    {
+        if (source.getTree() == null)
+        {
+            return new FlatTask(nodes, keys, result, threshold);
+        }
+        int[] indices = nodes.stream().mapToInt(LeanNode::getTreeIndex).toArray();
+        return new CursorTask(source.getTree(), indices, keys, result, threshold);
+    }
+
+    /**
+     * Merges the {@link Part}s and the results of the subtasks, in order.
+     * <p>
+     * @param segments the {@link Part}s and the subtasks
+     * @return the merged {@link Part}
+     */
+    private static Part merge(List<Object> segments)
+    {
+        Part part = segments.isEmpty() ? new Part() : join(segments.get(0));
+        for (int i = 1; i < segments.size(); i++)
+        {
+            part.merge(join(segments.get(i)));
+        }
+        return part;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Part join(Object segment)
+    {
+        return segment instanceof Part ? (Part)segment : ((RecursiveTask<Part>)segment).join();
+    }
+
+    private static Part newPart(List<Object> segments)
+    {
+        Part part = new Part();
+        segments.add(part);
+        return part;
+    }
+
+    /**
+     * Returns the minimum number of samples in a subtree for it to be aggregated by a separate task.
+     * <p>
+     * @param input the {@link AggregationProfile} being aggregated
+     * @return the minimum number of samples in a subtree aggregated by a separate task
+     */
+    private long threshold(AggregationProfile input)
+    {
+        return pool.getParallelism() == 1 ? Long.MAX_VALUE
+            : max(input.getGlobalData().getTotalCnt() / (pool.getParallelism() * TASKS_PER_THREAD), MIN_TASK_SAMPLES);
+    }
+
+    /**
+     * Adds the aggregated Entries of a {@link Part} to the result list, after setting their key and reference.
+     * <p>
+     * @param input the aggregated {@link AggregationProfile}
+     * @param result the resulting {@link Flat}
+     * @param keys the {@link KeyTable} determining the key ids
+     * @param part the {@link Part} containing the aggregated Entries
+     * @return the resulting {@link Flat}
+     */
+    private Flat collect(AggregationProfile input, Flat result, KeyTable keys, Part part)
+    {
+        for (int i = 0; i < part.size; i++)
+        {
+            Entry entry = part.entries[i];
+            entry.setKey(keys.keyOf(part.order[i]));
             // Set the reference by default for all nodes to the global aggregation.
             entry.setReference(input.getGlobalData());
-            return entry;
-        }).collect(toList()));
-
+            result.getData().add(entry);
+        }
         return result;
     }
+
+    /**
+     * A partial aggregation, containing the Entries for the keys encountered in a part of the {@link LeanProfile}.
+     * <p>
+     * The Entries are looked up by the id of their key in a small open-addressing table, so grouping doesn't need to
+     * hash or even build the String keys, and the memory used by a Part is proportional to the number of keys it
+     * contains rather than to the number of keys in the profile.
+     */
+    private static final class Part
+    {
+        private static final int INITIAL_CAPACITY = 16;
+
+        // The key ids and the Entries, in the order in which the keys were first encountered.
+        private int[] order = new int[INITIAL_CAPACITY];
+        private Entry[] entries = new Entry[INITIAL_CAPACITY];
+        private int size;
+
+        // Open-addressing table containing indices into the order and entries arrays plus 1, or 0 for empty slots. The
+        // capacity is always a power of 2 and at least twice the size.
+        private int[] table = new int[INITIAL_CAPACITY * 2];
+
+        private Entry get(int id)
+        {
+            int mask = table.length - 1;
+            for (int slot = hash(id) & mask; table[slot] != 0; slot = (slot + 1) & mask)
+            {
+                if (order[table[slot] - 1] == id)
+                {
+                    return entries[table[slot] - 1];
+                }
+            }
+            return null;
+        }
+
+        private void put(int id, Entry entry)
+        {
+            if (size == order.length)
+            {
+                order = copyOf(order, size * 2);
+                entries = copyOf(entries, size * 2);
+                table = new int[size * 4];
+                for (int i = 0; i < size; i++)
+                {
+                    insert(i);
+                }
+            }
+
+            order[size] = id;
+            entries[size] = entry;
+            insert(size++);
+        }
+
+        private void insert(int index)
+        {
+            int mask = table.length - 1;
+            int slot = hash(order[index]) & mask;
+            while (table[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = index + 1;
+        }
+
+        private static int hash(int id)
+        {
+            int hash = id * 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+
+        /**
+         * Aggregates a {@link LeanNode} into the Entry for its key, creating the Entry if needed.
+         * <p>
+         * @param node the {@link LeanNode} to be aggregated
+         * @param keys the {@link KeyTable} determining the key ids
+         * @param result the {@link Flat} the Entries belong to
+         */
+        private void add(LeanNode node, KeyTable keys, Flat result)
+        {
+            int id = keys.idOf(node);
+            Entry entry = get(id);
+            if (entry == null)
+            {
+                entry = new Entry(result);
+                put(id, entry);
+            }
+            entry.add(node);
+        }
+
+        /**
+         * Aggregates a {@link LeanNode} and all its descendants.
+         * <p>
+         * @param node the {@link LeanNode} to be aggregated
+         * @param keys the {@link KeyTable} determining the key ids
+         * @param result the {@link Flat} the Entries belong to
+         */
+        private void addSubtree(LeanNode node, KeyTable keys, Flat result)
+        {
+            add(node, keys, result);
+            // The tree is walked recursively rather than through LeanNode.flatten(), whose nested streams are
+            // expensive for deep trees.
+            for (LeanNode child : node.getChildren())
+            {
+                addSubtree(child, keys, result);
+            }
+        }
+
+        /**
+         * Aggregates the node of a {@link LeanTree} the {@link LeanNodeCursor} is positioned on into the Entry for its
+         * key, creating the Entry if needed.
+         * <p>
+         * @param cursor the {@link LeanNodeCursor} positioned on the node to be aggregated
+         * @param keys the {@link KeyTable} determining the key ids
+         * @param result the {@link Flat} the Entries belong to
+         */
+        private void add(LeanNodeCursor cursor, KeyTable keys, Flat result)
+        {
+            int id = keys.idOf(cursor);
+            Entry entry = get(id);
+            if (entry == null)
+            {
+                entry = new Entry(result);
+                put(id, entry);
+            }
+            entry.add(cursor);
+        }
+
+        /**
+         * Aggregates the node of a {@link LeanTree} the {@link LeanNodeCursor} is positioned on and all its
+         * descendants. The cursor is positioned on the node again afterwards.
+         * <p>
+         * @param cursor the {@link LeanNodeCursor} positioned on the node to be aggregated
+         * @param keys the {@link KeyTable} determining the key ids
+         * @param result the {@link Flat} the Entries belong to
+         */
+        private void addSubtree(LeanNodeCursor cursor, KeyTable keys, Flat result)
+        {
+            int node = cursor.getNode();
+            add(cursor, keys, result);
+            for (boolean more = cursor.toFirstChild(); more;)
+            {
+                int child = cursor.getNode();
+                addSubtree(cursor, keys, result);
+                more = cursor.moveTo(child).toNextSibling();
+            }
+            cursor.moveTo(node);
+        }
+
+        /**
+         * Merges another Part, covering the part of the {@link LeanProfile} following the one covered by this Part, into
+         * this one.
+         * <p>
+         * @param other the Part to be merged into this one
+         * @return this Part
+         */
+        private Part merge(Part other)
+        {
+            for (int i = 0; i < other.size; i++)
+            {
+                int id = other.order[i];
+                Entry entry = get(id);
+                if (entry == null)
+                {
+                    put(id, other.entries[i]);
+                }
+                else
+                {
+                    entry.combine(other.entries[i]);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Combines the Entries of another Part, covering the part of the {@link LeanProfile} following the one covered
+         * by this Part, into new Entries of this Part, leaving the other Part unchanged.
+         * <p>
+         * @param other the Part to be combined into this one
+         * @param result the {@link Flat} the Entries belong to
+         */
+        private void combine(Part other, Flat result)
+        {
+            for (int i = 0; i < other.size; i++)
+            {
+                int id = other.order[i];
+                Entry entry = get(id);
+                if (entry == null)
+                {
+                    entry = new Entry(result);
+                    put(id, entry);
+                }
+                entry.combine(other.entries[i]);
+            }
+        }
+    }
+
+    /**
+     * Task which aggregates a number of {@link LeanNode}s, excluding {@link LeanNode}s representing threads, and their
+     * descendants into a {@link Part}. Children with more samples than the threshold are aggregated by subtasks.
+     */
+    private static final class FlatTask extends RecursiveTask<Part>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Collection<? extends LeanNode> nodes;
+        private final KeyTable keys;
+        private final Flat result;
+        private final long threshold;
+
+        private FlatTask(Collection<? extends LeanNode> nodes, KeyTable keys, Flat result, long threshold)
+        {
+            this.nodes = nodes;
+            this.keys = keys;
+            this.result = result;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Part compute()
+        {
+            // The Parts and subtasks, in the order of the subtrees they cover.
+            List<Object> segments = new ArrayList<>();
+            Part current = null;
+
+            for (LeanNode node : nodes)
+            {
+                if (!node.isThreadNode())
+                {
+                    current = current == null ? newPart(segments) : current;
+                    current.add(node, keys, result);
+                }
+
+                for (LeanNode child : node.getChildren())
+                {
+                    if (child.getData().getTotalCnt() > threshold)
+                    {
+                        FlatTask task = new FlatTask(singletonList(child), keys, result, threshold);
+                        task.fork();
+                        segments.add(task);
+                        current = null;
+                    }
+                    else
+                    {
+                        current = current == null ? newPart(segments) : current;
+                        current.addSubtree(child, keys, result);
+                    }
+                }
+            }
+
+            return merge(segments);
+        }
+    }
+
+    /**
+     * Task which aggregates a number of nodes of a {@link LeanTree}, excluding the root nodes of threads, and their
+     * descendants into a {@link Part}, like a {@link FlatTask}, but reads the nodes through a {@link LeanNodeCursor}.
+     */
+    private static final class CursorTask extends RecursiveTask<Part>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final LeanTree tree;
+        private final int[] nodes;
+        private final KeyTable keys;
+        private final Flat result;
+        private final long threshold;
+
+        private CursorTask(LeanTree tree, int[] nodes, KeyTable keys, Flat result, long threshold)
+        {
+            this.tree = tree;
+            this.nodes = nodes;
+            this.keys = keys;
+            this.result = result;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Part compute()
+        {
+            // The Parts and subtasks, in the order of the subtrees they cover.
+            List<Object> segments = new ArrayList<>();
+            Part current = null;
+            LeanNodeCursor cursor = tree.cursor();
+
+            for (int node : nodes)
+            {
+                if (!cursor.moveTo(node).isThreadNode())
+                {
+                    current = current == null ? newPart(segments) : current;
+                    current.add(cursor, keys, result);
+                }
+
+                for (boolean more = cursor.toFirstChild(); more;)
+                {
+                    int child = cursor.getNode();
+                    if (cursor.getTotalCnt() > threshold)
+                    {
+                        CursorTask task = new CursorTask(tree, new int[] { child }, keys, result, threshold);
+                        task.fork();
+                        segments.add(task);
+                        current = null;
+                    }
+                    else
+                    {
+                        current = current == null ? newPart(segments) : current;
+                        current.addSubtree(cursor, keys, result);
+                    }
+                    more = cursor.moveTo(child).toNextSibling();
+                }
+            }
+
+            return merge(segments);
+        }
+    }
 }
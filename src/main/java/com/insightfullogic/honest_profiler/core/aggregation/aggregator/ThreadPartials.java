@@ -0,0 +1,91 @@
+package com.insightfullogic.honest_profiler.core.aggregation.aggregator;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.insightfullogic.honest_profiler.core.aggregation.AggregationProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+
+/**
+ * ThreadPartials keeps the partial aggregations of the individual threads of a {@link LeanProfile}, so the aggregation
+ * of a later snapshot of the same profile only needs to aggregate the threads which received samples in the meantime.
+ * <p>
+ * A {@link LeanProfile} shares the {@link LeanThreadNode} of every thread which hasn't received any samples with the
+ * previously emitted profile, so a thread is known to be unchanged if its {@link LeanThreadNode} is the same object.
+ * The partial aggregations are therefore looked up by identity rather than by the {@link LeanThreadNode} id, which is
+ * also shared by copies of a changed thread.
+ * <p>
+ * Every aggregation writes the partial aggregations of the threads it aggregated into its own ThreadPartials, and only
+ * reads those of the ThreadPartials it was created from. The ThreadPartials of an {@link AggregationProfile} can
+ * therefore be used to create those of several later snapshots, and are never modified once the aggregation is done.
+ */
+public final class ThreadPartials
+{
+    // Instance Properties
+
+    private Map<LeanThreadNode, Object> previous;
+    private final Map<LeanThreadNode, Object> current;
+
+    // Instance Constructors
+
+    /**
+     * Constructor for the ThreadPartials of an aggregation which can't reuse any partial aggregations.
+     */
+    public ThreadPartials()
+    {
+        this(null);
+    }
+
+    /**
+     * Constructor for the ThreadPartials of an aggregation which can reuse the partial aggregations of a previous
+     * aggregation of the same profile, using the same aggregator and grouping.
+     * <p>
+     * @param previous the ThreadPartials of the previous aggregation, or null
+     */
+    public ThreadPartials(ThreadPartials previous)
+    {
+        this.previous = previous == null ? null : previous.current;
+        current = new IdentityHashMap<>();
+    }
+
+    // Partial Aggregation Methods
+
+    /**
+     * Returns the partial aggregation of the specified thread from the previous aggregation, if the thread hasn't
+     * changed since, and records it as partial aggregation of the current one.
+     * <p>
+     * @param <P> the type of the partial aggregations
+     * @param thread the {@link LeanThreadNode} of the thread
+     * @return the partial aggregation of the unchanged thread, or null
+     */
+    @SuppressWarnings("unchecked")
+    <P> P reuse(LeanThreadNode thread)
+    {
+        Object partial = previous == null ? null : previous.get(thread);
+        if (partial != null)
+        {
+            current.put(thread, partial);
+        }
+        return (P)partial;
+    }
+
+    /**
+     * Records the partial aggregation of the specified thread.
+     * <p>
+     * @param thread the {@link LeanThreadNode} of the thread
+     * @param partial the partial aggregation of the thread
+     */
+    void put(LeanThreadNode thread, Object partial)
+    {
+        current.put(thread, partial);
+    }
+
+    /**
+     * Releases the partial aggregations of the previous aggregation, once the current one is done.
+     */
+    void release()
+    {
+        previous = null;
+    }
+}
@@ -1,22 +1,92 @@
 package com.insightfullogic.honest_profiler.core.aggregation.aggregator;
 
-import static java.util.stream.Collector.of;
-import static java.util.stream.Collectors.groupingBy;
+import static java.lang.Math.max;
+import static java.util.concurrent.ForkJoinTask.adapt;
+import static java.util.concurrent.ForkJoinTask.invokeAll;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import com.insightfullogic.honest_profiler.core.aggregation.AggregationProfile;
 import com.insightfullogic.honest_profiler.core.aggregation.grouping.CombinedGrouping;
+import com.insightfullogic.honest_profiler.core.aggregation.grouping.KeyTable;
 import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Node;
 import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Tree;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNodeCursor;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
 
 /**
  * Aggregator which takes an {@link AggregationProfile}, and uses the data to aggregate the values into a {@link Tree}.
+ * <p>
+ * The aggregation runs on a {@link ForkJoinPool}. Every thread, and every subtree of the {@link LeanProfile} containing
+ * a large enough share of the samples, is aggregated into a partial {@link Node} tree by a separate task, and the
+ * partial trees are merged in the order in which a sequential walk of the trees would have visited the subtrees. The
+ * result is therefore identical to that of a sequential aggregation, including the order of the {@link LeanNode}s
+ * aggregated by every {@link Node}. A pool with parallelism 1 aggregates sequentially.
+ * <p>
+ * A lazy aggregator only aggregates the threads into lazy {@link Node}s, whose descendants are aggregated when they are
+ * first accessed. The aggregation then costs next to nothing, which suits views which only show the parts of the
+ * {@link Tree} the user expands. The materialized {@link Tree} is identical to the one aggregated eagerly.
+ * <p>
+ * A {@link LeanProfile} stored in a {@link LeanTree} is read through a {@link LeanNodeCursor}, and the {@link Node}s
+ * keep the indices of the aggregated nodes, so the aggregation doesn't create any {@link LeanNode}s.
  */
 public class TreeProfileAggregator implements ProfileAggregator<Node>
 {
+    // Class Properties
+
+    // The number of tasks created per worker thread, to even out the load when subtrees differ in size.
+    private static final int TASKS_PER_THREAD = 8;
+    // Subtrees with fewer samples are never split off, since the cost of a task would outweigh the gain.
+    private static final long MIN_TASK_SAMPLES = 4096;
+
+    // Instance Properties
+
+    private final ForkJoinPool pool;
+    private final boolean lazy;
+
+    // Instance Constructors
+
+    /**
+     * Constructor for an eager aggregator which runs on the common {@link ForkJoinPool}.
+     */
+    public TreeProfileAggregator()
+    {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor for an eager aggregator which runs on the specified {@link ForkJoinPool}.
+     * <p>
+     * @param pool the {@link ForkJoinPool} the aggregation runs on
+     */
+    public TreeProfileAggregator(ForkJoinPool pool)
+    {
+        this(pool, false);
+    }
+
+    /**
+     * Constructor for an aggregator which runs on the specified {@link ForkJoinPool}, and which aggregates lazily if
+     * specified.
+     * <p>
+     * @param pool the {@link ForkJoinPool} the eager aggregation runs on
+     * @param lazy a boolean specifying whether the descendants of the thread-level {@link Node}s are aggregated lazily
+     */
+    public TreeProfileAggregator(ForkJoinPool pool, boolean lazy)
+    {
+        this.pool = pool;
+        this.lazy = lazy;
+    }
+
     // Aggregator Implementation
 
     /**
@@ -32,30 +102,27 @@ public class TreeProfileAggregator implements ProfileAggregator<Node>
         Tree result = new Tree(input, grouping);
 
         LeanProfile profile = input.getSource();
+        KeyTable keys = input.getKeyTable(grouping);
 
-        Map<String, Node> nodeMap = profile.getThreads().values().stream().collect(
-            groupingBy(
-                // Group LeanNodes by calculated key
-                node -> grouping.apply(input, node),
-                // Downstream collector, aggregates LeanNodes in a single group
-                of(
-                    // Supplier, creates an empty Node
-                    () -> new Node(result),
-                    // Accumulator, aggregates a LeanNode into the Node accumulator
-                    (node, leanNode) ->
-                    {
-                        node.add(leanNode);
-                        node.setKey(grouping.apply(input, leanNode));
-                        // Aggregate descendants of a LeanNode recursively into children of accumulator. The recursion
-                        // happens inside the Node.addChild() method, triggered by the boolean parameter.
-                        leanNode.getChildren()
-                            .forEach(child -> node.addChild(child, grouping, true));
-                    },
-                    // Combiner, combines two Nodes with the same key
-                    (node1, node2) -> node1.combine(node2)
-                )
-            )
-        );
+        if (lazy)
+        {
+            // Group the threads by their key, in thread order.
+            Map<String, Node> nodeMap = new HashMap<>();
+            for (LeanThreadNode thread : profile.getThreads().values())
+            {
+                nodeMap.computeIfAbsent(keys.keyOf(thread), key -> lazyNode(key, result)).add(thread);
+            }
+            nodeMap.values().forEach(node -> node.setReference(input.getGlobalData()));
+            result.getData().addAll(nodeMap.values());
+            return result;
+        }
+
+        List<Node> threadNodes = pool
+            .invoke(new ThreadsTask(profile, profile.getThreads().values(), keys, result, threshold(input)));
+
+        // Group the thread-level Nodes by their key, in thread order.
+        Map<String, Node> nodeMap = new HashMap<>();
+        threadNodes.forEach(node -> nodeMap.merge(node.getKey(), node, Node::merge));
 
         // Set the reference by default for all nodes to the global aggregation.
         // We do this here because the addChild() method doesn't propagate the reference, and proably shouldn't.
@@ -68,4 +135,332 @@ public class TreeProfileAggregator implements ProfileAggregator<Node>
 
         return result;
     }
+
+    /**
+     * Aggregates an {@link AggregationProfile} into a {@link Tree}, like {@link #aggregate(AggregationProfile,
+     * CombinedGrouping)}, but reuses the partial aggregations of the threads which are unchanged since the previous
+     * aggregation the {@link ThreadPartials} were created from. That aggregation must have used the same
+     * {@link CombinedGrouping}.
+     * <p>
+     * The result is the same as that of a full aggregation. A thread whose key isn't shared with any other thread is
+     * aggregated into a {@link Node} tree which is reused as it is by later aggregations, for as long as the thread
+     * doesn't change, and the same holds for the parts of the trees of threads sharing their key which don't overlap.
+     * Such {@link Node}s are therefore shared with the previous {@link Tree}, and their containing {@link Tree} and
+     * reference data are updated to those of the new {@link Tree}.
+     * <p>
+     * A lazy aggregator only keeps the lazy {@link Node}s of threads whose key isn't shared, so the descendants which
+     * were materialized for the previous {@link Tree} are reused. Threads sharing their key are simply aggregated into
+     * a new lazy {@link Node}.
+     * <p>
+     * @param input the {@link AggregationProfile} to be aggregated
+     * @param grouping the {@link CombinedGrouping} which specifies which {@link LeanNode}s are aggregated together
+     * @param partials the {@link ThreadPartials} receiving the partial aggregations of the threads
+     * @return the resulting {@link Tree}
+     */
+    public Tree aggregate(AggregationProfile input, CombinedGrouping grouping, ThreadPartials partials)
+    {
+        // Prepare result.
+        Tree result = new Tree(input, grouping);
+
+        LeanProfile profile = input.getSource();
+        Collection<LeanThreadNode> threads = profile.getThreads().values();
+        KeyTable keys = input.getKeyTable(grouping);
+
+        if (lazy)
+        {
+            // Group the threads by their key, in thread order.
+            Map<String, List<LeanThreadNode>> groups = new HashMap<>();
+            threads.forEach(thread -> groups.computeIfAbsent(keys.keyOf(thread), key -> new ArrayList<>()).add(thread));
+
+            groups.forEach((key, group) ->
+            {
+                Node node = group.size() == 1 ? partials.reuse(group.get(0)) : null;
+                if (node == null)
+                {
+                    node = lazyNode(key, null);
+                    group.forEach(node::add);
+                    if (group.size() == 1)
+                    {
+                        partials.put(group.get(0), node);
+                    }
+                }
+                node.adopt(result, input.getGlobalData());
+                result.getData().add(node);
+            });
+            partials.release();
+            return result;
+        }
+
+        long threshold = threshold(input);
+
+        // Aggregate the changed threads into a Node tree each. The Node trees are kept for later aggregations, so they
+        // don't belong to the result until they are adopted by it, to avoid references to previous results.
+        Map<LeanThreadNode, RecursiveTask<Node>> tasks = new IdentityHashMap<>();
+        for (LeanThreadNode thread : threads)
+        {
+            if (partials.<Node> reuse(thread) == null)
+            {
+                tasks.put(thread, newTask(profile, thread, keys, null, threshold));
+            }
+        }
+        pool.invoke(adapt(() -> invokeAll(tasks.values())));
+        tasks.forEach((thread, task) -> partials.put(thread, task.join()));
+
+        // Group the thread-level Nodes by their key, in thread order.
+        Map<String, List<Node>> groups = new HashMap<>();
+        for (LeanThreadNode thread : threads)
+        {
+            RecursiveTask<Node> task = tasks.get(thread);
+            Node node = task == null ? partials.reuse(thread) : task.join();
+            groups.computeIfAbsent(node.getKey(), key -> new ArrayList<>()).add(node);
+        }
+        partials.release();
+
+        groups.values().forEach(group ->
+        {
+            Node node = Node.combineSharing(group, result);
+            node.adopt(result, input.getGlobalData());
+            result.getData().add(node);
+        });
+
+        return result;
+    }
+
+    // Helper Methods
+
+    /**
+     * Creates the task aggregating the specified {@link LeanNode} of the profile, which reads the nodes through a
+     * {@link LeanNodeCursor} if the profile is stored in a {@link LeanTree}.
+     * <p>
+     * @param profile the {@link LeanProfile} being aggregated
+     * @param leanNode the {@link LeanNode} to be aggregated
+     * @param keys the {@link KeyTable} determining the keys
+     * @param result the {@link Tree} the {@link Node}s belong to, or null
+     * @param threshold the minimum number of samples in a subtree aggregated by a separate task
+     * @return the new task
+     */
+    private static RecursiveTask<Node> newTask(LeanProfile profile,
+                                               LeanNode leanNode,
+                                               KeyTable keys,
+                                               Tree result,
+                                               long threshold)
+    {
+        return profile.getTree() == null ? new NodeTask(leanNode, keys, result, threshold)
+            : new CursorTask(profile.getTree(), leanNode.getTreeIndex(), keys, result, threshold);
+    }
+
+    /**
+     * Merges the partial {@link Node}s and the results of the subtasks into the specified {@link Node}, in order.
+     * <p>
+     * @param node the {@link Node} receiving the children
+     * @param segments the partial {@link Node}s and the subtasks
+     * @return the {@link Node}
+     */
+    @SuppressWarnings("unchecked")
+    private static Node merge(Node node, List<Object> segments)
+    {
+        for (Object segment : segments)
+        {
+            if (segment instanceof Node)
+            {
+                node.merge((Node)segment);
+            }
+            else
+            {
+                node.mergeChild(((RecursiveTask<Node>)segment).join());
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Creates a lazy thread-level {@link Node} with the specified key.
+     * <p>
+     * @param key the key of the {@link Node}
+     * @param result the {@link Tree} the {@link Node} belongs to, or null if it is adopted later on
+     * @return the new {@link Node}
+     */
+    private Node lazyNode(String key, Tree result)
+    {
+        Node node = new Node(result, true);
+        node.setKey(key);
+        return node;
+    }
+
+    /**
+     * Returns the minimum number of samples in a subtree for it to be aggregated by a separate task.
+     * <p>
+     * @param input the {@link AggregationProfile} being aggregated
+     * @return the minimum number of samples in a subtree aggregated by a separate task
+     */
+    private long threshold(AggregationProfile input)
+    {
+        return pool.getParallelism() == 1 ? Long.MAX_VALUE
+            : max(input.getGlobalData().getTotalCnt() / (pool.getParallelism() * TASKS_PER_THREAD), MIN_TASK_SAMPLES);
+    }
+
+    /**
+     * Task which aggregates every {@link LeanThreadNode} into a separate {@link Node} tree, using a {@link NodeTask} per
+     * thread.
+     */
+    private static final class ThreadsTask extends RecursiveTask<List<Node>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final LeanProfile profile;
+        private final Iterable<LeanThreadNode> threads;
+        private final KeyTable keys;
+        private final Tree result;
+        private final long threshold;
+
+        private ThreadsTask(LeanProfile profile,
+                            Iterable<LeanThreadNode> threads,
+                            KeyTable keys,
+                            Tree result,
+                            long threshold)
+        {
+            this.profile = profile;
+            this.threads = threads;
+            this.keys = keys;
+            this.result = result;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected List<Node> compute()
+        {
+            List<RecursiveTask<Node>> tasks = new ArrayList<>();
+            for (LeanThreadNode thread : threads)
+            {
+                tasks.add(newTask(profile, thread, keys, result, threshold));
+            }
+            invokeAll(tasks);
+
+            List<Node> nodes = new ArrayList<>();
+            tasks.forEach(task -> nodes.add(task.join()));
+            return nodes;
+        }
+    }
+
+    /**
+     * Task which aggregates a {@link LeanNode} and its descendants into a {@link Node} tree. Children with more samples
+     * than the threshold are aggregated by subtasks.
+     */
+    private static final class NodeTask extends RecursiveTask<Node>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final LeanNode leanNode;
+        private final KeyTable keys;
+        private final Tree result;
+        private final long threshold;
+
+        private NodeTask(LeanNode leanNode, KeyTable keys, Tree result, long threshold)
+        {
+            this.leanNode = leanNode;
+            this.keys = keys;
+            this.result = result;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Node compute()
+        {
+            Node node = new Node(result);
+            node.add(leanNode);
+            node.setKey(keys.keyOf(leanNode));
+
+            // The partial Nodes and subtasks, in the order of the children they cover. The partial Nodes only serve as
+            // containers for the aggregated children.
+            List<Object> segments = new ArrayList<>();
+            Node current = null;
+
+            for (LeanNode child : leanNode.getChildren())
+            {
+                if (child.getData().getTotalCnt() > threshold)
+                {
+                    NodeTask task = new NodeTask(child, keys, result, threshold);
+                    task.fork();
+                    segments.add(task);
+                    current = null;
+                }
+                else
+                {
+                    if (current == null)
+                    {
+                        current = new Node(result);
+                        current.setKey(node.getKey());
+                        segments.add(current);
+                    }
+                    // Aggregate descendants of a LeanNode recursively into children of the container. The recursion
+                    // happens inside the Node.addChild() method, triggered by the boolean parameter.
+                    current.addChild(child, keys, true);
+                }
+            }
+
+            return merge(node, segments);
+        }
+    }
+
+    /**
+     * Task which aggregates a node of a {@link LeanTree} and its descendants into a {@link Node} tree, like a
+     * {@link NodeTask}, but reads the nodes through a {@link LeanNodeCursor}.
+     */
+    private static final class CursorTask extends RecursiveTask<Node>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final LeanTree tree;
+        private final int leanNode;
+        private final KeyTable keys;
+        private final Tree result;
+        private final long threshold;
+
+        private CursorTask(LeanTree tree, int leanNode, KeyTable keys, Tree result, long threshold)
+        {
+            this.tree = tree;
+            this.leanNode = leanNode;
+            this.keys = keys;
+            this.result = result;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Node compute()
+        {
+            LeanNodeCursor cursor = tree.cursor().moveTo(leanNode);
+            Node node = new Node(result);
+            node.add(cursor);
+            node.setKey(keys.keyOf(cursor));
+
+            // The partial Nodes and subtasks, in the order of the children they cover.
+            List<Object> segments = new ArrayList<>();
+            Node current = null;
+
+            for (boolean more = cursor.toFirstChild(); more;)
+            {
+                int child = cursor.getNode();
+                if (cursor.getTotalCnt() > threshold)
+                {
+                    CursorTask task = new CursorTask(tree, child, keys, result, threshold);
+                    task.fork();
+                    segments.add(task);
+                    current = null;
+                }
+                else
+                {
+                    if (current == null)
+                    {
+                        current = new Node(result);
+                        current.setKey(node.getKey());
+                        segments.add(current);
+                    }
+                    current.addChild(cursor, keys, true);
+                }
+                more = cursor.moveTo(child).toNextSibling();
+            }
+
+            return merge(node, segments);
+        }
+    }
 }
@@ -1,6 +1,5 @@
 package com.insightfullogic.honest_profiler.core.aggregation.filter;
 
-import static com.insightfullogic.honest_profiler.core.aggregation.filter.ValueType.INTEGER;
 import static com.insightfullogic.honest_profiler.core.aggregation.filter.ValueType.LONG;
 import static com.insightfullogic.honest_profiler.core.aggregation.filter.ValueType.PERCENT;
 import static com.insightfullogic.honest_profiler.core.aggregation.filter.ValueType.SHARE;
@@ -24,32 +23,32 @@ public enum Target
     KEY("Key", STRING),
     SELF_TIME("Self Time", LONG),
     TOTAL_TIME("Total Time", LONG),
-    SELF_COUNT("Self Count", INTEGER),
-    TOTAL_COUNT("Total Count", INTEGER),
+    SELF_COUNT("Self Count", LONG),
+    TOTAL_COUNT("Total Count", LONG),
     SELF_TIME_PCT("Self Time %", SHARE),
     TOTAL_TIME_PCT("Total Time %", SHARE),
     SELF_COUNT_PCT("Self Count %", SHARE),
     TOTAL_COUNT_PCT("Total Count %", SHARE),
     BASE_SELF_TIME("Base Self Time", LONG),
     BASE_TOTAL_TIME("Base Total Time", LONG),
-    BASE_SELF_COUNT("Base Self Count", INTEGER),
-    BASE_TOTAL_COUNT("Base Total Count", INTEGER),
+    BASE_SELF_COUNT("Base Self Count", LONG),
+    BASE_TOTAL_COUNT("Base Total Count", LONG),
     BASE_SELF_TIME_PCT("Base Self Time %", SHARE),
     BASE_TOTAL_TIME_PCT("Base Total Time %", SHARE),
     BASE_SELF_COUNT_PCT("Base Self Count %", SHARE),
     BASE_TOTAL_COUNT_PCT("Base Total Count %", SHARE),
     NEW_SELF_TIME("New Self Time", LONG),
     NEW_TOTAL_TIME("New Total Time", LONG),
-    NEW_SELF_COUNT("New Self Count", INTEGER),
-    NEW_TOTAL_COUNT("New Total Count", INTEGER),
+    NEW_SELF_COUNT("New Self Count", LONG),
+    NEW_TOTAL_COUNT("New Total Count", LONG),
     NEW_SELF_TIME_PCT("New Self Time %", SHARE),
     NEW_TOTAL_TIME_PCT("New Total Time %", SHARE),
     NEW_SELF_COUNT_PCT("New Self Count %", SHARE),
     NEW_TOTAL_COUNT_PCT("New Total Count %", SHARE),
     SELF_TIME_DIFF("Self Time Diff", LONG),
     TOTAL_TIME_DIFF("Total Time Diff", LONG),
-    SELF_COUNT_DIFF("Self Count Diff", INTEGER),
-    TOTAL_COUNT_DIFF("Total Count Diff", INTEGER),
+    SELF_COUNT_DIFF("Self Count Diff", LONG),
+    TOTAL_COUNT_DIFF("Total Count Diff", LONG),
     SELF_TIME_PCT_DIFF("Self Time % Diff", PERCENT),
     TOTAL_TIME_PCT_DIFF("Total Time % Diff", PERCENT),
     SELF_COUNT_PCT_DIFF("Self Count % Diff", PERCENT),
@@ -0,0 +1,206 @@
+package com.insightfullogic.honest_profiler.core.aggregation.grouping;
+
+import static java.util.Arrays.copyOf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.insightfullogic.honest_profiler.core.aggregation.AggregationProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNodeCursor;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+
+/**
+ * A KeyTable interns the keys a {@link CombinedGrouping} calculates for the {@link LeanNode}s of an
+ * {@link AggregationProfile}. Every distinct key gets a dense int id, assigned sequentially from 0.
+ * <p>
+ * The key of a frame {@link LeanNode} only depends on its {@link FrameInfo}, so the String key is calculated once for
+ * every distinct {@link FrameInfo}, and all later lookups for the same frame return the id without building a String.
+ * All {@link LeanNode}s with the same key share the same String instance, whose hash code is therefore also calculated
+ * only once. The keys of {@link LeanThreadNode}s are calculated every time, since there are few of them.
+ * <p>
+ * Lookups of known frames and keys don't take a lock, so a KeyTable can be used by several aggregations at the same
+ * time.
+ */
+public final class KeyTable
+{
+    // Class Properties
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // Instance Properties
+
+    private final AggregationProfile profile;
+    private final CombinedGrouping grouping;
+
+    private final Map<FrameInfo, Integer> frameIds;
+
+    // The keys, indexed by id. Only written while holding the lock, and replaced when it grows, so readers which
+    // obtained an id always see its key.
+    private volatile String[] keys;
+    // Guarded by this.
+    private final Map<String, Integer> keyIds;
+    private int size;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the {@link AggregationProfile} containing the {@link LeanNode}s and the
+     * {@link CombinedGrouping} calculating their keys.
+     * <p>
+     * @param profile the {@link AggregationProfile} containing the {@link LeanNode}s
+     * @param grouping the {@link CombinedGrouping} calculating the keys
+     */
+    public KeyTable(AggregationProfile profile, CombinedGrouping grouping)
+    {
+        this.profile = profile;
+        this.grouping = grouping;
+
+        frameIds = new ConcurrentHashMap<>();
+        keyIds = new HashMap<>();
+        keys = new String[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Constructor for the KeyTable of a later snapshot of the profile of a previous KeyTable. The keys interned by the
+     * previous KeyTable are taken over, so both assign the same id to a key, and the keys of known frames don't need to
+     * be calculated again.
+     * <p>
+     * @param profile the {@link AggregationProfile} containing the {@link LeanNode}s
+     * @param previous the KeyTable for an earlier snapshot of the same profile
+     */
+    public KeyTable(AggregationProfile profile, KeyTable previous)
+    {
+        this.profile = profile;
+        this.grouping = previous.grouping;
+
+        frameIds = new ConcurrentHashMap<>(previous.frameIds);
+        synchronized (previous)
+        {
+            keyIds = new HashMap<>(previous.keyIds);
+            keys = previous.keys.clone();
+            size = previous.size;
+        }
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the {@link CombinedGrouping} calculating the keys.
+     * <p>
+     * @return the {@link CombinedGrouping} calculating the keys
+     */
+    public CombinedGrouping getGrouping()
+    {
+        return grouping;
+    }
+
+    /**
+     * Returns the number of distinct keys interned so far.
+     * <p>
+     * @return the number of distinct keys interned so far
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    // Lookup Methods
+
+    /**
+     * Returns the id of the key for the specified {@link LeanNode}.
+     * <p>
+     * @param node the {@link LeanNode} for which the key id is returned
+     * @return the id of the key for the {@link LeanNode}
+     */
+    public int idOf(LeanNode node)
+    {
+        FrameInfo frame = node.getFrame();
+        if (frame == null)
+        {
+            return intern(grouping.apply(profile, node));
+        }
+
+        Integer id = frameIds.get(frame);
+        if (id == null)
+        {
+            id = intern(grouping.apply(profile, node));
+            frameIds.putIfAbsent(frame, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of the key for the node of a {@link LeanTree} the {@link LeanNodeCursor} is positioned on. The
+     * {@link LeanProfile} must be stored in that {@link LeanTree}. A {@link LeanNode} view on the node is only created
+     * if the key of its frame hasn't been calculated yet, or if it is the root node of a thread.
+     * <p>
+     * @param cursor the {@link LeanNodeCursor} positioned on the node for which the key id is returned
+     * @return the id of the key for the node
+     */
+    public int idOf(LeanNodeCursor cursor)
+    {
+        if (cursor.isThreadNode())
+        {
+            return idOf(profile.getSource().getNode(cursor.getNode()));
+        }
+
+        Integer id = frameIds.get(cursor.getFrame());
+        return id == null ? idOf(profile.getSource().getNode(cursor.getNode())) : id;
+    }
+
+    /**
+     * Returns the key with the specified id.
+     * <p>
+     * @param id the id of the key
+     * @return the key with the specified id
+     */
+    public String keyOf(int id)
+    {
+        return keys[id];
+    }
+
+    /**
+     * Returns the interned key for the specified {@link LeanNode}.
+     * <p>
+     * @param node the {@link LeanNode} for which the key is returned
+     * @return the interned key for the {@link LeanNode}
+     */
+    public String keyOf(LeanNode node)
+    {
+        return keyOf(idOf(node));
+    }
+
+    /**
+     * Returns the interned key for the node of a {@link LeanTree} the {@link LeanNodeCursor} is positioned on.
+     * <p>
+     * @param cursor the {@link LeanNodeCursor} positioned on the node for which the key is returned
+     * @return the interned key for the node
+     */
+    public String keyOf(LeanNodeCursor cursor)
+    {
+        return keyOf(idOf(cursor));
+    }
+
+    // Helper Methods
+
+    private synchronized int intern(String key)
+    {
+        Integer id = keyIds.get(key);
+        if (id == null)
+        {
+            id = size++;
+            keyIds.put(key, id);
+
+            String[] newKeys = id < keys.length ? keys : copyOf(keys, keys.length * 2);
+            newKeys[id] = key;
+            // The volatile write publishes the key.
+            keys = newKeys;
+        }
+        return id;
+    }
+}
@@ -110,7 +110,7 @@ public class DiffEntry implements Keyed<String>
      * <p>
      * @return the Base aggregated self sample count
      */
-    public int getBaseSelfCnt()
+    public long getBaseSelfCnt()
     {
         return baseEntry.getSelfCnt();
     }
@@ -120,7 +120,7 @@ public class DiffEntry implements Keyed<String>
      * <p>
      * @return the Base aggregated total sample count
      */
-    public int getBaseTotalCnt()
+    public long getBaseTotalCnt()
     {
         return baseEntry.getTotalCnt();
     }
@@ -190,7 +190,7 @@ public class DiffEntry implements Keyed<String>
      * <p>
      * @return the New aggregated self sample count
      */
-    public int getNewSelfCnt()
+    public long getNewSelfCnt()
     {
         return newEntry.getSelfCnt();
     }
@@ -200,7 +200,7 @@ public class DiffEntry implements Keyed<String>
      * <p>
      * @return the New aggregated total sample count
      */
-    public int getNewTotalCnt()
+    public long getNewTotalCnt()
     {
         return newEntry.getTotalCnt();
     }
@@ -250,7 +250,7 @@ public class DiffEntry implements Keyed<String>
      * <p>
      * @return the Base reference total sample count
      */
-    public int getBaseRefCnt()
+    public long getBaseRefCnt()
     {
         return baseEntry.getRefCnt();
     }
@@ -260,7 +260,7 @@ public class DiffEntry implements Keyed<String>
      * <p>
      * @return the New reference total sample count
      */
-    public int getNewRefCnt()
+    public long getNewRefCnt()
     {
         return newEntry.getRefCnt();
     }
@@ -290,7 +290,7 @@ public class DiffEntry implements Keyed<String>
      * <p>
      * @return the difference between the Self Count of the New and Base {@link Entry}s
      */
-    public int getSelfCntDiff()
+    public long getSelfCntDiff()
     {
         return getNewSelfCnt() - getBaseSelfCnt();
     }
@@ -300,7 +300,7 @@ public class DiffEntry implements Keyed<String>
      * <p>
      * @return the difference between the Total Count of the New and Base {@link Entry}s
      */
-    public int getTotalCntDiff()
+    public long getTotalCntDiff()
     {
         return getNewTotalCnt() - getBaseTotalCnt();
     }
@@ -350,7 +350,7 @@ public class DiffEntry implements Keyed<String>
      * <p>
      * @return the difference between the Total Count of the New and Base {@link Entry} references
      */
-    public int getRefCntDiff()
+    public long getRefCntDiff()
     {
         return getNewRefCnt() - getBaseRefCnt();
     }
@@ -1,16 +1,20 @@
 package com.insightfullogic.honest_profiler.core.aggregation.result.straight;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import com.insightfullogic.honest_profiler.core.aggregation.result.Aggregation;
 import com.insightfullogic.honest_profiler.core.aggregation.result.Keyed;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNodeCursor;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
 import com.insightfullogic.honest_profiler.core.profiles.lean.info.NumericInfo;
 
 /**
  * Lowest-level aggregation data item. It associates an aggregation key with data residing in a {@link NumericInfo}.
- * Additionally it keeps track of all {@link LeanNode}s which were aggregated into the Entry.
+ * Additionally it keeps track of all {@link LeanNode}s which were aggregated into the Entry. The nodes of a
+ * {@link LeanProfile} stored in a {@link LeanTree} are kept as node indices, and can be aggregated straight from a
+ * {@link LeanNodeCursor}.
  */
 public class Entry implements Keyed<String>
 {
@@ -19,7 +23,7 @@ public class Entry implements Keyed<String>
     private Aggregation<? extends Keyed<String>> aggregation;
     private String key;
     private NumericInfo data;
-    private List<LeanNode> aggregatedNodes;
+    private LeanNodeList aggregatedNodes;
     private NumericInfo reference;
 
     // Instance Constructors
@@ -34,7 +38,7 @@ public class Entry implements Keyed<String>
     {
         this.data = new NumericInfo();
         this.aggregation = aggregation;
-        this.aggregatedNodes = new ArrayList<>();
+        this.aggregatedNodes = new LeanNodeList();
     }
 
     /**
@@ -64,6 +68,27 @@ public class Entry implements Keyed<String>
         return (Aggregation<T>)aggregation;
     }
 
+    /**
+     * Sets the containing {@link Aggregation}.
+     * <p>
+     * @param <T> the type of the data items contained in the {@link Aggregation}
+     * @param aggregation the containing {@link Aggregation}
+     */
+    <T extends Keyed<String>> void setAggregation(Aggregation<T> aggregation)
+    {
+        this.aggregation = aggregation;
+    }
+
+    /**
+     * Returns the reference data used for calculating percentages.
+     * <p>
+     * @return the reference data used for calculating percentages
+     */
+    NumericInfo getReference()
+    {
+        return reference;
+    }
+
     /**
      * Sets the reference data used for calculating percentages.
      * <p>
@@ -101,13 +126,25 @@ public class Entry implements Keyed<String>
     }
 
     /**
-     * Returns a list of all the {@link LeanNode}s whose values were aggregated into this Entry.
+     * Returns a list of all the {@link LeanNode}s whose values were aggregated into this Entry. If the nodes are kept
+     * as node indices, the list contains views which are created by the {@link LeanProfile} of the containing
+     * {@link Aggregation} as they are read.
      * <p>
      * @return the list of {@link LeanNode}s aggregated into this Entry
      */
     public List<LeanNode> getAggregatedNodes()
     {
-        return this.aggregatedNodes;
+        return aggregatedNodes.asList(aggregation == null ? null : aggregation.getSource().getSource());
+    }
+
+    /**
+     * Returns the compact list of the {@link LeanNode}s or node indices aggregated into this Entry.
+     * <p>
+     * @return the {@link LeanNodeList} of this Entry
+     */
+    LeanNodeList getAggregatedNodeList()
+    {
+        return aggregatedNodes;
     }
 
     /**
@@ -118,7 +155,7 @@ public class Entry implements Keyed<String>
      */
     public long getSelfTime()
     {
-        return data.getSelfTime().longValue();
+        return data.getSelfTime();
     }
 
     /**
@@ -129,7 +166,7 @@ public class Entry implements Keyed<String>
      */
     public long getTotalTime()
     {
-        return data.getTotalTime().longValue();
+        return data.getTotalTime();
     }
 
     /**
@@ -137,7 +174,7 @@ public class Entry implements Keyed<String>
      * <p>
      * @return the aggregated number of samples the aggregated {@link LeanNode}s were seen in as leaf
      */
-    public int getSelfCnt()
+    public long getSelfCnt()
     {
         return data.getSelfCnt();
     }
@@ -149,7 +186,7 @@ public class Entry implements Keyed<String>
      * @return the aggregated number of samples the aggregated {@link LeanNode}s were seen in as leaf or intermediate
      *         frame
      */
-    public int getTotalCnt()
+    public long getTotalCnt()
     {
         return data.getTotalCnt();
     }
@@ -162,7 +199,7 @@ public class Entry implements Keyed<String>
     public double getSelfTimePct()
     {
         return aggregation == null ? 0
-            : data.getSelfTime().doubleValue() / reference.getTotalTime().longValue();
+            : data.getSelfTime() / (double)reference.getTotalTime();
     }
 
     /**
@@ -173,7 +210,7 @@ public class Entry implements Keyed<String>
     public double getTotalTimePct()
     {
         return aggregation == null ? 0
-            : data.getTotalTime().doubleValue() / reference.getTotalTime().longValue();
+            : data.getTotalTime() / (double)reference.getTotalTime();
     }
 
     /**
@@ -201,7 +238,7 @@ public class Entry implements Keyed<String>
      * <p>
      * @return the reference total sample count
      */
-    public int getRefCnt()
+    public long getRefCnt()
     {
         return aggregation == null ? 0 : reference.getTotalCnt();
     }
@@ -215,10 +252,22 @@ public class Entry implements Keyed<String>
      */
     public void add(LeanNode node)
     {
-        aggregatedNodes.add(node);
+        aggregatedNodes.append(node);
         data.add(node.getData());
     }
 
+    /**
+     * Aggregates the node of a {@link LeanTree} the {@link LeanNodeCursor} is positioned on into this Entry, without
+     * creating any objects for it.
+     * <p>
+     * @param cursor the {@link LeanNodeCursor} positioned on the node to be aggregated
+     */
+    public void add(LeanNodeCursor cursor)
+    {
+        aggregatedNodes.append(cursor.getNode());
+        data.add(cursor.getSelfTime(), cursor.getTotalTime(), cursor.getSelfCnt(), cursor.getTotalCnt());
+    }
+
     /**
      * Combines (i.e. aggregates) another Entry into this one.
      * <p>
@@ -228,7 +277,7 @@ public class Entry implements Keyed<String>
     public Entry combine(Entry other)
     {
         key = other.key;
-        aggregatedNodes.addAll(other.aggregatedNodes);
+        aggregatedNodes.appendAll(other.aggregatedNodes);
         data.add(other.data);
         reference = other.reference;
         return this;
@@ -246,7 +295,7 @@ public class Entry implements Keyed<String>
         other.aggregation = aggregation;
         other.key = key;
         other.data = data.copy();
-        other.aggregatedNodes = new ArrayList<>(aggregatedNodes);
+        other.aggregatedNodes = aggregatedNodes.copy();
         other.reference = reference;
     }
 
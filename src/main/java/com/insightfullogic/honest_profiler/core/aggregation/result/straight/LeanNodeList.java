@@ -0,0 +1,352 @@
+package com.insightfullogic.honest_profiler.core.aggregation.result.straight;
+
+import static com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree.NO_NODE;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.reflect.Array.getLength;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
+
+/**
+ * Compact storage for the {@link LeanNode}s aggregated into an {@link Entry}.
+ * <p>
+ * The {@link LeanNode}s are stored in segments, which are never modified once they are added, and a tail which
+ * receives the {@link LeanNode}s appended since. The segments are shared rather than copied when a list is copied or
+ * appended to another one, so copying and combining Entries costs in proportion to the number of segments instead of
+ * the number of {@link LeanNode}s. Only the tail, which holds fewer than {@link #SEGMENT_SIZE} {@link LeanNode}s, is
+ * ever copied.
+ * <p>
+ * The {@link LeanNode}s of a {@link LeanProfile} stored in a {@link LeanTree} are stored as node indices instead, in
+ * int arrays, so an aggregation of such a profile doesn't keep a view object for every node it aggregated. The indices
+ * are turned into {@link LeanNode} views by {@link #asList(LeanProfile)}, as they are read. A list only ever contains
+ * {@link LeanNode}s or indices, since the {@link LeanNode}s of a profile are either all views or none are.
+ */
+final class LeanNodeList
+{
+    // Class Properties
+
+    private static final int SEGMENT_SIZE = 1024;
+    private static final Object[] NO_SEGMENTS = new Object[0];
+    private static final LeanNode[] EMPTY_NODES = new LeanNode[0];
+    private static final int[] EMPTY_INDICES = new int[0];
+
+    // Instance Properties
+
+    // Indicates whether the list contains node indices rather than LeanNodes. Decided by the first append.
+    private boolean indexed;
+
+    // The segments, which are LeanNode[] or int[] arrays, and the number of elements they contain.
+    private Object[] segments;
+    private int inSegments;
+
+    // A full tail is never written to, since it is grown before an element is appended, so it can be shared as well.
+    private Object tail;
+    private int tailSize;
+
+    // Instance Constructors
+
+    /**
+     * Constructor for an empty list.
+     */
+    LeanNodeList()
+    {
+        segments = NO_SEGMENTS;
+        tail = EMPTY_NODES;
+    }
+
+    /**
+     * Copy Constructor. The segments, and the tail if it is full, are shared with the copied list.
+     * <p>
+     * @param list the list being copied
+     */
+    private LeanNodeList(LeanNodeList list)
+    {
+        indexed = list.indexed;
+        segments = list.segments;
+        inSegments = list.inSegments;
+        tail = list.tailSize == getLength(list.tail) ? list.tail : copyOf(list.tail, list.tailSize);
+        tailSize = list.tailSize;
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the number of {@link LeanNode}s in the list.
+     * <p>
+     * @return the number of {@link LeanNode}s in the list
+     */
+    int size()
+    {
+        return inSegments + tailSize;
+    }
+
+    /**
+     * Returns a boolean indicating whether the list stores node indices rather than {@link LeanNode}s.
+     * <p>
+     * @return a boolean indicating whether the list stores node indices
+     */
+    boolean isIndexed()
+    {
+        return indexed;
+    }
+
+    /**
+     * Returns an unmodifiable {@link List} view on the {@link LeanNode}s in this list. Node indices are turned into
+     * {@link LeanNode} views using {@link LeanProfile#getNode(int)}. The view reflects later changes to this list.
+     * <p>
+     * @param profile the {@link LeanProfile} containing the nodes, only used if the list stores node indices
+     * @return an unmodifiable {@link List} containing the {@link LeanNode}s in this list
+     */
+    List<LeanNode> asList(LeanProfile profile)
+    {
+        return new AbstractList<LeanNode>()
+        {
+            @Override
+            public int size()
+            {
+                return LeanNodeList.this.size();
+            }
+
+            @Override
+            public LeanNode get(int index)
+            {
+                if (index < 0 || index >= size())
+                {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+                }
+
+                if (index >= inSegments)
+                {
+                    return element(tail, index - inSegments, profile);
+                }
+
+                int position = index;
+                for (Object segment : segments)
+                {
+                    if (position < getLength(segment))
+                    {
+                        return element(segment, position, profile);
+                    }
+                    position -= getLength(segment);
+                }
+                throw new IllegalStateException("Inconsistent segment sizes.");
+            }
+
+            @Override
+            public Iterator<LeanNode> iterator()
+            {
+                return new Iterator<LeanNode>()
+                {
+                    private int segment;
+                    private int position;
+                    private int index;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return index < size();
+                    }
+
+                    @Override
+                    public LeanNode next()
+                    {
+                        if (!hasNext())
+                        {
+                            throw new NoSuchElementException();
+                        }
+
+                        index++;
+                        if (segment == segments.length)
+                        {
+                            return element(tail, position++, profile);
+                        }
+
+                        LeanNode result = element(segments[segment], position++, profile);
+                        if (position == getLength(segments[segment]))
+                        {
+                            segment++;
+                            position = 0;
+                        }
+                        return result;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the node indices in this list, in order. The list must store node indices.
+     * <p>
+     * @return a new array containing the node indices in this list
+     */
+    int[] toIndices()
+    {
+        if (!indexed && size() > 0)
+        {
+            throw new IllegalStateException("The list doesn't contain node indices.");
+        }
+
+        int[] result = new int[size()];
+        int position = 0;
+        for (Object segment : segments)
+        {
+            System.arraycopy(segment, 0, result, position, getLength(segment));
+            position += getLength(segment);
+        }
+        System.arraycopy(tail, 0, result, position, tailSize);
+        return result;
+    }
+
+    // Modification Methods
+
+    /**
+     * Appends a {@link LeanNode} to the list. A view on a node of a {@link LeanTree} is stored as its index.
+     * <p>
+     * @param node the {@link LeanNode} to be appended
+     */
+    void append(LeanNode node)
+    {
+        if (node.getTreeIndex() != NO_NODE)
+        {
+            append(node.getTreeIndex());
+            return;
+        }
+
+        checkMode(false);
+        ensureTailCapacity(tailSize + 1);
+        ((LeanNode[])tail)[tailSize++] = node;
+        sealIfFull();
+    }
+
+    /**
+     * Appends the index of a node of a {@link LeanTree} to the list.
+     * <p>
+     * @param index the index of the node to be appended
+     */
+    void append(int index)
+    {
+        checkMode(true);
+        ensureTailCapacity(tailSize + 1);
+        ((int[])tail)[tailSize++] = index;
+        sealIfFull();
+    }
+
+    /**
+     * Appends the contents of another list to this list. The segments of the other list are shared, and the other list
+     * isn't modified.
+     * <p>
+     * @param other the list whose contents are appended
+     */
+    void appendAll(LeanNodeList other)
+    {
+        if (other.size() == 0)
+        {
+            return;
+        }
+        checkMode(other.indexed);
+
+        if (other.segments.length > 0)
+        {
+            sealTail();
+            Object[] newSegments = Arrays.copyOf(segments, segments.length + other.segments.length);
+            System.arraycopy(other.segments, 0, newSegments, segments.length, other.segments.length);
+            segments = newSegments;
+            inSegments += other.inSegments;
+        }
+        for (int from = 0; from < other.tailSize;)
+        {
+            int length = min(other.tailSize - from, SEGMENT_SIZE - tailSize);
+            ensureTailCapacity(tailSize + length);
+            System.arraycopy(other.tail, from, tail, tailSize, length);
+            tailSize += length;
+            from += length;
+            sealIfFull();
+        }
+    }
+
+    /**
+     * Returns a copy of this list, which shares the segments with this list.
+     * <p>
+     * @return a copy of this list
+     */
+    LeanNodeList copy()
+    {
+        return new LeanNodeList(this);
+    }
+
+    // Helper Methods
+
+    private LeanNode element(Object array, int position, LeanProfile profile)
+    {
+        return indexed ? profile.getNode(((int[])array)[position]) : ((LeanNode[])array)[position];
+    }
+
+    /**
+     * Sets the kind of elements stored by an empty list, or checks it for a list which isn't empty.
+     * <p>
+     * @param indices a boolean indicating whether node indices will be stored
+     */
+    private void checkMode(boolean indices)
+    {
+        if (size() == 0 && indexed != indices)
+        {
+            indexed = indices;
+            segments = NO_SEGMENTS;
+            tail = indices ? EMPTY_INDICES : EMPTY_NODES;
+        }
+        else if (indexed != indices)
+        {
+            throw new IllegalArgumentException("LeanNodes and node indices can't be stored in the same list.");
+        }
+    }
+
+    /**
+     * Grows the tail if it can't hold the specified number of elements, which must not exceed {@link #SEGMENT_SIZE}.
+     * <p>
+     * @param capacity the number of elements the tail must be able to hold
+     */
+    private void ensureTailCapacity(int capacity)
+    {
+        int length = getLength(tail);
+        if (capacity > length)
+        {
+            tail = copyOf(tail, min(max(length * 2, capacity), SEGMENT_SIZE));
+        }
+    }
+
+    private void sealIfFull()
+    {
+        if (tailSize == SEGMENT_SIZE)
+        {
+            sealTail();
+        }
+    }
+
+    /**
+     * Moves the contents of the tail into a new segment, so segments of another list can be appended after them.
+     */
+    private void sealTail()
+    {
+        if (tailSize > 0)
+        {
+            segments = Arrays.copyOf(segments, segments.length + 1);
+            segments[segments.length - 1] = tailSize == getLength(tail) ? tail : copyOf(tail, tailSize);
+            inSegments += tailSize;
+            tail = indexed ? EMPTY_INDICES : EMPTY_NODES;
+            tailSize = 0;
+        }
+    }
+
+    private static Object copyOf(Object array, int length)
+    {
+        return array instanceof int[] ? Arrays.copyOf((int[])array, length) : Arrays.copyOf((LeanNode[])array, length);
+    }
+}
@@ -1,6 +1,8 @@
 package com.insightfullogic.honest_profiler.core.aggregation.result.straight;
 
 import static java.lang.Math.max;
+import static java.util.Arrays.stream;
+import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Stream.concat;
 import static java.util.stream.Stream.of;
@@ -13,18 +15,35 @@ import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 import com.insightfullogic.honest_profiler.core.aggregation.grouping.CombinedGrouping;
+import com.insightfullogic.honest_profiler.core.aggregation.grouping.KeyTable;
 import com.insightfullogic.honest_profiler.core.aggregation.result.Aggregation;
 import com.insightfullogic.honest_profiler.core.aggregation.result.Keyed;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNodeCursor;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.NumericInfo;
 
 /**
  * Wrapper for {@link Entry} which allows organizing them into a tree structure.
+ * <p>
+ * The children of a Node can be materialized lazily. A lazy Node aggregates the children of its {@link LeanNode}s the
+ * first time its children are accessed, using the {@link KeyTable} of its {@link Aggregation}, and its children are
+ * lazy Nodes themselves. Similarly, a Node accepted by {@link #copyWithFilter(Predicate)} only filters its children
+ * when they are accessed. The materialized children are kept, so the cost of walking a lazy tree is never paid twice,
+ * and only the parts of the tree which are actually looked at are aggregated.
+ * <p>
+ * The {@link LeanNode}s of a profile stored in a {@link LeanTree} are aggregated and materialized through a
+ * {@link LeanNodeCursor}, see {@link Entry}.
  */
 public class Node extends Entry
 {
     // Instance Properties
 
+    // The children, or null as long as the children of a lazy Node haven't been materialized.
     private Map<String, Node> children;
+    // The Node whose children are filtered when the children of a lazily filtered copy are materialized.
+    private Node filterSource;
+    private Predicate<Node> filter;
 
     // Instance Constructors
 
@@ -35,9 +54,24 @@ public class Node extends Entry
      * @param aggregation the {@link Aggregation} the created Node belongs to
      */
     public <T extends Keyed<String>> Node(Aggregation<T> aggregation)
+    {
+        this(aggregation, false);
+    }
+
+    /**
+     * Create an empty Node for the specified {@link Aggregation}, whose children are materialized from the children of
+     * the aggregated {@link LeanNode}s on first access if specified. The {@link LeanNode}s of a lazy Node must all be
+     * added before its children are accessed, and the {@link Aggregation} must have been set by then, since it provides
+     * the {@link KeyTable} used for determining the keys of the children.
+     * <p>
+     * @param <T> the type of the data items contained in the {@link Aggregation}
+     * @param aggregation the {@link Aggregation} the created Node belongs to
+     * @param lazy a boolean specifying whether the children are materialized on first access
+     */
+    public <T extends Keyed<String>> Node(Aggregation<T> aggregation, boolean lazy)
     {
         super(aggregation);
-        this.children = new HashMap<>();
+        this.children = lazy ? null : new HashMap<>();
     }
 
     /**
@@ -64,6 +98,20 @@ public class Node extends Entry
         children.forEach(child -> this.children.put(child.getKey(), child));
     }
 
+    /**
+     * Copy Constructor for a lazily filtered copy, whose children are the filtered children of the copied Node.
+     * <p>
+     * @param node the Node being copied
+     * @param filter a {@link Predicate} for accepting the descendants of the Node
+     */
+    private Node(Node node, Predicate<Node> filter)
+    {
+        this(node.getAggregation(), true);
+        node.copyInto(this);
+        this.filterSource = node;
+        this.filter = filter;
+    }
+
     /**
      * Returns the children of the Node.
      * <p>
@@ -71,7 +119,31 @@ public class Node extends Entry
      */
     public List<Node> getChildren()
     {
-        return new ArrayList<>(children.values());
+        return new ArrayList<>(children().values());
+    }
+
+    /**
+     * Checks whether the Node has any children. Unlike {@link #getChildren()}, this doesn't materialize the children of
+     * a lazy Node.
+     * <p>
+     * @return a boolean indicating whether the Node has any children
+     */
+    public boolean hasChildren()
+    {
+        synchronized (this)
+        {
+            if (children == null && filterSource == null)
+            {
+                LeanNodeList nodes = getAggregatedNodeList();
+                if (nodes.isIndexed())
+                {
+                    LeanNodeCursor cursor = getAggregation().getSource().getSource().getTree().cursor();
+                    return stream(nodes.toIndices()).anyMatch(node -> cursor.moveTo(node).toFirstChild());
+                }
+                return getAggregatedNodes().stream().anyMatch(node -> !node.getChildren().isEmpty());
+            }
+        }
+        return !children().isEmpty();
     }
 
     /**
@@ -81,13 +153,13 @@ public class Node extends Entry
      */
     public int getDescendantDepth()
     {
-        if (children.isEmpty())
+        if (children().isEmpty())
         {
             return 0;
         }
 
         int depth = 0;
-        for (Node child : children.values())
+        for (Node child : children().values())
         {
             depth = max(depth, child.getDescendantDepth() + 1);
         }
@@ -102,7 +174,7 @@ public class Node extends Entry
      */
     public Node addChild(Node child)
     {
-        return children.compute(child.getKey(), (k, v) -> v == null ? child : v.combine(child));
+        return children().compute(child.getKey(), (k, v) -> v == null ? child : v.combine(child));
     }
 
     /**
@@ -115,18 +187,59 @@ public class Node extends Entry
      */
     public void addChild(LeanNode child, CombinedGrouping grouping, boolean recurse)
     {
-        // Construct intermediate Node
-        Node childNode = new Node(getAggregation());
-        childNode.add(child);
-        childNode.setKey(grouping.apply(getAggregation().getSource(), child));
+        addChild(child, getAggregation().getSource().getKeyTable(grouping), recurse);
+    }
+
+    /**
+     * Aggregates a {@link LeanNode} into the children of this Node, using the specified {@link KeyTable} to determine
+     * the aggregation key, and recursively aggregating the {@link LeanNode} descendants as well if specified.
+     * <p>
+     * The {@link LeanNode} is added to the existing child with the same key directly, rather than through an
+     * intermediate Node, and the interned keys are shared, so aggregating a {@link LeanNode} whose frame was seen
+     * before doesn't build or hash a String.
+     * <p>
+     * @param child the {@link LeanNode} to be aggregated into the children of this Node
+     * @param keys the {@link KeyTable} used for determining the aggregation key
+     * @param recurse a boolean specifying whether the {@link LeanNode} descendants should be aggregated recursively
+     */
+    public void addChild(LeanNode child, KeyTable keys, boolean recurse)
+    {
+        Node newChild = child(keys.keyOf(child));
+        newChild.add(child);
+
+        if (recurse)
+        {
+            for (LeanNode grandChild : child.getChildren())
+            {
+                newChild.addChild(grandChild, keys, true);
+            }
+        }
+    }
 
-        // Aggregate it into existing children
-        Node newChild = addChild(childNode);
+    /**
+     * Aggregates the node of a {@link LeanTree} the {@link LeanNodeCursor} is positioned on into the children of this
+     * Node, like {@link #addChild(LeanNode, KeyTable, boolean)}, but reads the nodes through the cursor, so no
+     * {@link LeanNode}s are created. The cursor is positioned on the node again afterwards.
+     * <p>
+     * @param child the {@link LeanNodeCursor} positioned on the node to be aggregated into the children of this Node
+     * @param keys the {@link KeyTable} used for determining the aggregation key
+     * @param recurse a boolean specifying whether the descendants of the node should be aggregated recursively
+     */
+    public void addChild(LeanNodeCursor child, KeyTable keys, boolean recurse)
+    {
+        Node newChild = child(keys.keyOf(child));
+        newChild.add(child);
 
         if (recurse)
         {
-            child.getChildren()
-                .forEach(grandChild -> newChild.addChild(grandChild, grouping, true));
+            int node = child.getNode();
+            for (boolean more = child.toFirstChild(); more;)
+            {
+                int grandChild = child.getNode();
+                newChild.addChild(child, keys, true);
+                more = child.moveTo(grandChild).toNextSibling();
+            }
+            child.moveTo(node);
         }
     }
 
@@ -139,12 +252,96 @@ public class Node extends Entry
     public Node combine(Node other)
     {
         super.combine(other);
-        other.children.values().forEach(
-            child -> children
+        other.children().values().forEach(
+            child -> children()
                 .compute(child.getKey(), (k, v) -> v == null ? child.copy() : v.combine(child)));
         return this;
     }
 
+    /**
+     * Merges another Node, with the same key, into this one. Unlike {@link #combine(Node)}, the descendants of the other
+     * Node are moved rather than copied, so the other Node should no longer be used afterwards. This is used for
+     * merging partial aggregations.
+     * <p>
+     * @param other the Node to be merged into this Node
+     * @return this Node
+     */
+    public Node merge(Node other)
+    {
+        super.combine(other);
+        other.children().values().forEach(this::mergeChild);
+        return this;
+    }
+
+    /**
+     * Merges a Node into the children of this Node. If this Node has no child with the same key, the Node becomes a
+     * child, otherwise it is merged into that child using {@link #merge(Node)}.
+     * <p>
+     * @param child the Node to be merged into the children of this Node
+     * @return the Node resulting from the merge
+     */
+    public Node mergeChild(Node child)
+    {
+        return children().merge(child.getKey(), child, Node::merge);
+    }
+
+    /**
+     * Combines Nodes with the same key into one, without modifying their aggregated data or their descendants, which
+     * makes it suitable for combining partial aggregations which are kept for later use. Descendants which occur in only
+     * one of the Nodes are shared with the result rather than copied, so the cost is proportional to the overlap of the
+     * trees. The shared descendants still need to be adopted by the containing {@link Aggregation}, using
+     * {@link #adopt(Aggregation, NumericInfo)}, while the Nodes which were copied are detached from their
+     * {@link Aggregation}, since they are no longer part of it.
+     * <p>
+     * @param <T> the type of the data items contained in the {@link Aggregation}
+     * @param nodes the Nodes to be combined
+     * @param aggregation the {@link Aggregation} the new Nodes belong to
+     * @return the only Node in the list, or a new Node combining the Nodes
+     */
+    public static <T extends Keyed<String>> Node combineSharing(List<Node> nodes, Aggregation<T> aggregation)
+    {
+        if (nodes.size() == 1)
+        {
+            return nodes.get(0);
+        }
+
+        Node result = new Node(aggregation);
+        Map<String, List<Node>> childGroups = new HashMap<>();
+        for (Node node : nodes)
+        {
+            // Combine the Entry data only, the children are combined below.
+            result.combine((Entry)node);
+            node.setAggregation(null);
+            node.children().values()
+                .forEach(child -> childGroups.computeIfAbsent(child.getKey(), key -> new ArrayList<>()).add(child));
+        }
+        childGroups.values().forEach(group -> result.addChild(combineSharing(group, aggregation)));
+        return result;
+    }
+
+    /**
+     * Moves this Node and its descendants into the specified {@link Aggregation}, and sets their reference data. This is
+     * used when a Node aggregated for a previous {@link Aggregation} is reused as it is in a new one.
+     * <p>
+     * Only the materialized descendants are visited, the children of a lazy Node take over the {@link Aggregation} and
+     * reference data of their parent when they are materialized.
+     * <p>
+     * @param <T> the type of the data items contained in the {@link Aggregation}
+     * @param aggregation the {@link Aggregation} the Node will belong to
+     * @param reference the reference data used for calculating percentages
+     */
+    public <T extends Keyed<String>> void adopt(Aggregation<T> aggregation, NumericInfo reference)
+    {
+        List<Node> materialized;
+        synchronized (this)
+        {
+            setAggregation(aggregation);
+            setReference(reference);
+            materialized = children == null ? emptyList() : new ArrayList<>(children.values());
+        }
+        materialized.forEach(child -> child.adopt(aggregation, reference));
+    }
+
     /**
      * Returns a copy of this Node.
      * <p>
@@ -152,7 +349,7 @@ public class Node extends Entry
      */
     public Node copy()
     {
-        List<Node> newChildren = children.values().stream().map(child -> child.copy())
+        List<Node> newChildren = children().values().stream().map(child -> child.copy())
             .filter(child -> child != null).collect(toList());
         return new Node(this, newChildren);
     }
@@ -161,15 +358,21 @@ public class Node extends Entry
      * Returns a copy of this Node applying a filter to itself and any descendants. The method returns null if no
      * children are accepted by the filter and the node itself isn't accepted either.
      * <p>
+     * If the Node is accepted, the returned copy filters the children lazily, when they are first accessed. Otherwise
+     * the descendants are searched for accepted Nodes straight away.
+     * <p>
      * @param filter a {@link Predicate} for accepting Nodes
      * @return the filtered Node or null if the Node and none of its descendants are accepted
      */
     public Node copyWithFilter(Predicate<Node> filter)
     {
-        List<Node> newChildren = children.values().stream()
-            .map(child -> child.copyWithFilter(filter)).filter(child -> child != null)
-            .collect(toList());
-        return newChildren.size() > 0 || filter.test(this) ? new Node(this, newChildren) : null;
+        if (filter.test(this))
+        {
+            return new Node(this, filter);
+        }
+
+        List<Node> newChildren = filterChildren(filter);
+        return newChildren.size() > 0 ? new Node(this, newChildren) : null;
     }
 
     /**
@@ -179,7 +382,7 @@ public class Node extends Entry
      */
     public Stream<Node> flatten()
     {
-        return concat(of(this), children.values().stream().flatMap(Node::flatten));
+        return concat(of(this), children().values().stream().flatMap(Node::flatten));
     }
 
     /**
@@ -189,6 +392,117 @@ public class Node extends Entry
      */
     public Stream<Node> flattenDescendants()
     {
-        return children.values().stream().flatMap(Node::flatten);
+        return children().values().stream().flatMap(Node::flatten);
+    }
+
+    // Helper Methods
+
+    /**
+     * Returns the child with the specified key, creating it if needed.
+     * <p>
+     * @param key the key of the child
+     * @return the child with the specified key
+     */
+    private Node child(String key)
+    {
+        Node child = children().get(key);
+        if (child == null)
+        {
+            child = new Node(getAggregation());
+            child.setKey(key);
+            children().put(key, child);
+        }
+        return child;
+    }
+
+    /**
+     * Returns the children of this Node, materializing them first if necessary.
+     * <p>
+     * @return the children of this Node
+     */
+    private synchronized Map<String, Node> children()
+    {
+        if (children == null)
+        {
+            Map<String, Node> result = new HashMap<>();
+            if (filterSource == null)
+            {
+                aggregateChildren(result);
+            }
+            else
+            {
+                filterSource.filterChildren(filter).forEach(child -> result.put(child.getKey(), child));
+                filterSource = null;
+                filter = null;
+            }
+            children = result;
+        }
+        return children;
+    }
+
+    /**
+     * Aggregates the children of the {@link LeanNode}s aggregated by this Node into lazy Nodes, in the same order in
+     * which {@link #addChild(LeanNode, KeyTable, boolean)} would have aggregated them. Nodes of a {@link LeanTree} are
+     * read through a {@link LeanNodeCursor}.
+     * <p>
+     * @param result the {@link Map} receiving the children
+     */
+    private void aggregateChildren(Map<String, Node> result)
+    {
+        KeyTable keys = getAggregation().getSource().getKeyTable(getAggregation().getGrouping());
+        LeanNodeList nodes = getAggregatedNodeList();
+        if (nodes.isIndexed())
+        {
+            LeanNodeCursor cursor = getAggregation().getSource().getSource().getTree().cursor();
+            for (int node : nodes.toIndices())
+            {
+                for (boolean more = cursor.moveTo(node).toFirstChild(); more; more = cursor.toNextSibling())
+                {
+                    lazyChild(result, keys.keyOf(cursor)).add(cursor);
+                }
+            }
+            return;
+        }
+
+        for (LeanNode node : getAggregatedNodes())
+        {
+            for (LeanNode child : node.getChildren())
+            {
+                lazyChild(result, keys.keyOf(child)).add(child);
+            }
+        }
+    }
+
+    /**
+     * Returns the lazy child with the specified key from the children being materialized, creating it if needed.
+     * <p>
+     * @param result the {@link Map} receiving the children
+     * @param key the key of the child
+     * @return the lazy child with the specified key
+     */
+    private Node lazyChild(Map<String, Node> result, String key)
+    {
+        Node child = result.get(key);
+        if (child == null)
+        {
+            child = new Node(getAggregation(), true);
+            child.setKey(key);
+            child.setReference(getReference());
+            result.put(key, child);
+        }
+        return child;
+    }
+
+    /**
+     * Returns the filtered copies of the children of this Node which are accepted by the filter, or which have accepted
+     * descendants.
+     * <p>
+     * @param filter a {@link Predicate} for accepting Nodes
+     * @return the filtered copies of the children
+     */
+    private List<Node> filterChildren(Predicate<Node> filter)
+    {
+        return children().values().stream().map(child -> child.copyWithFilter(filter)).filter(child -> child != null)
+            .collect(toList());
     }
 }
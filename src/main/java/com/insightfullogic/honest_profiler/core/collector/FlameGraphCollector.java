@@ -23,11 +23,8 @@ package com.insightfullogic.honest_profiler.core.collector;
 
 import com.insightfullogic.honest_profiler.core.Box;
 import com.insightfullogic.honest_profiler.core.Monitor;
-import com.insightfullogic.honest_profiler.core.parser.LogEventListener;
 import com.insightfullogic.honest_profiler.core.parser.Method;
-import com.insightfullogic.honest_profiler.core.parser.StackFrame;
-import com.insightfullogic.honest_profiler.core.parser.TraceStart;
-import com.insightfullogic.honest_profiler.core.parser.ThreadMeta;
+import com.insightfullogic.honest_profiler.core.parser.PrimitiveLogEventListener;
 import com.insightfullogic.honest_profiler.core.profiles.FlameGraph;
 import com.insightfullogic.honest_profiler.core.profiles.FlameGraphListener;
 import com.insightfullogic.honest_profiler.core.profiles.FlameTrace;
@@ -38,17 +35,24 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static java.util.stream.Collectors.toList;
+import static java.util.Arrays.copyOf;
 
-public class FlameGraphCollector implements LogEventListener
+public class FlameGraphCollector implements PrimitiveLogEventListener
 {
+    private static final int INITIAL_TRACE_CAPACITY = 128;
+
     private final Map<Long, Method> methods = new HashMap<>();
     private final FlameGraph flameGraph = new FlameGraph();
     private final FlameGraphListener listener;
 
     private FlameTrace trace;
-    private List<Long> lastMethodIds = new ArrayList<>();
-    private List<Long> currentMethodIds = new ArrayList<>();
+
+    // The method ids of the previous and the current stack. The buffers are swapped rather than reallocated when a new
+    // stack starts.
+    private long[] lastMethodIds = new long[INITIAL_TRACE_CAPACITY];
+    private int lastSize = 0;
+    private long[] currentMethodIds = new long[INITIAL_TRACE_CAPACITY];
+    private int currentSize = 0;
 
     private static Method unknownMethod = new Method(-1, "<unknown>", "unknown.Unknown", "unknown");
 
@@ -58,27 +62,35 @@ public class FlameGraphCollector implements LogEventListener
     }
 
     @Override
-    public void handle(TraceStart traceStart)
+    public void onTraceStart(int numberOfFrames, long threadId, long timeSec, long timeNano)
     {
         addCurrentTrace();
+
+        long[] swap = lastMethodIds;
         lastMethodIds = currentMethodIds;
-        currentMethodIds = new ArrayList<>();
+        lastSize = currentSize;
+        currentMethodIds = swap;
+        currentSize = 0;
     }
 
     @Override
-    public void handle(StackFrame stackFrame)
+    public void onFrame(int bci, int lineNumber, long methodId)
     {
-        currentMethodIds.add(stackFrame.getMethodId());
+        if (currentSize == currentMethodIds.length)
+        {
+            currentMethodIds = copyOf(currentMethodIds, currentSize * 2);
+        }
+        currentMethodIds[currentSize++] = methodId;
     }
 
     @Override
-    public void handle(Method newMethod)
+    public void onNewMethod(long methodId, String fileName, String className, String methodName)
     {
-        methods.put(newMethod.getMethodId(), newMethod);
+        methods.put(methodId, new Method(methodId, fileName, className, methodName));
     }
 
     @Override
-    public void handle(ThreadMeta newThreadMeta)
+    public void onThreadMeta(long threadId, String threadName)
     {
     }
 
@@ -102,21 +114,39 @@ public class FlameGraphCollector implements LogEventListener
 
     private void addCurrentTrace()
     {
-        if (currentMethodIds == null || currentMethodIds.size() == 0)
+        if (currentSize == 0)
             return;
 
-        if (lastMethodIds.equals(currentMethodIds))
+        if (sameAsLastTrace())
         {
             trace.incrementWeight();
             return;
         }
 
-        List<Method> methods = currentMethodIds
-            .stream()
-            .map(method -> this.methods.getOrDefault(method, unknownMethod))
-            .collect(toList());
+        List<Method> methods = new ArrayList<>(currentSize);
+        for (int i = 0; i < currentSize; i++)
+        {
+            methods.add(this.methods.getOrDefault(currentMethodIds[i], unknownMethod));
+        }
 
         trace = new FlameTrace(methods, 1);
         flameGraph.onNewTrace(trace);
     }
+
+    private boolean sameAsLastTrace()
+    {
+        if (lastSize != currentSize)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < currentSize; i++)
+        {
+            if (lastMethodIds[i] != currentMethodIds[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
 }
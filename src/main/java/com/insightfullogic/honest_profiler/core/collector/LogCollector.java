@@ -21,6 +21,7 @@
  **/
 package com.insightfullogic.honest_profiler.core.collector;
 
+import com.insightfullogic.honest_profiler.core.parser.AgentStats;
 import com.insightfullogic.honest_profiler.core.parser.LogEventListener;
 import com.insightfullogic.honest_profiler.core.parser.Method;
 import com.insightfullogic.honest_profiler.core.parser.StackFrame;
@@ -57,6 +58,7 @@ public class LogCollector implements LogEventListener
 
     private int traceCount;
     private boolean immediatelyEmitProfile;
+    private AgentStats agentStats;
 
     public LogCollector(final ProfileListener listener, final boolean immediatelyEmitProfile)
     {
@@ -139,6 +141,12 @@ public class LogCollector implements LogEventListener
             (oldMeta, newMeta) -> oldMeta.update(newMeta));
     }
 
+    @Override
+    public void handle(AgentStats agentStats)
+    {
+        this.agentStats = agentStats;
+    }
+
     @Override
     public void endOfLog()
     {
@@ -161,7 +169,8 @@ public class LogCollector implements LogEventListener
                 traceCount,
                 callCountsByMethodId.aggregate(traceCount),
                 callCountsByFrame.aggregate(traceCount),
-                buildTreeProfile()));
+                buildTreeProfile(),
+                agentStats));
     }
 
     private List<ProfileTree> buildTreeProfile()
@@ -0,0 +1,191 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.SampleTimeline;
+
+/**
+ * CollectorOptions specifies the optional features of a {@link LeanLogCollector}. Every feature is set through a named
+ * method which returns the options, so the options can be specified in a single expression, e.g.
+ *
+ * <pre>
+ * new CollectorOptions().withNodeBudget(100000).withMaxWindowSeconds(900)
+ * </pre>
+ * <p>
+ * The features which aren't specified are disabled. The options are read when a collector is constructed, so changing
+ * them afterwards doesn't affect existing collectors, and the same options can be used for several collectors.
+ * <p>
+ * The node budget, the sliding window and the timelines require the {@link LeanNode} trees, so a collector for which
+ * any of them is enabled works in object mode even if compact mode is requested.
+ */
+public final class CollectorOptions
+{
+    // Instance Properties
+
+    private boolean compact;
+    private int nodeBudget;
+    private int maxWindowSeconds;
+    private long timelineNanos;
+    private long threadIntervalNanos;
+    private boolean threadIntervalFromLog;
+
+    // Instance Accessors
+
+    /**
+     * Returns a boolean indicating whether the stacks are aggregated into a compact {@link LeanTree}, i.e. whether
+     * compact mode was requested and no feature requiring the {@link LeanNode} trees is enabled.
+     * <p>
+     * @return a boolean indicating whether the stacks are aggregated into a compact {@link LeanTree}
+     */
+    public boolean isCompact()
+    {
+        return compact && nodeBudget == 0 && maxWindowSeconds == 0 && timelineNanos == 0;
+    }
+
+    /**
+     * Returns the maximum number of {@link LeanNode}s the collected trees may contain.
+     * <p>
+     * @return the maximum number of {@link LeanNode}s, or 0 if the number of nodes is unbounded
+     */
+    public int getNodeBudget()
+    {
+        return nodeBudget;
+    }
+
+    /**
+     * Returns the maximum length of the sliding window which can be selected using
+     * {@link LeanLogCollector#setWindow(int)}.
+     * <p>
+     * @return the maximum length of the sliding window in seconds, or 0 if windows aren't supported
+     */
+    public int getMaxWindowSeconds()
+    {
+        return maxWindowSeconds;
+    }
+
+    /**
+     * Returns the initial bucket duration of the {@link SampleTimeline}s recorded for the {@link LeanNode}s.
+     * <p>
+     * @return the initial bucket duration in nanoseconds, or 0 if no timelines are recorded
+     */
+    public long getTimelineNanos()
+    {
+        return timelineNanos;
+    }
+
+    /**
+     * Returns the sampling interval used for attributing time per thread.
+     * <p>
+     * @return the sampling interval in nanoseconds, or 0 if time is attributed globally
+     */
+    public long getThreadIntervalNanos()
+    {
+        return threadIntervalNanos;
+    }
+
+    /**
+     * Returns a boolean indicating whether time is attributed per thread based on the sampling interval stated by the
+     * log.
+     * <p>
+     * @return a boolean indicating whether the sampling interval stated by the log is used
+     */
+    public boolean isThreadIntervalFromLog()
+    {
+        return threadIntervalFromLog;
+    }
+
+    // Option Methods
+
+    /**
+     * Specifies whether the stacks are aggregated into a compact {@link LeanTree} rather than into {@link LeanNode}
+     * trees.
+     * <p>
+     * @param compact a boolean indicating whether the stacks are aggregated into a {@link LeanTree}
+     * @return this object
+     */
+    public CollectorOptions withCompact(boolean compact)
+    {
+        this.compact = compact;
+        return this;
+    }
+
+    /**
+     * Specifies the maximum number of {@link LeanNode}s the collected trees may contain. The least-sampled subtrees are
+     * pruned whenever that number is exceeded.
+     * <p>
+     * @param nodeBudget the maximum number of {@link LeanNode}s, or 0 if the number of nodes is unbounded
+     * @return this object
+     */
+    public CollectorOptions withNodeBudget(int nodeBudget)
+    {
+        this.nodeBudget = checkNotNegative(nodeBudget, "node budget");
+        return this;
+    }
+
+    /**
+     * Specifies the maximum length of the sliding window which can be selected using
+     * {@link LeanLogCollector#setWindow(int)}.
+     * <p>
+     * @param maxWindowSeconds the maximum length of the sliding window in seconds, or 0 if windows aren't supported
+     * @return this object
+     */
+    public CollectorOptions withMaxWindowSeconds(int maxWindowSeconds)
+    {
+        this.maxWindowSeconds = checkNotNegative(maxWindowSeconds, "maximum window length");
+        return this;
+    }
+
+    /**
+     * Specifies the initial bucket duration of the {@link SampleTimeline}s recorded for the {@link LeanNode}s.
+     * <p>
+     * @param timelineNanos the initial bucket duration in nanoseconds, or 0 if no timelines are recorded
+     * @return this object
+     */
+    public CollectorOptions withTimelineNanos(long timelineNanos)
+    {
+        this.timelineNanos = checkNotNegative(timelineNanos, "timeline resolution");
+        return this;
+    }
+
+    /**
+     * Specifies the sampling interval used for attributing time per thread, see {@link ThreadClock}.
+     * <p>
+     * @param threadIntervalNanos the sampling interval in nanoseconds, or 0 if time is attributed globally
+     * @return this object
+     */
+    public CollectorOptions withThreadIntervalNanos(long threadIntervalNanos)
+    {
+        this.threadIntervalNanos = checkNotNegative(threadIntervalNanos, "thread sampling interval");
+        return this;
+    }
+
+    /**
+     * Specifies whether time is attributed per thread based on the sampling interval the agent states in the log
+     * headers, see {@link ThreadClock}. Until the log states an interval, or if it doesn't, the interval specified by
+     * {@link #withThreadIntervalNanos(long)} is used.
+     * <p>
+     * @param threadIntervalFromLog a boolean indicating whether the sampling interval stated by the log is used
+     * @return this object
+     */
+    public CollectorOptions withThreadIntervalFromLog(boolean threadIntervalFromLog)
+    {
+        this.threadIntervalFromLog = threadIntervalFromLog;
+        return this;
+    }
+
+    // Helper Methods
+
+    private static int checkNotNegative(int value, String name)
+    {
+        return (int)checkNotNegative((long)value, name);
+    }
+
+    private static long checkNotNegative(long value, String name)
+    {
+        if (value < 0)
+        {
+            throw new IllegalArgumentException("The " + name + " can't be negative.");
+        }
+        return value;
+    }
+}
@@ -1,22 +1,31 @@
 package com.insightfullogic.honest_profiler.core.collector.lean;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.insightfullogic.honest_profiler.core.parser.LogEventListener;
+import com.insightfullogic.honest_profiler.core.parser.AgentStats;
+import com.insightfullogic.honest_profiler.core.parser.LogSegment;
 import com.insightfullogic.honest_profiler.core.parser.Method;
+import com.insightfullogic.honest_profiler.core.parser.PrimitiveLogEventListener;
 import com.insightfullogic.honest_profiler.core.parser.StackFrame;
 import com.insightfullogic.honest_profiler.core.parser.ThreadMeta;
 import com.insightfullogic.honest_profiler.core.parser.TraceStart;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfileDelta;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfileDeltaListener;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfileListener;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
+import com.insightfullogic.honest_profiler.core.profiles.lean.NodeBudget;
+import com.insightfullogic.honest_profiler.core.profiles.lean.PruneStats;
 import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameTable;
 import com.insightfullogic.honest_profiler.core.profiles.lean.info.MethodInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.SampleTimeline;
 import com.insightfullogic.honest_profiler.core.profiles.lean.info.ThreadInfo;
 
 /**
@@ -26,16 +35,62 @@ import com.insightfullogic.honest_profiler.core.profiles.lean.info.ThreadInfo;
  * {@link LeanProfile} has been emitted after a log file has been processed, requests no longer have any effect.
  * <p>
  * As long as no stacks have been received, nothing will be emitted.
+ * <p>
+ * The collector receives the decoded records as primitives, and buffers the frames of the stack being received in a
+ * {@link StackBuffer}, so the ingest path doesn't allocate per-record objects. The frames are interned in a
+ * {@link FrameTable}, so aggregating a frame which has been seen before doesn't allocate either.
+ * <p>
+ * The optional features described below are enabled through the {@link CollectorOptions} specified on construction.
+ * <p>
+ * In compact mode, the stacks are aggregated into a {@link LeanTree} instead of into {@link LeanNode} trees, which
+ * takes a fraction of the memory for large profiles, and doesn't allocate per sample at all.
+ * <p>
+ * Every emitted {@link LeanProfile} shares as much as possible with the collector and the previously emitted profile :
+ * the {@link LeanNode} trees are shared rather than copied, and the nodes on the path of a new stack are copied the
+ * first time they are modified after a profile was emitted. In compact mode the {@link LeanTree} is snapshotted rather
+ * than copied. Either way, the cost of emitting a profile is mostly proportional to what changed since the previous
+ * one.
+ * <p>
+ * If a {@link LeanProfileDeltaListener} is specified, the collector can also emit {@link LeanProfileDelta}s on request,
+ * which only describe the changes since the previous delta. Deltas are calculated by comparing snapshots of the
+ * {@link LeanTree}, so a collector emitting deltas must work in compact mode.
+ * <p>
+ * If a node budget is specified, the collector keeps the number of {@link LeanNode}s bounded using a
+ * {@link NodeBudget}, which collapses the least-sampled subtrees into pruned nodes whenever the budget is exceeded. The
+ * emitted {@link LeanProfile}s then contain {@link PruneStats} describing how much was pruned. A collector with a node
+ * budget always works in object mode.
+ * <p>
+ * If a maximum window length is specified, the collector can also emit {@link LeanProfile}s which only contain the
+ * samples from a sliding window covering the most recent part of the log, selected through
+ * {@link #setWindow(int)}. The window is maintained by a {@link ProfileWindow}, and is based on the timestamps in the
+ * log. The samples are only aggregated for the window while one is selected, within the same node budget. A collector
+ * with a window always works in object mode.
+ * <p>
+ * If a timeline resolution is specified, every {@link LeanNode} also records when its samples were taken in a
+ * {@link SampleTimeline}, based on the {@link TraceStart} timestamps. Timelines are only recorded in object mode, for
+ * the trees covering the whole log : the trees of a sliding window, and the trees of a {@link ShardedLogCollector},
+ * have no timelines.
+ * <p>
+ * The time attributed to every stack is calculated by a {@link SampleClock}. By default, it is the time between its
+ * {@link TraceStart} and the next one, regardless of the thread. If a thread sampling interval is specified, the time
+ * is attributed per thread instead, using a {@link ThreadClock} : every stack gets the time elapsed since the previous
+ * stack of the same thread, capped at a small multiple of the interval, and the first stack of a thread gets the
+ * interval. Otherwise, the time of each stack shrinks as the number of active threads grows.
  */
-public class LeanLogCollector implements LogEventListener, ProfileSource
+public class LeanLogCollector implements PrimitiveLogEventListener, ProfileSource
 {
     // Class Properties
 
     private static final long SECONDS_TO_NANOS = 1000 * 1000 * 1000;
 
+    // The length in seconds of the epochs a sliding window moves forward by.
+    private static final int EPOCH_SECONDS = 10;
+    private static final int NO_WINDOW_REQUEST = -1;
+
     // Instance Properties
 
     private final LeanProfileListener listener;
+    private final LeanProfileDeltaListener deltaListener;
 
     // Maps method ids to MethodInfo objects.
     private final Map<Long, MethodInfo> methodMap;
@@ -44,23 +99,48 @@ public class LeanLogCollector implements LogEventListener, ProfileSource
     // Maps thread ids to the profile trees for the threads. The root contains the Thread-level data, anything below are
     // stackframe-level data.
     private final Map<Long, LeanThreadNode> threadData;
-
-    private Deque<StackFrame> stackTrace;
-
-    // Seconds and nanos as reported by the last TraceStart received.
-    private long prevSeconds;
-    private long prevNanos;
-
-    // Difference in ns between the previous and the current TraceStart.
-    private long nanosSpent;
+    // The compact profile trees for all threads, only used in compact mode, in which case threadData stays empty.
+    private final LeanTree tree;
+    // Interns the frames aggregated into the LeanNode trees, only used in object mode.
+    private final FrameTable frames;
+    // Bounds the number of nodes in the LeanNode trees, null if they are unbounded.
+    private final NodeBudget budget;
+    // Maintains the LeanNode trees for a sliding window, null if windows aren't supported.
+    private final ProfileWindow window;
+    // The initial bucket duration of the SampleTimelines recorded for the LeanNodes, 0 if no timelines are recorded.
+    private final long timelineNanos;
+    // Calculates the time attributed to every stack.
+    private final SampleClock clock;
+    // The most recent counters reported by the agent, which supersede any previous ones.
+    private AgentStats agentStats;
+    // The most recently emitted profile, with which the next profile shares any unchanged data.
+    private LeanProfile lastProfile;
+
+    // The metadata which changed since the previous delta, and the snapshot of the tree taken for that delta. Only used
+    // when deltas are emitted.
+    private final Map<Long, MethodInfo> deltaMethods;
+    private final Map<Long, ThreadInfo> deltaThreads;
+    private LeanTree deltaBase;
+
+    // The frames of the stack currently being received.
+    private final StackBuffer stack;
+
+    // The timestamp in ns of the TraceStart of the stack currently being received.
+    private long stackTimestamp;
 
     // Indicates whether a profile was requested and should be emitted.
     private AtomicBoolean profileRequested;
+    // Indicates whether a delta was requested and should be emitted.
+    private AtomicBoolean deltaRequested;
+    // The window length in seconds selected since the previous TraceStart, or NO_WINDOW_REQUEST.
+    private AtomicInteger windowRequested;
 
     // Property for internal use. When a TraceStart is received, this is set to the LeanThreadNode corresponding to the
     // reported thread id. When stackframes are processed, it is replaced by the node representing the processed
     // stackframe.
     private LeanNode currentNode;
+    // The compact mode counterpart of the currentNode, the index of the node in the LeanTree.
+    private int currentIndex = LeanTree.NO_NODE;
 
     // Indicates whether at least one stack has been processed. If not, no profile will be emitted.
     private boolean empty = true;
@@ -68,23 +148,75 @@ public class LeanLogCollector implements LogEventListener, ProfileSource
     // Instance Constructors
 
     /**
-     * Constructor which sets the {@link LeanProfileListener} to which the {@link LeanProfile}s will be emitted.
+     * Constructor which sets the {@link LeanProfileListener} to which the {@link LeanProfile}s will be emitted. None of
+     * the optional features are enabled.
      * <p>
      * @param listener the {@link LeanProfileListener} which will receive any emitted {@link LeanProfile}s
      */
     public LeanLogCollector(final LeanProfileListener listener)
     {
+        this(listener, new CollectorOptions());
+    }
+
+    /**
+     * Constructor which sets the {@link LeanProfileListener} to which the {@link LeanProfile}s will be emitted, and the
+     * {@link CollectorOptions} specifying which optional features are enabled.
+     * <p>
+     * @param listener the {@link LeanProfileListener} which will receive any emitted {@link LeanProfile}s
+     * @param options the {@link CollectorOptions} for the collector
+     */
+    public LeanLogCollector(final LeanProfileListener listener, CollectorOptions options)
+    {
+        this(listener, null, options);
+    }
+
+    /**
+     * Constructor which sets the {@link LeanProfileListener} to which the {@link LeanProfile}s will be emitted, the
+     * {@link LeanProfileDeltaListener} to which the {@link LeanProfileDelta}s will be emitted, and the
+     * {@link CollectorOptions} specifying which optional features are enabled.
+     * <p>
+     * @param listener the {@link LeanProfileListener} which will receive any emitted {@link LeanProfile}s, or null if
+     *            only deltas are needed
+     * @param deltaListener the {@link LeanProfileDeltaListener} which will receive any emitted
+     *            {@link LeanProfileDelta}s, or null if no deltas are needed
+     * @param options the {@link CollectorOptions} for the collector
+     * @throws IllegalArgumentException if a {@link LeanProfileDeltaListener} is specified but the options don't select
+     *             compact mode
+     */
+    public LeanLogCollector(final LeanProfileListener listener,
+                            final LeanProfileDeltaListener deltaListener,
+                            CollectorOptions options)
+    {
+        if (deltaListener != null && !options.isCompact())
+        {
+            throw new IllegalArgumentException("Deltas can only be emitted by a collector working in compact mode.");
+        }
+
         this.listener = listener;
+        this.deltaListener = deltaListener;
 
         methodMap = new HashMap<>();
         threadMap = new HashMap<>();
         threadData = new HashMap<>();
+        tree = options.isCompact() ? new LeanTree() : null;
+        frames = options.isCompact() ? null : new FrameTable();
+        budget = options.getNodeBudget() > 0 ? new NodeBudget(options.getNodeBudget()) : null;
+        window = options.getMaxWindowSeconds() > 0
+            ? new ProfileWindow(options.getMaxWindowSeconds(), EPOCH_SECONDS, options.getNodeBudget())
+            : null;
+        timelineNanos = options.getTimelineNanos();
+        clock = new SampleClock(options.getThreadIntervalNanos(), options.isThreadIntervalFromLog());
 
-        stackTrace = new ArrayDeque<>();
+        deltaMethods = new LinkedHashMap<>();
+        deltaThreads = new LinkedHashMap<>();
+
+        stack = new StackBuffer();
 
         currentNode = null;
 
         profileRequested = new AtomicBoolean(false);
+        deltaRequested = new AtomicBoolean(false);
+        windowRequested = new AtomicInteger(NO_WINDOW_REQUEST);
     }
 
     // ProfileSource Implementation
@@ -98,7 +230,36 @@ public class LeanLogCollector implements LogEventListener, ProfileSource
         profileRequested.set(true);
     }
 
-    // LogEventListener Implementation
+    /**
+     * Set a flag from any thread, which will cause a delta to be emitted as soon as possible, if this collector emits
+     * deltas.
+     */
+    @Override
+    public void requestProfileDelta()
+    {
+        if (deltaListener != null)
+        {
+            deltaRequested.set(true);
+        }
+    }
+
+    /**
+     * Selects, from any thread, the length of the sliding window the emitted {@link LeanProfile}s cover, if this
+     * collector supports windows. The selection takes effect at the next {@link TraceStart}. The window can't be longer
+     * than the maximum length specified on construction.
+     * <p>
+     * @param seconds the length of the window in seconds, or 0 if the profiles should contain all samples
+     */
+    @Override
+    public void setWindow(int seconds)
+    {
+        if (window != null)
+        {
+            windowRequested.set(Math.max(seconds, 0));
+        }
+    }
+
+    // PrimitiveLogEventListener Implementation
 
     /**
      * Processes a {@link TraceStart}, i.e. the indication that a new stack will be coming in. The time is updated, and
@@ -108,27 +269,33 @@ public class LeanLogCollector implements LogEventListener, ProfileSource
      * A profile will be emitted if requested.
      */
     @Override
-    public void handle(TraceStart traceStart)
+    public void onTraceStart(int numberOfFrames, long threadId, long timeSec, long timeNano)
     {
-        updateTime(traceStart.getTraceEpoch(), traceStart.getTraceEpochNano());
+        clock.advance(timeSec, timeNano);
         collectThreadDump();
-
-        currentNode = threadData
-            .computeIfAbsent(traceStart.getThreadId(), v -> new LeanThreadNode());
-
+        moveWindow(timeSec, timeNano);
+        stackTimestamp = timeSec * SECONDS_TO_NANOS + timeNano;
+        clock.startStack(threadId, stackTimestamp);
+        startStack(threadId);
         emitProfileIfNeeded();
+    }
 
-        // The stacktrace should be empty anyway, given the collectThreadDump() logic, so got rid of this.
-        // stackTrace.clear();
+    /**
+     * Processes a {@link StackFrame} by appending it to the internal stack buffer.
+     */
+    @Override
+    public void onFrame(int bci, int lineNumber, long methodId)
+    {
+        stack.addFrame(bci, lineNumber, methodId);
     }
 
     /**
-     * Processes a {@link StackFrame} by pushing it onto the {@link Deque}.
+     * Processes a reference to a known stack by copying its frames into the internal stack buffer.
      */
     @Override
-    public void handle(StackFrame stackFrame)
+    public void onStack(int numberOfFrames, int[] bcis, int[] lineNumbers, long[] methodIds)
     {
-        stackTrace.push(stackFrame);
+        stack.addStack(numberOfFrames, bcis, lineNumbers, methodIds);
     }
 
     /**
@@ -136,9 +303,17 @@ public class LeanLogCollector implements LogEventListener, ProfileSource
      * method map if it isn't there yet.
      */
     @Override
-    public void handle(Method newMethod)
+    public void onNewMethod(long methodId, String fileName, String className, String methodName)
     {
-        methodMap.putIfAbsent(newMethod.getMethodId(), new MethodInfo(newMethod));
+        if (!methodMap.containsKey(methodId))
+        {
+            MethodInfo info = new MethodInfo(new Method(methodId, fileName, className, methodName));
+            methodMap.put(methodId, info);
+            if (deltaListener != null)
+            {
+                deltaMethods.put(methodId, info);
+            }
+        }
         emitProfileIfNeeded();
     }
 
@@ -150,11 +325,37 @@ public class LeanLogCollector implements LogEventListener, ProfileSource
      * thread name, which is why the update mechanism is in place.
      */
     @Override
-    public void handle(ThreadMeta newThreadMeta)
+    public void onThreadMeta(long threadId, String threadName)
     {
-        threadMap.compute(
-            newThreadMeta.getThreadId(),
+        ThreadMeta newThreadMeta = new ThreadMeta(threadId, threadName);
+        ThreadInfo oldInfo = threadMap.get(threadId);
+        ThreadInfo newInfo = threadMap.compute(
+            threadId,
             (k, v) -> v == null ? new ThreadInfo(newThreadMeta) : v.checkAndSetName(newThreadMeta));
+        if (deltaListener != null && newInfo != oldInfo)
+        {
+            deltaThreads.put(threadId, newInfo);
+        }
+        emitProfileIfNeeded();
+    }
+
+    /**
+     * Processes the sampling interval stated by a log header, which the time attributed per thread is based on if the
+     * options say so.
+     */
+    @Override
+    public void onSamplingInterval(long samplingIntervalNanos)
+    {
+        clock.setSamplingInterval(samplingIntervalNanos);
+    }
+
+    /**
+     * Processes {@link AgentStats} by keeping them, since they contain running totals.
+     */
+    @Override
+    public void onAgentStats(AgentStats stats)
+    {
+        agentStats = stats;
         emitProfileIfNeeded();
     }
 
@@ -168,70 +369,298 @@ public class LeanLogCollector implements LogEventListener, ProfileSource
     {
         collectThreadDump();
         emitProfile();
+        emitDelta();
+    }
+
+    // Segment Methods
+
+    /**
+     * Prepares this collector for processing a segment of a log file, by setting the timestamps of the
+     * {@link TraceStart}s preceding the segment. This ensures the time for the first stack in the segment, and for the
+     * first stack of every thread if time is attributed per thread, is calculated as if the file was processed
+     * sequentially.
+     * <p>
+     * @param segment the {@link LogSegment} which will be processed
+     */
+    void startSegment(LogSegment segment)
+    {
+        clock.resume(segment);
+    }
+
+    /**
+     * Processes the last stack in a segment of a log file which is followed by another segment, using the timestamp of
+     * the first {@link TraceStart} in the next segment. No profile is emitted.
+     * <p>
+     * @param nextSeconds seconds reported in the first {@link TraceStart} of the next segment
+     * @param nextNanos nanoSeconds reported in the first {@link TraceStart} of the next segment
+     */
+    void endSegment(long nextSeconds, long nextNanos)
+    {
+        clock.advance(nextSeconds, nextNanos);
+        collectThreadDump();
+    }
+
+    /**
+     * Processes the last stack in the last segment of a log file, like {@link #endOfLog()} but without emitting a
+     * profile.
+     */
+    void endSegment()
+    {
+        collectThreadDump();
+    }
+
+    /**
+     * Merges the data collected by another collector, which processed the segment of the log file following the
+     * segment(s) processed by this collector, into this collector. The metadata is merged as if the records had been
+     * received by this collector, and the thread trees of the other collector are merged into the trees of this one.
+     * <p>
+     * The other collector should no longer be used afterwards.
+     * <p>
+     * @param other the collector which processed the next segment
+     * @return this object
+     */
+    LeanLogCollector merge(LeanLogCollector other)
+    {
+        other.methodMap.forEach(methodMap::putIfAbsent);
+        other.threadMap.forEach(
+            (threadId, info) -> threadMap.merge(
+                threadId,
+                info,
+                (oldInfo, newInfo) -> newInfo.getName() == null || newInfo.getName().isEmpty() ? oldInfo : newInfo));
+        if (tree != null)
+        {
+            tree.merge(other.tree);
+        }
+        other.threadData.forEach((threadId, node) ->
+        {
+            LeanThreadNode existing = threadData.get(threadId);
+            if (existing == null)
+            {
+                threadData.put(threadId, node);
+            }
+            else
+            {
+                existing.merge(node);
+            }
+        });
+
+        if (other.agentStats != null)
+        {
+            agentStats = other.agentStats;
+        }
+
+        empty &= other.empty;
+        return this;
+    }
+
+    /**
+     * Aggregates a complete stack, for which the time spent has already been calculated, into the tree of the specified
+     * thread. This is used by the {@link ShardedLogCollector}, which calculates the times in log order and hands the
+     * stacks of a subset of the threads to this collector.
+     * <p>
+     * @param threadId the id of the thread the stack was sampled on
+     * @param nanos the number of nanoseconds attributed to the stack
+     * @param size the number of frames in the stack
+     * @param bcis the byte code indices of the frames, innermost frame first
+     * @param lineNrs the line numbers of the frames, innermost frame first
+     * @param methodIds the ids of the methods executing in the frames, innermost frame first
+     * @param offset the position of the innermost frame in the arrays
+     */
+    void collectStack(long threadId, long nanos, int size, int[] bcis, int[] lineNrs, long[] methodIds, int offset)
+    {
+        startStack(threadId);
+        for (int i = offset + size - 1; i >= offset; i--)
+        {
+            collectStackFrame(nanos, methodIds[i], bcis[i], lineNrs[i], i == offset);
+        }
+        empty &= size == 0;
+        pruneIfNeeded();
+    }
+
+    /**
+     * Returns the mapping between thread ids and the root {@link LeanThreadNode}s of the trees collected so far.
+     * <p>
+     * @return the mapping between thread ids and the root {@link LeanThreadNode}s
+     */
+    Map<Long, LeanThreadNode> getThreadData()
+    {
+        return threadData;
+    }
+
+    /**
+     * Returns the {@link LeanTree} containing the trees collected so far in compact mode.
+     * <p>
+     * @return the {@link LeanTree} containing the collected trees, or null if the collector works in object mode
+     */
+    LeanTree getTree()
+    {
+        return tree;
     }
 
     // Helper Methods
 
     /**
-     * Processes the {@link StackFrame}s in the current stack.
+     * Puts the top-level {@link LeanThreadNode}, or its {@link LeanTree} counterpart, for the specified thread in
+     * place, creating it if needed.
+     * <p>
+     * @param threadId the id of the thread for which a stack will be collected
+     */
+    private void startStack(long threadId)
+    {
+        if (tree != null)
+        {
+            currentIndex = tree.root(threadId);
+            return;
+        }
+
+        if (window != null)
+        {
+            window.startStack(threadId);
+        }
+
+        LeanThreadNode thread = threadData.get(threadId);
+        if (thread == null)
+        {
+            thread = new LeanThreadNode();
+            threadData.put(threadId, thread);
+            if (budget != null)
+            {
+                budget.nodeAdded();
+            }
+        }
+        else if (thread.isShared())
+        {
+            // The tree is shared with an emitted LeanProfile, the nodes on the path of the stack are copied as needed.
+            thread = thread.unshare();
+            threadData.put(threadId, thread);
+        }
+        currentNode = thread;
+    }
+
+    /**
+     * Processes the {@link StackFrame}s in the current stack, starting with the outermost frame, which was received
+     * last.
      */
     private void collectThreadDump()
     {
-        // Slightly nicer IMHO than executing the "empty = false" inside the while loop.
-        if (stackTrace.isEmpty())
+        // Slightly nicer IMHO than executing the "empty = false" inside the loop.
+        if (stack.size() == 0)
         {
             return;
         }
 
-        while (!stackTrace.isEmpty())
+        // Frames received without a preceding TraceStart can't be attributed to a thread.
+        if (currentNode != null || currentIndex != LeanTree.NO_NODE)
         {
-            collectStackFrame(stackTrace.pop());
+            int[] bcis = stack.getBcis();
+            int[] lineNrs = stack.getLineNrs();
+            long[] methodIds = stack.getMethodIds();
+            for (int i = stack.size() - 1; i >= 0; i--)
+            {
+                collectStackFrame(clock.getNanosSpent(), methodIds[i], bcis[i], lineNrs[i], i == 0);
+            }
+            empty = false;
+            pruneIfNeeded();
         }
 
-        empty = false;
+        stack.clear();
     }
 
     /**
      * Processes a single {@link StackFrame}. The currentNode is the parent {@link LeanNode} which either represents the
-     * parent {@link StackFrame} or, if this is the first {@link StackFrame} from the internal {@link Deque}, the parent
+     * parent {@link StackFrame} or, if this is the outermost frame in the internal buffers, the parent
      * {@link LeanThreadNode} representing the thread for which the stack was received. The {@link StackFrame}
      * information will be aggregated into the children of the currentNode, and the resulting {@link LeanNode} becomes
-     * the currentNode, acting as parent for the next {@link StackFrame} which will be processed, if there are any left
-     * in the {@link Deque}.
+     * the currentNode, acting as parent for the next {@link StackFrame} which will be processed, if there are any left.
      * <p>
-     * @param stackFrame the {@link StackFrame} to be added as a child to the current {@link LeanNode}
+     * @param nanosSpent the number of nanoseconds attributed to the stack
+     * @param methodId the id of the method executing in the frame
+     * @param bci the BCI of the frame
+     * @param lineNr the line number of the frame
+     * @param last a boolean indicating whether the frame is the innermost frame of the stack
      */
-    private void collectStackFrame(StackFrame stackFrame)
+    private void collectStackFrame(long nanosSpent, long methodId, int bci, int lineNr, boolean last)
     {
-        currentNode = currentNode.add(nanosSpent, new FrameInfo(stackFrame), stackTrace.isEmpty());
+        if (tree != null)
+        {
+            currentIndex = tree.add(currentIndex, nanosSpent, methodId, bci, lineNr, last);
+            return;
+        }
+
+        FrameInfo frame = frames.intern(methodId, bci, lineNr);
+        if (window != null)
+        {
+            window.add(nanosSpent, frame, last);
+        }
+
+        if (budget == null && timelineNanos == 0)
+        {
+            currentNode = currentNode.add(nanosSpent, frame, last);
+            return;
+        }
+
+        LeanNode parent = currentNode;
+        int childCount = parent.getChildren().size();
+        currentNode = parent.add(nanosSpent, frame, last);
+        if (budget != null && parent.getChildren().size() > childCount)
+        {
+            budget.nodeAdded();
+        }
+
+        // The add updated the data of the parent, and of the child if it is the innermost frame.
+        if (timelineNanos > 0)
+        {
+            parent.recordSample(stackTimestamp, timelineNanos);
+            if (last)
+            {
+                currentNode.recordSample(stackTimestamp, timelineNanos);
+            }
+        }
     }
 
     /**
-     * Calculates the number of ns spent between the previous {@link TraceStart} and the current one. After the first
-     * {@link TraceStart} nanosSpent will still be 0.
+     * Applies any pending window selection, and moves the sliding window forward to the specified timestamp.
      * <p>
-     * @param newSeconds seconds reported in the current TraceStart
-     * @param newNanos nanoSeconds reported in the current TraceStart
+     * @param seconds seconds reported in the current TraceStart
+     * @param nanos nanoSeconds reported in the current TraceStart
      */
-    private void updateTime(long newSeconds, long newNanos)
+    private void moveWindow(long seconds, long nanos)
     {
-        // The timestamp is absolute, so the very first time these calculations
-        // are meaningless. And if the log doesn't contain timestamps,
-        // prevSeconds will always be zero, so we avoid the calculations.
-        if (prevSeconds > 0)
+        if (window == null)
         {
-            long secondsDiff = newSeconds - prevSeconds;
-            long nanosDiff = newNanos - prevNanos;
+            return;
+        }
 
-            nanosSpent = (secondsDiff * SECONDS_TO_NANOS) + nanosDiff;
+        int requested = windowRequested.getAndSet(NO_WINDOW_REQUEST);
+        if (requested != NO_WINDOW_REQUEST)
+        {
+            window.select(requested);
         }
+        window.advance(seconds, nanos);
+    }
 
-        prevSeconds = newSeconds;
-        prevNanos = newNanos;
+    /**
+     * Prunes the {@link LeanNode} trees, and those of the sliding window, if they exceed the node budget.
+     */
+    private void pruneIfNeeded()
+    {
+        boolean pruned = window != null && window.pruneIfNeeded();
+        if (budget != null && budget.isExceeded())
+        {
+            // The trees of threads without new samples may be pruned too, so none of the roots may be shared.
+            threadData.replaceAll((threadId, thread) -> thread.unshare());
+            budget.prune(threadData.values());
+            pruned = true;
+        }
+
+        if (pruned)
+        {
+            methodMap.putIfAbsent(NodeBudget.PRUNED_METHOD_ID, NodeBudget.PRUNED_METHOD);
+        }
     }
 
     /**
-     * Emit a {@link LeanProfile} if a request is outstanding.
+     * Emit a {@link LeanProfile} and/or a {@link LeanProfileDelta} if a request is outstanding.
      */
     private void emitProfileIfNeeded()
     {
@@ -239,16 +668,49 @@ public class LeanLogCollector implements LogEventListener, ProfileSource
         {
             emitProfile();
         }
+        if (deltaRequested.getAndSet(false))
+        {
+            emitDelta();
+        }
     }
 
     /**
      * Emit a {@link LeanProfile} if at least one full stack was processed.
      */
-    private void emitProfile()
+    void emitProfile()
     {
-        if (!empty)
+        if (!empty && listener != null)
         {
-            listener.accept(new LeanProfile(methodMap, threadMap, threadData));
+            Map<Long, LeanThreadNode> windowData = window == null ? null : window.getWindowData();
+            lastProfile = tree != null ? new LeanProfile(methodMap, threadMap, tree, agentStats, lastProfile)
+                : windowData != null ? new LeanProfile(methodMap, threadMap, windowData, agentStats, lastProfile)
+                    : new LeanProfile(
+                        methodMap,
+                        threadMap,
+                        threadData,
+                        agentStats,
+                        budget == null ? null : budget.getStats(),
+                        lastProfile);
+            listener.accept(lastProfile);
         }
     }
+
+    /**
+     * Emit a {@link LeanProfileDelta} describing the changes since the previously emitted one, if this collector emits
+     * deltas and at least one full stack was processed.
+     */
+    private void emitDelta()
+    {
+        if (deltaListener == null || empty)
+        {
+            return;
+        }
+
+        LeanTree snapshot = tree.snapshot();
+        LeanProfileDelta delta = new LeanProfileDelta(deltaMethods, deltaThreads, agentStats, snapshot, deltaBase);
+        deltaMethods.clear();
+        deltaThreads.clear();
+        deltaBase = snapshot;
+        deltaListener.accept(delta);
+    }
 }
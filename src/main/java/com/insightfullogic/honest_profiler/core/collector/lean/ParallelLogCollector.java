@@ -0,0 +1,222 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.AmountRead.COMPLETE_RECORD;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.insightfullogic.honest_profiler.core.parser.LogParser;
+import com.insightfullogic.honest_profiler.core.parser.LogSegment;
+import com.insightfullogic.honest_profiler.core.parser.LogSegmenter;
+import com.insightfullogic.honest_profiler.core.parser.StackDictionary;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfileListener;
+import com.insightfullogic.honest_profiler.core.sources.CantReadFromSourceException;
+
+/**
+ * Collector which processes a completed log file in parallel, and emits a single {@link LeanProfile} for the entire
+ * file.
+ * <p>
+ * The file is split into {@link LogSegment}s by the {@link LogSegmenter}. Every segment is parsed into its own
+ * {@link LeanLogCollector} on a {@link ForkJoinPool}, and the resulting partial profiles are merged pairwise, in file
+ * order. Since samples may refer to stacks defined in earlier segments, the {@link LogSegmenter} collects all stack
+ * definitions into a {@link StackDictionary} shared by the segment parsers, in the same pass which splits the file. The emitted {@link LeanProfile} is identical to the one
+ * emitted by a {@link LeanLogCollector} which processed the file sequentially.
+ */
+public class ParallelLogCollector
+{
+    // Class Properties
+
+    private static final long MIN_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    // The number of segments created per worker thread, to even out the load when segments differ in complexity.
+    private static final int SEGMENTS_PER_THREAD = 4;
+
+    // Instance Properties
+
+    private final LeanProfileListener listener;
+    private final ForkJoinPool pool;
+    private final CollectorOptions options;
+
+    // Instance Constructors
+
+    /**
+     * Constructor which sets the {@link LeanProfileListener} to which the {@link LeanProfile} will be emitted, and
+     * which processes the segments on the common {@link ForkJoinPool}.
+     * <p>
+     * @param listener the {@link LeanProfileListener} which will receive the emitted {@link LeanProfile}
+     */
+    public ParallelLogCollector(LeanProfileListener listener)
+    {
+        this(listener, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor which sets the {@link LeanProfileListener} to which the {@link LeanProfile} will be emitted, and the
+     * {@link ForkJoinPool} on which the segments will be processed.
+     * <p>
+     * @param listener the {@link LeanProfileListener} which will receive the emitted {@link LeanProfile}
+     * @param pool the {@link ForkJoinPool} used for processing the segments
+     */
+    public ParallelLogCollector(LeanProfileListener listener, ForkJoinPool pool)
+    {
+        this(listener, pool, new CollectorOptions());
+    }
+
+    /**
+     * Constructor which sets the {@link LeanProfileListener} to which the {@link LeanProfile} will be emitted, the
+     * {@link ForkJoinPool} on which the segments will be processed, and the {@link CollectorOptions} for the
+     * {@link LeanLogCollector}s processing the segments.
+     * <p>
+     * @param listener the {@link LeanProfileListener} which will receive the emitted {@link LeanProfile}
+     * @param pool the {@link ForkJoinPool} used for processing the segments
+     * @param options the {@link CollectorOptions} for the segment collectors
+     * @throws IllegalArgumentException if the options specify a node budget or a sliding window, which aren't supported
+     *             for the merged profile
+     */
+    public ParallelLogCollector(LeanProfileListener listener, ForkJoinPool pool, CollectorOptions options)
+    {
+        if (options.getNodeBudget() > 0 || options.getMaxWindowSeconds() > 0)
+        {
+            throw new IllegalArgumentException("Node budgets and sliding windows aren't supported.");
+        }
+
+        this.listener = listener;
+        this.pool = pool;
+        this.options = options;
+    }
+
+    // Collection Methods
+
+    /**
+     * Processes the specified log file, and emits the resulting {@link LeanProfile} unless the file contains no
+     * stacks. This method blocks until the profile has been emitted.
+     * <p>
+     * @param file the completed log file
+     */
+    public void collect(File file)
+    {
+        collect(file, 0);
+    }
+
+    /**
+     * Processes the specified log file, split into segments of approximately the specified size, and emits the
+     * resulting {@link LeanProfile} unless the file contains no stacks. This method blocks until the profile has been
+     * emitted.
+     * <p>
+     * @param file the completed log file
+     * @param segmentSize the size in bytes of the segments, or 0 to base it on the file size and the parallelism
+     */
+    void collect(File file, long segmentSize)
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+        {
+            StackDictionary stacks = new StackDictionary();
+            List<LogSegment> segments = LogSegmenter.split(
+                channel,
+                segmentSize > 0 ? segmentSize : segmentSize(channel.size()),
+                stacks);
+            if (!segments.isEmpty())
+            {
+                pool.invoke(new SegmentTask(channel, stacks, segments, 0, segments.size())).emitProfile();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new CantReadFromSourceException(e);
+        }
+    }
+
+    // Helper Methods
+
+    private long segmentSize(long fileSize)
+    {
+        long size = fileSize / (pool.getParallelism() * SEGMENTS_PER_THREAD);
+        return min(MAX_SEGMENT_SIZE, max(MIN_SEGMENT_SIZE, size));
+    }
+
+    /**
+     * Task which parses a range of {@link LogSegment}s, splitting the range in half until a single segment is left, and
+     * merges the resulting collectors in file order.
+     */
+    private class SegmentTask extends RecursiveTask<LeanLogCollector>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final StackDictionary stacks;
+        private final List<LogSegment> segments;
+        private final int from;
+        private final int to;
+
+        private SegmentTask(FileChannel channel, StackDictionary stacks, List<LogSegment> segments, int from, int to)
+        {
+            this.channel = channel;
+            this.stacks = stacks;
+            this.segments = segments;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected LeanLogCollector compute()
+        {
+            if (to - from == 1)
+            {
+                return parse(segments.get(from));
+            }
+
+            int middle = (from + to) >>> 1;
+            SegmentTask right = new SegmentTask(channel, stacks, segments, middle, to);
+            right.fork();
+            LeanLogCollector left = new SegmentTask(channel, stacks, segments, from, middle).compute();
+            return left.merge(right.join());
+        }
+
+        private LeanLogCollector parse(LogSegment segment)
+        {
+            // The segment collectors never emit a profile themselves, only the one resulting from the merges does.
+            LeanLogCollector collector = new LeanLogCollector(listener, options);
+            collector.startSegment(segment);
+
+            MappedByteBuffer buffer;
+            try
+            {
+                buffer = channel.map(READ_ONLY, segment.getStart(), segment.getSize());
+            }
+            catch (IOException e)
+            {
+                throw new CantReadFromSourceException(e);
+            }
+
+            LogParser parser = new LogParser(getLogger(LogParser.class), collector, stacks);
+            // Resume decoding in the state the log is in at the start of the segment.
+            parser.readRecord(segment.getHeader().encode());
+            while (parser.readRecord(buffer) == COMPLETE_RECORD)
+            {
+                // Keep reading until the end of the segment.
+            }
+
+            if (segment.hasNext())
+            {
+                collector.endSegment(segment.getNextSeconds(), segment.getNextNanos());
+            }
+            else
+            {
+                collector.endSegment();
+            }
+            return collector;
+        }
+    }
+}
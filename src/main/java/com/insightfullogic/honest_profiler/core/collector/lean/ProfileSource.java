@@ -1,5 +1,7 @@
 package com.insightfullogic.honest_profiler.core.collector.lean;
 
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfileDelta;
+
 /**
  * Interface for classes a profile can be requested from.
  */
@@ -9,4 +11,26 @@ public interface ProfileSource
      * Request that a profile be emitted as soon as possible. There is no guarantee that any profile will be emitted.
      */
     void requestProfile();
+
+    /**
+     * Request that a {@link LeanProfileDelta}, describing the changes since the previously emitted one, be emitted as
+     * soon as possible. There is no guarantee that any delta will be emitted, and sources which don't support deltas
+     * ignore the request.
+     */
+    default void requestProfileDelta()
+    {
+        // NOOP
+    }
+
+    /**
+     * Select the length of the sliding window the subsequently emitted profiles cover, i.e. request that they only
+     * contain the samples from the most recent part of the log. Sources which don't support windows ignore the
+     * selection.
+     * <p>
+     * @param seconds the length of the window in seconds, or 0 if the profiles should contain all samples
+     */
+    default void setWindow(int seconds)
+    {
+        // NOOP
+    }
 }
@@ -0,0 +1,351 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import static java.lang.Math.floorMod;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.NodeBudget;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+
+/**
+ * ProfileWindow keeps the {@link LeanNode} trees for the samples taken during the most recent part of a log, for a
+ * {@link LeanLogCollector} which emits profiles for a sliding window.
+ * <p>
+ * Time is divided into epochs of fixed length, based on the timestamps in the log. The samples of every epoch are
+ * aggregated into a separate set of trees, and the sets for the most recent epochs are kept in a ring which covers the
+ * maximum window length. The samples are also aggregated into the trees for the currently selected window. When an
+ * epoch falls out of the window, its trees are subtracted from the window trees, and when it falls out of the ring, its
+ * trees are dropped. The cost of maintaining the window is therefore bounded by the number of samples in the ring,
+ * regardless of the length of the log.
+ * <p>
+ * The ring is only maintained while a window is selected, so a collector whose profiles cover the whole log doesn't
+ * aggregate every sample twice. The window therefore only contains the samples received since a window was first
+ * selected. When a different window length is selected, the window trees are rebuilt from the epochs in the ring.
+ * <p>
+ * If a node budget is specified, the number of {@link LeanNode}s in the trees of the ring is bounded by a
+ * {@link NodeBudget}. The window trees are rebuilt from the epochs whenever these are pruned, so they never contain
+ * more {@link LeanNode}s than the ring.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class ProfileWindow
+{
+    // Class Properties
+
+    private static final long SECONDS_TO_NANOS = 1000 * 1000 * 1000;
+    private static final long NO_EPOCH = Long.MIN_VALUE;
+
+    // Instance Properties
+
+    private final long epochNanos;
+    private final int ringSize;
+    private final int maxNodes;
+
+    // The ring of epochs, null while no window is selected. The trees of epoch e are stored in slot (e mod ring size),
+    // if the id in that slot equals e.
+    private long[] epochIds;
+    private List<Map<Long, LeanThreadNode>> epochs;
+    // Bounds the number of nodes in the trees of the ring, null if no window is selected or the number is unbounded.
+    private NodeBudget budget;
+    // The newest epoch for which samples have been received.
+    private long lastEpoch = NO_EPOCH;
+
+    // The number of epochs in the selected window, 0 if no window is selected.
+    private int windowEpochs;
+    // The trees for the selected window, null if no window is selected.
+    private Map<Long, LeanThreadNode> windowData;
+
+    // The nodes in the epoch and window trees corresponding to the current node of the LeanLogCollector.
+    private LeanNode epochNode;
+    private LeanNode windowNode;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the maximum length of the window, the length of the epochs and the node budget. The
+     * maximum length is rounded up to a multiple of the epoch length.
+     * <p>
+     * @param maxWindowSeconds the maximum length of the window in seconds
+     * @param epochSeconds the length of the epochs in seconds
+     * @param maxNodes the maximum number of {@link LeanNode}s in the trees of the ring, or 0 if it is unbounded
+     */
+    ProfileWindow(int maxWindowSeconds, int epochSeconds, int maxNodes)
+    {
+        if (maxWindowSeconds < 1 || epochSeconds < 1)
+        {
+            throw new IllegalArgumentException("The window and epoch lengths must be positive.");
+        }
+
+        epochNanos = epochSeconds * SECONDS_TO_NANOS;
+        ringSize = (maxWindowSeconds + epochSeconds - 1) / epochSeconds;
+        this.maxNodes = maxNodes;
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the trees for the selected window, or null if no window is selected.
+     * <p>
+     * @return the trees for the selected window, or null if no window is selected
+     */
+    Map<Long, LeanThreadNode> getWindowData()
+    {
+        return windowData;
+    }
+
+    // Window Methods
+
+    /**
+     * Selects the length of the window, rebuilding the window trees from the epochs in the ring. The length is rounded
+     * up to a multiple of the epoch length, and capped at the maximum window length. The ring is created when a window
+     * is selected while none was, and dropped when no window is selected.
+     * <p>
+     * @param seconds the length of the window in seconds, or 0 to select no window
+     */
+    void select(int seconds)
+    {
+        long epochSeconds = epochNanos / SECONDS_TO_NANOS;
+        windowEpochs = (int)min((seconds + epochSeconds - 1) / epochSeconds, ringSize);
+
+        if (windowEpochs <= 0)
+        {
+            windowEpochs = 0;
+            windowData = null;
+            epochIds = null;
+            epochs = null;
+            budget = null;
+            epochNode = null;
+            windowNode = null;
+            return;
+        }
+
+        if (epochs == null)
+        {
+            createRing();
+        }
+        rebuildWindow();
+    }
+
+    /**
+     * Moves the window forward to the epoch containing the specified timestamp, evicting the epochs which no longer
+     * fall inside the window or the ring. Timestamps preceding the newest epoch are ignored.
+     * <p>
+     * @param seconds the seconds of the timestamp
+     * @param nanos the nanoseconds of the timestamp
+     * @return a boolean indicating whether any samples were subtracted from the window trees
+     */
+    boolean advance(long seconds, long nanos)
+    {
+        long epoch = (seconds * SECONDS_TO_NANOS + nanos) / epochNanos;
+
+        if (lastEpoch == NO_EPOCH)
+        {
+            lastEpoch = epoch;
+            if (epochs != null)
+            {
+                epochIds[floorMod(epoch, ringSize)] = epoch;
+            }
+            return false;
+        }
+
+        if (epoch <= lastEpoch)
+        {
+            return false;
+        }
+
+        if (epochs == null)
+        {
+            lastEpoch = epoch;
+            return false;
+        }
+
+        boolean evicted = false;
+
+        // Subtract the epochs which leave the window. They are still in the ring, since the window isn't longer.
+        long last = min(epoch - windowEpochs, lastEpoch);
+        for (long old = lastEpoch - windowEpochs + 1; old <= last; old++)
+        {
+            int slot = floorMod(old, ringSize);
+            if (epochIds[slot] == old && !epochs.get(slot).isEmpty())
+            {
+                epochs.get(slot).forEach(this::subtract);
+                evicted = true;
+            }
+        }
+
+        // Reuse the slots of the epochs which leave the ring for the new epochs.
+        for (long next = max(lastEpoch + 1, epoch - ringSize + 1); next <= epoch; next++)
+        {
+            int slot = floorMod(next, ringSize);
+            if (budget != null)
+            {
+                budget.treesRemoved(epochs.get(slot).values());
+            }
+            epochs.get(slot).clear();
+            epochIds[slot] = next;
+        }
+
+        lastEpoch = epoch;
+        return evicted;
+    }
+
+    // Aggregation Methods
+
+    /**
+     * Puts the top-level {@link LeanThreadNode}s for the specified thread in the current epoch and the window in place,
+     * creating them if needed. Nothing happens if no window is selected.
+     * <p>
+     * @param threadId the id of the thread for which a stack will be collected
+     */
+    void startStack(long threadId)
+    {
+        if (epochs == null)
+        {
+            return;
+        }
+
+        Map<Long, LeanThreadNode> epochData = epochs.get(floorMod(lastEpoch, ringSize));
+        LeanThreadNode epochThread = epochData.get(threadId);
+        if (epochThread == null)
+        {
+            epochThread = new LeanThreadNode();
+            epochData.put(threadId, epochThread);
+            if (budget != null)
+            {
+                budget.nodeAdded();
+            }
+        }
+        epochNode = epochThread;
+        windowNode = modifiableWindowThread(threadId);
+    }
+
+    /**
+     * Aggregates a frame into the trees of the current epoch and the window. Nothing happens if no window is selected.
+     * <p>
+     * @param nanos the number of nanoseconds attributed to the stack
+     * @param frame the {@link FrameInfo} of the frame
+     * @param last a boolean indicating whether the frame is the innermost frame of the stack
+     */
+    void add(long nanos, FrameInfo frame, boolean last)
+    {
+        if (epochNode == null)
+        {
+            return;
+        }
+
+        int childCount = epochNode.getChildren().size();
+        LeanNode parent = epochNode;
+        epochNode = parent.add(nanos, frame, last);
+        if (budget != null && parent.getChildren().size() > childCount)
+        {
+            budget.nodeAdded();
+        }
+        windowNode = windowNode.add(nanos, frame, last);
+    }
+
+    /**
+     * Prunes the trees of the ring if they exceed the node budget, and rebuilds the window trees from them.
+     * <p>
+     * @return a boolean indicating whether the trees were pruned
+     */
+    boolean pruneIfNeeded()
+    {
+        if (budget == null || !budget.isExceeded())
+        {
+            return false;
+        }
+
+        List<LeanThreadNode> threads = new ArrayList<>();
+        epochs.forEach(epochData -> threads.addAll(epochData.values()));
+        budget.prune(threads);
+        rebuildWindow();
+        return true;
+    }
+
+    // Helper Methods
+
+    /**
+     * Creates the ring, in which the current epoch, if any, has no samples yet.
+     */
+    private void createRing()
+    {
+        epochIds = new long[ringSize];
+        epochs = new ArrayList<>(ringSize);
+        for (int i = 0; i < ringSize; i++)
+        {
+            epochIds[i] = NO_EPOCH;
+            epochs.add(new HashMap<>());
+        }
+        if (lastEpoch != NO_EPOCH)
+        {
+            epochIds[floorMod(lastEpoch, ringSize)] = lastEpoch;
+        }
+        budget = maxNodes > 0 ? new NodeBudget(maxNodes) : null;
+    }
+
+    /**
+     * Rebuilds the window trees by merging copies of the trees of the epochs inside the window.
+     */
+    private void rebuildWindow()
+    {
+        windowData = new HashMap<>();
+        epochNode = null;
+        windowNode = null;
+        if (lastEpoch == NO_EPOCH)
+        {
+            return;
+        }
+
+        for (long epoch = lastEpoch - windowEpochs + 1; epoch <= lastEpoch; epoch++)
+        {
+            int slot = floorMod(epoch, ringSize);
+            if (epochIds[slot] == epoch)
+            {
+                epochs.get(slot).forEach((threadId, node) -> windowData.merge(threadId, node.copy(), this::merge));
+            }
+        }
+    }
+
+    private LeanThreadNode merge(LeanThreadNode node, LeanThreadNode other)
+    {
+        node.merge(other);
+        return node;
+    }
+
+    /**
+     * Returns the root of the window tree for the specified thread, creating it if needed. The window trees are shared
+     * with the emitted profiles, so a shared root is replaced by a copy which can be modified.
+     * <p>
+     * @param threadId the id of the thread
+     * @return the root of the window tree for the thread, which can be modified
+     */
+    private LeanThreadNode modifiableWindowThread(Long threadId)
+    {
+        LeanThreadNode node = windowData.get(threadId);
+        if (node == null || node.isShared())
+        {
+            node = node == null ? new LeanThreadNode() : node.unshare();
+            windowData.put(threadId, node);
+        }
+        return node;
+    }
+
+    private void subtract(Long threadId, LeanThreadNode epochNode)
+    {
+        if (windowData.get(threadId).getData().getTotalCnt() == epochNode.getData().getTotalCnt())
+        {
+            windowData.remove(threadId);
+        }
+        else
+        {
+            modifiableWindowThread(threadId).subtract(epochNode);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import com.insightfullogic.honest_profiler.core.parser.LogSegment;
+import com.insightfullogic.honest_profiler.core.parser.TraceStart;
+
+/**
+ * SampleClock calculates the time attributed to the stacks received by a collector, based on the timestamps of the
+ * {@link TraceStart}s in log order.
+ * <p>
+ * By default, the time attributed to a stack is the time between its {@link TraceStart} and the next one, regardless
+ * of the thread. That time is only known once the next {@link TraceStart} is received, so {@link #advance(long, long)}
+ * has to be called before the previous stack is aggregated. If the sampling interval of the agent is known, the time is
+ * attributed per thread by a {@link ThreadClock} instead, which is known as soon as the {@link TraceStart} of the stack
+ * itself has been passed to {@link #startStack(long, long)}.
+ * <p>
+ * The interval is either specified up front, or taken from the log headers passed to
+ * {@link #setSamplingInterval(long)}, in which case the specified interval only applies until the log states one. The
+ * samples of every thread are tracked even while time is attributed globally, so the clock can switch to attributing
+ * time per thread at any point.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class SampleClock
+{
+    // Class Properties
+
+    private static final long SECONDS_TO_NANOS = 1000 * 1000 * 1000;
+
+    // Instance Properties
+
+    // Tracks the samples per thread, and attributes time per thread while the interval is known. Null if time is
+    // always attributed globally.
+    private final ThreadClock threadClock;
+    // The interval specified on construction, and whether the interval stated by the log replaces it.
+    private final long specifiedIntervalNanos;
+    private final boolean intervalFromLog;
+
+    // Seconds and nanos as reported by the last TraceStart received.
+    private long prevSeconds;
+    private long prevNanos;
+
+    // The time attributed to the current stack.
+    private long nanosSpent;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the thread sampling interval.
+     * <p>
+     * @param threadIntervalNanos the sampling interval of the agent in nanoseconds, or 0 if time is attributed globally
+     */
+    SampleClock(long threadIntervalNanos)
+    {
+        this(threadIntervalNanos, false);
+    }
+
+    /**
+     * Constructor specifying the thread sampling interval, and whether the interval stated by the log replaces it.
+     * <p>
+     * @param threadIntervalNanos the sampling interval of the agent in nanoseconds, or 0 if time is attributed globally
+     *            until the log states the interval
+     * @param intervalFromLog a boolean indicating whether the intervals passed to {@link #setSamplingInterval(long)}
+     *            are used
+     */
+    SampleClock(long threadIntervalNanos, boolean intervalFromLog)
+    {
+        threadClock = threadIntervalNanos > 0 || intervalFromLog ? new ThreadClock(threadIntervalNanos) : null;
+        specifiedIntervalNanos = threadIntervalNanos;
+        this.intervalFromLog = intervalFromLog;
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the time in nanoseconds attributed to the current stack.
+     * <p>
+     * @return the time in nanoseconds attributed to the current stack
+     */
+    long getNanosSpent()
+    {
+        return nanosSpent;
+    }
+
+    // Clock Methods
+
+    /**
+     * Registers the sampling interval stated by a log header. If the clock uses the interval of the log, time is
+     * attributed per thread from now on, or globally if the interval is unknown and none was specified.
+     * <p>
+     * @param samplingIntervalNanos the sampling interval in nanoseconds stated by the log, or 0 if it is unknown
+     */
+    void setSamplingInterval(long samplingIntervalNanos)
+    {
+        if (intervalFromLog)
+        {
+            threadClock.setIntervalNanos(samplingIntervalNanos > 0 ? samplingIntervalNanos : specifiedIntervalNanos);
+        }
+    }
+
+    /**
+     * Prepares the clock for processing a segment of a log file, by setting the timestamps of the {@link TraceStart}s
+     * preceding the segment.
+     * <p>
+     * @param segment the {@link LogSegment} which will be processed
+     */
+    void resume(LogSegment segment)
+    {
+        if (segment.hasPrevious())
+        {
+            prevSeconds = segment.getPrevSeconds();
+            prevNanos = segment.getPrevNanos();
+        }
+        if (threadClock != null)
+        {
+            threadClock.resume(segment.getPrevThreadTimestamps());
+        }
+    }
+
+    /**
+     * Registers the timestamp of a {@link TraceStart}. If time is attributed globally, the time attributed to the
+     * previous stack becomes the number of ns spent between the previous {@link TraceStart} and this one. After the
+     * first {@link TraceStart} it is still 0. Like {@link ThreadClock}, a {@link TraceStart} preceding the previous one,
+     * which can only happen if the log isn't ordered, gets no time at all.
+     * <p>
+     * @param newSeconds seconds reported in the current TraceStart
+     * @param newNanos nanoSeconds reported in the current TraceStart
+     */
+    void advance(long newSeconds, long newNanos)
+    {
+        // The timestamp is absolute, so the very first time these calculations
+        // are meaningless. And if the log doesn't contain timestamps,
+        // prevSeconds will always be zero, so we avoid the calculations.
+        if (prevSeconds > 0 && !isPerThread())
+        {
+            long secondsDiff = newSeconds - prevSeconds;
+            long nanosDiff = newNanos - prevNanos;
+
+            nanosSpent = Math.max((secondsDiff * SECONDS_TO_NANOS) + nanosDiff, 0);
+        }
+
+        prevSeconds = newSeconds;
+        prevNanos = newNanos;
+    }
+
+    /**
+     * Registers the start of a stack on the specified thread. If time is attributed per thread, the time attributed to
+     * the stack is calculated by the {@link ThreadClock}. If the log may still state the interval, the sample is tracked
+     * while time is attributed globally as well.
+     * <p>
+     * @param threadId the id of the thread the stack was sampled on
+     * @param timestampNanos the timestamp in nanoseconds reported in the {@link TraceStart} of the stack
+     */
+    void startStack(long threadId, long timestampNanos)
+    {
+        if (threadClock != null)
+        {
+            long elapsed = threadClock.elapsed(threadId, timestampNanos);
+            if (isPerThread())
+            {
+                nanosSpent = elapsed;
+            }
+        }
+    }
+
+    // Helper Methods
+
+    private boolean isPerThread()
+    {
+        return threadClock != null && threadClock.getIntervalNanos() > 0;
+    }
+}
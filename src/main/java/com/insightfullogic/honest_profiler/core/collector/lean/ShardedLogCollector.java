@@ -0,0 +1,546 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import static java.util.Arrays.copyOf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.insightfullogic.honest_profiler.core.parser.AgentStats;
+import com.insightfullogic.honest_profiler.core.parser.Method;
+import com.insightfullogic.honest_profiler.core.parser.PrimitiveLogEventListener;
+import com.insightfullogic.honest_profiler.core.parser.ThreadMeta;
+import com.insightfullogic.honest_profiler.core.parser.TraceStart;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfileListener;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.MethodInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.ThreadInfo;
+
+/**
+ * Collector which emits {@link LeanProfile}s like the {@link LeanLogCollector}, but spreads the aggregation of the
+ * stacks over a number of worker threads.
+ * <p>
+ * The stacks of different threads are aggregated into disjoint {@link LeanThreadNode} trees, so every thread id is
+ * assigned to one of N shards. The thread receiving the log events keeps the metadata, buffers the stack being received
+ * in a {@link StackBuffer} and calculates the time spent in every stack with a {@link SampleClock}, exactly like a
+ * {@link LeanLogCollector}, as it needs to see the {@link TraceStart}s of all threads in log order. It then appends the
+ * stack to a batch for the shard owning the thread, and hands full batches to the worker thread of that shard, which
+ * aggregates them into the trees it owns using a {@link LeanLogCollector}. The worker threads are started when the
+ * first batch is handed over.
+ * <p>
+ * The {@link CollectorOptions} apply as they do for a {@link LeanLogCollector}, except that node budgets, sliding
+ * windows and timelines aren't supported. In compact mode, every shard aggregates its threads into its own
+ * {@link LeanTree}, and the trees of the shards are merged into a new {@link LeanTree} for every emitted profile.
+ * <p>
+ * When a profile is requested, the pending batches are handed over, followed by a cut marker. A worker which reaches
+ * the marker waits until all workers have reached it, at which point the trees reflect exactly the stacks received
+ * before the request. The last worker to arrive constructs and emits the {@link LeanProfile}, after which all workers
+ * resume. The thread receiving the log events never waits for this, unless the queue of a shard is full.
+ * <p>
+ * At the end of the log the final profile is emitted, the worker threads are stopped, and {@link #endOfLog()} only
+ * returns once that has happened.
+ */
+public class ShardedLogCollector implements PrimitiveLogEventListener, ProfileSource
+{
+    // Class Properties
+
+    private static final long SECONDS_TO_NANOS = 1000 * 1000 * 1000;
+
+    // The number of stacks in a batch, and the number of batches which can be queued for a shard.
+    private static final int BATCH_SIZE = 256;
+    private static final int QUEUE_SIZE = 64;
+
+    // Instance Properties
+
+    private final LeanProfileListener listener;
+    private final CollectorOptions options;
+    private final Shard[] shards;
+
+    private final Map<Long, MethodInfo> methodMap;
+    private final Map<Long, ThreadInfo> threadMap;
+    private AgentStats agentStats;
+
+    // The most recently emitted profile, only accessed by the worker which emits the next one.
+    private LeanProfile lastProfile;
+
+    // The frames of the stack currently being received, and the thread it was sampled on.
+    private final StackBuffer stack;
+    private long stackThreadId;
+    private boolean stackStarted;
+
+    // Calculates the time attributed to every stack.
+    private final SampleClock clock;
+
+    private final AtomicBoolean profileRequested;
+    private boolean empty = true;
+    private boolean ended;
+
+    // Instance Constructors
+
+    /**
+     * Constructor which sets the {@link LeanProfileListener} to which the {@link LeanProfile}s will be emitted, and
+     * uses a shard for every available processor but one, which is left for the thread receiving the log events. None
+     * of the optional features are enabled.
+     * <p>
+     * @param listener the {@link LeanProfileListener} which will receive any emitted {@link LeanProfile}s
+     */
+    public ShardedLogCollector(LeanProfileListener listener)
+    {
+        this(listener, new CollectorOptions());
+    }
+
+    /**
+     * Constructor which sets the {@link LeanProfileListener} to which the {@link LeanProfile}s will be emitted, and the
+     * {@link CollectorOptions} specifying which optional features are enabled. A shard is used for every available
+     * processor but one, which is left for the thread receiving the log events.
+     * <p>
+     * @param listener the {@link LeanProfileListener} which will receive any emitted {@link LeanProfile}s
+     * @param options the {@link CollectorOptions} for the collector
+     * @throws IllegalArgumentException if the options specify a node budget, a sliding window or timelines
+     */
+    public ShardedLogCollector(LeanProfileListener listener, CollectorOptions options)
+    {
+        this(listener, Math.max(1, Runtime.getRuntime().availableProcessors() - 1), options);
+    }
+
+    /**
+     * Constructor which sets the {@link LeanProfileListener} to which the {@link LeanProfile}s will be emitted, the
+     * number of shards, and the {@link CollectorOptions} specifying which optional features are enabled.
+     * <p>
+     * @param listener the {@link LeanProfileListener} which will receive any emitted {@link LeanProfile}s
+     * @param shardCount the number of shards
+     * @param options the {@link CollectorOptions} for the collector
+     * @throws IllegalArgumentException if the number of shards is less than 1, or if the options specify a node budget,
+     *             a sliding window or timelines
+     */
+    public ShardedLogCollector(LeanProfileListener listener, int shardCount, CollectorOptions options)
+    {
+        if (shardCount < 1)
+        {
+            throw new IllegalArgumentException("The number of shards must be at least 1.");
+        }
+        if (options.getNodeBudget() > 0 || options.getMaxWindowSeconds() > 0 || options.getTimelineNanos() > 0)
+        {
+            throw new IllegalArgumentException("Node budgets, sliding windows and timelines aren't supported.");
+        }
+
+        this.listener = listener;
+        this.options = options;
+
+        methodMap = new HashMap<>();
+        threadMap = new HashMap<>();
+
+        stack = new StackBuffer();
+        clock = new SampleClock(options.getThreadIntervalNanos(), options.isThreadIntervalFromLog());
+
+        profileRequested = new AtomicBoolean(false);
+
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++)
+        {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    // ProfileSource Implementation
+
+    /**
+     * Set a flag from any thread, which will cause an updated profile to be emitted as soon as possible.
+     */
+    @Override
+    public void requestProfile()
+    {
+        profileRequested.set(true);
+    }
+
+    // PrimitiveLogEventListener Implementation
+
+    @Override
+    public void onTraceStart(int numberOfFrames, long threadId, long timeSec, long timeNano)
+    {
+        clock.advance(timeSec, timeNano);
+        dispatchStack();
+
+        stackThreadId = threadId;
+        stackStarted = true;
+        clock.startStack(threadId, timeSec * SECONDS_TO_NANOS + timeNano);
+
+        emitProfileIfNeeded();
+    }
+
+    @Override
+    public void onFrame(int bci, int lineNumber, long methodId)
+    {
+        stack.addFrame(bci, lineNumber, methodId);
+    }
+
+    @Override
+    public void onStack(int numberOfFrames, int[] bcis, int[] lineNumbers, long[] methodIds)
+    {
+        stack.addStack(numberOfFrames, bcis, lineNumbers, methodIds);
+    }
+
+    @Override
+    public void onNewMethod(long methodId, String fileName, String className, String methodName)
+    {
+        if (!methodMap.containsKey(methodId))
+        {
+            methodMap.put(methodId, new MethodInfo(new Method(methodId, fileName, className, methodName)));
+        }
+        emitProfileIfNeeded();
+    }
+
+    @Override
+    public void onThreadMeta(long threadId, String threadName)
+    {
+        ThreadMeta newThreadMeta = new ThreadMeta(threadId, threadName);
+        threadMap.compute(
+            threadId,
+            (k, v) -> v == null ? new ThreadInfo(newThreadMeta) : v.checkAndSetName(newThreadMeta));
+        emitProfileIfNeeded();
+    }
+
+    @Override
+    public void onSamplingInterval(long samplingIntervalNanos)
+    {
+        clock.setSamplingInterval(samplingIntervalNanos);
+    }
+
+    @Override
+    public void onAgentStats(AgentStats stats)
+    {
+        agentStats = stats;
+        emitProfileIfNeeded();
+    }
+
+    /**
+     * Processes the "end of log" event by dispatching the last stack, emitting the final profile and stopping the
+     * worker threads. This method returns once the final profile has been emitted.
+     */
+    @Override
+    public void endOfLog()
+    {
+        if (ended)
+        {
+            return;
+        }
+        ended = true;
+
+        dispatchStack();
+        Cut cut = cut();
+        for (Shard shard : shards)
+        {
+            shard.finish();
+        }
+
+        try
+        {
+            if (cut != null)
+            {
+                cut.emitted.await();
+            }
+            for (Shard shard : shards)
+            {
+                shard.join();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Helper Methods
+
+    /**
+     * Hands the stack received so far to the shard owning its thread. Frames received without a preceding
+     * {@link TraceStart} can't be attributed to a thread, and are dropped.
+     */
+    private void dispatchStack()
+    {
+        if (stack.size() > 0 && stackStarted)
+        {
+            shardFor(stackThreadId).add(
+                stackThreadId,
+                clock.getNanosSpent(),
+                stack.size(),
+                stack.getBcis(),
+                stack.getLineNrs(),
+                stack.getMethodIds());
+            empty = false;
+        }
+        stack.clear();
+    }
+
+    private Shard shardFor(long threadId)
+    {
+        // Thread ids are often sequential, the mixing spreads them evenly regardless.
+        long hash = threadId * 0x9E3779B97F4A7C15L;
+        return shards[(int)((hash >>> 32) % shards.length)];
+    }
+
+    private void emitProfileIfNeeded()
+    {
+        if (!ended && profileRequested.getAndSet(false))
+        {
+            cut();
+        }
+    }
+
+    /**
+     * Hands the pending batches and a cut marker to all shards, unless no stacks have been received yet.
+     * <p>
+     * @return the {@link Cut}, or null if no stacks have been received
+     */
+    private Cut cut()
+    {
+        if (empty)
+        {
+            return null;
+        }
+
+        Cut cut = new Cut(new HashMap<>(methodMap), new HashMap<>(threadMap), agentStats, shards.length);
+        for (Shard shard : shards)
+        {
+            shard.flush();
+            shard.enqueue(cut);
+        }
+        return cut;
+    }
+
+    /**
+     * Constructs and emits the {@link LeanProfile} for a {@link Cut}. It is called by the last worker reaching the cut,
+     * while the other workers are waiting.
+     * <p>
+     * @param cut the {@link Cut} for which the profile is emitted
+     */
+    private void emitProfile(Cut cut)
+    {
+        if (options.isCompact())
+        {
+            // The shards own disjoint sets of threads, so merging their trees copies them.
+            LeanTree tree = new LeanTree();
+            for (Shard shard : shards)
+            {
+                tree.merge(shard.collector.getTree());
+            }
+            lastProfile = new LeanProfile(cut.methodMap, cut.threadMap, tree, cut.agentStats, lastProfile);
+        }
+        else
+        {
+            Map<Long, LeanThreadNode> threadData = new HashMap<>();
+            for (Shard shard : shards)
+            {
+                threadData.putAll(shard.collector.getThreadData());
+            }
+            lastProfile = new LeanProfile(cut.methodMap, cut.threadMap, threadData, cut.agentStats, lastProfile);
+        }
+        listener.accept(lastProfile);
+    }
+
+    /**
+     * A batch of stacks for a single shard, stored in flat arrays. The frames of each stack are stored innermost frame
+     * first.
+     */
+    private static class Batch
+    {
+        private final long[] threadIds = new long[BATCH_SIZE];
+        private final long[] nanos = new long[BATCH_SIZE];
+        private final int[] sizes = new int[BATCH_SIZE];
+        private int count;
+
+        private int[] bcis = new int[BATCH_SIZE * 16];
+        private int[] lineNrs = new int[BATCH_SIZE * 16];
+        private long[] methodIds = new long[BATCH_SIZE * 16];
+        private int frameCount;
+
+        private boolean isFull()
+        {
+            return count == BATCH_SIZE;
+        }
+
+        private void add(long threadId, long nanosSpent, int size, int[] stackBcis, int[] stackLineNrs, long[] stackIds)
+        {
+            if (frameCount + size > bcis.length)
+            {
+                int newCapacity = Math.max(frameCount + size, bcis.length * 2);
+                bcis = copyOf(bcis, newCapacity);
+                lineNrs = copyOf(lineNrs, newCapacity);
+                methodIds = copyOf(methodIds, newCapacity);
+            }
+
+            threadIds[count] = threadId;
+            nanos[count] = nanosSpent;
+            sizes[count] = size;
+            count++;
+
+            System.arraycopy(stackBcis, 0, bcis, frameCount, size);
+            System.arraycopy(stackLineNrs, 0, lineNrs, frameCount, size);
+            System.arraycopy(stackIds, 0, methodIds, frameCount, size);
+            frameCount += size;
+        }
+
+        private void collectInto(LeanLogCollector collector)
+        {
+            int offset = 0;
+            for (int i = 0; i < count; i++)
+            {
+                collector.collectStack(threadIds[i], nanos[i], sizes[i], bcis, lineNrs, methodIds, offset);
+                offset += sizes[i];
+            }
+        }
+    }
+
+    /**
+     * A consistent cut across all shards, together with the metadata as it was when the cut was made.
+     */
+    private static class Cut
+    {
+        private final Map<Long, MethodInfo> methodMap;
+        private final Map<Long, ThreadInfo> threadMap;
+        private final AgentStats agentStats;
+
+        private final AtomicInteger pending;
+        private final CountDownLatch emitted;
+
+        private Cut(Map<Long, MethodInfo> methodMap,
+                    Map<Long, ThreadInfo> threadMap,
+                    AgentStats agentStats,
+                    int shardCount)
+        {
+            this.methodMap = methodMap;
+            this.threadMap = threadMap;
+            this.agentStats = agentStats;
+            pending = new AtomicInteger(shardCount);
+            emitted = new CountDownLatch(1);
+        }
+    }
+
+    /**
+     * A worker thread owning the trees of a subset of the threads. Batches are handed over from the thread receiving
+     * the log events through a bounded queue. The thread is started when the first item is handed over.
+     */
+    private class Shard extends Thread
+    {
+        private static final Object STOP = new Object();
+
+        private final BlockingQueue<Object> queue;
+        private final LeanLogCollector collector;
+
+        // The batch being filled by the thread receiving the log events.
+        private Batch batch;
+        // Indicates whether the thread has been started, only accessed by the thread receiving the log events.
+        private boolean started;
+
+        private Shard(int index)
+        {
+            queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+            // The collector is only used for aggregating stacks, it never emits anything itself.
+            collector = new LeanLogCollector(null, options);
+            batch = new Batch();
+
+            setDaemon(true);
+            setName(ShardedLogCollector.class.getSimpleName() + "-" + index);
+        }
+
+        private void add(long threadId, long nanosSpent, int size, int[] bcis, int[] lineNrs, long[] methodIds)
+        {
+            batch.add(threadId, nanosSpent, size, bcis, lineNrs, methodIds);
+            if (batch.isFull())
+            {
+                flush();
+            }
+        }
+
+        private void flush()
+        {
+            if (batch.count > 0)
+            {
+                enqueue(batch);
+                batch = new Batch();
+            }
+        }
+
+        /**
+         * Stops the thread once it has processed the items handed over before, if it has been started.
+         */
+        private void finish()
+        {
+            if (started)
+            {
+                enqueue(STOP);
+            }
+        }
+
+        private void enqueue(Object item)
+        {
+            if (!started)
+            {
+                started = true;
+                start();
+            }
+
+            try
+            {
+                queue.put(item);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    Object item = queue.take();
+                    if (item == STOP)
+                    {
+                        return;
+                    }
+                    else if (item instanceof Batch)
+                    {
+                        ((Batch)item).collectInto(collector);
+                    }
+                    else
+                    {
+                        arrive((Cut)item);
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void arrive(Cut cut) throws InterruptedException
+        {
+            if (cut.pending.decrementAndGet() == 0)
+            {
+                try
+                {
+                    emitProfile(cut);
+                }
+                finally
+                {
+                    cut.emitted.countDown();
+                }
+            }
+            else
+            {
+                cut.emitted.await();
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import static java.util.Arrays.copyOf;
+
+import com.insightfullogic.honest_profiler.core.parser.StackFrame;
+
+/**
+ * StackBuffer holds the frames of the stack being received by a collector, in reusable arrays, so receiving a stack
+ * doesn't allocate any per-frame objects. The frames are stored in the order in which they are received, i.e. innermost
+ * frame first.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class StackBuffer
+{
+    // Class Properties
+
+    private static final int INITIAL_CAPACITY = 128;
+
+    // Instance Properties
+
+    private int[] bcis;
+    private int[] lineNrs;
+    private long[] methodIds;
+    private int size;
+
+    // Instance Constructors
+
+    /**
+     * Constructor for an empty buffer.
+     */
+    StackBuffer()
+    {
+        bcis = new int[INITIAL_CAPACITY];
+        lineNrs = new int[INITIAL_CAPACITY];
+        methodIds = new long[INITIAL_CAPACITY];
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the number of frames in the buffer.
+     * <p>
+     * @return the number of frames in the buffer
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the array containing the byte code indices of the frames, which may be longer than the number of frames.
+     * <p>
+     * @return the array containing the byte code indices of the frames
+     */
+    int[] getBcis()
+    {
+        return bcis;
+    }
+
+    /**
+     * Returns the array containing the line numbers of the frames, which may be longer than the number of frames.
+     * <p>
+     * @return the array containing the line numbers of the frames
+     */
+    int[] getLineNrs()
+    {
+        return lineNrs;
+    }
+
+    /**
+     * Returns the array containing the method ids of the frames, which may be longer than the number of frames.
+     * <p>
+     * @return the array containing the method ids of the frames
+     */
+    long[] getMethodIds()
+    {
+        return methodIds;
+    }
+
+    // Modification Methods
+
+    /**
+     * Appends a {@link StackFrame} to the buffer.
+     * <p>
+     * @param bci the byte code index of the frame
+     * @param lineNr the line number of the frame
+     * @param methodId the id of the method executing in the frame
+     */
+    void addFrame(int bci, int lineNr, long methodId)
+    {
+        ensureCapacity(size + 1);
+
+        bcis[size] = bci;
+        lineNrs[size] = lineNr;
+        methodIds[size] = methodId;
+        size++;
+    }
+
+    /**
+     * Appends the frames of a known stack to the buffer.
+     * <p>
+     * @param numberOfFrames the number of frames in the stack
+     * @param stackBcis the byte code indices of the frames, innermost frame first
+     * @param stackLineNrs the line numbers of the frames, innermost frame first
+     * @param stackMethodIds the ids of the methods executing in the frames, innermost frame first
+     */
+    void addStack(int numberOfFrames, int[] stackBcis, int[] stackLineNrs, long[] stackMethodIds)
+    {
+        ensureCapacity(size + numberOfFrames);
+
+        System.arraycopy(stackBcis, 0, bcis, size, numberOfFrames);
+        System.arraycopy(stackLineNrs, 0, lineNrs, size, numberOfFrames);
+        System.arraycopy(stackMethodIds, 0, methodIds, size, numberOfFrames);
+        size += numberOfFrames;
+    }
+
+    /**
+     * Removes all frames from the buffer, keeping the arrays for the next stack.
+     */
+    void clear()
+    {
+        size = 0;
+    }
+
+    // Helper Methods
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > bcis.length)
+        {
+            int newCapacity = Math.max(capacity, bcis.length * 2);
+            bcis = copyOf(bcis, newCapacity);
+            lineNrs = copyOf(lineNrs, newCapacity);
+            methodIds = copyOf(methodIds, newCapacity);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import com.insightfullogic.honest_profiler.core.parser.ThreadTimestamps;
+import com.insightfullogic.honest_profiler.core.parser.TraceStart;
+
+/**
+ * ThreadClock keeps track of the timestamp of the most recent sample of every thread, so the time attributed to a
+ * sample can be based on the sampling interval of its own thread rather than on the time elapsed since the previous
+ * sample of any thread.
+ * <p>
+ * The agent only samples threads which are running on a CPU, so the time elapsed since the previous sample of a thread
+ * includes any time the thread spent blocked or waiting. A thread which blocked for minutes and then got sampled would
+ * have all that time attributed to a single stack. The attributed time is therefore capped at
+ * {@link #MAX_GAP_INTERVALS} times the sampling interval, which leaves room for the jitter of the randomized interval
+ * of the agent.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class ThreadClock
+{
+    // Class Properties
+
+    /**
+     * The maximum time attributed to a sample, in sampling intervals.
+     */
+    static final int MAX_GAP_INTERVALS = 2;
+
+    // Instance Properties
+
+    private long intervalNanos;
+    private long maxGapNanos;
+    private ThreadTimestamps timestamps;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the sampling interval.
+     * <p>
+     * @param intervalNanos the sampling interval of the agent in nanoseconds
+     */
+    ThreadClock(long intervalNanos)
+    {
+        setIntervalNanos(intervalNanos);
+        this.timestamps = new ThreadTimestamps();
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the sampling interval the attributed time is based on.
+     * <p>
+     * @return the sampling interval in nanoseconds
+     */
+    long getIntervalNanos()
+    {
+        return intervalNanos;
+    }
+
+    /**
+     * Changes the sampling interval the attributed time is based on, e.g. when the log states the agent changed its
+     * interval. The registered samples are kept.
+     * <p>
+     * @param intervalNanos the sampling interval of the agent in nanoseconds
+     */
+    void setIntervalNanos(long intervalNanos)
+    {
+        this.intervalNanos = intervalNanos;
+        this.maxGapNanos = intervalNanos * MAX_GAP_INTERVALS;
+    }
+
+    // Clock Methods
+
+    /**
+     * Replaces the registered samples by the samples preceding the next sample which will be registered, e.g. when a
+     * segment of a log file is processed.
+     * <p>
+     * @param previous the {@link ThreadTimestamps} of the preceding samples, which are copied
+     */
+    void resume(ThreadTimestamps previous)
+    {
+        timestamps = new ThreadTimestamps(previous);
+    }
+
+    /**
+     * Registers a sample of the specified thread, and returns the time attributed to it, i.e. the time elapsed since
+     * the previous sample of the same thread, capped at {@link #MAX_GAP_INTERVALS} times the sampling interval. The
+     * interval is returned for the first sample of a thread, and for samples without a timestamp. Samples which precede
+     * the previous one, which can only happen if the log isn't ordered, get no time at all.
+     * <p>
+     * @param threadId the id of the thread the sample was taken on
+     * @param timestampNanos the timestamp in nanoseconds reported in the {@link TraceStart} of the sample
+     * @return the time in nanoseconds attributed to the sample
+     */
+    long elapsed(long threadId, long timestampNanos)
+    {
+        if (timestampNanos == 0)
+        {
+            return intervalNanos;
+        }
+
+        long previous = timestamps.update(threadId, timestampNanos);
+        return previous == 0 ? intervalNanos : Math.min(Math.max(timestampNanos - previous, 0), maxGapNanos);
+    }
+}
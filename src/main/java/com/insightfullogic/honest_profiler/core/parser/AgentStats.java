@@ -0,0 +1,211 @@
+package com.insightfullogic.honest_profiler.core.parser;
+
+import java.util.Arrays;
+
+/**
+ * AgentStats contains the health counters the agent periodically writes to the log. Every counter is a cumulative
+ * total, or a maximum, since the agent started sampling, so the most recent AgentStats supersedes all previous ones.
+ * <p>
+ * The record is a list of (id, value) pairs. Counters with an id this version doesn't know are ignored, counters which
+ * aren't present in the record are 0.
+ */
+public final class AgentStats implements LogEvent
+{
+    // Class Properties
+
+    /**
+     * The id of the number of samples the agent has written to the log.
+     */
+    public static final int SAMPLES_WRITTEN = 1;
+
+    /**
+     * The id of the number of samples the agent had to drop because the sample queue was full.
+     */
+    public static final int SAMPLES_DROPPED = 2;
+
+    /**
+     * The id of the highest number of samples a sample queue of the agent has held at once.
+     */
+    public static final int QUEUE_HIGH_WATER_MARK = 3;
+
+    /**
+     * The id of the total time in ns the written samples spent in the sample queue before the agent processed them.
+     */
+    public static final int DRAIN_LATENCY_NANOS = 4;
+
+    /**
+     * The id of the longest time in ns a written sample spent in the sample queue.
+     */
+    public static final int MAX_DRAIN_LATENCY_NANOS = 5;
+
+    /**
+     * The id of the total time in ns the agent spent looking up method information and line numbers through JVMTI.
+     */
+    public static final int JVMTI_LOOKUP_NANOS = 6;
+
+    /**
+     * The id of the number of bytes the agent has written to the log.
+     */
+    public static final int BYTES_WRITTEN = 7;
+
+    // The highest id this version knows, counters are stored in arrays indexed by id.
+    static final int MAX_ID = BYTES_WRITTEN;
+
+    // Instance Properties
+
+    private final long[] values;
+
+    // Instance Constructors
+
+    /**
+     * Constructor creating an AgentStats without any counters.
+     */
+    public AgentStats()
+    {
+        this(new long[MAX_ID + 1]);
+    }
+
+    /**
+     * Constructor for the parser, which decodes the counters of a record straight into an array indexed by id.
+     * <p>
+     * @param values the values of the counters, indexed by id, with length {@link #MAX_ID} + 1
+     */
+    AgentStats(long[] values)
+    {
+        this.values = values;
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the value of the counter with the specified id.
+     * <p>
+     * @param id the id of the counter
+     * @return the value of the counter, 0 if it is unknown or wasn't recorded
+     */
+    public long get(int id)
+    {
+        return isKnown(id) ? values[id] : 0;
+    }
+
+    /**
+     * Returns a copy of this AgentStats with the counter with the specified id set to the specified value. Unknown ids
+     * are ignored.
+     * <p>
+     * @param id the id of the counter
+     * @param value the new value of the counter
+     * @return the resulting AgentStats
+     */
+    public AgentStats with(int id, long value)
+    {
+        if (!isKnown(id))
+        {
+            return this;
+        }
+        long[] copy = values.clone();
+        copy[id] = value;
+        return new AgentStats(copy);
+    }
+
+    public long getSamplesWritten()
+    {
+        return values[SAMPLES_WRITTEN];
+    }
+
+    public long getSamplesDropped()
+    {
+        return values[SAMPLES_DROPPED];
+    }
+
+    public long getQueueHighWaterMark()
+    {
+        return values[QUEUE_HIGH_WATER_MARK];
+    }
+
+    public long getDrainLatencyNanos()
+    {
+        return values[DRAIN_LATENCY_NANOS];
+    }
+
+    public long getMaxDrainLatencyNanos()
+    {
+        return values[MAX_DRAIN_LATENCY_NANOS];
+    }
+
+    public long getJvmtiLookupNanos()
+    {
+        return values[JVMTI_LOOKUP_NANOS];
+    }
+
+    public long getBytesWritten()
+    {
+        return values[BYTES_WRITTEN];
+    }
+
+    /**
+     * Returns the average time a written sample spent in the sample queue.
+     * <p>
+     * @return the average drain latency in ns, 0 if no samples were written
+     */
+    public long getAverageDrainLatencyNanos()
+    {
+        return getSamplesWritten() == 0 ? 0 : getDrainLatencyNanos() / getSamplesWritten();
+    }
+
+    /**
+     * Returns the fraction of the samples taken by the agent which were dropped.
+     * <p>
+     * @return the fraction of dropped samples, between 0 and 1
+     */
+    public double getDropRate()
+    {
+        long total = getSamplesWritten() + getSamplesDropped();
+        return total == 0 ? 0 : getSamplesDropped() / (double) total;
+    }
+
+    // LogEvent Implementation
+
+    @Override
+    public void accept(LogEventListener listener)
+    {
+        listener.handle(this);
+    }
+
+    // Object Implementation
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        return Arrays.equals(values, ((AgentStats) o).values);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AgentStats{" +
+            "samplesWritten=" + getSamplesWritten() +
+            ", samplesDropped=" + getSamplesDropped() +
+            ", queueHighWaterMark=" + getQueueHighWaterMark() +
+            ", drainLatencyNanos=" + getDrainLatencyNanos() +
+            ", maxDrainLatencyNanos=" + getMaxDrainLatencyNanos() +
+            ", jvmtiLookupNanos=" + getJvmtiLookupNanos() +
+            ", bytesWritten=" + getBytesWritten() +
+            '}';
+    }
+
+    // Helper Methods
+
+    static boolean isKnown(int id)
+    {
+        return id > 0 && id <= MAX_ID;
+    }
+}
@@ -0,0 +1,62 @@
+package com.insightfullogic.honest_profiler.core.parser;
+
+/**
+ * Adapter which exposes a {@link LogEventListener} as a {@link PrimitiveLogEventListener}, by constructing the
+ * {@link LogEvent} objects from the primitive callback parameters.
+ */
+public class LogEventAdapter implements PrimitiveLogEventListener
+{
+    // Instance Properties
+
+    private final LogEventListener listener;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the adapted {@link LogEventListener}.
+     * <p>
+     * @param listener the {@link LogEventListener} which will receive the constructed {@link LogEvent}s
+     */
+    public LogEventAdapter(LogEventListener listener)
+    {
+        this.listener = listener;
+    }
+
+    // PrimitiveLogEventListener Implementation
+
+    @Override
+    public void onTraceStart(int numberOfFrames, long threadId, long timeSec, long timeNano)
+    {
+        listener.handle(new TraceStart(numberOfFrames, threadId, timeSec, timeNano));
+    }
+
+    @Override
+    public void onFrame(int bci, int lineNumber, long methodId)
+    {
+        listener.handle(new StackFrame(bci, lineNumber, methodId));
+    }
+
+    @Override
+    public void onNewMethod(long methodId, String fileName, String className, String methodName)
+    {
+        listener.handle(new Method(methodId, fileName, className, methodName));
+    }
+
+    @Override
+    public void onThreadMeta(long threadId, String threadName)
+    {
+        listener.handle(new ThreadMeta(threadId, threadName));
+    }
+
+    @Override
+    public void onAgentStats(AgentStats stats)
+    {
+        listener.handle(stats);
+    }
+
+    @Override
+    public void endOfLog()
+    {
+        listener.endOfLog();
+    }
+}
@@ -32,6 +32,11 @@ public interface LogEventListener
 
     void handle(ThreadMeta newThreadMeta);
 
+    default void handle(AgentStats agentStats)
+    {
+        // NOOP
+    }
+
     void endOfLog();
 
 }
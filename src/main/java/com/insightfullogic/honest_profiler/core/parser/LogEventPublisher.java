@@ -24,51 +24,93 @@ package com.insightfullogic.honest_profiler.core.parser;
 import java.util.ArrayList;
 import java.util.List;
 
-public class LogEventPublisher implements LogEventListener
+/**
+ * Multiplexes the decoded records to several listeners. {@link LogEventListener}s are wrapped in a
+ * {@link LogEventAdapter}, {@link PrimitiveLogEventListener}s receive the records without any intermediate objects.
+ */
+public class LogEventPublisher implements PrimitiveLogEventListener
 {
-    private final List<LogEventListener> listeners = new ArrayList<>();
+    private final List<PrimitiveLogEventListener> listeners = new ArrayList<>();
 
     public LogEventPublisher publishTo(final LogEventListener listener)
+    {
+        return publishTo(new LogEventAdapter(listener));
+    }
+
+    public LogEventPublisher publishTo(final PrimitiveLogEventListener listener)
     {
         listeners.add(listener);
         return this;
     }
 
-    public void handle(final TraceStart traceStart)
+    public void onTraceStart(final int numberOfFrames, final long threadId, final long timeSec, final long timeNano)
+    {
+        for (PrimitiveLogEventListener listener : listeners)
+        {
+            listener.onTraceStart(numberOfFrames, threadId, timeSec, timeNano);
+        }
+    }
+
+    public void onFrame(final int bci, final int lineNumber, final long methodId)
+    {
+        for (PrimitiveLogEventListener listener : listeners)
+        {
+            listener.onFrame(bci, lineNumber, methodId);
+        }
+    }
+
+    @Override
+    public void onStack(final int numberOfFrames,
+                        final int[] bcis,
+                        final int[] lineNumbers,
+                        final long[] methodIds)
+    {
+        for (PrimitiveLogEventListener listener : listeners)
+        {
+            listener.onStack(numberOfFrames, bcis, lineNumbers, methodIds);
+        }
+    }
+
+    public void onNewMethod(final long methodId,
+                            final String fileName,
+                            final String className,
+                            final String methodName)
     {
-        for (LogEventListener listener : listeners)
+        for (PrimitiveLogEventListener listener : listeners)
         {
-            listener.handle(traceStart);
+            listener.onNewMethod(methodId, fileName, className, methodName);
         }
     }
 
-    public void handle(final StackFrame stackFrame)
+    public void onThreadMeta(final long threadId, final String threadName)
     {
-        for (LogEventListener listener : listeners)
+        for (PrimitiveLogEventListener listener : listeners)
         {
-            listener.handle(stackFrame);
+            listener.onThreadMeta(threadId, threadName);
         }
     }
 
-    public void handle(final Method newMethod)
+    @Override
+    public void onSamplingInterval(final long samplingIntervalNanos)
     {
-        for (LogEventListener listener : listeners)
+        for (PrimitiveLogEventListener listener : listeners)
         {
-            listener.handle(newMethod);
+            listener.onSamplingInterval(samplingIntervalNanos);
         }
     }
 
-    public void handle(final ThreadMeta newThreadMeta)
+    @Override
+    public void onAgentStats(final AgentStats stats)
     {
-        for (LogEventListener listener : listeners)
+        for (PrimitiveLogEventListener listener : listeners)
         {
-            listener.handle(newThreadMeta);
+            listener.onAgentStats(stats);
         }
     }
 
     public void endOfLog()
     {
-        for (LogEventListener listener : listeners)
+        for (PrimitiveLogEventListener listener : listeners)
         {
             listener.endOfLog();
         }
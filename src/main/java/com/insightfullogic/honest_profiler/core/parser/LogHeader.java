@@ -0,0 +1,177 @@
+package com.insightfullogic.honest_profiler.core.parser;
+
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.LOG_HEADER;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A LogHeader describes how the records following it in a log are encoded : the format version, and the timestamp the
+ * first timestamp delta is relative to. It also states the sampling interval of the agent which wrote the records, so
+ * time can be attributed based on the interval the samples were actually taken at.
+ * <p>
+ * Logs written with the original fixed width encoding ({@link #LEGACY_VERSION}) have no header. Logs using the
+ * {@link #COMPACT_VERSION} or the {@link #STACK_DICTIONARY_VERSION} start with a LOG_HEADER record, which consists of a
+ * magic number, the version, the time base and the sampling interval, all fixed width so the header can be recognized
+ * regardless of the version. The agent writes a new header whenever its sampling interval changes.
+ * <p>
+ * Because the compact encoding is stateful, parsing can't simply start at an arbitrary record. A LogHeader describing
+ * the decoding state at that record can be fed to the {@link LogParser} first to resume decoding there, which is how
+ * segments and time windows of compact logs are parsed.
+ */
+public final class LogHeader
+{
+    // Class Properties
+
+    /**
+     * The version of logs without header, which encode all values as fixed width big-endian integers.
+     */
+    public static final int LEGACY_VERSION = 1;
+
+    /**
+     * The version of logs encoding integers as (zig-zag) varints, timestamps as deltas from the previous timestamp and
+     * method ids as small dense integers.
+     */
+    public static final int COMPACT_VERSION = 2;
+
+    /**
+     * The version of logs using the fixed width encoding of the {@link #LEGACY_VERSION}, which also contain stack
+     * dictionary records. The {@link #COMPACT_VERSION} always allows those.
+     */
+    public static final int STACK_DICTIONARY_VERSION = 3;
+
+    /**
+     * The LogHeader in effect at the start of a log until a LOG_HEADER record is found.
+     */
+    public static final LogHeader LEGACY = new LogHeader(LEGACY_VERSION, 0, 0);
+
+    static final int MAGIC = 0x48504C47; // "HPLG"
+
+    // Size in bytes of a LOG_HEADER record following the record type : magic, version, time base and sampling interval.
+    static final int SIZE = 4 + 4 + 8 + 8;
+
+    // Instance Properties
+
+    private final int version;
+    private final long timeBase;
+    private final long samplingIntervalNanos;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the format version and the time base, for records whose sampling interval is unknown.
+     * <p>
+     * @param version the format version of the records following the header
+     * @param timeBase the timestamp in nanoseconds since the epoch which the first timestamp delta is relative to
+     */
+    public LogHeader(int version, long timeBase)
+    {
+        this(version, timeBase, 0);
+    }
+
+    /**
+     * Constructor specifying the format version, the time base and the sampling interval.
+     * <p>
+     * @param version the format version of the records following the header
+     * @param timeBase the timestamp in nanoseconds since the epoch which the first timestamp delta is relative to
+     * @param samplingIntervalNanos the sampling interval of the agent in nanoseconds, or 0 if it is unknown
+     */
+    public LogHeader(int version, long timeBase, long samplingIntervalNanos)
+    {
+        this.version = version;
+        this.timeBase = timeBase;
+        this.samplingIntervalNanos = samplingIntervalNanos;
+    }
+
+    // Class Methods
+
+    /**
+     * Reads the contents of a LOG_HEADER record, positioned right after the record type. A
+     * {@link java.nio.BufferUnderflowException} is thrown if the buffer doesn't contain the entire record.
+     * <p>
+     * @param input the buffer containing the record
+     * @return the LogHeader, or null if the record doesn't start with the magic number
+     */
+    static LogHeader read(ByteBuffer input)
+    {
+        int magic = input.getInt();
+        int version = input.getInt();
+        long timeBase = input.getLong();
+        long samplingIntervalNanos = input.getLong();
+        return magic == MAGIC ? new LogHeader(version, timeBase, samplingIntervalNanos) : null;
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the format version of the records following the header.
+     * <p>
+     * @return the format version of the records following the header
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Returns the timestamp in nanoseconds since the epoch which the first timestamp delta is relative to.
+     * <p>
+     * @return the time base of the header
+     */
+    public long getTimeBase()
+    {
+        return timeBase;
+    }
+
+    /**
+     * Returns the sampling interval of the agent which wrote the records following the header. The agent randomizes
+     * the interval between a minimum and a maximum, in which case this is the mean interval.
+     * <p>
+     * @return the sampling interval in nanoseconds, or 0 if it is unknown
+     */
+    public long getSamplingIntervalNanos()
+    {
+        return samplingIntervalNanos;
+    }
+
+    /**
+     * Returns a boolean indicating whether the records following the header use the {@link #COMPACT_VERSION}.
+     * <p>
+     * @return a boolean indicating whether the records following the header use the compact encoding
+     */
+    public boolean isCompact()
+    {
+        return version == COMPACT_VERSION;
+    }
+
+    /**
+     * Returns a boolean indicating whether the version is understood by this parser.
+     * <p>
+     * @return a boolean indicating whether the version is supported
+     */
+    public boolean isSupported()
+    {
+        return version == LEGACY_VERSION || version == COMPACT_VERSION || version == STACK_DICTIONARY_VERSION;
+    }
+
+    /**
+     * Returns a buffer containing the LOG_HEADER record, including the record type, for this header.
+     * <p>
+     * @return a buffer containing the encoded LOG_HEADER record
+     */
+    public ByteBuffer encode()
+    {
+        ByteBuffer result = ByteBuffer.allocate(1 + SIZE);
+        result.put((byte)LOG_HEADER).putInt(MAGIC).putInt(version).putLong(timeBase).putLong(samplingIntervalNanos);
+        result.flip();
+        return result;
+    }
+
+    // Object Implementation
+
+    @Override
+    public String toString()
+    {
+        return "LogHeader [version=" + version + ", timeBase=" + timeBase + ", samplingIntervalNanos="
+            + samplingIntervalNanos + "]";
+    }
+}
@@ -0,0 +1,781 @@
+package com.insightfullogic.honest_profiler.core.parser;
+
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.NEW_METHOD;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.NEW_STACK;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.STACK_FRAME_BCI_ONLY;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.STACK_FRAME_FULL;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.STACK_REF;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.THREAD_META;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.TRACE_START;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.TRACE_WITH_TIME;
+import static java.util.Arrays.binarySearch;
+import static java.util.Arrays.copyOf;
+import static java.util.Comparator.comparingLong;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A LogIndex allows seeking into a completed log file by sample time, without parsing the file up to the desired
+ * point. It maps the timestamps of trace starts to the offsets of the trace start records at a fixed granularity, and
+ * records the location of every method, thread and stack metadata record by type and id, since the samples in a time
+ * window may refer to metadata written anywhere before it. The metadata a range of records refers to is found through
+ * {@link #metadataFor(FileChannel, LogHeader, long, long)} by looking up the ids found in the range, so the cost doesn't
+ * depend on how much metadata precedes the range.
+ * <p>
+ * The index is stored in a sidecar file next to the log file, named after the log file with the {@value #EXTENSION}
+ * extension appended. It is built lazily by {@link #open(File)} on first use, and rebuilt whenever the size or the
+ * modification time of the log file no longer match the ones recorded in the index.
+ * <p>
+ * Timestamps are expressed in nanoseconds since the epoch. Logs without timestamps yield an index without time entries.
+ * <p>
+ * Every time entry also records the decoding state of the log at the entry (see {@link LogHeader}), so logs using the
+ * compact encoding can be scanned from any entry.
+ */
+public class LogIndex
+{
+    // Class Properties
+
+    public static final String EXTENSION = ".idx";
+
+    /**
+     * The default granularity of the time entries, in nanoseconds.
+     */
+    public static final long DEFAULT_GRANULARITY = 100 * 1000 * 1000;
+
+    private static final long SECONDS_TO_NANOS = 1000 * 1000 * 1000;
+
+    private static final int MAGIC = 0x48504958; // "HPIX"
+    private static final int VERSION = 4;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Instance Properties
+
+    private final long logSize;
+    private final long logModified;
+    private final long dataEnd;
+    private final long granularity;
+    private final int logVersion;
+
+    private final long[] times;
+    private final long[] timeOffsets;
+    // The time base of the log at every time entry, i.e. the timestamp of the preceding trace start
+    private final long[] timeBases;
+    // The sampling interval stated by the header in effect at every time entry
+    private final long[] samplingIntervals;
+    private final int timeCount;
+
+    // The metadata records, sorted by type, id and offset, so the records for an id can be found by binary search.
+    private final byte[] metadataTypes;
+    private final long[] metadataIds;
+    private final long[] metadataOffsets;
+    private final int[] metadataLengths;
+    private final int metadataCount;
+
+    // Instance Constructors
+
+    private LogIndex(long logSize,
+                     long logModified,
+                     long dataEnd,
+                     long granularity,
+                     int logVersion,
+                     long[] times,
+                     long[] timeOffsets,
+                     long[] timeBases,
+                     long[] samplingIntervals,
+                     int timeCount,
+                     byte[] metadataTypes,
+                     long[] metadataIds,
+                     long[] metadataOffsets,
+                     int[] metadataLengths,
+                     int metadataCount)
+    {
+        this.logSize = logSize;
+        this.logModified = logModified;
+        this.dataEnd = dataEnd;
+        this.granularity = granularity;
+        this.logVersion = logVersion;
+        this.times = times;
+        this.timeOffsets = timeOffsets;
+        this.timeBases = timeBases;
+        this.samplingIntervals = samplingIntervals;
+        this.timeCount = timeCount;
+        this.metadataTypes = metadataTypes;
+        this.metadataIds = metadataIds;
+        this.metadataOffsets = metadataOffsets;
+        this.metadataLengths = metadataLengths;
+        this.metadataCount = metadataCount;
+    }
+
+    // Class Methods
+
+    /**
+     * Returns the LogIndex for the specified log file. The sidecar index file is read if it exists and is up to date.
+     * Otherwise the index is built with the {@link #DEFAULT_GRANULARITY} and written to the sidecar file. Failure to
+     * write the sidecar file (e.g. because the directory is read-only) is not an error, the index will simply be built
+     * again next time.
+     * <p>
+     * @param logFile the log file
+     * @return the LogIndex for the log file
+     * @throws IOException when the log file can't be read
+     */
+    public static LogIndex open(File logFile) throws IOException
+    {
+        File indexFile = indexFileFor(logFile);
+        if (indexFile.isFile())
+        {
+            try
+            {
+                LogIndex index = read(indexFile);
+                // A log which was rewritten with the same size still gets a new modification time.
+                if (index.logSize == logFile.length() && index.logModified == logFile.lastModified())
+                {
+                    return index;
+                }
+            }
+            catch (IOException e)
+            {
+                // Unreadable or outdated index, rebuild it.
+            }
+        }
+
+        LogIndex index = build(logFile, DEFAULT_GRANULARITY);
+
+        try
+        {
+            index.write(indexFile);
+        }
+        catch (IOException e)
+        {
+            indexFile.delete();
+        }
+        return index;
+    }
+
+    /**
+     * Returns the sidecar index file for the specified log file.
+     * <p>
+     * @param logFile the log file
+     * @return the sidecar index file for the log file
+     */
+    public static File indexFileFor(File logFile)
+    {
+        return new File(logFile.getPath() + EXTENSION);
+    }
+
+    /**
+     * Builds a LogIndex by scanning the specified log file.
+     * <p>
+     * @param logFile the log file
+     * @param granularity the minimum difference in nanoseconds between the timestamps of consecutive time entries
+     * @return the new LogIndex
+     * @throws IOException when the log file can't be read
+     */
+    public static LogIndex build(File logFile, long granularity) throws IOException
+    {
+        // Taken before the scan, so a log modified during the scan is indexed again next time.
+        long logModified = logFile.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "r"))
+        {
+            FileChannel channel = raf.getChannel();
+            LogScanner scanner = new LogScanner(channel);
+            Builder builder = new Builder(scanner, granularity);
+            long logSize = channel.size();
+            long dataEnd = scanner.scan(0, builder);
+            return builder.build(logSize, logModified, dataEnd, scanner.getHeader().getVersion());
+        }
+    }
+
+    /**
+     * Reads a LogIndex from an index file.
+     * <p>
+     * @param indexFile the index file
+     * @return the LogIndex stored in the file
+     * @throws IOException when the file can't be read, or isn't a valid index file
+     */
+    public static LogIndex read(File indexFile) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                throw new IOException("Not a valid index file : " + indexFile);
+            }
+
+            long logSize = in.readLong();
+            long logModified = in.readLong();
+            long dataEnd = in.readLong();
+            long granularity = in.readLong();
+            int logVersion = in.readInt();
+
+            int timeCount = in.readInt();
+            long[] times = new long[timeCount];
+            long[] timeOffsets = new long[timeCount];
+            long[] timeBases = new long[timeCount];
+            long[] samplingIntervals = new long[timeCount];
+            for (int i = 0; i < timeCount; i++)
+            {
+                times[i] = in.readLong();
+                timeOffsets[i] = in.readLong();
+                timeBases[i] = in.readLong();
+                samplingIntervals[i] = in.readLong();
+            }
+
+            int metadataCount = in.readInt();
+            byte[] metadataTypes = new byte[metadataCount];
+            long[] metadataIds = new long[metadataCount];
+            long[] metadataOffsets = new long[metadataCount];
+            int[] metadataLengths = new int[metadataCount];
+            for (int i = 0; i < metadataCount; i++)
+            {
+                metadataTypes[i] = in.readByte();
+                metadataIds[i] = in.readLong();
+                metadataOffsets[i] = in.readLong();
+                metadataLengths[i] = in.readInt();
+            }
+
+            return new LogIndex(
+                logSize,
+                logModified,
+                dataEnd,
+                granularity,
+                logVersion,
+                times,
+                timeOffsets,
+                timeBases,
+                samplingIntervals,
+                timeCount,
+                metadataTypes,
+                metadataIds,
+                metadataOffsets,
+                metadataLengths,
+                metadataCount);
+        }
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the size of the log file when it was indexed.
+     * <p>
+     * @return the size of the log file when it was indexed
+     */
+    public long getLogSize()
+    {
+        return logSize;
+    }
+
+    /**
+     * Returns the modification time of the log file when it was indexed.
+     * <p>
+     * @return the modification time of the log file when it was indexed, in milliseconds since the epoch
+     */
+    public long getLogModified()
+    {
+        return logModified;
+    }
+
+    /**
+     * Returns the offset of the first byte after the last complete record in the log file.
+     * <p>
+     * @return the offset of the first byte after the last complete record in the log file
+     */
+    public long getDataEnd()
+    {
+        return dataEnd;
+    }
+
+    /**
+     * Returns the minimum difference in nanoseconds between the timestamps of consecutive time entries.
+     * <p>
+     * @return the granularity of the time entries
+     */
+    public long getGranularity()
+    {
+        return granularity;
+    }
+
+    /**
+     * Returns the format version of the log, see {@link LogHeader}.
+     * <p>
+     * @return the format version of the log
+     */
+    public int getLogVersion()
+    {
+        return logVersion;
+    }
+
+    /**
+     * Returns a boolean indicating whether the index contains time entries, which is not the case if the log contains
+     * no timestamps.
+     * <p>
+     * @return a boolean indicating whether the index contains time entries
+     */
+    public boolean hasTimes()
+    {
+        return timeCount > 0;
+    }
+
+    /**
+     * Returns the timestamp of the first sample in the log, or 0 if the log contains no timestamps.
+     * <p>
+     * @return the timestamp of the first sample in the log
+     */
+    public long getFirstTime()
+    {
+        return timeCount == 0 ? 0 : times[0];
+    }
+
+    /**
+     * Returns the number of method, thread and stack metadata records in the log.
+     * <p>
+     * @return the number of method, thread and stack metadata records in the log
+     */
+    public int getMetadataCount()
+    {
+        return metadataCount;
+    }
+
+    /**
+     * Returns the offset of the specified metadata record.
+     * <p>
+     * @param index the index of the metadata record, as returned by
+     *            {@link #metadataFor(FileChannel, LogHeader, long, long)}
+     * @return the offset of the metadata record
+     */
+    public long getMetadataOffset(int index)
+    {
+        return metadataOffsets[index];
+    }
+
+    /**
+     * Returns the length in bytes of the specified metadata record.
+     * <p>
+     * @param index the index of the metadata record, as returned by
+     *            {@link #metadataFor(FileChannel, LogHeader, long, long)}
+     * @return the length in bytes of the metadata record
+     */
+    public int getMetadataLength(int index)
+    {
+        return metadataLengths[index];
+    }
+
+    // Lookup Methods
+
+    /**
+     * Returns the offset of the last indexed trace start with a timestamp at or before the specified time. Since the
+     * entries have a fixed granularity, the trace start with the exact time has to be found by scanning forward from
+     * the returned offset. If the time precedes the first sample, the offset of the first sample is returned.
+     * <p>
+     * @param time the time in nanoseconds since the epoch
+     * @return the offset from which to scan for the specified time, or the end of the data if the index contains no
+     *         time entries
+     */
+    public long offsetBefore(long time)
+    {
+        return timeCount == 0 ? dataEnd : timeOffsets[entryBefore(time)];
+    }
+
+    /**
+     * Returns the offset of the first trace start with a timestamp at or after the specified time, or the end of the
+     * data if there is none. Only the records between the closest preceding time entry and the returned offset are
+     * scanned.
+     * <p>
+     * @param channel the {@link FileChannel} for reading the indexed log file
+     * @param time the time in nanoseconds since the epoch
+     * @return the offset of the first trace start at or after the specified time
+     * @throws IOException when the log file can't be read
+     */
+    public long seek(FileChannel channel, long time) throws IOException
+    {
+        if (timeCount == 0)
+        {
+            return dataEnd;
+        }
+
+        int entry = entryBefore(time);
+        long offset = new LogScanner(channel, entryHeader(entry)).scan(
+            timeOffsets[entry],
+            (type, start, end, id, seconds, nanos) ->
+                type != TRACE_WITH_TIME || toNanos(seconds, nanos) < time);
+        return Math.min(offset, dataEnd);
+    }
+
+    /**
+     * Returns the {@link LogHeader} describing the decoding state of the log at the record starting at the specified
+     * offset. Feeding it to a {@link LogParser} allows parsing to start at that record. Only the records between the
+     * closest preceding time entry and the offset are scanned.
+     * <p>
+     * @param channel the {@link FileChannel} for reading the indexed log file
+     * @param offset the offset of a record in the log file, or the end of the data
+     * @return the {@link LogHeader} describing the decoding state at the specified offset
+     * @throws IOException when the log file can't be read
+     */
+    public LogHeader headerAt(FileChannel channel, long offset) throws IOException
+    {
+        int entry = binarySearch(timeOffsets, 0, timeCount, offset);
+        if (entry < 0)
+        {
+            entry = -entry - 2;
+        }
+
+        LogScanner scanner = entry < 0 ? new LogScanner(channel) : new LogScanner(channel, entryHeader(entry));
+        scanner.scan(
+            entry < 0 ? 0 : timeOffsets[entry],
+            (type, start, end, id, seconds, nanos) -> start < offset);
+        return scanner.getHeader();
+    }
+
+    /**
+     * Returns the metadata records written before the specified range of records which the records in the range refer
+     * to : the THREAD_META records of the threads sampled in the range, the NEW_STACK records of the stacks referenced
+     * in the range, and the NEW_METHOD records of the methods in the frames and in the definitions of those stacks.
+     * Feeding these records to a {@link LogParser} ahead of the range allows the range to be parsed on its own.
+     * <p>
+     * Only the records in the range and the definitions of the referenced stacks are read, and the metadata records are
+     * looked up by id, so the cost is proportional to the size of the range rather than to its position in the log.
+     * <p>
+     * @param channel the {@link FileChannel} for reading the indexed log file
+     * @param header the decoding state at the start of the range, see {@link #headerAt(FileChannel, long)}
+     * @param from the offset of the first record in the range
+     * @param to the offset of the first record after the range
+     * @return the indices of the metadata records, in file order, for use with {@link #getMetadataOffset(int)} and
+     *         {@link #getMetadataLength(int)}
+     * @throws IOException when the log file can't be read
+     */
+    public int[] metadataFor(FileChannel channel, LogHeader header, long from, long to) throws IOException
+    {
+        Set<Long> threadIds = new HashSet<>();
+        Set<Long> methodIds = new HashSet<>();
+        Set<Long> stackIds = new HashSet<>();
+
+        // The stacks defined in the range are collected too, since the methods in them may be defined before it.
+        StackDictionary stacks = new StackDictionary();
+        new LogScanner(channel, header, stacks).scan(from, (type, start, end, id, seconds, nanos) ->
+        {
+            if (start >= to)
+            {
+                return false;
+            }
+            switch (type)
+            {
+                case TRACE_START:
+                case TRACE_WITH_TIME:
+                    threadIds.add(id);
+                    break;
+                case STACK_FRAME_BCI_ONLY:
+                case STACK_FRAME_FULL:
+                    methodIds.add(id);
+                    break;
+                case STACK_REF:
+                    stackIds.add(id);
+                    break;
+                default:
+                    break;
+            }
+            return true;
+        });
+
+        BitSet selected = new BitSet(metadataCount);
+        for (long stackId : stackIds)
+        {
+            for (int i = firstMetadata(NEW_STACK, stackId); isMetadata(i, NEW_STACK, stackId, from); i++)
+            {
+                selected.set(i);
+                ByteBuffer record = readMetadata(channel, i);
+                // Skip the record type.
+                record.get();
+                stacks.readDefinition(record, logVersion == LogHeader.COMPACT_VERSION);
+            }
+
+            StackDictionary.StackDefinition stack = stacks.get(stackId);
+            if (stack != null)
+            {
+                for (long methodId : stack.getMethodIds())
+                {
+                    methodIds.add(methodId);
+                }
+            }
+        }
+        for (long threadId : threadIds)
+        {
+            select(selected, THREAD_META, threadId, from);
+        }
+        for (long methodId : methodIds)
+        {
+            select(selected, NEW_METHOD, methodId, from);
+        }
+
+        return selected.stream().boxed().sorted(comparingLong(i -> metadataOffsets[i])).mapToInt(Integer::intValue)
+            .toArray();
+    }
+
+    // Storage Methods
+
+    /**
+     * Writes this LogIndex to the specified file.
+     * <p>
+     * @param indexFile the file the index will be written to
+     * @throws IOException when the file can't be written
+     */
+    public void write(File indexFile) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(logSize);
+            out.writeLong(logModified);
+            out.writeLong(dataEnd);
+            out.writeLong(granularity);
+            out.writeInt(logVersion);
+
+            out.writeInt(timeCount);
+            for (int i = 0; i < timeCount; i++)
+            {
+                out.writeLong(times[i]);
+                out.writeLong(timeOffsets[i]);
+                out.writeLong(timeBases[i]);
+                out.writeLong(samplingIntervals[i]);
+            }
+
+            out.writeInt(metadataCount);
+            for (int i = 0; i < metadataCount; i++)
+            {
+                out.writeByte(metadataTypes[i]);
+                out.writeLong(metadataIds[i]);
+                out.writeLong(metadataOffsets[i]);
+                out.writeInt(metadataLengths[i]);
+            }
+        }
+    }
+
+    // Helper Methods
+
+    /**
+     * Returns the index of the last time entry at or before the specified time, or of the first entry if the time
+     * precedes it. The index must contain time entries.
+     * <p>
+     * @param time the time in nanoseconds since the epoch
+     * @return the index of the time entry
+     */
+    private int entryBefore(long time)
+    {
+        int index = binarySearch(times, 0, timeCount, time);
+        if (index < 0)
+        {
+            // Convert insertion point into the index of the preceding entry.
+            index = -index - 2;
+        }
+        return Math.max(0, index);
+    }
+
+    private LogHeader entryHeader(int entry)
+    {
+        return new LogHeader(logVersion, timeBases[entry], samplingIntervals[entry]);
+    }
+
+    /**
+     * Returns the index of the first metadata record of the specified type and id, or if there is none, of the record
+     * it would be inserted before.
+     */
+    private int firstMetadata(int type, long id)
+    {
+        int low = 0;
+        int high = metadataCount;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (metadataTypes[middle] < type || (metadataTypes[middle] == type && metadataIds[middle] < id))
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns a boolean indicating whether the specified metadata record has the specified type and id, and starts
+     * before the specified offset.
+     */
+    private boolean isMetadata(int index, int type, long id, long before)
+    {
+        return index < metadataCount
+            && metadataTypes[index] == type
+            && metadataIds[index] == id
+            && metadataOffsets[index] < before;
+    }
+
+    /**
+     * Selects all metadata records of the specified type and id which start before the specified offset.
+     */
+    private void select(BitSet selected, int type, long id, long before)
+    {
+        for (int i = firstMetadata(type, id); isMetadata(i, type, id, before); i++)
+        {
+            selected.set(i);
+        }
+    }
+
+    /**
+     * Reads the specified metadata record into a new buffer.
+     */
+    private ByteBuffer readMetadata(FileChannel channel, int index) throws IOException
+    {
+        ByteBuffer result = ByteBuffer.allocate(metadataLengths[index]);
+        long offset = metadataOffsets[index];
+        while (result.hasRemaining())
+        {
+            int read = channel.read(result, offset);
+            if (read < 0)
+            {
+                throw new EOFException("Metadata record beyond the end of the log.");
+            }
+            offset += read;
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Converts a trace start timestamp into nanoseconds since the epoch.
+     * <p>
+     * @param seconds the seconds reported in the trace start
+     * @param nanos the nanoseconds reported in the trace start
+     * @return the timestamp in nanoseconds since the epoch
+     */
+    static long toNanos(long seconds, long nanos)
+    {
+        return seconds * SECONDS_TO_NANOS + nanos;
+    }
+
+    /**
+     * {@link LogScanner.RecordHandler} which collects the index entries.
+     */
+    private static class Builder implements LogScanner.RecordHandler
+    {
+        private final LogScanner scanner;
+        private final long granularity;
+
+        private long[] times = new long[INITIAL_CAPACITY];
+        private long[] timeOffsets = new long[INITIAL_CAPACITY];
+        private long[] timeBases = new long[INITIAL_CAPACITY];
+        private long[] samplingIntervals = new long[INITIAL_CAPACITY];
+        private int timeCount;
+
+        private byte[] metadataTypes = new byte[INITIAL_CAPACITY];
+        private long[] metadataIds = new long[INITIAL_CAPACITY];
+        private long[] metadataOffsets = new long[INITIAL_CAPACITY];
+        private int[] metadataLengths = new int[INITIAL_CAPACITY];
+        private int metadataCount;
+
+        private Builder(LogScanner scanner, long granularity)
+        {
+            this.scanner = scanner;
+            this.granularity = granularity;
+        }
+
+        @Override
+        public boolean onRecord(int type, long start, long end, long id, long seconds, long nanos)
+        {
+            if (type == TRACE_WITH_TIME)
+            {
+                long time = toNanos(seconds, nanos);
+                // Timestamps are not guaranteed to be strictly ordered across threads, so only a time which moved
+                // at least one granularity step past the last entry gets a new entry. This keeps the entries sorted.
+                if (timeCount == 0 || time >= times[timeCount - 1] + granularity)
+                {
+                    if (timeCount == times.length)
+                    {
+                        times = copyOf(times, timeCount * 2);
+                        timeOffsets = copyOf(timeOffsets, timeCount * 2);
+                        timeBases = copyOf(timeBases, timeCount * 2);
+                        samplingIntervals = copyOf(samplingIntervals, timeCount * 2);
+                    }
+                    times[timeCount] = time;
+                    timeOffsets[timeCount] = start;
+                    LogHeader header = scanner.getHeader();
+                    timeBases[timeCount] = header.getTimeBase();
+                    samplingIntervals[timeCount] = header.getSamplingIntervalNanos();
+                    timeCount++;
+                }
+            }
+            else if (type == NEW_METHOD || type == THREAD_META || type == NEW_STACK)
+            {
+                if (metadataCount == metadataOffsets.length)
+                {
+                    metadataTypes = copyOf(metadataTypes, metadataCount * 2);
+                    metadataIds = copyOf(metadataIds, metadataCount * 2);
+                    metadataOffsets = copyOf(metadataOffsets, metadataCount * 2);
+                    metadataLengths = copyOf(metadataLengths, metadataCount * 2);
+                }
+                metadataTypes[metadataCount] = (byte)type;
+                metadataIds[metadataCount] = id;
+                metadataOffsets[metadataCount] = start;
+                metadataLengths[metadataCount] = (int)(end - start);
+                metadataCount++;
+            }
+            return true;
+        }
+
+        private LogIndex build(long logSize, long logModified, long dataEnd, int logVersion)
+        {
+            // The records were found in file order, a stable sort by type and id keeps them in file order per id.
+            Integer[] order = new Integer[metadataCount];
+            for (int i = 0; i < metadataCount; i++)
+            {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> metadataTypes[a] != metadataTypes[b] ? metadataTypes[a] - metadataTypes[b]
+                : Long.compare(metadataIds[a], metadataIds[b]));
+
+            byte[] types = new byte[metadataCount];
+            long[] ids = new long[metadataCount];
+            long[] offsets = new long[metadataCount];
+            int[] lengths = new int[metadataCount];
+            for (int i = 0; i < metadataCount; i++)
+            {
+                types[i] = metadataTypes[order[i]];
+                ids[i] = metadataIds[order[i]];
+                offsets[i] = metadataOffsets[order[i]];
+                lengths[i] = metadataLengths[order[i]];
+            }
+
+            return new LogIndex(
+                logSize,
+                logModified,
+                dataEnd,
+                granularity,
+                logVersion,
+                times,
+                timeOffsets,
+                timeBases,
+                samplingIntervals,
+                timeCount,
+                types,
+                ids,
+                offsets,
+                lengths,
+                metadataCount);
+        }
+    }
+}
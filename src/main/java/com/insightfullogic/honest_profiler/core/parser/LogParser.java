@@ -27,6 +27,12 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 import static com.insightfullogic.honest_profiler.core.parser.LogParser.AmountRead.*;
+import static com.insightfullogic.honest_profiler.core.parser.VarInts.readSignedVarInt;
+import static com.insightfullogic.honest_profiler.core.parser.VarInts.readSignedVarLong;
+import static com.insightfullogic.honest_profiler.core.parser.VarInts.readVarInt;
+import static com.insightfullogic.honest_profiler.core.parser.VarInts.readVarLong;
+import static java.lang.Math.floorDiv;
+import static java.lang.Math.floorMod;
 
 public class LogParser
 {
@@ -56,16 +62,28 @@ public class LogParser
             "ThreadExitErr8",
             "DeoptErr9",
             "SafepointErr10"};
-    private static final int NOT_WRITTEN = 0;
-    private static final int TRACE_START = 1;
-    private static final int TRACE_WITH_TIME = 11;
-    private static final int STACK_FRAME_BCI_ONLY = 2;
-    private static final int STACK_FRAME_FULL = 21;
-    private static final int NEW_METHOD = 3;
-    private static final int THREAD_META = 4;
-
-    private final LogEventListener listener;
+    static final int NOT_WRITTEN = 0;
+    static final int TRACE_START = 1;
+    static final int TRACE_WITH_TIME = 11;
+    static final int STACK_FRAME_BCI_ONLY = 2;
+    static final int STACK_FRAME_FULL = 21;
+    static final int NEW_METHOD = 3;
+    static final int THREAD_META = 4;
+    static final int NEW_STACK = 5;
+    static final int STACK_REF = 6;
+    static final int LOG_HEADER = 7;
+    static final int AGENT_STATS = 8;
+
+    private static final long SECONDS_TO_NANOS = 1000 * 1000 * 1000;
+
+    private final PrimitiveLogEventListener listener;
     private final Logger logger;
+    private final StackDictionary stacks;
+
+    // Decoding state, changed by LOG_HEADER records : whether records use the compact encoding, and the timestamp in
+    // nanoseconds of the last trace start, which compact timestamps are relative to.
+    private boolean compact;
+    private long timeBase;
 
     public static enum AmountRead
     {
@@ -73,14 +91,40 @@ public class LogParser
     }
 
     public LogParser(final Logger logger, final LogEventListener listener)
+    {
+        this(logger, new LogEventAdapter(listener));
+    }
+
+    /**
+     * Constructs a parser which decodes records straight into the callbacks of the {@link PrimitiveLogEventListener},
+     * without allocating any {@link LogEvent} objects for trace starts and stack frames.
+     *
+     * @param logger the logger
+     * @param listener the listener receiving the decoded records
+     */
+    public LogParser(final Logger logger, final PrimitiveLogEventListener listener)
+    {
+        this(logger, listener, new StackDictionary());
+    }
+
+    /**
+     * Constructs a parser which resolves stack references using the specified {@link StackDictionary}, which allows
+     * several parsers to share the stack definitions of a log.
+     *
+     * @param logger the logger
+     * @param listener the listener receiving the decoded records
+     * @param stacks the dictionary in which stack definitions are stored and looked up
+     */
+    public LogParser(final Logger logger, final PrimitiveLogEventListener listener, final StackDictionary stacks)
     {
         this.listener = listener;
         this.logger = logger;
+        this.stacks = stacks;
         // report the different errors as methods
         for (long errId = 0; errId < AGCT_ERRORS.length; errId++)
         {
             // we use negative jmethodIds, these are invalid addresses and should not collide with jmethodIds supplied by JVM
-            new Method(-errId - 1, "", "-AGCT-", AGCT_ERRORS[(int) errId]).accept(listener);
+            listener.onNewMethod(-errId - 1, "", "-AGCT-", AGCT_ERRORS[(int) errId]);
         }
     }
 
@@ -120,6 +164,22 @@ public class LogParser
                 case THREAD_META:
                     readNewThreadMeta(input);
                     return COMPLETE_RECORD;
+                case NEW_STACK:
+                    stacks.readDefinition(input, compact);
+                    return COMPLETE_RECORD;
+                case STACK_REF:
+                    readStackRef(input);
+                    return COMPLETE_RECORD;
+                case LOG_HEADER:
+                    if (readHeader(input))
+                    {
+                        return COMPLETE_RECORD;
+                    }
+                    input.position(initialPosition);
+                    return NOTHING;
+                case AGENT_STATS:
+                    readAgentStats(input);
+                    return COMPLETE_RECORD;
             }
         }
         catch (BufferUnderflowException e)
@@ -139,15 +199,38 @@ public class LogParser
         listener.endOfLog();
     }
 
+    /**
+     * Reads a LOG_HEADER record and switches to the decoding state it describes.
+     *
+     * @param input the buffer containing the record
+     * @return false if the header isn't valid or describes an unsupported version, in which case parsing stops
+     */
+    private boolean readHeader(ByteBuffer input)
+    {
+        LogHeader header = LogHeader.read(input);
+        if (header == null || !header.isSupported())
+        {
+            logger.error("Unsupported log format : {}", header == null ? "invalid header" : header);
+            return false;
+        }
+        compact = header.isCompact();
+        timeBase = header.getTimeBase();
+        listener.onSamplingInterval(header.getSamplingIntervalNanos());
+        return true;
+    }
+
     private void readNewMethod(ByteBuffer input)
     {
-        Method newMethod = new Method(input.getLong(), readString(input), readString(input), readString(input));
-        newMethod.accept(listener);
+        long methodId = compact ? readVarLong(input) : input.getLong();
+        String fileName = readString(input);
+        String className = readString(input);
+        String methodName = readString(input);
+        listener.onNewMethod(methodId, fileName, className, methodName);
     }
 
     private String readString(ByteBuffer input)
     {
-        int size = input.getInt();
+        int size = compact ? readVarInt(input) : input.getInt();
         char[] buffer = new char[size];
         // conversion from c style characters to Java.
         for (int i = 0; i < size; i++)
@@ -159,31 +242,64 @@ public class LogParser
 
     private void readStackFrameBciOnly(ByteBuffer input)
     {
+        if (compact)
+        {
+            int bci = readSignedVarInt(input);
+            long methodId = readVarLong(input);
+            listener.onFrame(bci, StackFrame.ERR_NO_LINE_INFO, methodId);
+            return;
+        }
+
         int bci = input.getInt();
         long methodId = input.getLong();
-        StackFrame stackFrame = new StackFrame(bci, methodId);
-        stackFrame.accept(listener);
+        listener.onFrame(bci, StackFrame.ERR_NO_LINE_INFO, methodId);
     }
 
     private void readStackFrameFull(ByteBuffer input)
     {
+        if (compact)
+        {
+            int bci = readSignedVarInt(input);
+            int lineNumber = readSignedVarInt(input);
+            long methodId = readVarLong(input);
+            listener.onFrame(bci, lineNumber, methodId);
+            return;
+        }
+
         int bci = input.getInt();
         int lineNumber = input.getInt();
         long methodId = input.getLong();
-        StackFrame stackFrame = new StackFrame(bci, lineNumber, methodId);
-        stackFrame.accept(listener);
+        listener.onFrame(bci, lineNumber, methodId);
     }
 
     private void readTraceStart(ByteBuffer input, boolean withTime)
     {
-        int numberOfFrames = input.getInt();
-        long threadId = input.getLong();
+        int numberOfFrames;
+        long threadId;
         long timeSec = 0L;
         long timeNano = 0L;
 
-        if (withTime) {
-            timeSec = input.getLong();
-            timeNano = input.getLong();
+        if (compact)
+        {
+            numberOfFrames = readSignedVarInt(input);
+            threadId = readSignedVarLong(input);
+            if (withTime)
+            {
+                // The record is complete once the delta has been read, so the state can be updated.
+                timeBase += readSignedVarLong(input);
+                timeSec = floorDiv(timeBase, SECONDS_TO_NANOS);
+                timeNano = floorMod(timeBase, SECONDS_TO_NANOS);
+            }
+        }
+        else
+        {
+            numberOfFrames = input.getInt();
+            threadId = input.getLong();
+
+            if (withTime) {
+                timeSec = input.getLong();
+                timeNano = input.getLong();
+            }
         }
 
         // number of frames <= 0 -> error, so log a mock stack frame reflecting the error. Logging errors as frames makes
@@ -193,26 +309,53 @@ public class LogParser
             // if this is an unknown error add a new method for it
             if (-numberOfFrames >= AGCT_ERRORS.length)
             {
-                new Method(numberOfFrames - 1, "", "AGCT", "UnknownErrCode"+(-numberOfFrames)).accept(listener);
+                listener.onNewMethod(numberOfFrames - 1, "", "AGCT", "UnknownErrCode"+(-numberOfFrames));
             }
 
             // we choose to report errors via frames, so pretend there's a single frame in the trace
-            new TraceStart(1, threadId, timeSec, timeNano).accept(listener);
+            listener.onTraceStart(1, threadId, timeSec, timeNano);
             // we shift the err code by -1 to avoid using the valid NULL jmethodId
-            new StackFrame(-1, numberOfFrames - 1).accept(listener);
+            listener.onFrame(-1, StackFrame.ERR_NO_LINE_INFO, numberOfFrames - 1);
         }
         else
         {
-            TraceStart traceStart = new TraceStart(numberOfFrames, threadId, timeSec, timeNano);
-            traceStart.accept(listener);
+            listener.onTraceStart(numberOfFrames, threadId, timeSec, timeNano);
+        }
+    }
+
+    private void readStackRef(ByteBuffer input)
+    {
+        long stackId = compact ? readVarLong(input) : input.getLong();
+        StackDictionary.StackDefinition stack = stacks.get(stackId);
+        if (stack == null)
+        {
+            logger.warn("Reference to unknown stack {}", stackId);
+            return;
+        }
+        listener.onStack(stack.size(), stack.getBcis(), stack.getLineNumbers(), stack.getMethodIds());
+    }
+
+    private void readAgentStats(ByteBuffer input)
+    {
+        int count = compact ? readVarInt(input) : input.getInt();
+        long[] values = new long[AgentStats.MAX_ID + 1];
+        for (int i = 0; i < count; i++)
+        {
+            int id = compact ? readVarInt(input) : input.getInt();
+            long value = compact ? readVarLong(input) : input.getLong();
+            // Counters added by newer agents are skipped.
+            if (AgentStats.isKnown(id))
+            {
+                values[id] = value;
+            }
         }
+        listener.onAgentStats(new AgentStats(values));
     }
 
     private void readNewThreadMeta(ByteBuffer input) {
-        long threadId = input.getLong();
+        long threadId = compact ? readSignedVarLong(input) : input.getLong();
         String threadName = readString(input);
 
-        ThreadMeta threadMeta = new ThreadMeta(threadId, threadName);
-        threadMeta.accept(listener);
+        listener.onThreadMeta(threadId, threadName);
     }
 }
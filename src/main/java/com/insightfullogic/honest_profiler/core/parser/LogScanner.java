@@ -0,0 +1,372 @@
+package com.insightfullogic.honest_profiler.core.parser;
+
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.AGENT_STATS;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.LOG_HEADER;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.NEW_METHOD;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.NEW_STACK;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.STACK_REF;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.STACK_FRAME_BCI_ONLY;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.STACK_FRAME_FULL;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.THREAD_META;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.TRACE_START;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.TRACE_WITH_TIME;
+import static com.insightfullogic.honest_profiler.core.parser.VarInts.readSignedVarLong;
+import static com.insightfullogic.honest_profiler.core.parser.VarInts.readVarInt;
+import static com.insightfullogic.honest_profiler.core.parser.VarInts.readVarLong;
+import static com.insightfullogic.honest_profiler.core.parser.VarInts.skipVarInt;
+import static java.lang.Math.floorDiv;
+import static java.lang.Math.floorMod;
+import static java.lang.Math.min;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The LogScanner walks over the records in a log file without decoding most of their contents, reporting the type,
+ * the location, the thread, method or stack id and, for trace starts, the timestamp of every record to a
+ * {@link RecordHandler}. This is a lot cheaper than parsing, and is used for locating record boundaries in completed log
+ * files.
+ * <p>
+ * Like the sequential {@link LogParser}, the scan stops at the first unwritten or unknown record, or at a truncated
+ * record at the end of the file.
+ * <p>
+ * The scanner tracks the decoding state of the log as described by {@link LogHeader}, so it understands both the
+ * fixed width and the compact encoding. A scan starting in the middle of a file must be given the state at that point.
+ * <p>
+ * If a {@link StackDictionary} is specified, the definitions in the NEW_STACK records are decoded into it, straight from
+ * the mapped file, as they are scanned, so a single pass over the file both locates the records and collects the stack
+ * definitions.
+ */
+final class LogScanner
+{
+    // Class Properties
+
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final long SECONDS_TO_NANOS = 1000 * 1000 * 1000;
+
+    /**
+     * Callback receiving the records found by the LogScanner.
+     */
+    @FunctionalInterface
+    interface RecordHandler
+    {
+        /**
+         * Called for every complete record found by the LogScanner.
+         * <p>
+         * @param type the record type
+         * @param start the offset in the file of the first byte of the record
+         * @param end the offset in the file of the first byte after the record
+         * @param id the id reported by the record : the thread id of a trace start or thread metadata record, the method
+         *            id of a frame or method metadata record, the stack id of a stack definition or reference, 0
+         *            otherwise
+         * @param seconds the seconds reported by the record if it is a trace start with a timestamp, 0 otherwise
+         * @param nanos the nanoseconds reported by the record if it is a trace start with a timestamp, 0 otherwise
+         * @return a boolean indicating whether the scan should continue
+         */
+        boolean onRecord(int type, long start, long end, long id, long seconds, long nanos);
+    }
+
+    // Instance Properties
+
+    private final FileChannel channel;
+    // The dictionary receiving the stack definitions which are scanned, or null if they are skipped.
+    private final StackDictionary stacks;
+
+    private int version;
+    private long timeBase;
+    private long samplingIntervalNanos;
+
+    // Instance Constructors
+
+    /**
+     * Constructor for scanning the log file read through the specified {@link FileChannel} from its start.
+     * <p>
+     * @param channel the {@link FileChannel} for reading the log file
+     */
+    LogScanner(FileChannel channel)
+    {
+        this(channel, LogHeader.LEGACY);
+    }
+
+    /**
+     * Constructor for scanning the log file read through the specified {@link FileChannel} from a record at which
+     * the decoding state is described by the specified {@link LogHeader}.
+     * <p>
+     * @param channel the {@link FileChannel} for reading the log file
+     * @param header the decoding state at the first record which will be scanned
+     */
+    LogScanner(FileChannel channel, LogHeader header)
+    {
+        this(channel, header, null);
+    }
+
+    /**
+     * Constructor for scanning the log file read through the specified {@link FileChannel} from its start, storing the
+     * stack definitions found in the file in the specified {@link StackDictionary}. A definition is stored as soon as
+     * its record has been scanned, even if the {@link RecordHandler} then stops the scan.
+     * <p>
+     * @param channel the {@link FileChannel} for reading the log file
+     * @param stacks the {@link StackDictionary} receiving the stack definitions
+     */
+    LogScanner(FileChannel channel, StackDictionary stacks)
+    {
+        this(channel, LogHeader.LEGACY, stacks);
+    }
+
+    /**
+     * Constructor for scanning the log file read through the specified {@link FileChannel} from a record at which
+     * the decoding state is described by the specified {@link LogHeader}, storing the stack definitions found in the
+     * file in the specified {@link StackDictionary}.
+     * <p>
+     * @param channel the {@link FileChannel} for reading the log file
+     * @param header the decoding state at the first record which will be scanned
+     * @param stacks the {@link StackDictionary} receiving the stack definitions, or null if they are skipped
+     */
+    LogScanner(FileChannel channel, LogHeader header, StackDictionary stacks)
+    {
+        this.channel = channel;
+        this.stacks = stacks;
+        this.version = header.getVersion();
+        this.timeBase = header.getTimeBase();
+        this.samplingIntervalNanos = header.getSamplingIntervalNanos();
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the decoding state at the start of the record being reported to the {@link RecordHandler}, or after a
+     * scan has finished, at the record where it stopped.
+     * <p>
+     * @return a {@link LogHeader} describing the current decoding state
+     */
+    LogHeader getHeader()
+    {
+        return new LogHeader(version, timeBase, samplingIntervalNanos);
+    }
+
+    // Scanning Methods
+
+    /**
+     * Scans the records in the file, starting at the specified offset, which must be the start of a record.
+     * <p>
+     * @param from the offset of the first record which will be scanned
+     * @param handler the {@link RecordHandler} receiving the records
+     * @return the start of the record for which the {@link RecordHandler} stopped the scan, or the end of the data in
+     *         the file
+     * @throws IOException when the file can't be read
+     */
+    long scan(long from, RecordHandler handler) throws IOException
+    {
+        long fileSize = channel.size();
+        long windowStart = from;
+        ByteBuffer window = map(channel, windowStart, fileSize);
+
+        long offset = from;
+
+        while (offset < fileSize)
+        {
+            if (!window.hasRemaining())
+            {
+                windowStart = offset;
+                window = map(channel, windowStart, fileSize);
+            }
+
+            int recordPosition = window.position();
+            long id = 0L;
+            long seconds = 0L;
+            long nanos = 0L;
+            // The state changes caused by the record, applied once the handler accepted it.
+            int nextVersion = version;
+            long nextTimeBase = timeBase;
+            long nextSamplingInterval = samplingIntervalNanos;
+            boolean compact = version == LogHeader.COMPACT_VERSION;
+            byte type;
+
+            try
+            {
+                type = window.get();
+                switch (type)
+                {
+                    case TRACE_START:
+                        if (compact)
+                        {
+                            skipVarInt(window);
+                            id = readSignedVarLong(window);
+                        }
+                        else
+                        {
+                            skip(window, 4);
+                            id = window.getLong();
+                        }
+                        break;
+                    case TRACE_WITH_TIME:
+                        if (compact)
+                        {
+                            skipVarInt(window);
+                            id = readSignedVarLong(window);
+                            nextTimeBase = timeBase + readSignedVarLong(window);
+                            seconds = floorDiv(nextTimeBase, SECONDS_TO_NANOS);
+                            nanos = floorMod(nextTimeBase, SECONDS_TO_NANOS);
+                        }
+                        else
+                        {
+                            skip(window, 4);
+                            id = window.getLong();
+                            seconds = window.getLong();
+                            nanos = window.getLong();
+                        }
+                        break;
+                    case STACK_FRAME_BCI_ONLY:
+                        if (compact)
+                        {
+                            skipVarInt(window);
+                            id = readVarLong(window);
+                        }
+                        else
+                        {
+                            skip(window, 4);
+                            id = window.getLong();
+                        }
+                        break;
+                    case STACK_FRAME_FULL:
+                        if (compact)
+                        {
+                            skipVarInt(window);
+                            skipVarInt(window);
+                            id = readVarLong(window);
+                        }
+                        else
+                        {
+                            skip(window, 4 + 4);
+                            id = window.getLong();
+                        }
+                        break;
+                    case NEW_METHOD:
+                        id = compact ? readVarLong(window) : window.getLong();
+                        skipString(window, compact);
+                        skipString(window, compact);
+                        skipString(window, compact);
+                        break;
+                    case THREAD_META:
+                        id = compact ? readSignedVarLong(window) : window.getLong();
+                        skipString(window, compact);
+                        break;
+                    case NEW_STACK:
+                        if (stacks != null)
+                        {
+                            // Nothing is stored if the record doesn't fit in the window.
+                            id = stacks.readDefinition(window, compact);
+                        }
+                        else if (compact)
+                        {
+                            id = readVarLong(window);
+                            int numberOfFrames = readVarInt(window);
+                            if (numberOfFrames < 0)
+                            {
+                                throw new BufferUnderflowException();
+                            }
+                            for (long i = 0; i < numberOfFrames * 3L; i++)
+                            {
+                                skipVarInt(window);
+                            }
+                        }
+                        else
+                        {
+                            id = window.getLong();
+                            skip(window, window.getInt() * StackDictionary.FRAME_SIZE);
+                        }
+                        break;
+                    case STACK_REF:
+                        id = compact ? readVarLong(window) : window.getLong();
+                        break;
+                    case LOG_HEADER:
+                        LogHeader header = LogHeader.read(window);
+                        if (header == null || !header.isSupported())
+                        {
+                            // The sequential parser stops at invalid headers as well.
+                            return offset;
+                        }
+                        nextVersion = header.getVersion();
+                        nextTimeBase = header.getTimeBase();
+                        nextSamplingInterval = header.getSamplingIntervalNanos();
+                        break;
+                    case AGENT_STATS:
+                        if (compact)
+                        {
+                            int count = readVarInt(window);
+                            if (count < 0)
+                            {
+                                throw new BufferUnderflowException();
+                            }
+                            for (long i = 0; i < count * 2L; i++)
+                            {
+                                skipVarInt(window);
+                            }
+                        }
+                        else
+                        {
+                            int count = window.getInt();
+                            if (count < 0)
+                            {
+                                throw new BufferUnderflowException();
+                            }
+                            skip(window, (int) min(Integer.MAX_VALUE, count * (4L + 8L)));
+                        }
+                        break;
+                    default:
+                        // Unwritten or unknown record, the sequential parser stops here as well.
+                        return offset;
+                }
+            }
+            catch (BufferUnderflowException e)
+            {
+                // A record which doesn't fit in the window is either truncated at the end of the file, or straddles
+                // the window boundary, in which case the window is moved to the start of the record.
+                if (windowStart + window.limit() >= fileSize || recordPosition == 0)
+                {
+                    return offset;
+                }
+                windowStart = offset;
+                window = map(channel, windowStart, fileSize);
+                continue;
+            }
+
+            long end = windowStart + window.position();
+            if (!handler.onRecord(type, offset, end, id, seconds, nanos))
+            {
+                return offset;
+            }
+            version = nextVersion;
+            timeBase = nextTimeBase;
+            samplingIntervalNanos = nextSamplingInterval;
+            offset = end;
+        }
+
+        return offset;
+    }
+
+    // Helper Methods
+
+    private static ByteBuffer map(FileChannel channel, long start, long fileSize) throws IOException
+    {
+        return channel.map(READ_ONLY, start, min(WINDOW_SIZE, fileSize - start));
+    }
+
+    private static void skipString(ByteBuffer input, boolean compact)
+    {
+        skip(input, compact ? readVarInt(input) : input.getInt());
+    }
+
+    private static void skip(ByteBuffer input, int size)
+    {
+        if (size < 0 || size > input.remaining())
+        {
+            throw new BufferUnderflowException();
+        }
+        input.position(input.position() + size);
+    }
+}
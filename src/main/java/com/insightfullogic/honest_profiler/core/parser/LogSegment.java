@@ -0,0 +1,190 @@
+package com.insightfullogic.honest_profiler.core.parser;
+
+/**
+ * A LogSegment describes a range of a completed log file which can be parsed independently of the rest of the file. It
+ * starts at the beginning of the file or with a trace start record, and ends right before the trace start record which
+ * starts the next segment, or at the end of the data in the file.
+ * <p>
+ * Besides the byte range, the LogSegment records the timestamps of the trace starts surrounding it and of the last
+ * trace start of every thread preceding it, which are needed to attribute time to the first and the last stack in the
+ * segment, and to the first stack of every thread in the segment, exactly like when the file is parsed sequentially,
+ * and the {@link LogHeader} describing the decoding state at the start of the segment, which has to be fed to the
+ * {@link LogParser} before the segment itself.
+ */
+public class LogSegment
+{
+    // Instance Properties
+
+    private final long start;
+    private final long end;
+
+    private final LogHeader header;
+
+    private final boolean hasPrevious;
+    private final long prevSeconds;
+    private final long prevNanos;
+    private final ThreadTimestamps prevThreadTimestamps;
+
+    private final boolean hasNext;
+    private final long nextSeconds;
+    private final long nextNanos;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the byte range, the decoding state and the timestamps of the surrounding trace starts.
+     * <p>
+     * @param start the offset in the file of the first byte of the segment
+     * @param end the offset in the file of the first byte after the segment
+     * @param header the decoding state at the start of the segment
+     * @param hasPrevious a boolean indicating whether the segment is preceded by a trace start
+     * @param prevSeconds the seconds reported by the last trace start preceding the segment
+     * @param prevNanos the nanoseconds reported by the last trace start preceding the segment
+     * @param prevThreadTimestamps the timestamps of the last trace start of every thread preceding the segment
+     * @param hasNext a boolean indicating whether the segment is followed by another segment
+     * @param nextSeconds the seconds reported by the first trace start in the next segment
+     * @param nextNanos the nanoseconds reported by the first trace start in the next segment
+     */
+    public LogSegment(long start,
+                      long end,
+                      LogHeader header,
+                      boolean hasPrevious,
+                      long prevSeconds,
+                      long prevNanos,
+                      ThreadTimestamps prevThreadTimestamps,
+                      boolean hasNext,
+                      long nextSeconds,
+                      long nextNanos)
+    {
+        this.start = start;
+        this.end = end;
+        this.header = header;
+        this.hasPrevious = hasPrevious;
+        this.prevSeconds = prevSeconds;
+        this.prevNanos = prevNanos;
+        this.prevThreadTimestamps = prevThreadTimestamps;
+        this.hasNext = hasNext;
+        this.nextSeconds = nextSeconds;
+        this.nextNanos = nextNanos;
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the offset in the file of the first byte of the segment.
+     * <p>
+     * @return the offset in the file of the first byte of the segment
+     */
+    public long getStart()
+    {
+        return start;
+    }
+
+    /**
+     * Returns the offset in the file of the first byte after the segment.
+     * <p>
+     * @return the offset in the file of the first byte after the segment
+     */
+    public long getEnd()
+    {
+        return end;
+    }
+
+    /**
+     * Returns the size of the segment in bytes.
+     * <p>
+     * @return the size of the segment in bytes
+     */
+    public long getSize()
+    {
+        return end - start;
+    }
+
+    /**
+     * Returns the {@link LogHeader} describing the decoding state at the start of the segment.
+     * <p>
+     * @return the decoding state at the start of the segment
+     */
+    public LogHeader getHeader()
+    {
+        return header;
+    }
+
+    /**
+     * Returns a boolean indicating whether the segment is preceded by a trace start.
+     * <p>
+     * @return a boolean indicating whether the segment is preceded by a trace start
+     */
+    public boolean hasPrevious()
+    {
+        return hasPrevious;
+    }
+
+    /**
+     * Returns the seconds reported by the last trace start preceding the segment.
+     * <p>
+     * @return the seconds reported by the last trace start preceding the segment
+     */
+    public long getPrevSeconds()
+    {
+        return prevSeconds;
+    }
+
+    /**
+     * Returns the nanoseconds reported by the last trace start preceding the segment.
+     * <p>
+     * @return the nanoseconds reported by the last trace start preceding the segment
+     */
+    public long getPrevNanos()
+    {
+        return prevNanos;
+    }
+
+    /**
+     * Returns the timestamps of the last trace start of every thread preceding the segment.
+     * <p>
+     * @return the timestamps of the last trace start of every thread preceding the segment
+     */
+    public ThreadTimestamps getPrevThreadTimestamps()
+    {
+        return prevThreadTimestamps;
+    }
+
+    /**
+     * Returns a boolean indicating whether the segment is followed by another segment.
+     * <p>
+     * @return a boolean indicating whether the segment is followed by another segment
+     */
+    public boolean hasNext()
+    {
+        return hasNext;
+    }
+
+    /**
+     * Returns the seconds reported by the first trace start in the next segment.
+     * <p>
+     * @return the seconds reported by the first trace start in the next segment
+     */
+    public long getNextSeconds()
+    {
+        return nextSeconds;
+    }
+
+    /**
+     * Returns the nanoseconds reported by the first trace start in the next segment.
+     * <p>
+     * @return the nanoseconds reported by the first trace start in the next segment
+     */
+    public long getNextNanos()
+    {
+        return nextNanos;
+    }
+
+    // Object Implementation
+
+    @Override
+    public String toString()
+    {
+        return "LogSegment [" + start + ":" + end + "]";
+    }
+}
@@ -0,0 +1,144 @@
+package com.insightfullogic.honest_profiler.core.parser;
+
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.TRACE_START;
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.TRACE_WITH_TIME;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The LogSegmenter splits a completed log file into {@link LogSegment}s which can be parsed independently, e.g. in
+ * parallel.
+ * <p>
+ * The records in a log file carry no synchronization markers, so the boundaries can't be found by seeking to arbitrary
+ * offsets. Instead the file is scanned sequentially by the {@link LogScanner}, and a new segment is started at the
+ * first trace start found after the target segment size has been reached. Segments therefore never split a stack trace
+ * sample. Metadata records simply end up in whichever segment they were written in. Since samples may refer to stacks
+ * defined in earlier segments, the scan also collects all stack definitions into a {@link StackDictionary}, which the
+ * parsers of the segments can then share.
+ */
+public final class LogSegmenter
+{
+    // Class Properties
+
+    private static final long SECONDS_TO_NANOS = 1000 * 1000 * 1000;
+
+    // Class Methods
+
+    /**
+     * Splits the log file read through the specified {@link FileChannel} into {@link LogSegment}s of approximately the
+     * specified size, and stores the stack definitions found in the file in the specified {@link StackDictionary}. If
+     * the file contains no records, an empty {@link List} is returned.
+     * <p>
+     * @param channel the {@link FileChannel} for reading the log file
+     * @param targetSize the minimum size in bytes of every segment except the last one
+     * @param stacks the {@link StackDictionary} receiving the stack definitions in the file
+     * @return a {@link List} containing the {@link LogSegment}s, in file order
+     * @throws IOException when the file can't be read
+     */
+    public static List<LogSegment> split(FileChannel channel, long targetSize, StackDictionary stacks)
+        throws IOException
+    {
+        LogScanner scanner = new LogScanner(channel, stacks);
+        Splitter splitter = new Splitter(scanner, targetSize);
+        long end = scanner.scan(0, splitter);
+        return splitter.finish(end);
+    }
+
+    /**
+     * {@link LogScanner.RecordHandler} which creates a new {@link LogSegment} whenever a trace start is found after the
+     * target size has been reached.
+     */
+    private static class Splitter implements LogScanner.RecordHandler
+    {
+        private final LogScanner scanner;
+        private final long targetSize;
+        private final List<LogSegment> segments = new ArrayList<>();
+
+        // The start of the segment being scanned, the decoding state there, and the timestamps of the last trace start
+        // preceding it, overall and per thread.
+        private long segmentStart = 0;
+        private LogHeader segmentHeader = LogHeader.LEGACY;
+        private boolean segmentHasPrevious = false;
+        private long segmentPrevSeconds = 0;
+        private long segmentPrevNanos = 0;
+        private ThreadTimestamps segmentThreadTimestamps = new ThreadTimestamps();
+
+        // The timestamps of the last trace start scanned, overall and per thread.
+        private boolean seenTrace = false;
+        private long lastSeconds = 0;
+        private long lastNanos = 0;
+        private final ThreadTimestamps threadTimestamps = new ThreadTimestamps();
+
+        private Splitter(LogScanner scanner, long targetSize)
+        {
+            this.scanner = scanner;
+            this.targetSize = targetSize;
+        }
+
+        @Override
+        public boolean onRecord(int type, long start, long end, long id, long seconds, long nanos)
+        {
+            if (type != TRACE_START && type != TRACE_WITH_TIME)
+            {
+                return true;
+            }
+
+            if (start - segmentStart >= targetSize)
+            {
+                segments.add(new LogSegment(
+                    segmentStart,
+                    start,
+                    segmentHeader,
+                    segmentHasPrevious,
+                    segmentPrevSeconds,
+                    segmentPrevNanos,
+                    segmentThreadTimestamps,
+                    true,
+                    seconds,
+                    nanos));
+
+                segmentStart = start;
+                segmentHeader = scanner.getHeader();
+                segmentHasPrevious = seenTrace;
+                segmentPrevSeconds = lastSeconds;
+                segmentPrevNanos = lastNanos;
+                segmentThreadTimestamps = new ThreadTimestamps(threadTimestamps);
+            }
+
+            seenTrace = true;
+            lastSeconds = seconds;
+            lastNanos = nanos;
+            threadTimestamps.update(id, seconds * SECONDS_TO_NANOS + nanos);
+            return true;
+        }
+
+        private List<LogSegment> finish(long end)
+        {
+            if (end > segmentStart)
+            {
+                segments.add(new LogSegment(
+                    segmentStart,
+                    end,
+                    segmentHeader,
+                    segmentHasPrevious,
+                    segmentPrevSeconds,
+                    segmentPrevNanos,
+                    segmentThreadTimestamps,
+                    false,
+                    0,
+                    0));
+            }
+            return segments;
+        }
+    }
+
+    // Instance Constructors
+
+    private LogSegmenter()
+    {
+        // Utility class
+    }
+}
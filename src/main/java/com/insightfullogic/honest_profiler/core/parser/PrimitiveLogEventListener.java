@@ -0,0 +1,92 @@
+package com.insightfullogic.honest_profiler.core.parser;
+
+/**
+ * Flyweight variant of the {@link LogEventListener}. The {@link LogParser} decodes the records straight into the
+ * callback parameters, so no {@link LogEvent} objects are allocated for the high-volume trace and frame records.
+ * <p>
+ * The callbacks are invoked in the same order in which the corresponding {@link LogEvent}s would be handed to a
+ * {@link LogEventListener}. The parameters are only valid for the duration of the call.
+ */
+public interface PrimitiveLogEventListener
+{
+    /**
+     * Called when the start of a new stack trace sample is read.
+     * <p>
+     * @param numberOfFrames the number of frames which will follow
+     * @param threadId the id of the thread the sample was taken on
+     * @param timeSec the seconds part of the sample timestamp, 0 if the log has no timestamps
+     * @param timeNano the nanoseconds part of the sample timestamp, 0 if the log has no timestamps
+     */
+    void onTraceStart(int numberOfFrames, long threadId, long timeSec, long timeNano);
+
+    /**
+     * Called when a stack frame is read. Frames are reported starting with the innermost frame.
+     * <p>
+     * @param bci the byte code index of the execution point
+     * @param lineNumber the line number of the execution point, or {@link StackFrame#ERR_NO_LINE_INFO} if unknown
+     * @param methodId the id of the method executing in the frame
+     */
+    void onFrame(int bci, int lineNumber, long methodId);
+
+    /**
+     * Called when a reference to a known stack is read, instead of the individual frames. The arrays contain the
+     * frames starting with the innermost frame, and must not be modified. The default implementation reports the
+     * frames one by one to {@link #onFrame(int, int, long)}.
+     * <p>
+     * @param numberOfFrames the number of frames in the stack
+     * @param bcis the byte code indices of the frames
+     * @param lineNumbers the line numbers of the frames
+     * @param methodIds the ids of the methods executing in the frames
+     */
+    default void onStack(int numberOfFrames, int[] bcis, int[] lineNumbers, long[] methodIds)
+    {
+        for (int i = 0; i < numberOfFrames; i++)
+        {
+            onFrame(bcis[i], lineNumbers[i], methodIds[i]);
+        }
+    }
+
+    /**
+     * Called when the metadata for a method is read.
+     * <p>
+     * @param methodId the id of the method
+     * @param fileName the name of the source file declaring the method
+     * @param className the class signature as reported by the agent, which still has to be formatted
+     * @param methodName the name of the method
+     */
+    void onNewMethod(long methodId, String fileName, String className, String methodName);
+
+    /**
+     * Called when the metadata for a thread is read.
+     * <p>
+     * @param threadId the id of the thread
+     * @param threadName the name of the thread, possibly empty
+     */
+    void onThreadMeta(long threadId, String threadName);
+
+    /**
+     * Called when a log header is read, which states the sampling interval of the agent which wrote the records
+     * following it. The default implementation ignores it.
+     * <p>
+     * @param samplingIntervalNanos the sampling interval in nanoseconds, or 0 if it is unknown
+     */
+    default void onSamplingInterval(long samplingIntervalNanos)
+    {
+        // NOOP
+    }
+
+    /**
+     * Called when the health counters of the agent are read. The default implementation ignores them.
+     * <p>
+     * @param stats the counters, which are cumulative totals
+     */
+    default void onAgentStats(AgentStats stats)
+    {
+        // NOOP
+    }
+
+    /**
+     * Called when the end of the log has been reached.
+     */
+    void endOfLog();
+}
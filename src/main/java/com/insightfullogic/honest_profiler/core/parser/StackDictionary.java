@@ -0,0 +1,185 @@
+package com.insightfullogic.honest_profiler.core.parser;
+
+import static com.insightfullogic.honest_profiler.core.parser.VarInts.readSignedVarInt;
+import static com.insightfullogic.honest_profiler.core.parser.VarInts.readVarInt;
+import static com.insightfullogic.honest_profiler.core.parser.VarInts.readVarLong;
+import static java.util.Arrays.copyOf;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The StackDictionary holds the stack definitions read from the NEW_STACK records in a log. Samples taken from a known
+ * stack consist of a STACK_REF record referring to the definition by id, instead of the full list of frames.
+ * <p>
+ * The agent assigns stack ids sequentially starting from 0, so the definitions are kept in an array indexed by id.
+ * Definitions never change once read. A dictionary which was filled up front, while the {@link LogSegmenter} scanned
+ * the log, can therefore be shared by several {@link LogParser}s parsing segments of the same log in parallel, since
+ * these will find all definitions already present and never modify the dictionary.
+ */
+public class StackDictionary
+{
+    // Class Properties
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Ids beyond this bound are considered corrupt, the agent bounds the number of distinct stacks far below it.
+    private static final long MAX_STACK_ID = 1 << 24;
+
+    // Size in bytes of a frame in a fixed width NEW_STACK record : bci, line number and method id.
+    static final int FRAME_SIZE = 4 + 4 + 8;
+    // Minimum size in bytes of a frame in a compact NEW_STACK record : a single byte varint per value.
+    static final int MIN_COMPACT_FRAME_SIZE = 3;
+
+    // Instance Properties
+
+    private StackDefinition[] stacks;
+
+    // Instance Constructors
+
+    /**
+     * Empty constructor.
+     */
+    public StackDictionary()
+    {
+        stacks = new StackDefinition[INITIAL_CAPACITY];
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the definition of the stack with the specified id, or null if it is unknown.
+     * <p>
+     * @param stackId the id of the stack
+     * @return the definition of the stack with the specified id, or null if it is unknown
+     */
+    public StackDefinition get(long stackId)
+    {
+        return stackId >= 0 && stackId < stacks.length ? stacks[(int)stackId] : null;
+    }
+
+    // Parsing Methods
+
+    /**
+     * Reads the contents of a NEW_STACK record, positioned right after the record type, and stores the definition
+     * unless a definition with the same id is already known. A {@link BufferUnderflowException} is thrown,
+     * without storing anything, if the buffer doesn't contain the entire record.
+     * <p>
+     * @param input the buffer containing the record
+     * @param compact a boolean indicating whether the record uses the compact encoding
+     * @return the id of the defined stack
+     */
+    long readDefinition(ByteBuffer input, boolean compact)
+    {
+        if (compact)
+        {
+            return readCompactDefinition(input);
+        }
+
+        long stackId = input.getLong();
+        int numberOfFrames = input.getInt();
+
+        int size = numberOfFrames * FRAME_SIZE;
+        if (size < 0 || size > input.remaining())
+        {
+            throw new BufferUnderflowException();
+        }
+
+        if (stackId < 0 || stackId >= MAX_STACK_ID || get(stackId) != null)
+        {
+            input.position(input.position() + size);
+            return stackId;
+        }
+
+        int[] bcis = new int[numberOfFrames];
+        int[] lineNumbers = new int[numberOfFrames];
+        long[] methodIds = new long[numberOfFrames];
+
+        for (int i = 0; i < numberOfFrames; i++)
+        {
+            bcis[i] = input.getInt();
+            lineNumbers[i] = input.getInt();
+            methodIds[i] = input.getLong();
+        }
+
+        store(stackId, bcis, lineNumbers, methodIds);
+        return stackId;
+    }
+
+    private long readCompactDefinition(ByteBuffer input)
+    {
+        long stackId = readVarLong(input);
+        int numberOfFrames = readVarInt(input);
+
+        if (numberOfFrames < 0 || numberOfFrames > input.remaining() / MIN_COMPACT_FRAME_SIZE)
+        {
+            throw new BufferUnderflowException();
+        }
+
+        // The frames have to be decoded to find the end of the record, even if the definition is known already.
+        int[] bcis = new int[numberOfFrames];
+        int[] lineNumbers = new int[numberOfFrames];
+        long[] methodIds = new long[numberOfFrames];
+
+        for (int i = 0; i < numberOfFrames; i++)
+        {
+            bcis[i] = readSignedVarInt(input);
+            lineNumbers[i] = readSignedVarInt(input);
+            methodIds[i] = readVarLong(input);
+        }
+
+        if (stackId < 0 || stackId >= MAX_STACK_ID || get(stackId) != null)
+        {
+            return stackId;
+        }
+        store(stackId, bcis, lineNumbers, methodIds);
+        return stackId;
+    }
+
+    private void store(long stackId, int[] bcis, int[] lineNumbers, long[] methodIds)
+    {
+        int index = (int)stackId;
+        if (index >= stacks.length)
+        {
+            stacks = copyOf(stacks, Math.max(index + 1, stacks.length * 2));
+        }
+        stacks[index] = new StackDefinition(bcis, lineNumbers, methodIds);
+    }
+
+    /**
+     * The frames of a stack, innermost frame first. The arrays are shared and must not be modified.
+     */
+    public static final class StackDefinition
+    {
+        private final int[] bcis;
+        private final int[] lineNumbers;
+        private final long[] methodIds;
+
+        private StackDefinition(int[] bcis, int[] lineNumbers, long[] methodIds)
+        {
+            this.bcis = bcis;
+            this.lineNumbers = lineNumbers;
+            this.methodIds = methodIds;
+        }
+
+        public int size()
+        {
+            return bcis.length;
+        }
+
+        public int[] getBcis()
+        {
+            return bcis;
+        }
+
+        public int[] getLineNumbers()
+        {
+            return lineNumbers;
+        }
+
+        public long[] getMethodIds()
+        {
+            return methodIds;
+        }
+    }
+}
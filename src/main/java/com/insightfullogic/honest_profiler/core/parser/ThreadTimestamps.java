@@ -0,0 +1,163 @@
+package com.insightfullogic.honest_profiler.core.parser;
+
+import static java.util.Arrays.copyOf;
+
+/**
+ * ThreadTimestamps maps thread ids to the timestamp of the most recent {@link TraceStart} of the thread. Trace starts
+ * without a timestamp are ignored, and a thread without timestamp maps to 0.
+ * <p>
+ * The timestamps are stored in an open-addressing hash table with primitive arrays, so looking up or updating a thread
+ * which has been seen before doesn't allocate anything.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class ThreadTimestamps
+{
+    // Class Properties
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Instance Properties
+
+    // Open-addressing table. The capacity is always a power of 2 and at least twice the number of threads.
+    private long[] threadIds;
+    private long[] timestamps;
+    private boolean[] used;
+    private int size;
+
+    // Instance Constructors
+
+    /**
+     * Empty constructor.
+     */
+    public ThreadTimestamps()
+    {
+        threadIds = new long[INITIAL_CAPACITY];
+        timestamps = new long[INITIAL_CAPACITY];
+        used = new boolean[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Copy constructor.
+     * <p>
+     * @param source the ThreadTimestamps being copied
+     */
+    public ThreadTimestamps(ThreadTimestamps source)
+    {
+        threadIds = copyOf(source.threadIds, source.threadIds.length);
+        timestamps = copyOf(source.timestamps, source.timestamps.length);
+        used = copyOf(source.used, source.used.length);
+        size = source.size;
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the number of threads for which a timestamp is recorded.
+     * <p>
+     * @return the number of threads for which a timestamp is recorded
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the timestamp of the most recent {@link TraceStart} of the specified thread.
+     * <p>
+     * @param threadId the id of the thread
+     * @return the timestamp in nanoseconds, or 0 if no timestamp was recorded for the thread
+     */
+    public long get(long threadId)
+    {
+        int mask = threadIds.length - 1;
+        for (int slot = hash(threadId) & mask; used[slot]; slot = (slot + 1) & mask)
+        {
+            if (threadIds[slot] == threadId)
+            {
+                return timestamps[slot];
+            }
+        }
+        return 0;
+    }
+
+    // Modification Methods
+
+    /**
+     * Records the timestamp of a {@link TraceStart} of the specified thread, unless it precedes the timestamp recorded
+     * already, which can only happen if the log isn't ordered.
+     * <p>
+     * @param threadId the id of the thread
+     * @param timestampNanos the timestamp in nanoseconds, or 0 if the {@link TraceStart} has no timestamp
+     * @return the timestamp recorded for the thread before the update, or 0 if there was none
+     */
+    public long update(long threadId, long timestampNanos)
+    {
+        int mask = threadIds.length - 1;
+        int slot = hash(threadId) & mask;
+
+        while (used[slot])
+        {
+            if (threadIds[slot] == threadId)
+            {
+                long previous = timestamps[slot];
+                timestamps[slot] = Math.max(previous, timestampNanos);
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (timestampNanos != 0)
+        {
+            used[slot] = true;
+            threadIds[slot] = threadId;
+            timestamps[slot] = timestampNanos;
+
+            if (++size * 2 > threadIds.length)
+            {
+                rehash(threadIds.length * 2);
+            }
+        }
+        return 0;
+    }
+
+    // Helper Methods
+
+    /**
+     * Rebuilds the hash table with the specified capacity, which must be a power of 2.
+     * <p>
+     * @param capacity the capacity of the new hash table
+     */
+    private void rehash(int capacity)
+    {
+        long[] oldThreadIds = threadIds;
+        long[] oldTimestamps = timestamps;
+        boolean[] oldUsed = used;
+
+        threadIds = new long[capacity];
+        timestamps = new long[capacity];
+        used = new boolean[capacity];
+        int mask = capacity - 1;
+
+        for (int i = 0; i < oldUsed.length; i++)
+        {
+            if (oldUsed[i])
+            {
+                int slot = hash(oldThreadIds[i]) & mask;
+                while (used[slot])
+                {
+                    slot = (slot + 1) & mask;
+                }
+                used[slot] = true;
+                threadIds[slot] = oldThreadIds[i];
+                timestamps[slot] = oldTimestamps[i];
+            }
+        }
+    }
+
+    private static int hash(long threadId)
+    {
+        long hash = threadId * 0x9E3779B97F4A7C15L;
+        return (int)(hash ^ (hash >>> 32));
+    }
+}
@@ -0,0 +1,92 @@
+package com.insightfullogic.honest_profiler.core.parser;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decoding of the varints used by the compact log encoding. A varint stores 7 bits per byte, least significant group
+ * first, with the high bit of every byte but the last one set. Signed values are zig-zag encoded first, so values of
+ * small magnitude are short regardless of their sign.
+ * <p>
+ * Like the {@link ByteBuffer} getters, all methods throw a {@link BufferUnderflowException} when the buffer ends in
+ * the middle of a value.
+ */
+final class VarInts
+{
+    // Class Methods
+
+    /**
+     * Reads an unsigned varint.
+     * <p>
+     * @param input the buffer containing the value
+     * @return the decoded value
+     */
+    static long readVarLong(ByteBuffer input)
+    {
+        long result = 0;
+        int shift = 0;
+        byte current;
+        do
+        {
+            current = input.get();
+            result |= (long)(current & 0x7F) << shift;
+            shift += 7;
+        }
+        while (current < 0 && shift < 64);
+        return result;
+    }
+
+    /**
+     * Reads an unsigned varint which fits in an int.
+     * <p>
+     * @param input the buffer containing the value
+     * @return the decoded value
+     */
+    static int readVarInt(ByteBuffer input)
+    {
+        return (int)readVarLong(input);
+    }
+
+    /**
+     * Reads a zig-zag encoded varint.
+     * <p>
+     * @param input the buffer containing the value
+     * @return the decoded value
+     */
+    static long readSignedVarLong(ByteBuffer input)
+    {
+        long value = readVarLong(input);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a zig-zag encoded varint which fits in an int.
+     * <p>
+     * @param input the buffer containing the value
+     * @return the decoded value
+     */
+    static int readSignedVarInt(ByteBuffer input)
+    {
+        return (int)readSignedVarLong(input);
+    }
+
+    /**
+     * Skips a varint, signed or not.
+     * <p>
+     * @param input the buffer containing the value
+     */
+    static void skipVarInt(ByteBuffer input)
+    {
+        while (input.get() < 0)
+        {
+            // Continuation byte
+        }
+    }
+
+    // Instance Constructors
+
+    private VarInts()
+    {
+        // Utility class
+    }
+}
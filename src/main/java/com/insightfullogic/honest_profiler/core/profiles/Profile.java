@@ -22,6 +22,7 @@
 package com.insightfullogic.honest_profiler.core.profiles;
 
 import com.insightfullogic.honest_profiler.core.collector.FlatProfileEntry;
+import com.insightfullogic.honest_profiler.core.parser.AgentStats;
 
 import static java.util.stream.Collectors.toList;
 
@@ -37,16 +38,27 @@ public final class Profile
     private final List<ProfileTree> trees;
     private final List<FlatProfileEntry> flatByMethodProfile;
     private final List<FlatProfileEntry> flatByFrameProfile;
+    private final AgentStats agentStats;
 
     public Profile(int traceCount,
                    List<FlatProfileEntry> flatByMethodProfile,
                    List<FlatProfileEntry> flatByFrameProfile,
                    List<ProfileTree> trees)
+    {
+        this(traceCount, flatByMethodProfile, flatByFrameProfile, trees, null);
+    }
+
+    public Profile(int traceCount,
+                   List<FlatProfileEntry> flatByMethodProfile,
+                   List<FlatProfileEntry> flatByFrameProfile,
+                   List<ProfileTree> trees,
+                   AgentStats agentStats)
     {
         this.traceCount = traceCount;
         this.flatByMethodProfile = flatByMethodProfile;
         this.flatByFrameProfile = flatByFrameProfile;
         this.trees = trees;
+        this.agentStats = agentStats;
     }
 
     public int getTraceCount()
@@ -79,13 +91,19 @@ public final class Profile
         return trees;
     }
 
+    public AgentStats getAgentStats()
+    {
+        return agentStats;
+    }
+
     public Profile copy()
     {
         return new Profile(
             this.traceCount,
             this.flatByMethodProfile.stream().map(FlatProfileEntry::copy).collect(toList()),
             this.flatByFrameProfile.stream().map(FlatProfileEntry::copy).collect(toList()),
-            this.trees.stream().map(ProfileTree::copy).collect(toList()));
+            this.trees.stream().map(ProfileTree::copy).collect(toList()),
+            this.agentStats);
     }
 
     @Override
@@ -1,11 +1,14 @@
 package com.insightfullogic.honest_profiler.core.profiles.lean;
 
+import static java.util.Collections.emptyMap;
 import static java.util.stream.Stream.concat;
 import static java.util.stream.Stream.of;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
@@ -14,6 +17,7 @@ import com.insightfullogic.honest_profiler.core.parser.TraceStart;
 import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
 import com.insightfullogic.honest_profiler.core.profiles.lean.info.MethodInfo;
 import com.insightfullogic.honest_profiler.core.profiles.lean.info.NumericInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.SampleTimeline;
 
 /**
  * LeanNode is a tree node recording the aggregation of the numerical data for a thread or a frame inside a
@@ -22,6 +26,15 @@ import com.insightfullogic.honest_profiler.core.profiles.lean.info.NumericInfo;
  * Its children represent frames that were directly called from the represented frame or thread at some point.
  * <p>
  * It also has a unique id, needed in some case to prevent duplicate aggregation.
+ * <p>
+ * LeanNodes can be shared between the trees of a source and the {@link LeanProfile}s it emitted, see
+ * {@link LeanProfile}. A shared LeanNode is never modified : the aggregation methods replace a shared child by a copy
+ * before modifying it, which shares the children of the original in turn. A LeanNode has no reference to its parent,
+ * since a shared LeanNode can be the child of several parents, see {@link LeanProfile#getParent(LeanNode)}.
+ * <p>
+ * The LeanNodes of a {@link LeanProfile} stored in a {@link LeanTree} are read-only views on the nodes of that
+ * {@link LeanTree}, see {@link #getTreeIndex()}. Their children are read from the {@link LeanTree} when they are
+ * requested, and their id is the index of the node, so two views on the same node are equal.
  */
 public class LeanNode
 {
@@ -32,18 +45,19 @@ public class LeanNode
     private final int id;
     private final FrameInfo frame;
     private final NumericInfo data;
-    private LeanNode parent;
     private final Map<FrameInfo, LeanNode> childMap;
+    // Only present if the collector records timelines, see recordSample().
+    private SampleTimeline timeline;
+    // Set once the LeanNode may be referenced by an emitted LeanProfile, after which it is never modified.
+    private boolean shared;
 
     /**
-     * "Non-self constructor" which sets the {@link FrameInfo} and the parent LeanNode, used for constructing a new
-     * frame LeanNode which is has no self time (i.e. the stack trace sample still has more descendant frames), or a
-     * {@link LeanThreadNode}.
+     * "Non-self constructor" which sets the {@link FrameInfo}, used for constructing a new frame LeanNode which is has
+     * no self time (i.e. the stack trace sample still has more descendant frames), or a {@link LeanThreadNode}.
      * <p>
      * @param frame the {@link FrameInfo} for this LeanNode
-     * @param parent the parent LeanNode
      */
-    protected LeanNode(FrameInfo frame, LeanNode parent)
+    protected LeanNode(FrameInfo frame)
     {
         id = ID_GENERATOR.getAndIncrement();
 
@@ -53,26 +67,72 @@ public class LeanNode
         // in the stack trace sample being processed. When the child is processed, the add() method will update the
         // values of this LeanNode.
         data = new NumericInfo();
-        this.parent = parent;
         childMap = new HashMap<>();
     }
 
     /**
-     * Copy constructor.
+     * Constructor which sets the {@link FrameInfo}, the aggregated {@link NumericInfo} and the parent LeanNode, and adds
+     * the new LeanNode to the children of the parent. This is used for materializing the nodes of a {@link LeanTree}.
+     * <p>
+     * @param frame the {@link FrameInfo} for this LeanNode
+     * @param data the aggregated {@link NumericInfo} for this LeanNode
+     * @param parent the parent LeanNode, or null if this LeanNode represents a thread
+     */
+    LeanNode(FrameInfo frame, NumericInfo data, LeanNode parent)
+    {
+        id = ID_GENERATOR.getAndIncrement();
+
+        this.frame = frame;
+        this.data = data;
+        childMap = new HashMap<>();
+
+        if (parent != null)
+        {
+            parent.childMap.put(frame, this);
+        }
+    }
+
+    /**
+     * Constructor for a read-only view on a node of a {@link LeanTree}, whose id is the index of the node. The view has
+     * no children of its own, the subclasses read them from the {@link LeanTree} instead.
+     * <p>
+     * @param node the index of the node in the {@link LeanTree}
+     * @param frame the {@link FrameInfo} of the node, or null if it is the root node of a thread
+     * @param data the aggregated {@link NumericInfo} of the node
+     */
+    LeanNode(int node, FrameInfo frame, NumericInfo data)
+    {
+        id = node;
+
+        this.frame = frame;
+        this.data = data;
+        childMap = emptyMap();
+    }
+
+    /**
+     * Copy constructor. A deep copy contains copies of all descendants of the source. A shallow copy shares the
+     * children of the source, which are marked as shared, so it costs in proportion to the number of children only.
      * <p>
      * @param source the source LeanNode which is being copied
-     * @param newParent the parent of the copy (which itself generally is a copy)
+     * @param deep a boolean indicating whether the descendants are copied as well
      */
-    protected LeanNode(LeanNode source, LeanNode newParent)
+    protected LeanNode(LeanNode source, boolean deep)
     {
         this.id = source.id;
 
         this.frame = source.frame;
         this.data = source.data.copy();
-        this.parent = newParent;
-        this.childMap = new HashMap<>();
+        this.childMap = new HashMap<>(source.childMap.size() * 4 / 3 + 1);
+        this.timeline = source.timeline == null ? null : source.timeline.copy();
         // The FrameInfo key is an immutable object, no need to copy it.
-        source.childMap.forEach((key, value) -> this.childMap.put(key, new LeanNode(value, this)));
+        source.childMap.forEach((key, value) ->
+        {
+            if (!deep)
+            {
+                value.shared = true;
+            }
+            this.childMap.put(key, deep ? new LeanNode(value, true) : value);
+        });
     }
 
     // Instance Accessors
@@ -109,23 +169,35 @@ public class LeanNode
     }
 
     /**
-     * Returns the parent of this LeanNode
+     * Returns a {@link Collection} containing the children of this LeanNode.
      * <p>
-     * @return the parent of this LeanNode
+     * @return a {@link Collection} containing the children of this LeanNode
      */
-    public LeanNode getParent()
+    public Collection<LeanNode> getChildren()
     {
-        return parent;
+        return childMap.values();
     }
 
     /**
-     * Returns a {@link Collection} containing the children of this LeanNode.
+     * Returns the {@link SampleTimeline} recording when the samples aggregated into this LeanNode were taken, or null
+     * if no timeline was recorded.
      * <p>
-     * @return a {@link Collection} containing the children of this LeanNode
+     * @return the {@link SampleTimeline} for this LeanNode, or null if no timeline was recorded
      */
-    public Collection<LeanNode> getChildren()
+    public SampleTimeline getTimeline()
     {
-        return childMap.values();
+        return timeline;
+    }
+
+    /**
+     * Returns the index of the node in a {@link LeanTree} this LeanNode is a read-only view on, see
+     * {@link LeanProfile#getNode(int)}.
+     * <p>
+     * @return the index of the node this LeanNode is a view on, or {@link LeanTree#NO_NODE} if it isn't a view
+     */
+    public int getTreeIndex()
+    {
+        return LeanTree.NO_NODE;
     }
 
     /**
@@ -138,6 +210,25 @@ public class LeanNode
         return false;
     }
 
+    /**
+     * Returns a boolean indicating whether this LeanNode may be referenced by an emitted {@link LeanProfile}, in which
+     * case it must not be modified.
+     * <p>
+     * @return a boolean indicating whether this LeanNode is shared
+     */
+    public boolean isShared()
+    {
+        return shared;
+    }
+
+    /**
+     * Marks this LeanNode as shared. Its descendants are marked lazily, when a shallow copy of their parent is made.
+     */
+    void share()
+    {
+        shared = true;
+    }
+
     // Aggregation Methods
 
     /**
@@ -158,7 +249,17 @@ public class LeanNode
         // Non-self add, which updates total time and sample count only.
         data.add(nanos, false);
 
-        LeanNode childNode = childMap.computeIfAbsent(child, k -> new LeanNode(k, this));
+        // Plain get/put rather than computeIfAbsent, since the lambda capturing this would be allocated on every call.
+        LeanNode childNode = childMap.get(child);
+        if (childNode == null)
+        {
+            childNode = new LeanNode(child);
+            childMap.put(child, childNode);
+        }
+        else if (childNode.shared)
+        {
+            childNode = unshareChild(child, childNode);
+        }
         if (last)
         {
             childNode.addSelf(nanos);
@@ -166,6 +267,25 @@ public class LeanNode
         return childNode;
     }
 
+    /**
+     * Records the time at which a sample aggregated into this LeanNode was taken in its {@link SampleTimeline}, which
+     * is created with the specified bucket duration if needed. The collector calls this for every LeanNode whose data
+     * was updated by the sample.
+     * <p>
+     * @param timestampNanos the time at which the sample was taken, in nanoseconds
+     * @param bucketNanos the bucket duration used if the {@link SampleTimeline} has to be created
+     * @return this object
+     */
+    public LeanNode recordSample(long timestampNanos, long bucketNanos)
+    {
+        if (timeline == null)
+        {
+            timeline = new SampleTimeline(bucketNanos);
+        }
+        timeline.add(timestampNanos);
+        return this;
+    }
+
     /**
      * Aggregate the self and total data in the {@link NumericInfo} for this LeanNode.
      * <p>
@@ -178,6 +298,199 @@ public class LeanNode
         return this;
     }
 
+    /**
+     * Merges the data and the descendants of another LeanNode, representing the same frame or thread, into this
+     * LeanNode. This is used for combining trees which were aggregated independently, e.g. from different segments of
+     * a log file.
+     * <p>
+     * Children of the other LeanNode for which this LeanNode has no counterpart are moved rather than copied, so the
+     * other LeanNode should no longer be used afterwards, and must not be shared.
+     * <p>
+     * @param other the LeanNode whose data and descendants are merged into this LeanNode
+     * @return this object
+     */
+    public LeanNode merge(LeanNode other)
+    {
+        data.add(other.data);
+        mergeTimeline(other.timeline);
+
+        other.childMap.forEach((key, otherChild) ->
+        {
+            LeanNode child = childMap.get(key);
+            if (child == null)
+            {
+                childMap.put(key, otherChild);
+            }
+            else
+            {
+                (child.shared ? unshareChild(key, child) : child).merge(otherChild);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Removes the data and the descendants of another LeanNode, representing the same frame or thread, from this
+     * LeanNode. The samples in the other LeanNode must have been aggregated into this LeanNode as well, e.g. when the
+     * other LeanNode contains the samples of a time interval which is no longer of interest. Descendants which have no
+     * samples left are removed.
+     * <p>
+     * @param other the LeanNode whose data and descendants are removed from this LeanNode
+     * @return this object
+     */
+    public LeanNode subtract(LeanNode other)
+    {
+        data.subtract(other.data);
+
+        other.childMap.forEach((key, otherChild) ->
+        {
+            LeanNode child = childMap.get(key);
+            if (child.data.getTotalCnt() == otherChild.data.getTotalCnt())
+            {
+                childMap.remove(key);
+            }
+            else
+            {
+                (child.shared ? unshareChild(key, child) : child).subtract(otherChild);
+            }
+        });
+        return this;
+    }
+
+    // Pruning Methods
+
+    /**
+     * Collapses every descendant subtree whose root has a total sample count which doesn't exceed the threshold. For
+     * every LeanNode in this tree, the collapsed child subtrees are replaced by a single child with the specified
+     * {@link FrameInfo}, whose self and total data are the sum of the total data of the collapsed subtrees. If such a
+     * child already exists, the data is added to it.
+     * <p>
+     * The totals of the LeanNodes which remain are unchanged, so all percentages calculated from the tree remain exact.
+     * The shared LeanNodes which are modified are replaced by copies, like in {@link #add(long, FrameInfo, boolean)}.
+     * <p>
+     * @param threshold the highest total sample count of a subtree which will be collapsed
+     * @param prunedFrame the {@link FrameInfo} of the children replacing the collapsed subtrees
+     * @return the number of LeanNodes removed from the tree, minus the number of LeanNodes which were added
+     */
+    int prune(long threshold, FrameInfo prunedFrame)
+    {
+        int removed = 0;
+        NumericInfo pruned = null;
+        SampleTimeline prunedTimeline = null;
+
+        for (Iterator<Entry<FrameInfo, LeanNode>> it = childMap.entrySet().iterator(); it.hasNext();)
+        {
+            Entry<FrameInfo, LeanNode> entry = it.next();
+            LeanNode child = entry.getValue();
+            if (child.data.getTotalCnt() > threshold)
+            {
+                if (child.shared && child.hasPrunableChild(threshold))
+                {
+                    child = new LeanNode(child, false);
+                    entry.setValue(child);
+                }
+                if (!child.shared)
+                {
+                    removed += child.prune(threshold, prunedFrame);
+                }
+                continue;
+            }
+
+            it.remove();
+            removed += child.size();
+
+            NumericInfo collapsed = new NumericInfo(
+                child.data.getTotalTime(),
+                child.data.getTotalTime(),
+                child.data.getTotalCnt(),
+                child.data.getTotalCnt());
+            pruned = pruned == null ? collapsed : pruned.add(collapsed);
+            if (child.timeline != null)
+            {
+                prunedTimeline = prunedTimeline == null ? child.timeline.copy() : prunedTimeline.add(child.timeline);
+            }
+        }
+
+        if (pruned != null)
+        {
+            LeanNode prunedChild = childMap.get(prunedFrame);
+            if (prunedChild == null)
+            {
+                prunedChild = new LeanNode(prunedFrame, pruned, this);
+                removed--;
+            }
+            else
+            {
+                if (prunedChild.shared)
+                {
+                    prunedChild = unshareChild(prunedFrame, prunedChild);
+                }
+                prunedChild.data.add(pruned);
+            }
+            prunedChild.mergeTimeline(prunedTimeline);
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the number of LeanNodes in the tree rooted in this LeanNode, including this one.
+     * <p>
+     * @return the number of LeanNodes in the tree rooted in this LeanNode
+     */
+    int size()
+    {
+        int size = 1;
+        for (LeanNode child : childMap.values())
+        {
+            size += child.size();
+        }
+        return size;
+    }
+
+    // Helper Methods
+
+    /**
+     * Replaces a shared child by a shallow copy, which can be modified.
+     * <p>
+     * @param key the {@link FrameInfo} of the child
+     * @param child the shared child
+     * @return the copy which replaced the child
+     */
+    private LeanNode unshareChild(FrameInfo key, LeanNode child)
+    {
+        LeanNode copy = new LeanNode(child, false);
+        childMap.put(key, copy);
+        return copy;
+    }
+
+    /**
+     * Returns a boolean indicating whether pruning with the specified threshold would collapse any descendant of this
+     * LeanNode. The total sample count of a LeanNode is never lower than that of its descendants, so it suffices to
+     * look at the leaves below the nodes which are kept.
+     * <p>
+     * @param threshold the highest total sample count of a subtree which will be collapsed
+     * @return a boolean indicating whether pruning would collapse any descendant
+     */
+    private boolean hasPrunableChild(long threshold)
+    {
+        for (LeanNode child : childMap.values())
+        {
+            if (child.data.getTotalCnt() <= threshold || child.hasPrunableChild(threshold))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void mergeTimeline(SampleTimeline other)
+    {
+        if (other != null)
+        {
+            timeline = timeline == null ? other.copy() : timeline.add(other);
+        }
+    }
+
     // Tree-related Methods
 
     /**
@@ -187,7 +500,7 @@ public class LeanNode
      */
     public Stream<LeanNode> flatten()
     {
-        return concat(of(this), childMap.values().stream().flatMap(LeanNode::flatten));
+        return concat(of(this), getChildren().stream().flatMap(LeanNode::flatten));
     }
 
     // Debug Methods
@@ -210,7 +523,7 @@ public class LeanNode
         result.append(toString()).append(" (")
             .append(frame == null ? "--" : methodMap.get(frame.getMethodId()).getFqmn())
             .append(")\n");
-        childMap.values().forEach(child -> result.append(child.toDeepString(level + 1, methodMap)));
+        getChildren().forEach(child -> result.append(child.toDeepString(level + 1, methodMap)));
         return result.toString();
     }
 
@@ -0,0 +1,167 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import static com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree.NO_NODE;
+
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.NumericInfo;
+
+/**
+ * LeanNodeCursor is a view on a single node of a {@link LeanTree}, which can be moved around the tree. It offers the
+ * same information as a {@link LeanNode}, but the primitive accessors don't allocate anything, so a single cursor can
+ * traverse a tree of millions of nodes without creating any objects.
+ * <p>
+ * A cursor is not thread-safe, and reflects any changes made to the underlying {@link LeanTree}.
+ */
+public class LeanNodeCursor
+{
+    // Instance Properties
+
+    private final LeanTree tree;
+    private int node;
+
+    // Instance Constructors
+
+    /**
+     * Constructor which specifies the {@link LeanTree} which will be read.
+     * <p>
+     * @param tree the {@link LeanTree} which will be read
+     */
+    LeanNodeCursor(LeanTree tree)
+    {
+        this.tree = tree;
+        this.node = NO_NODE;
+    }
+
+    // Navigation Methods
+
+    /**
+     * Positions the cursor on the node with the specified index.
+     * <p>
+     * @param node the index of the node
+     * @return this object
+     */
+    public LeanNodeCursor moveTo(int node)
+    {
+        this.node = node;
+        return this;
+    }
+
+    /**
+     * Moves the cursor to the parent of the current node, unless the current node is the root node of a thread.
+     * <p>
+     * @return true if the cursor moved
+     */
+    public boolean toParent()
+    {
+        return move(tree.getParent(node));
+    }
+
+    /**
+     * Moves the cursor to the first child of the current node, unless it has no children.
+     * <p>
+     * @return true if the cursor moved
+     */
+    public boolean toFirstChild()
+    {
+        return move(tree.getFirstChild(node));
+    }
+
+    /**
+     * Moves the cursor to the next sibling of the current node, unless it is the last child of its parent.
+     * <p>
+     * @return true if the cursor moved
+     */
+    public boolean toNextSibling()
+    {
+        return move(tree.getNextSibling(node));
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the index of the node the cursor is positioned on.
+     * <p>
+     * @return the index of the node the cursor is positioned on
+     */
+    public int getNode()
+    {
+        return node;
+    }
+
+    /**
+     * Returns a boolean indicating whether the current node is the root node of a thread.
+     * <p>
+     * @return a boolean indicating whether the current node is the root node of a thread
+     */
+    public boolean isThreadNode()
+    {
+        return tree.getParent(node) == NO_NODE;
+    }
+
+    public long getMethodId()
+    {
+        return tree.getMethodId(node);
+    }
+
+    public int getBci()
+    {
+        return tree.getBci(node);
+    }
+
+    public int getLineNr()
+    {
+        return tree.getLineNr(node);
+    }
+
+    public long getSelfTime()
+    {
+        return tree.getSelfTime(node);
+    }
+
+    public long getTotalTime()
+    {
+        return tree.getTotalTime(node);
+    }
+
+    public long getSelfCnt()
+    {
+        return tree.getSelfCnt(node);
+    }
+
+    public long getTotalCnt()
+    {
+        return tree.getTotalCnt(node);
+    }
+
+    /**
+     * Returns a new {@link FrameInfo} for the current node, or null if it is the root node of a thread.
+     * <p>
+     * @return a new {@link FrameInfo} for the current node, or null if it is the root node of a thread
+     */
+    public FrameInfo getFrame()
+    {
+        return isThreadNode() ? null : new FrameInfo(getMethodId(), getBci(), getLineNr());
+    }
+
+    /**
+     * Returns a new {@link NumericInfo} containing the data of the current node.
+     * <p>
+     * @return a new {@link NumericInfo} containing the data of the current node
+     */
+    public NumericInfo getData()
+    {
+        return tree.getData(node);
+    }
+
+    // Helper Methods
+
+    private boolean move(int target)
+    {
+        if (target == NO_NODE)
+        {
+            return false;
+        }
+        node = target;
+        return true;
+    }
+}
@@ -1,8 +1,12 @@
 package com.insightfullogic.honest_profiler.core.profiles.lean;
 
+import static com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree.NO_NODE;
+
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
+import com.insightfullogic.honest_profiler.core.parser.AgentStats;
 import com.insightfullogic.honest_profiler.core.profiles.lean.info.MethodInfo;
 import com.insightfullogic.honest_profiler.core.profiles.lean.info.ThreadInfo;
 
@@ -21,6 +25,21 @@ import com.insightfullogic.honest_profiler.core.profiles.lean.info.ThreadInfo;
  * method A is called by a method B, the profile will contain a {@link LeanNode} representing B with as child a
  * {@link LeanNode} representing A.
  * <p>
+ * Alternatively the trees can be stored in a compact {@link LeanTree}, which is then read through a
+ * {@link LeanNodeCursor}. The {@link LeanNode}s of such a profile, returned by {@link #getThreads()} and
+ * {@link #getNode(int)}, are read-only views on the nodes of the {@link LeanTree}, which are created when they are
+ * requested, so the trees are never materialized as a whole.
+ * <p>
+ * The {@link LeanNode} trees passed to the constructor are shared with the source rather than copied : their roots are
+ * marked as shared, and the source replaces every shared {@link LeanNode} by a shallow copy before modifying it (see
+ * {@link LeanThreadNode#unshare()}). The cost of emitting a profile, and the memory it takes on top of the trees of the
+ * source, is therefore proportional to the number of {@link LeanNode}s on the paths which changed since the previous
+ * profile, rather than to the size of the trees.
+ * <p>
+ * When profiles are emitted repeatedly from a source storing its trees in a {@link LeanTree}, the previously emitted
+ * profile can be passed to the constructor. The {@link LeanThreadNode} views of threads which haven't received any
+ * samples in the meantime are then shared with that profile, like the roots of unchanged object trees.
+ * <p>
  * Other than the {@link LeanNode} trees, the profile also contains the information for mapping thread and method ids to
  * the corresponding {@link ThreadInfo} and {@link MethodInfo} metadata.
  * <p>
@@ -32,7 +51,18 @@ public class LeanProfile
 
     private final Map<Long, MethodInfo> methodInfoMap;
     private final Map<Long, ThreadInfo> threadInfoMap;
-    private final Map<Long, LeanThreadNode> threads;
+    private final LeanTree tree;
+    private Map<Long, LeanThreadNode> threads;
+    // The trees taken over from the previous profile, for a profile stored in a LeanTree whose trees haven't been
+    // constructed yet.
+    private Map<Long, LeanThreadNode> reusedThreads;
+    // Maps the root node indices to the LeanThreadNodes, for a profile stored in a LeanTree whose threads have been
+    // requested.
+    private Map<Integer, LeanThreadNode> threadRoots;
+    private final AgentStats agentStats;
+    private final PruneStats pruneStats;
+    // Maps every LeanNode to its parent, constructed when a parent is first requested.
+    private Map<LeanNode, LeanNode> parents;
 
     // Instance constructors
 
@@ -49,10 +79,138 @@ public class LeanProfile
                        Map<Long, ThreadInfo> threadMap,
                        Map<Long, LeanThreadNode> threadData)
     {
-        this.methodInfoMap = new HashMap<>(methodMap);
+        this(methodMap, threadMap, threadData, null);
+    }
+
+    /**
+     * Constructor which additionally specifies the most recent {@link AgentStats} reported by the agent which wrote the
+     * log.
+     * <p>
+     * @param methodMap a {@link Map} mapping the method id to the corresponding {@link MethodInfo}
+     * @param threadMap a {@link Map} mapping the thread id to the corresponding {@link ThreadInfo}
+     * @param threadData a {@link Map} mapping the thread id to the {@link LeanThreadNode} root of the {@link LeanNode}
+     *            tree containing the aggregated stack trace sample information for that thread
+     * @param agentStats the most recent {@link AgentStats}, or null if the log doesn't contain any
+     */
+    public LeanProfile(Map<Long, MethodInfo> methodMap,
+                       Map<Long, ThreadInfo> threadMap,
+                       Map<Long, LeanThreadNode> threadData,
+                       AgentStats agentStats)
+    {
+        this(methodMap, threadMap, threadData, agentStats, null);
+    }
+
+    /**
+     * Constructor which additionally specifies the profile previously emitted by the same source, whose
+     * {@link MethodInfo} map is reused if no methods were added since.
+     * <p>
+     * @param methodMap a {@link Map} mapping the method id to the corresponding {@link MethodInfo}
+     * @param threadMap a {@link Map} mapping the thread id to the corresponding {@link ThreadInfo}
+     * @param threadData a {@link Map} mapping the thread id to the {@link LeanThreadNode} root of the {@link LeanNode}
+     *            tree containing the aggregated stack trace sample information for that thread
+     * @param agentStats the most recent {@link AgentStats}, or null if the log doesn't contain any
+     * @param previous the LeanProfile previously emitted by the same source, or null
+     */
+    public LeanProfile(Map<Long, MethodInfo> methodMap,
+                       Map<Long, ThreadInfo> threadMap,
+                       Map<Long, LeanThreadNode> threadData,
+                       AgentStats agentStats,
+                       LeanProfile previous)
+    {
+        this(methodMap, threadMap, threadData, agentStats, null, previous);
+    }
+
+    /**
+     * Constructor which additionally specifies the {@link PruneStats} describing how much of the trees was pruned by
+     * the {@link NodeBudget} of the source.
+     * <p>
+     * @param methodMap a {@link Map} mapping the method id to the corresponding {@link MethodInfo}
+     * @param threadMap a {@link Map} mapping the thread id to the corresponding {@link ThreadInfo}
+     * @param threadData a {@link Map} mapping the thread id to the {@link LeanThreadNode} root of the {@link LeanNode}
+     *            tree containing the aggregated stack trace sample information for that thread
+     * @param agentStats the most recent {@link AgentStats}, or null if the log doesn't contain any
+     * @param pruneStats the {@link PruneStats} for the trees, or null if the source has no node budget
+     * @param previous the LeanProfile previously emitted by the same source, or null
+     */
+    public LeanProfile(Map<Long, MethodInfo> methodMap,
+                       Map<Long, ThreadInfo> threadMap,
+                       Map<Long, LeanThreadNode> threadData,
+                       AgentStats agentStats,
+                       PruneStats pruneStats,
+                       LeanProfile previous)
+    {
+        this.agentStats = agentStats;
+        this.pruneStats = pruneStats;
+        this.methodInfoMap = copyMethodMap(methodMap, previous);
         this.threadInfoMap = new HashMap<>(threadMap);
+        this.tree = null;
         this.threads = new HashMap<>();
-        threadData.forEach((key, value) -> this.threads.put(key, value.copy()));
+
+        // ThreadInfo objects are stored separately in the source (to avoid the assumption that a ThreadMeta will always
+        // be emitted before the first sample for the thread comes in), so we put them into the root LeanThreadNodes
+        // here. A shared root whose ThreadInfo changed since it was shared is replaced by a shallow copy.
+        threadData.forEach((key, value) ->
+        {
+            ThreadInfo info = threadInfoMap.get(key);
+            LeanThreadNode node = value.getThreadInfo() == info ? value : value.unshare();
+            node.setThreadInfo(info);
+            node.share();
+            this.threads.put(key, node);
+        });
+    }
+
+    /**
+     * Constructor which specifies the maps containing the method id - {@link MethodInfo} and thread id -
+     * {@link ThreadInfo} mappings, and the {@link LeanTree} containing the stack trees for all threads, as well as the
+     * most recent {@link AgentStats} reported by the agent which wrote the log.
+     * <p>
+     * @param methodMap a {@link Map} mapping the method id to the corresponding {@link MethodInfo}
+     * @param threadMap a {@link Map} mapping the thread id to the corresponding {@link ThreadInfo}
+     * @param tree the {@link LeanTree} containing the aggregated stack trace sample information for all threads
+     * @param agentStats the most recent {@link AgentStats}, or null if the log doesn't contain any
+     */
+    public LeanProfile(Map<Long, MethodInfo> methodMap,
+                       Map<Long, ThreadInfo> threadMap,
+                       LeanTree tree,
+                       AgentStats agentStats)
+    {
+        this(methodMap, threadMap, tree, agentStats, null);
+    }
+
+    /**
+     * Constructor which additionally specifies the profile previously emitted by the same source. The profile stores a
+     * snapshot of the {@link LeanTree}, whose cost is proportional to the number of nodes modified since the previous
+     * snapshot. If the {@link LeanThreadNode}s of the previous profile have been created, they are reused for the
+     * threads which haven't received any samples since.
+     * <p>
+     * @param methodMap a {@link Map} mapping the method id to the corresponding {@link MethodInfo}
+     * @param threadMap a {@link Map} mapping the thread id to the corresponding {@link ThreadInfo}
+     * @param tree the {@link LeanTree} containing the aggregated stack trace sample information for all threads
+     * @param agentStats the most recent {@link AgentStats}, or null if the log doesn't contain any
+     * @param previous the LeanProfile previously emitted by the same source, or null
+     */
+    public LeanProfile(Map<Long, MethodInfo> methodMap,
+                       Map<Long, ThreadInfo> threadMap,
+                       LeanTree tree,
+                       AgentStats agentStats,
+                       LeanProfile previous)
+    {
+        this.agentStats = agentStats;
+        this.pruneStats = null;
+        this.methodInfoMap = copyMethodMap(methodMap, previous);
+        this.threadInfoMap = new HashMap<>(threadMap);
+        this.tree = tree.snapshot();
+        this.reusedThreads = new HashMap<>();
+
+        Map<Long, LeanThreadNode> previousThreads = previous == null ? null : previous.getConstructedThreads();
+        this.tree.getRoots().forEach((threadId, root) ->
+        {
+            LeanThreadNode unchanged = findUnchanged(previousThreads, threadId, this.tree.getTotalCnt(root));
+            if (unchanged != null)
+            {
+                reusedThreads.put(threadId, unchanged);
+            }
+        });
     }
 
     // Instance Accessors
@@ -79,15 +237,121 @@ public class LeanProfile
     }
 
     /**
-     * Returns the mapping between thread Ids and the root {@link LeanThreadNode} objects.
+     * Returns the mapping between thread Ids and the root {@link LeanThreadNode} objects. If the profile is stored in a
+     * {@link LeanTree}, the {@link LeanThreadNode}s are views on the root nodes, which are created when this method is
+     * first called, and whose descendants are read from the {@link LeanTree} as they are requested.
+     * <p>
+     * The returned trees may be shared with the profiles emitted before or after this one by the same source, so they
+     * should not be modified.
      * <p>
      * @return the mapping between thread Ids and the root {@link LeanThreadNode} objects
      */
-    public Map<Long, LeanThreadNode> getThreads()
+    public synchronized Map<Long, LeanThreadNode> getThreads()
     {
+        if (threads == null)
+        {
+            threads = new HashMap<>();
+            threadRoots = new HashMap<>();
+            tree.getRoots().forEach((threadId, root) ->
+            {
+                LeanThreadNode node = reusedThreads.get(threadId);
+                if (node == null)
+                {
+                    node = new LeanTreeThreadNode(tree, root);
+                }
+                node.setThreadInfo(threadInfoMap.get(threadId));
+                threads.put(threadId, node);
+                threadRoots.put(root, node);
+            });
+            reusedThreads = null;
+        }
         return threads;
     }
 
+    /**
+     * Returns a read-only {@link LeanNode} view on the node with the specified index in the {@link LeanTree} of this
+     * profile. The root node of a thread is returned as the {@link LeanThreadNode} contained in {@link #getThreads()},
+     * other nodes as a new view. This allows aggregations to refer to the nodes of a profile by index.
+     * <p>
+     * @param index the index of a node in the {@link LeanTree} of this profile
+     * @return a {@link LeanNode} view on the node
+     * @throws IllegalStateException if the profile isn't stored in a {@link LeanTree}
+     */
+    public LeanNode getNode(int index)
+    {
+        if (tree == null)
+        {
+            throw new IllegalStateException("The profile isn't stored in a LeanTree.");
+        }
+
+        if (tree.getParent(index) == NO_NODE)
+        {
+            synchronized (this)
+            {
+                getThreads();
+                return threadRoots.get(index);
+            }
+        }
+        return new LeanTreeNode(tree, index);
+    }
+
+    /**
+     * Returns the {@link LeanTree} containing the stack trees for all threads, if the profile is stored in one.
+     * <p>
+     * @return the {@link LeanTree} containing the stack trees, or null if the profile consists of {@link LeanNode}s
+     */
+    public LeanTree getTree()
+    {
+        return tree;
+    }
+
+    /**
+     * Returns the parent of the specified {@link LeanNode} in the trees of this profile. If the profile is stored in a
+     * {@link LeanTree}, the parent is read from it, otherwise the mapping between the {@link LeanNode}s and their
+     * parents is constructed when this method is first called.
+     * <p>
+     * @param node a {@link LeanNode} in the trees of this profile
+     * @return the parent of the {@link LeanNode}, or null if it is a {@link LeanThreadNode} or not part of this profile
+     */
+    public synchronized LeanNode getParent(LeanNode node)
+    {
+        if (tree != null)
+        {
+            int parent = node.getTreeIndex() == NO_NODE ? NO_NODE : tree.getParent(node.getTreeIndex());
+            return parent == NO_NODE ? null : getNode(parent);
+        }
+
+        if (parents == null)
+        {
+            // The same LeanNode id can occur in the trees of several profiles, so the nodes are compared by identity.
+            parents = new IdentityHashMap<>();
+            getThreads().values().forEach(this::addParents);
+        }
+        return parents.get(node);
+    }
+
+    /**
+     * Returns the most recent {@link AgentStats} reported by the agent, which describe the sample loss and the overhead
+     * of the agent up to that point.
+     * <p>
+     * @return the most recent {@link AgentStats}, or null if the log doesn't contain any
+     */
+    public AgentStats getAgentStats()
+    {
+        return agentStats;
+    }
+
+    /**
+     * Returns the {@link PruneStats} describing how much of the trees was collapsed to stay within the node budget of
+     * the source.
+     * <p>
+     * @return the {@link PruneStats}, or null if the source has no node budget
+     */
+    public PruneStats getPruneStats()
+    {
+        return pruneStats;
+    }
+
     // Key and/or name Construction Methods
 
     /**
@@ -133,6 +397,65 @@ public class LeanProfile
         return info == null ? "Unknown <" + threadId + ">" : info.getIdentification();
     }
 
+    // Sharing Methods
+
+    /**
+     * Registers the specified {@link LeanNode} as the parent of its descendants.
+     * <p>
+     * @param node the {@link LeanNode} whose descendants are registered
+     */
+    private void addParents(LeanNode node)
+    {
+        for (LeanNode child : node.getChildren())
+        {
+            parents.put(child, node);
+            addParents(child);
+        }
+    }
+
+    /**
+     * Returns the mapping between thread Ids and the root {@link LeanThreadNode} objects if they have been constructed
+     * already, without constructing them.
+     * <p>
+     * @return the mapping between thread Ids and the root {@link LeanThreadNode} objects, or null
+     */
+    private synchronized Map<Long, LeanThreadNode> getConstructedThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * Returns the {@link MethodInfo} map of the previous profile if it contains the same mappings, or a copy of the
+     * specified map otherwise. The method map of a source only ever grows, so the maps are the same if their size is.
+     * <p>
+     * @param methodMap the method map of the source
+     * @param previous the LeanProfile previously emitted by the same source, or null
+     * @return a {@link Map} mapping the method id to the corresponding {@link MethodInfo}
+     */
+    private static Map<Long, MethodInfo> copyMethodMap(Map<Long, MethodInfo> methodMap, LeanProfile previous)
+    {
+        return previous != null && previous.methodInfoMap.size() == methodMap.size() ? previous.methodInfoMap
+            : new HashMap<>(methodMap);
+    }
+
+    /**
+     * Returns the {@link LeanThreadNode} for the specified thread from the previous profile, if the thread hasn't
+     * received any samples since. Every sample increments the total sample count of the thread, so the tree is
+     * unchanged if the count is.
+     * <p>
+     * @param previousThreads the thread trees of the previous profile, or null
+     * @param threadId the id of the thread
+     * @param totalCnt the current total sample count of the thread
+     * @return the unchanged {@link LeanThreadNode} from the previous profile, or null
+     */
+    private static LeanThreadNode findUnchanged(Map<Long, LeanThreadNode> previousThreads,
+                                                Long threadId,
+                                                long totalCnt)
+    {
+        LeanThreadNode node = previousThreads == null ? null : previousThreads.get(threadId);
+        return node != null && node.getData().getTotalCnt() == totalCnt ? node : null;
+    }
+
     // Object Implementation
 
     @Override
@@ -140,7 +463,7 @@ public class LeanProfile
     {
         StringBuilder result = new StringBuilder();
         result.append("LP :\n");
-        threads.forEach(
+        getThreads().forEach(
             (id, node) -> result.append(" Thread ")
                 .append(threadInfoMap.get(id) == null ? "UNKNOWN" : threadInfoMap.get(id).getName())
                 .append(node.toDeepString(1, methodInfoMap)));
@@ -0,0 +1,286 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import static com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree.NO_NODE;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.insightfullogic.honest_profiler.core.parser.AgentStats;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.MethodInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.NumericInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.ThreadInfo;
+
+/**
+ * A LeanProfileDelta describes what changed in a profile between two emissions, so a consumer can keep its state up to
+ * date without processing the full {@link LeanProfile} every time.
+ * <p>
+ * It contains the {@link MethodInfo}s which are new, the {@link ThreadInfo}s which are new or were updated, and the
+ * nodes of the underlying {@link LeanTree} which were created or whose data changed. The nodes are stored in parallel
+ * primitive arrays, in ascending node index order, so a parent always precedes its children. For every node the delta
+ * contains the index, the parent index, the frame and the increments of the self and total times and sample counts.
+ * Nodes with an index at or beyond {@link #getBaseSize()} were created since the previous emission.
+ * <p>
+ * A consumer can mirror the profile by applying every delta, in order, to its own {@link LeanTree} using
+ * {@link LeanTree#apply(LeanProfileDelta)}, which is what a {@link LeanProfileMirror} does.
+ */
+public class LeanProfileDelta
+{
+    // Instance Properties
+
+    private final Map<Long, MethodInfo> methodInfoMap;
+    private final Map<Long, ThreadInfo> threadInfoMap;
+    private final AgentStats agentStats;
+
+    // Maps the thread ids of the threads whose root node was created since the previous emission to the index of
+    // that root node.
+    private final Map<Long, Integer> newRoots;
+
+    private final int baseSize;
+    private final int size;
+
+    private final int[] nodes;
+    private final int[] parents;
+    private final long[] methodIds;
+    private final int[] bcis;
+    private final int[] lineNrs;
+
+    private final long[] selfTimes;
+    private final long[] totalTimes;
+    private final long[] selfCnts;
+    private final long[] totalCnts;
+
+    // Instance Constructors
+
+    /**
+     * Constructor which calculates the difference between two snapshots of the same {@link LeanTree}, and specifies
+     * the metadata which changed in between.
+     * <p>
+     * @param methodMap a {@link Map} containing the new {@link MethodInfo}s
+     * @param threadMap a {@link Map} containing the new or updated {@link ThreadInfo}s
+     * @param agentStats the most recent {@link AgentStats}, or null if none have been reported
+     * @param tree the snapshot of the {@link LeanTree} at the time of this emission
+     * @param base the snapshot of the same {@link LeanTree} at the time of the previous emission, or null if this is the
+     *            first one
+     */
+    public LeanProfileDelta(Map<Long, MethodInfo> methodMap,
+                            Map<Long, ThreadInfo> threadMap,
+                            AgentStats agentStats,
+                            LeanTree tree,
+                            LeanTree base)
+    {
+        this.methodInfoMap = new HashMap<>(methodMap);
+        this.threadInfoMap = new HashMap<>(threadMap);
+        this.agentStats = agentStats;
+
+        newRoots = new HashMap<>();
+        tree.getRoots().forEach((threadId, root) ->
+        {
+            if (base == null || !base.getRoots().containsKey(threadId))
+            {
+                newRoots.put(threadId, root);
+            }
+        });
+
+        baseSize = base == null ? 0 : base.size();
+
+        nodes = tree.changedSince(base);
+        size = nodes.length;
+
+        parents = new int[size];
+        methodIds = new long[size];
+        bcis = new int[size];
+        lineNrs = new int[size];
+        selfTimes = new long[size];
+        totalTimes = new long[size];
+        selfCnts = new long[size];
+        totalCnts = new long[size];
+
+        for (int i = 0; i < size; i++)
+        {
+            int node = nodes[i];
+            parents[i] = tree.getParent(node);
+            methodIds[i] = tree.getMethodId(node);
+            bcis[i] = tree.getBci(node);
+            lineNrs[i] = tree.getLineNr(node);
+            selfTimes[i] = tree.getSelfTime(node);
+            totalTimes[i] = tree.getTotalTime(node);
+            selfCnts[i] = tree.getSelfCnt(node);
+            totalCnts[i] = tree.getTotalCnt(node);
+
+            if (node < baseSize)
+            {
+                selfTimes[i] -= base.getSelfTime(node);
+                totalTimes[i] -= base.getTotalTime(node);
+                selfCnts[i] -= base.getSelfCnt(node);
+                totalCnts[i] -= base.getTotalCnt(node);
+            }
+        }
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the {@link MethodInfo}s which are new since the previous emission, mapped by method id.
+     * <p>
+     * @return the new {@link MethodInfo}s
+     */
+    public Map<Long, MethodInfo> getMethodInfoMap()
+    {
+        return methodInfoMap;
+    }
+
+    /**
+     * Returns the {@link ThreadInfo}s which are new or were updated since the previous emission, mapped by thread id.
+     * <p>
+     * @return the new or updated {@link ThreadInfo}s
+     */
+    public Map<Long, ThreadInfo> getThreadInfoMap()
+    {
+        return threadInfoMap;
+    }
+
+    /**
+     * Returns the most recent {@link AgentStats} reported by the agent, which supersede any previous ones.
+     * <p>
+     * @return the most recent {@link AgentStats}, or null if the log doesn't contain any
+     */
+    public AgentStats getAgentStats()
+    {
+        return agentStats;
+    }
+
+    /**
+     * Returns the mapping between the ids of the threads which appeared since the previous emission and the indices of
+     * their root nodes.
+     * <p>
+     * @return the mapping between thread ids and the indices of the new root nodes
+     */
+    public Map<Long, Integer> getNewRoots()
+    {
+        return newRoots;
+    }
+
+    /**
+     * Returns the number of nodes the {@link LeanTree} contained at the time of the previous emission. A delta can only
+     * be applied to a {@link LeanTree} of exactly this size.
+     * <p>
+     * @return the number of nodes at the time of the previous emission
+     */
+    public int getBaseSize()
+    {
+        return baseSize;
+    }
+
+    /**
+     * Returns the number of nodes described by this delta.
+     * <p>
+     * @return the number of nodes described by this delta
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns a boolean indicating whether nothing changed since the previous emission.
+     * <p>
+     * @return a boolean indicating whether nothing changed since the previous emission
+     */
+    public boolean isEmpty()
+    {
+        return size == 0 && methodInfoMap.isEmpty() && threadInfoMap.isEmpty();
+    }
+
+    public int getNode(int i)
+    {
+        return nodes[i];
+    }
+
+    /**
+     * Returns the index of the parent of the i-th node, or {@link LeanTree#NO_NODE} if it is the root node of a thread.
+     * <p>
+     * @param i the position of the node in this delta
+     * @return the index of the parent of the node
+     */
+    public int getParent(int i)
+    {
+        return parents[i];
+    }
+
+    /**
+     * Returns a boolean indicating whether the i-th node was created since the previous emission.
+     * <p>
+     * @param i the position of the node in this delta
+     * @return a boolean indicating whether the node is new
+     */
+    public boolean isNew(int i)
+    {
+        return nodes[i] >= baseSize;
+    }
+
+    /**
+     * Returns a boolean indicating whether the i-th node is the root node of a thread.
+     * <p>
+     * @param i the position of the node in this delta
+     * @return a boolean indicating whether the node is the root node of a thread
+     */
+    public boolean isThreadNode(int i)
+    {
+        return parents[i] == NO_NODE;
+    }
+
+    public long getMethodId(int i)
+    {
+        return methodIds[i];
+    }
+
+    public int getBci(int i)
+    {
+        return bcis[i];
+    }
+
+    public int getLineNr(int i)
+    {
+        return lineNrs[i];
+    }
+
+    public long getSelfTime(int i)
+    {
+        return selfTimes[i];
+    }
+
+    public long getTotalTime(int i)
+    {
+        return totalTimes[i];
+    }
+
+    public long getSelfCnt(int i)
+    {
+        return selfCnts[i];
+    }
+
+    public long getTotalCnt(int i)
+    {
+        return totalCnts[i];
+    }
+
+    /**
+     * Returns a new {@link NumericInfo} containing the increments of the i-th node.
+     * <p>
+     * @param i the position of the node in this delta
+     * @return a new {@link NumericInfo} containing the increments of the node
+     */
+    public NumericInfo getData(int i)
+    {
+        return new NumericInfo(selfTimes[i], totalTimes[i], selfCnts[i], totalCnts[i]);
+    }
+
+    // Object Implementation
+
+    @Override
+    public String toString()
+    {
+        return "LPD [" + baseSize + "+" + size + " nodes, " + methodInfoMap.size() + " methods, "
+            + threadInfoMap.size() + " threads]";
+    }
+}
@@ -0,0 +1,13 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import java.util.function.Consumer;
+
+import com.insightfullogic.honest_profiler.core.collector.lean.LeanLogCollector;
+
+/**
+ * Interface for Classes which can be used to receive {@link LeanProfileDelta}s emitted by the {@link LeanLogCollector}.
+ */
+public interface LeanProfileDeltaListener extends Consumer<LeanProfileDelta>
+{
+    // Marker Interface
+}
@@ -0,0 +1,90 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.insightfullogic.honest_profiler.core.collector.lean.LeanLogCollector;
+import com.insightfullogic.honest_profiler.core.parser.AgentStats;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.MethodInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.ThreadInfo;
+
+/**
+ * LeanProfileMirror keeps a copy of the profile collected by a {@link LeanLogCollector} which emits
+ * {@link LeanProfileDelta}s, by applying every delta it receives to its own {@link LeanTree} and metadata.
+ * <p>
+ * After a delta has been applied, a {@link LeanProfile} reflecting the mirrored state is emitted to the
+ * {@link LeanProfileListener} specified on construction, so a consumer receiving deltas can be plugged in wherever full
+ * profiles are expected. Like the profiles emitted by the collector, consecutive profiles share a snapshot of the
+ * {@link LeanTree} and any unchanged threads, so emitting a profile costs in proportion to what the delta changed.
+ * <p>
+ * The deltas must be received in the order in which they were emitted, starting with the first one.
+ */
+public class LeanProfileMirror implements LeanProfileDeltaListener
+{
+    // Instance Properties
+
+    private final LeanProfileListener listener;
+
+    private final Map<Long, MethodInfo> methodMap;
+    private final Map<Long, ThreadInfo> threadMap;
+    private final LeanTree tree;
+    private AgentStats agentStats;
+
+    // The most recently emitted profile, with which the next profile shares any unchanged data.
+    private LeanProfile lastProfile;
+
+    // Instance Constructors
+
+    /**
+     * Constructor which sets the {@link LeanProfileListener} to which the {@link LeanProfile}s will be emitted.
+     * <p>
+     * @param listener the {@link LeanProfileListener} which will receive a {@link LeanProfile} after every delta, or
+     *            null if the profile is only retrieved through {@link #getProfile()}
+     */
+    public LeanProfileMirror(LeanProfileListener listener)
+    {
+        this.listener = listener;
+
+        methodMap = new HashMap<>();
+        threadMap = new HashMap<>();
+        tree = new LeanTree();
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the {@link LeanProfile} reflecting the state after the most recently applied delta.
+     * <p>
+     * @return the {@link LeanProfile} reflecting the mirrored state, or null if no delta has been applied yet
+     */
+    public LeanProfile getProfile()
+    {
+        return lastProfile;
+    }
+
+    // LeanProfileDeltaListener Implementation
+
+    /**
+     * Applies a {@link LeanProfileDelta} to the mirrored state, and emits the resulting {@link LeanProfile}.
+     * <p>
+     * @param delta the next {@link LeanProfileDelta} emitted by the source
+     * @throws IllegalStateException if the delta doesn't follow on the previously applied one
+     */
+    @Override
+    public void accept(LeanProfileDelta delta)
+    {
+        tree.apply(delta);
+        methodMap.putAll(delta.getMethodInfoMap());
+        threadMap.putAll(delta.getThreadInfoMap());
+        if (delta.getAgentStats() != null)
+        {
+            agentStats = delta.getAgentStats();
+        }
+
+        lastProfile = new LeanProfile(methodMap, threadMap, tree, agentStats, lastProfile);
+        if (listener != null)
+        {
+            listener.accept(lastProfile);
+        }
+    }
+}
@@ -22,17 +22,40 @@ public class LeanThreadNode extends LeanNode
      */
     public LeanThreadNode()
     {
-        super((FrameInfo)null, null);
+        super((FrameInfo)null);
+    }
+
+    /**
+     * Constructor which sets the aggregated {@link NumericInfo}, used for materializing the root node of a thread in a
+     * {@link LeanTree}.
+     * <p>
+     * @param data the aggregated {@link NumericInfo} for the thread
+     */
+    LeanThreadNode(NumericInfo data)
+    {
+        super(null, data, null);
+    }
+
+    /**
+     * Constructor for a read-only view on the root node of a thread in a {@link LeanTree}.
+     * <p>
+     * @param node the index of the root node in the {@link LeanTree}
+     * @param data the aggregated {@link NumericInfo} for the thread
+     */
+    LeanThreadNode(int node, NumericInfo data)
+    {
+        super(node, null, data);
     }
 
     /**
      * Copy constructor.
      * <p>
      * @param source the {@link LeanThreadNode} being copied.
+     * @param deep a boolean indicating whether the descendants are copied as well
      */
-    private LeanThreadNode(LeanThreadNode source)
+    private LeanThreadNode(LeanThreadNode source, boolean deep)
     {
-        super(source, null);
+        super(source, deep);
         this.threadInfo = source.threadInfo;
     }
 
@@ -66,8 +89,24 @@ public class LeanThreadNode extends LeanNode
 
     // Copy Methods
 
+    /**
+     * Returns a deep copy of this LeanThreadNode, which doesn't share any descendants with it.
+     * <p>
+     * @return a deep copy of this LeanThreadNode
+     */
     public LeanThreadNode copy()
     {
-        return new LeanThreadNode(this);
+        return new LeanThreadNode(this, true);
+    }
+
+    /**
+     * Returns a LeanThreadNode for the same thread which can be modified : this one if it isn't shared, or a shallow
+     * copy otherwise. The owner of the tree must replace this LeanThreadNode by the returned one.
+     * <p>
+     * @return a LeanThreadNode for the same thread which can be modified
+     */
+    public LeanThreadNode unshare()
+    {
+        return isShared() ? new LeanThreadNode(this, false) : this;
     }
 }
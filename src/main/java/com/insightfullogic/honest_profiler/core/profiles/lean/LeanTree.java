@@ -0,0 +1,658 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import static java.util.Arrays.copyOf;
+import static java.util.Arrays.fill;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.insightfullogic.honest_profiler.core.parser.StackFrame;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.NumericInfo;
+
+/**
+ * LeanTree is a compact alternative to the {@link LeanNode} object trees of a {@link LeanProfile}. It records the same
+ * information, but all nodes of all threads are stored in a single arena of parallel primitive arrays, so a node costs
+ * a few dozen bytes instead of a handful of objects.
+ * <p>
+ * A node is identified by its index in the arena. For every node the arena stores the frame (method id, BCI and line
+ * number), the index of the parent, the index of the first child and of the next sibling, and the aggregated self and
+ * total times and sample counts. The root node of a thread has no frame and no parent. The child of a node for a given
+ * frame is looked up through a single open-addressing hash table, keyed by the parent index and the frame.
+ * <p>
+ * The arena layout allows {@link #snapshot()} to return a read-only LeanTree which shares its storage with this one. The frame,
+ * parent and next sibling of a node never change once the node has been created, and nodes are only ever appended, so
+ * a snapshot simply keeps a reference to those arrays. The first child and the aggregated data do change, so they are
+ * stored in fixed-size pages which are copied on write : every snapshot starts a new epoch, and a page which was last
+ * copied in an older epoch is copied before it is modified. The cost of a snapshot is therefore proportional to the
+ * number of pages modified since the previous one, rather than to the size of the tree.
+ * <p>
+ * The nodes are read through a {@link LeanNodeCursor}, which can be obtained using {@link #cursor()}. Consumers which
+ * need {@link LeanNode}s get read-only views on the nodes from the {@link LeanProfile}, which are created as they are
+ * requested, while {@link #toThreadNode(int)} materializes the tree of a thread as a whole.
+ * <p>
+ * The times are accumulated in longs, and saturate at {@link Long#MAX_VALUE} rather than wrapping around.
+ */
+public class LeanTree
+{
+    // Class Properties
+
+    /**
+     * The parent index of the root node of a thread.
+     */
+    public static final int NO_NODE = -1;
+
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int INITIAL_PAGES = 4;
+    private static final int INITIAL_CAPACITY = INITIAL_PAGES * PAGE_SIZE;
+
+    // Instance Properties
+
+    // Maps thread ids to the index of the root node for the thread.
+    private final Map<Long, Integer> roots;
+
+    // Indicates whether this LeanTree is a read-only snapshot of another one.
+    private final boolean snapshot;
+
+    private int size;
+
+    // Arrays whose elements are never modified once a node has been written into them, and which are shared with
+    // snapshots.
+    private long[] methodIds;
+    private int[] bcis;
+    private int[] lineNrs;
+    private int[] parents;
+    private int[] nextSiblings;
+
+    // Pages which are copied on write if they are shared with a snapshot.
+    private int[][] firstChildren;
+    private long[][] selfTimes;
+    private long[][] totalTimes;
+    private long[][] selfCnts;
+    private long[][] totalCnts;
+
+    // The current epoch, which is incremented by every snapshot, and the epoch in which each copy-on-write page was
+    // created or last copied. A page from an older epoch may be shared with a snapshot.
+    private int epoch;
+    private int[] pageEpochs;
+
+    // Open-addressing hash table containing the indices of all non-root nodes, with NO_NODE marking empty slots. The
+    // length is a power of 2, and the table is kept at most half full. Snapshots don't have one.
+    private int[] childTable;
+
+    // Instance Constructors
+
+    /**
+     * Empty constructor.
+     */
+    public LeanTree()
+    {
+        roots = new HashMap<>();
+        snapshot = false;
+
+        methodIds = new long[INITIAL_CAPACITY];
+        bcis = new int[INITIAL_CAPACITY];
+        lineNrs = new int[INITIAL_CAPACITY];
+        parents = new int[INITIAL_CAPACITY];
+        nextSiblings = new int[INITIAL_CAPACITY];
+        firstChildren = new int[INITIAL_PAGES][];
+        selfTimes = new long[INITIAL_PAGES][];
+        totalTimes = new long[INITIAL_PAGES][];
+        selfCnts = new long[INITIAL_PAGES][];
+        totalCnts = new long[INITIAL_PAGES][];
+        pageEpochs = new int[INITIAL_PAGES];
+
+        childTable = new int[INITIAL_CAPACITY * 2];
+        fill(childTable, NO_NODE);
+    }
+
+    /**
+     * Snapshot constructor. Only the page tables are copied, the arrays and pages themselves are shared with the
+     * source.
+     * <p>
+     * @param source the source LeanTree of which a snapshot is taken
+     */
+    private LeanTree(LeanTree source)
+    {
+        roots = new HashMap<>(source.roots);
+        snapshot = true;
+        size = source.size;
+
+        int pages = (size + PAGE_MASK) >>> PAGE_SHIFT;
+        methodIds = source.methodIds;
+        bcis = source.bcis;
+        lineNrs = source.lineNrs;
+        parents = source.parents;
+        nextSiblings = source.nextSiblings;
+        firstChildren = copyOf(source.firstChildren, pages);
+        selfTimes = copyOf(source.selfTimes, pages);
+        totalTimes = copyOf(source.totalTimes, pages);
+        selfCnts = copyOf(source.selfCnts, pages);
+        totalCnts = copyOf(source.totalCnts, pages);
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the number of nodes in this LeanTree, including the thread root nodes.
+     * <p>
+     * @return the number of nodes in this LeanTree
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the mapping between thread ids and the indices of the corresponding root nodes.
+     * <p>
+     * @return the mapping between thread ids and the indices of the corresponding root nodes
+     */
+    public Map<Long, Integer> getRoots()
+    {
+        return roots;
+    }
+
+    /**
+     * Returns a boolean indicating whether this LeanTree is a read-only snapshot.
+     * <p>
+     * @return a boolean indicating whether this LeanTree is a read-only snapshot
+     */
+    public boolean isSnapshot()
+    {
+        return snapshot;
+    }
+
+    /**
+     * Returns a new {@link LeanNodeCursor} for reading the nodes of this LeanTree. The cursor isn't positioned on any
+     * node yet.
+     * <p>
+     * @return a new {@link LeanNodeCursor} for this LeanTree
+     */
+    public LeanNodeCursor cursor()
+    {
+        return new LeanNodeCursor(this);
+    }
+
+    // Aggregation Methods
+
+    /**
+     * Returns the index of the root node for the specified thread, creating the node if needed.
+     * <p>
+     * @param threadId the id of the thread
+     * @return the index of the root node for the thread
+     */
+    public int root(long threadId)
+    {
+        checkMutable();
+
+        Integer root = roots.get(threadId);
+        if (root == null)
+        {
+            root = newNode(NO_NODE, 0, 0, 0);
+            roots.put(threadId, root);
+        }
+        return root;
+    }
+
+    /**
+     * Aggregates the information from a child {@link StackFrame} into the children of the specified node, updating the
+     * total data for that node in the process. This is the arena counterpart of
+     * {@link LeanNode#add(long, FrameInfo, boolean)}.
+     * <p>
+     * @param parent the index of the parent node
+     * @param nanos the number of nanoseconds spent in the stack trace sample
+     * @param methodId the method id of the child frame
+     * @param bci the BCI of the child frame
+     * @param lineNr the line number of the child frame
+     * @param last a boolean indicating if the child is the last in the stack trace sample
+     * @return the index of the aggregated child node
+     */
+    public int add(int parent, long nanos, long methodId, int bci, int lineNr, boolean last)
+    {
+        checkMutable();
+
+        addTotal(parent, nanos);
+
+        int child = child(parent, methodId, bci, lineNr);
+        if (last)
+        {
+            addTotal(child, nanos);
+            addSelf(child, nanos);
+        }
+        return child;
+    }
+
+    /**
+     * Merges the nodes of another LeanTree into this LeanTree. The data of nodes representing the same thread or the
+     * same frame path is added together, the other nodes are copied.
+     * <p>
+     * @param other the LeanTree whose nodes are merged into this LeanTree
+     * @return this object
+     */
+    public LeanTree merge(LeanTree other)
+    {
+        checkMutable();
+
+        // Maps the indices of the other tree onto the indices of this tree. Parents always precede their children in
+        // the arena, so a single pass in index order suffices.
+        int[] mapping = new int[other.size];
+        other.roots.forEach((threadId, otherRoot) -> mapping[otherRoot] = root(threadId));
+
+        for (int i = 0; i < other.size; i++)
+        {
+            int otherParent = other.getParent(i);
+            if (otherParent != NO_NODE)
+            {
+                mapping[i] = child(
+                    mapping[otherParent],
+                    other.getMethodId(i),
+                    other.getBci(i),
+                    other.getLineNr(i));
+            }
+
+            addData(
+                mapping[i],
+                other.getSelfTime(i),
+                other.getTotalTime(i),
+                other.getSelfCnt(i),
+                other.getTotalCnt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Applies a {@link LeanProfileDelta} emitted by another LeanTree to this LeanTree, which must mirror the state of
+     * the other LeanTree at the time of the previous delta. The nodes which are new are created with the same indices
+     * they have in the other LeanTree, and the increments are added to the data of the nodes.
+     * <p>
+     * @param delta the {@link LeanProfileDelta} which is applied
+     * @return this object
+     * @throws IllegalStateException if the delta doesn't follow on the current state of this LeanTree
+     */
+    public LeanTree apply(LeanProfileDelta delta)
+    {
+        checkMutable();
+
+        if (delta.getBaseSize() != size)
+        {
+            throw new IllegalStateException(
+                "The delta applies to a tree with " + delta.getBaseSize() + " nodes, this tree has " + size + ".");
+        }
+
+        Map<Integer, Long> newThreads = new HashMap<>();
+        delta.getNewRoots().forEach((threadId, root) -> newThreads.put(root, threadId));
+
+        for (int i = 0; i < delta.size(); i++)
+        {
+            int node = delta.getNode(i);
+            if (delta.isNew(i))
+            {
+                int created = delta.isThreadNode(i) ? root(newThreads.get(node))
+                    : child(delta.getParent(i), delta.getMethodId(i), delta.getBci(i), delta.getLineNr(i));
+                if (created != node)
+                {
+                    throw new IllegalStateException("The delta is inconsistent with this tree at node " + node + ".");
+                }
+            }
+            addData(node, delta.getSelfTime(i), delta.getTotalTime(i), delta.getSelfCnt(i), delta.getTotalCnt(i));
+        }
+        return this;
+    }
+
+    // Snapshot Methods
+
+    /**
+     * Returns a read-only snapshot of this LeanTree, which is not affected by any subsequent modifications of this
+     * LeanTree. The snapshot shares its pages with this LeanTree, which will copy a shared page when it first modifies
+     * it. A snapshot of a snapshot is the snapshot itself.
+     * <p>
+     * @return a read-only snapshot of this LeanTree
+     */
+    public LeanTree snapshot()
+    {
+        if (snapshot)
+        {
+            return this;
+        }
+
+        LeanTree result = new LeanTree(this);
+        epoch++;
+        return result;
+    }
+
+    /**
+     * Returns the indices, in ascending order, of the nodes which were created or whose data changed since the
+     * specified snapshot was taken. Both this LeanTree and the base must be snapshots of the same LeanTree. Only the
+     * pages which are no longer shared with the base are inspected, since any modification of a node copies its page.
+     * <p>
+     * @param base an earlier snapshot of the same LeanTree, or null if all nodes should be returned
+     * @return the indices of the nodes which were created or changed since the base snapshot
+     */
+    int[] changedSince(LeanTree base)
+    {
+        int[] result = new int[size];
+        int count = 0;
+
+        int baseSize = base == null ? 0 : base.size;
+        for (int node = 0; node < size; node++)
+        {
+            int page = node >>> PAGE_SHIFT;
+            if (node < baseSize)
+            {
+                if (selfTimes[page] == base.selfTimes[page])
+                {
+                    // The page is shared, skip the nodes in it which existed at the time of the base snapshot.
+                    node = Math.min((page + 1) << PAGE_SHIFT, baseSize) - 1;
+                    continue;
+                }
+                if (getTotalCnt(node) == base.getTotalCnt(node)
+                    && getSelfCnt(node) == base.getSelfCnt(node)
+                    && getTotalTime(node) == base.getTotalTime(node)
+                    && getSelfTime(node) == base.getSelfTime(node))
+                {
+                    continue;
+                }
+            }
+            result[count++] = node;
+        }
+        return copyOf(result, count);
+    }
+
+    // Materialization Methods
+
+    /**
+     * Constructs the {@link LeanNode} tree for the subtree with the specified root node.
+     * <p>
+     * @param root the index of the root node of a thread
+     * @return the {@link LeanThreadNode} at the root of the resulting {@link LeanNode} tree
+     */
+    public LeanThreadNode toThreadNode(int root)
+    {
+        LeanThreadNode result = new LeanThreadNode(getData(root));
+        materializeChildren(root, result);
+        return result;
+    }
+
+    // Node Accessors, used by the LeanNodeCursor
+
+    long getMethodId(int node)
+    {
+        return methodIds[node];
+    }
+
+    int getBci(int node)
+    {
+        return bcis[node];
+    }
+
+    int getLineNr(int node)
+    {
+        return lineNrs[node];
+    }
+
+    int getParent(int node)
+    {
+        return parents[node];
+    }
+
+    int getFirstChild(int node)
+    {
+        return firstChildren[node >>> PAGE_SHIFT][node & PAGE_MASK];
+    }
+
+    int getNextSibling(int node)
+    {
+        return nextSiblings[node];
+    }
+
+    long getSelfTime(int node)
+    {
+        return selfTimes[node >>> PAGE_SHIFT][node & PAGE_MASK];
+    }
+
+    long getTotalTime(int node)
+    {
+        return totalTimes[node >>> PAGE_SHIFT][node & PAGE_MASK];
+    }
+
+    long getSelfCnt(int node)
+    {
+        return selfCnts[node >>> PAGE_SHIFT][node & PAGE_MASK];
+    }
+
+    long getTotalCnt(int node)
+    {
+        return totalCnts[node >>> PAGE_SHIFT][node & PAGE_MASK];
+    }
+
+    NumericInfo getData(int node)
+    {
+        return new NumericInfo(getSelfTime(node), getTotalTime(node), getSelfCnt(node), getTotalCnt(node));
+    }
+
+    FrameInfo getFrame(int node)
+    {
+        return new FrameInfo(getMethodId(node), getBci(node), getLineNr(node));
+    }
+
+    // View Methods
+
+    /**
+     * Returns read-only {@link LeanNode} views on the children of the specified node, in sibling order.
+     * <p>
+     * @param node the index of the node
+     * @return a new {@link List} containing views on the children of the node
+     */
+    List<LeanNode> getChildViews(int node)
+    {
+        List<LeanNode> result = new ArrayList<>();
+        for (int child = getFirstChild(node); child != NO_NODE; child = getNextSibling(child))
+        {
+            result.add(new LeanTreeNode(this, child));
+        }
+        return result;
+    }
+
+    // Helper Methods
+
+    private void materializeChildren(int node, LeanNode parent)
+    {
+        for (int child = getFirstChild(node); child != NO_NODE; child = getNextSibling(child))
+        {
+            LeanNode childNode = new LeanNode(getFrame(child), getData(child), parent);
+            materializeChildren(child, childNode);
+        }
+    }
+
+    private void checkMutable()
+    {
+        if (snapshot)
+        {
+            throw new UnsupportedOperationException("A LeanTree snapshot can't be modified.");
+        }
+    }
+
+    /**
+     * Adds the specified amounts to the data of a node, copying its pages first if they are shared with a snapshot.
+     */
+    private void addData(int node, long selfTime, long totalTime, long selfCnt, long totalCnt)
+    {
+        int page = own(node);
+        int offset = node & PAGE_MASK;
+        selfTimes[page][offset] = addTime(selfTimes[page][offset], selfTime);
+        totalTimes[page][offset] = addTime(totalTimes[page][offset], totalTime);
+        selfCnts[page][offset] += selfCnt;
+        totalCnts[page][offset] += totalCnt;
+    }
+
+    /**
+     * Adds a sample to the total data of a node, copying its pages first if they are shared with a snapshot.
+     */
+    private void addTotal(int node, long nanos)
+    {
+        int page = own(node);
+        int offset = node & PAGE_MASK;
+        totalTimes[page][offset] = addTime(totalTimes[page][offset], nanos);
+        totalCnts[page][offset]++;
+    }
+
+    /**
+     * Adds a sample to the self data of a node, whose pages must already have been copied if needed.
+     */
+    private void addSelf(int node, long nanos)
+    {
+        int page = node >>> PAGE_SHIFT;
+        int offset = node & PAGE_MASK;
+        selfTimes[page][offset] = addTime(selfTimes[page][offset], nanos);
+        selfCnts[page][offset]++;
+    }
+
+    /**
+     * Makes sure the copy-on-write pages containing the specified node aren't shared with a snapshot, and returns the
+     * index of the page.
+     */
+    private int own(int node)
+    {
+        int page = node >>> PAGE_SHIFT;
+        if (pageEpochs[page] != epoch)
+        {
+            firstChildren[page] = firstChildren[page].clone();
+            selfTimes[page] = selfTimes[page].clone();
+            totalTimes[page] = totalTimes[page].clone();
+            selfCnts[page] = selfCnts[page].clone();
+            totalCnts[page] = totalCnts[page].clone();
+            pageEpochs[page] = epoch;
+        }
+        return page;
+    }
+
+    /**
+     * Returns the index of the child node of the specified parent for the specified frame, creating it if needed.
+     */
+    private int child(int parent, long methodId, int bci, int lineNr)
+    {
+        int mask = childTable.length - 1;
+        int slot = hash(parent, methodId, bci, lineNr) & mask;
+        while (true)
+        {
+            int node = childTable[slot];
+            if (node == NO_NODE)
+            {
+                break;
+            }
+            if (parents[node] == parent
+                && methodIds[node] == methodId
+                && bcis[node] == bci
+                && lineNrs[node] == lineNr)
+            {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int node = newNode(parent, methodId, bci, lineNr);
+        nextSiblings[node] = getFirstChild(parent);
+        firstChildren[own(parent)][parent & PAGE_MASK] = node;
+
+        if (size * 2 > childTable.length)
+        {
+            rehash(childTable.length * 2);
+        }
+        else
+        {
+            childTable[slot] = node;
+        }
+        return node;
+    }
+
+    /**
+     * Appends a new node to the arena. The new node lies beyond the size of any existing snapshot, so it can be written
+     * into shared arrays and pages without affecting the snapshots.
+     */
+    private int newNode(int parent, long methodId, int bci, int lineNr)
+    {
+        int node = size++;
+        int page = node >>> PAGE_SHIFT;
+        int offset = node & PAGE_MASK;
+        if (offset == 0)
+        {
+            newPage(page);
+        }
+
+        methodIds[node] = methodId;
+        bcis[node] = bci;
+        lineNrs[node] = lineNr;
+        parents[node] = parent;
+        nextSiblings[node] = NO_NODE;
+        firstChildren[page][offset] = NO_NODE;
+        return node;
+    }
+
+    private void newPage(int page)
+    {
+        if (page == firstChildren.length)
+        {
+            int pages = page * 2;
+            int capacity = pages * PAGE_SIZE;
+            methodIds = copyOf(methodIds, capacity);
+            bcis = copyOf(bcis, capacity);
+            lineNrs = copyOf(lineNrs, capacity);
+            parents = copyOf(parents, capacity);
+            nextSiblings = copyOf(nextSiblings, capacity);
+            firstChildren = copyOf(firstChildren, pages);
+            selfTimes = copyOf(selfTimes, pages);
+            totalTimes = copyOf(totalTimes, pages);
+            selfCnts = copyOf(selfCnts, pages);
+            totalCnts = copyOf(totalCnts, pages);
+            pageEpochs = copyOf(pageEpochs, pages);
+        }
+
+        firstChildren[page] = new int[PAGE_SIZE];
+        selfTimes[page] = new long[PAGE_SIZE];
+        totalTimes[page] = new long[PAGE_SIZE];
+        selfCnts[page] = new long[PAGE_SIZE];
+        totalCnts[page] = new long[PAGE_SIZE];
+        pageEpochs[page] = epoch;
+    }
+
+    private void rehash(int tableSize)
+    {
+        childTable = new int[tableSize];
+        fill(childTable, NO_NODE);
+
+        int mask = tableSize - 1;
+        for (int node = 0; node < size; node++)
+        {
+            if (parents[node] == NO_NODE)
+            {
+                continue;
+            }
+            int slot = hash(parents[node], methodIds[node], bcis[node], lineNrs[node]) & mask;
+            while (childTable[slot] != NO_NODE)
+            {
+                slot = (slot + 1) & mask;
+            }
+            childTable[slot] = node;
+        }
+    }
+
+    private static int hash(int parent, long methodId, int bci, int lineNr)
+    {
+        long hash = (methodId + parent) * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ (((long)bci << 32) | (lineNr & 0xFFFFFFFFL))) * 0xC2B2AE3D27D4EB4FL;
+        return (int)(hash ^ (hash >>> 32));
+    }
+
+    private static long addTime(long time, long nanos)
+    {
+        long sum = time + nanos;
+        // Saturate instead of wrapping around if the sum overflows
+        return ((time ^ sum) & (nanos ^ sum)) < 0 ? (time < 0 ? Long.MIN_VALUE : Long.MAX_VALUE) : sum;
+    }
+}
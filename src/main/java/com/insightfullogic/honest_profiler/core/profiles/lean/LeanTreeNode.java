@@ -0,0 +1,42 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import java.util.Collection;
+
+/**
+ * Read-only {@link LeanNode} which is a view on a frame node of a {@link LeanTree}. The children are views as well,
+ * which are created when they are requested.
+ */
+final class LeanTreeNode extends LeanNode
+{
+    // Instance Properties
+
+    private final LeanTree tree;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the {@link LeanTree} and the index of the viewed node.
+     * <p>
+     * @param tree the {@link LeanTree} containing the node
+     * @param node the index of the node
+     */
+    LeanTreeNode(LeanTree tree, int node)
+    {
+        super(node, tree.getFrame(node), tree.getData(node));
+        this.tree = tree;
+    }
+
+    // Instance Accessors
+
+    @Override
+    public Collection<LeanNode> getChildren()
+    {
+        return tree.getChildViews(getId());
+    }
+
+    @Override
+    public int getTreeIndex()
+    {
+        return getId();
+    }
+}
@@ -0,0 +1,42 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import java.util.Collection;
+
+/**
+ * Read-only {@link LeanThreadNode} which is a view on the root node of a thread in a {@link LeanTree}. The children are
+ * {@link LeanTreeNode} views, which are created when they are requested.
+ */
+final class LeanTreeThreadNode extends LeanThreadNode
+{
+    // Instance Properties
+
+    private final LeanTree tree;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the {@link LeanTree} and the index of the viewed root node.
+     * <p>
+     * @param tree the {@link LeanTree} containing the node
+     * @param root the index of the root node of the thread
+     */
+    LeanTreeThreadNode(LeanTree tree, int root)
+    {
+        super(root, tree.getData(root));
+        this.tree = tree;
+    }
+
+    // Instance Accessors
+
+    @Override
+    public Collection<LeanNode> getChildren()
+    {
+        return tree.getChildViews(getId());
+    }
+
+    @Override
+    public int getTreeIndex()
+    {
+        return getId();
+    }
+}
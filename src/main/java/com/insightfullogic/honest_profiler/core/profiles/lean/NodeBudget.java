@@ -0,0 +1,200 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import static java.util.Arrays.sort;
+
+import java.util.Collection;
+
+import com.insightfullogic.honest_profiler.core.parser.Method;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.MethodInfo;
+
+/**
+ * NodeBudget bounds the number of {@link LeanNode}s in a set of thread trees, by pruning the least-sampled subtrees
+ * whenever the number of nodes exceeds the budget.
+ * <p>
+ * The owner of the trees reports every {@link LeanNode} it creates through {@link #nodeAdded()}, and calls
+ * {@link #prune(Collection)} when {@link #isExceeded()} returns true. Pruning collapses the subtrees with the lowest
+ * total sample counts into children with the {@link #PRUNED_FRAME} (see {@link LeanNode#prune(long, FrameInfo)}),
+ * until the number of nodes is back under three quarters of the budget, so pruning doesn't happen for every new node
+ * once the budget has been reached.
+ * <p>
+ * Samples which arrive after pruning are aggregated as usual, so a pruned subtree which becomes hot again simply grows
+ * back.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class NodeBudget
+{
+    // Class Properties
+
+    /**
+     * The method id used for the frame of the pruned nodes. Method ids are JVM pointers, so this value can't clash.
+     */
+    public static final long PRUNED_METHOD_ID = Long.MIN_VALUE;
+
+    /**
+     * The {@link FrameInfo} of the pruned nodes.
+     */
+    public static final FrameInfo PRUNED_FRAME = new FrameInfo(PRUNED_METHOD_ID, -1, -1);
+
+    /**
+     * The {@link MethodInfo} describing the method of the {@link #PRUNED_FRAME}.
+     */
+    public static final MethodInfo PRUNED_METHOD = new MethodInfo(new Method(PRUNED_METHOD_ID, "", "", "[pruned]"));
+
+    // Instance Properties
+
+    private final int maxNodes;
+    private final int targetNodes;
+
+    private int nodeCount;
+    private int pruneCount;
+    private long prunedNodes;
+    private long prunedSamples;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the maximum number of {@link LeanNode}s, including {@link LeanThreadNode}s.
+     * <p>
+     * @param maxNodes the maximum number of {@link LeanNode}s
+     */
+    public NodeBudget(int maxNodes)
+    {
+        if (maxNodes < 1)
+        {
+            throw new IllegalArgumentException("The node budget must be positive.");
+        }
+
+        this.maxNodes = maxNodes;
+        this.targetNodes = maxNodes - maxNodes / 4;
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns a boolean indicating whether the number of {@link LeanNode}s exceeds the budget.
+     * <p>
+     * @return a boolean indicating whether the number of {@link LeanNode}s exceeds the budget
+     */
+    public boolean isExceeded()
+    {
+        return nodeCount > maxNodes;
+    }
+
+    /**
+     * Returns the {@link PruneStats} describing the current state of the trees.
+     * <p>
+     * @return the {@link PruneStats} describing the current state of the trees
+     */
+    public PruneStats getStats()
+    {
+        return new PruneStats(maxNodes, nodeCount, pruneCount, prunedNodes, prunedSamples);
+    }
+
+    // Budget Methods
+
+    /**
+     * Registers the creation of a {@link LeanNode}.
+     */
+    public void nodeAdded()
+    {
+        nodeCount++;
+    }
+
+    /**
+     * Registers the removal of the specified trees, e.g. when their owner drops them.
+     * <p>
+     * @param threads the {@link LeanThreadNode}s which are the roots of the removed trees
+     */
+    public void treesRemoved(Collection<LeanThreadNode> threads)
+    {
+        for (LeanThreadNode thread : threads)
+        {
+            nodeCount -= thread.size();
+        }
+    }
+
+    /**
+     * Prunes the specified trees until they contain no more than three quarters of the budget, or until only the
+     * {@link LeanThreadNode}s and their pruned children are left.
+     * <p>
+     * @param threads the {@link LeanThreadNode}s which are the roots of all trees counted by this NodeBudget
+     */
+    public void prune(Collection<LeanThreadNode> threads)
+    {
+        pruneCount++;
+
+        while (nodeCount > targetNodes)
+        {
+            // The total sample count of a node is never lower than that of its descendants, so collapsing all nodes up
+            // to the (excess)-th lowest count removes at least the excess.
+            long[] totals = new long[nodeCount];
+            int size = 0;
+            for (LeanThreadNode thread : threads)
+            {
+                for (LeanNode child : thread.getChildren())
+                {
+                    size = collectTotals(child, totals, size);
+                }
+            }
+
+            if (size == 0)
+            {
+                break;
+            }
+
+            sort(totals, 0, size);
+            long threshold = totals[Math.min(nodeCount - targetNodes, size) - 1];
+
+            int removed = 0;
+            for (LeanThreadNode thread : threads)
+            {
+                removed += thread.prune(threshold, PRUNED_FRAME);
+            }
+
+            // Collapsing only pruned nodes into new pruned nodes doesn't make progress.
+            if (removed <= 0)
+            {
+                break;
+            }
+
+            nodeCount -= removed;
+            prunedNodes += removed;
+        }
+
+        prunedSamples = 0;
+        for (LeanThreadNode thread : threads)
+        {
+            prunedSamples += countPrunedSamples(thread);
+        }
+    }
+
+    // Helper Methods
+
+    private int collectTotals(LeanNode node, long[] totals, int size)
+    {
+        int result = size;
+        totals[result++] = node.getData().getTotalCnt();
+        for (LeanNode child : node.getChildren())
+        {
+            result = collectTotals(child, totals, result);
+        }
+        return result;
+    }
+
+    private long countPrunedSamples(LeanNode node)
+    {
+        if (PRUNED_FRAME.equals(node.getFrame()))
+        {
+            return node.getData().getTotalCnt();
+        }
+
+        long result = 0;
+        for (LeanNode child : node.getChildren())
+        {
+            result += countPrunedSamples(child);
+        }
+        return result;
+    }
+}
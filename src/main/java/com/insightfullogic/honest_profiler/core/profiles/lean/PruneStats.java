@@ -0,0 +1,98 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+/**
+ * PruneStats describes how much of a profile collected under a {@link NodeBudget} has been collapsed into pruned nodes
+ * at the time the profile was emitted.
+ */
+public final class PruneStats
+{
+    // Instance Properties
+
+    private final int nodeBudget;
+    private final int nodeCount;
+    private final int pruneCount;
+    private final long prunedNodes;
+    private final long prunedSamples;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying all counters.
+     * <p>
+     * @param nodeBudget the maximum number of nodes the profile may contain
+     * @param nodeCount the number of nodes the profile contains
+     * @param pruneCount the number of times the profile has been pruned
+     * @param prunedNodes the total number of nodes removed by pruning
+     * @param prunedSamples the number of samples whose stacks were collapsed into pruned nodes
+     */
+    public PruneStats(int nodeBudget, int nodeCount, int pruneCount, long prunedNodes, long prunedSamples)
+    {
+        this.nodeBudget = nodeBudget;
+        this.nodeCount = nodeCount;
+        this.pruneCount = pruneCount;
+        this.prunedNodes = prunedNodes;
+        this.prunedSamples = prunedSamples;
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the maximum number of nodes the profile may contain.
+     * <p>
+     * @return the maximum number of nodes the profile may contain
+     */
+    public int getNodeBudget()
+    {
+        return nodeBudget;
+    }
+
+    /**
+     * Returns the number of nodes, including the thread nodes, the profile contains.
+     * <p>
+     * @return the number of nodes the profile contains
+     */
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the number of times the profile exceeded the budget and was pruned.
+     * <p>
+     * @return the number of times the profile has been pruned
+     */
+    public int getPruneCount()
+    {
+        return pruneCount;
+    }
+
+    /**
+     * Returns the total number of nodes removed by pruning, net of the pruned nodes which replaced them.
+     * <p>
+     * @return the total number of nodes removed by pruning
+     */
+    public long getPrunedNodes()
+    {
+        return prunedNodes;
+    }
+
+    /**
+     * Returns the number of samples whose stacks were, at least partially, collapsed into pruned nodes. These samples
+     * are still counted in the totals of all their remaining ancestors.
+     * <p>
+     * @return the number of samples whose stacks were collapsed into pruned nodes
+     */
+    public long getPrunedSamples()
+    {
+        return prunedSamples;
+    }
+
+    // Object Implementation
+
+    @Override
+    public String toString()
+    {
+        return "PruneStats [" + nodeCount + "/" + nodeBudget + " nodes, " + pruneCount + " prunes, " + prunedNodes
+            + " nodes and " + prunedSamples + " samples pruned]";
+    }
+}
@@ -13,6 +13,8 @@ public class FrameInfo
     private final long methodId;
     private final int bci;
     private final int lineNr;
+    // The hash code is cached, since FrameInfos are used as keys for looking up the children of every aggregated node.
+    private final int hash;
 
     // Instance Constructors
 
@@ -26,6 +28,23 @@ public class FrameInfo
         this.methodId = stackFrame.getMethodId();
         this.bci = stackFrame.getBci();
         this.lineNr = stackFrame.getLineNumber();
+        this.hash = calculateHash();
+    }
+
+    /**
+     * Constructor which specifies the metadata directly, used when the frame was decoded without constructing a
+     * {@link StackFrame}.
+     * <p>
+     * @param methodId the id of the method whose execution was recorded in the frame
+     * @param bci the Byte Code Index of the execution point recorded in the frame
+     * @param lineNr the line number of the execution point recorded in the frame
+     */
+    public FrameInfo(long methodId, int bci, int lineNr)
+    {
+        this.methodId = methodId;
+        this.bci = bci;
+        this.lineNr = lineNr;
+        this.hash = calculateHash();
     }
 
     // Instance Accessors
@@ -60,11 +79,10 @@ public class FrameInfo
         return lineNr;
     }
 
-    // Object Implementation
+    // Helper Methods
 
-    @Override
     // Generated by Eclipse
-    public int hashCode()
+    private int calculateHash()
     {
         final int prime = 31;
         int result = 1;
@@ -74,6 +92,14 @@ public class FrameInfo
         return result;
     }
 
+    // Object Implementation
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
     @Override
     public boolean equals(Object obj)
     {
@@ -88,7 +114,7 @@ public class FrameInfo
         }
 
         FrameInfo other = (FrameInfo)obj;
-        return (bci == other.bci && lineNr == other.lineNr && methodId == other.methodId);
+        return (hash == other.hash && bci == other.bci && lineNr == other.lineNr && methodId == other.methodId);
     }
 
     @Override
@@ -0,0 +1,186 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean.info;
+
+import static java.util.Arrays.copyOf;
+import static java.util.Arrays.fill;
+
+/**
+ * Interning table which maps the (method id, BCI, line number) triple of a frame onto a canonical {@link FrameInfo}.
+ * <p>
+ * The table is an open-addressing hash table whose keys are stored in primitive arrays, so looking up a frame which has
+ * been seen before doesn't allocate anything. Only the first lookup of a frame creates its {@link FrameInfo}. Since all
+ * lookups for the same frame return the same instance, {@link FrameInfo#equals(Object)} on interned frames is decided by
+ * the identity check.
+ * <p>
+ * Every interned {@link FrameInfo} also gets an int id, assigned sequentially from 0 in the order in which the frames
+ * were first seen.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class FrameTable
+{
+    // Class Properties
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int NONE = -1;
+
+    // Instance Properties
+
+    private int size;
+
+    // The frame data, indexed by frame id.
+    private long[] methodIds;
+    private int[] bcis;
+    private int[] lineNrs;
+    private FrameInfo[] frames;
+
+    // Open-addressing table containing frame ids, or NONE for empty slots. The capacity is always a power of 2 and at
+    // least twice the number of frames.
+    private int[] table;
+
+    // Instance Constructors
+
+    /**
+     * Empty constructor.
+     */
+    public FrameTable()
+    {
+        methodIds = new long[INITIAL_CAPACITY];
+        bcis = new int[INITIAL_CAPACITY];
+        lineNrs = new int[INITIAL_CAPACITY];
+        frames = new FrameInfo[INITIAL_CAPACITY];
+        table = newTable(INITIAL_CAPACITY * 2);
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the number of distinct frames in the table.
+     * <p>
+     * @return the number of distinct frames in the table
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the canonical {@link FrameInfo} with the specified id.
+     * <p>
+     * @param id the id of the frame
+     * @return the canonical {@link FrameInfo} with the specified id
+     */
+    public FrameInfo get(int id)
+    {
+        return frames[id];
+    }
+
+    // Interning Methods
+
+    /**
+     * Returns the canonical {@link FrameInfo} for the specified frame, creating it if the frame hasn't been seen before.
+     * <p>
+     * @param methodId the id of the method whose execution was recorded in the frame
+     * @param bci the Byte Code Index of the execution point recorded in the frame
+     * @param lineNr the line number of the execution point recorded in the frame
+     * @return the canonical {@link FrameInfo} for the frame
+     */
+    public FrameInfo intern(long methodId, int bci, int lineNr)
+    {
+        // The id has to be determined first, since looking it up may grow the frames array.
+        int id = idOf(methodId, bci, lineNr);
+        return frames[id];
+    }
+
+    /**
+     * Returns the id of the specified frame, adding the frame to the table if it hasn't been seen before.
+     * <p>
+     * @param methodId the id of the method whose execution was recorded in the frame
+     * @param bci the Byte Code Index of the execution point recorded in the frame
+     * @param lineNr the line number of the execution point recorded in the frame
+     * @return the id of the frame
+     */
+    public int idOf(long methodId, int bci, int lineNr)
+    {
+        int mask = table.length - 1;
+        int slot = hash(methodId, bci, lineNr) & mask;
+
+        for (int id = table[slot]; id != NONE; id = table[slot])
+        {
+            if (methodIds[id] == methodId && bcis[id] == bci && lineNrs[id] == lineNr)
+            {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = size++;
+        ensureCapacity();
+
+        methodIds[id] = methodId;
+        bcis[id] = bci;
+        lineNrs[id] = lineNr;
+        frames[id] = new FrameInfo(methodId, bci, lineNr);
+
+        if (size * 2 > table.length)
+        {
+            rehash(table.length * 2);
+        }
+        else
+        {
+            table[slot] = id;
+        }
+        return id;
+    }
+
+    // Helper Methods
+
+    /**
+     * Grows the frame data arrays if the last assigned id doesn't fit.
+     */
+    private void ensureCapacity()
+    {
+        if (size > frames.length)
+        {
+            int capacity = frames.length * 2;
+            methodIds = copyOf(methodIds, capacity);
+            bcis = copyOf(bcis, capacity);
+            lineNrs = copyOf(lineNrs, capacity);
+            frames = copyOf(frames, capacity);
+        }
+    }
+
+    /**
+     * Rebuilds the hash table with the specified capacity, which must be a power of 2.
+     * <p>
+     * @param capacity the capacity of the new hash table
+     */
+    private void rehash(int capacity)
+    {
+        table = newTable(capacity);
+        int mask = capacity - 1;
+
+        for (int id = 0; id < size; id++)
+        {
+            int slot = hash(methodIds[id], bcis[id], lineNrs[id]) & mask;
+            while (table[slot] != NONE)
+            {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+
+    private static int[] newTable(int capacity)
+    {
+        int[] result = new int[capacity];
+        fill(result, NONE);
+        return result;
+    }
+
+    private static int hash(long methodId, int bci, int lineNr)
+    {
+        long hash = (methodId * 31 + bci) * 31 + lineNr;
+        hash *= 0x9E3779B97F4A7C15L;
+        return (int)(hash ^ (hash >>> 32));
+    }
+}
@@ -34,6 +34,13 @@ public class MethodInfo
         className = method.getClassName();
         methodName = method.getMethodName();
 
+        // Synthetic methods, such as the one representing pruned frames, have no class.
+        if (className.isEmpty())
+        {
+            cachedFqmn = methodName;
+            return;
+        }
+
         StringBuilder result = new StringBuilder(className);
         result.append(".");
         result.append(methodName);
@@ -1,11 +1,10 @@
 package com.insightfullogic.honest_profiler.core.profiles.lean.info;
 
-import static java.math.BigInteger.ZERO;
-
 import java.math.BigInteger;
 
 import com.insightfullogic.honest_profiler.core.aggregation.result.Aggregation;
 import com.insightfullogic.honest_profiler.core.parser.StackFrame;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
 
 /**
  * NumericInfo collects the four basic amounts tracked by the profiles and {@link Aggregation}s
@@ -21,16 +20,24 @@ import com.insightfullogic.honest_profiler.core.parser.StackFrame;
  * </ul>
  * <p>
  * The class also provides aggregation methods which aggregate a sample or other NumericInfo into this one.
+ * <p>
+ * The amounts are accumulated in primitive longs, so aggregating a sample doesn't allocate anything. A time which
+ * overflows a long escalates to a {@link BigInteger}, which is exposed by {@link #getExactSelfTime()} and
+ * {@link #getExactTotalTime()}, while the primitive accessors saturate at the bounds of the long range.
  */
 public class NumericInfo
 {
     // Instance Properties
 
-    private BigInteger selfTime;
-    private BigInteger totalTime;
+    private long selfTime;
+    private long totalTime;
+
+    private long selfCnt;
+    private long totalCnt;
 
-    private int selfCnt;
-    private int totalCnt;
+    // The exact times, only set once the corresponding time has overflowed a long, after which they take precedence.
+    private BigInteger wideSelfTime;
+    private BigInteger wideTotalTime;
 
     // Instance Constructors
 
@@ -39,63 +46,101 @@ public class NumericInfo
      */
     public NumericInfo()
     {
-        this(ZERO, ZERO, 0, 0);
+        // NOOP
     }
 
     /**
-     * Copy constructor.
+     * Constructor which specifies the aggregated amounts directly.
      * <p>
-     * @param source the source NumericInfo which is being copied
+     * @param selfTime the self time for the method or aggregated set of methods
+     * @param totalTime the total time for the method or aggregated set of methods
+     * @param selfCnt the self sample count for the method or aggregated set of methods
+     * @param totalCnt the total sample count for the method or aggregated set of methods
      */
-    private NumericInfo(NumericInfo source)
+    public NumericInfo(long selfTime, long totalTime, long selfCnt, long totalCnt)
     {
-        this(source.selfTime, source.totalTime, source.selfCnt, source.totalCnt);
+        this.selfTime = selfTime;
+        this.totalTime = totalTime;
+        this.selfCnt = selfCnt;
+        this.totalCnt = totalCnt;
     }
 
     /**
-     * Convenience internal constructor.
+     * Copy constructor.
      * <p>
-     * @param selfTime the self time in ns
-     * @param totalTime the total time in ns
-     * @param selfCnt the self count
-     * @param totalCnt the total count
+     * @param source the source NumericInfo which is being copied
      */
-    private NumericInfo(BigInteger selfTime, BigInteger totalTime, int selfCnt, int totalCnt)
+    private NumericInfo(NumericInfo source)
     {
-        this.selfTime = selfTime;
-        this.totalTime = totalTime;
-        this.selfCnt = selfCnt;
-        this.totalCnt = totalCnt;
+        this.selfTime = source.selfTime;
+        this.totalTime = source.totalTime;
+        this.selfCnt = source.selfCnt;
+        this.totalCnt = source.totalCnt;
+        this.wideSelfTime = source.wideSelfTime;
+        this.wideTotalTime = source.wideTotalTime;
     }
 
     // Instance Accessors
 
     /**
-     * Returns the self time for the method or aggregated set of methods.
+     * Returns the self time for the method or aggregated set of methods. If the time doesn't fit in a long, the result
+     * is {@link Long#MAX_VALUE} or {@link Long#MIN_VALUE}.
      * <p>
      * @return the self time for the method or aggregated set of methods
      */
-    public BigInteger getSelfTime()
+    public long getSelfTime()
     {
         return selfTime;
     }
 
     /**
-     * Returns the total time for the method or aggregated set of methods.
+     * Returns the total time for the method or aggregated set of methods. If the time doesn't fit in a long, the result
+     * is {@link Long#MAX_VALUE} or {@link Long#MIN_VALUE}.
      * <p>
      * @return the total time for the method or aggregated set of methods
      */
-    public BigInteger getTotalTime()
+    public long getTotalTime()
     {
         return totalTime;
     }
 
+    /**
+     * Returns the exact self time for the method or aggregated set of methods, even if it doesn't fit in a long.
+     * <p>
+     * @return the exact self time for the method or aggregated set of methods
+     */
+    public BigInteger getExactSelfTime()
+    {
+        return wideSelfTime == null ? BigInteger.valueOf(selfTime) : wideSelfTime;
+    }
+
+    /**
+     * Returns the exact total time for the method or aggregated set of methods, even if it doesn't fit in a long.
+     * <p>
+     * @return the exact total time for the method or aggregated set of methods
+     */
+    public BigInteger getExactTotalTime()
+    {
+        return wideTotalTime == null ? BigInteger.valueOf(totalTime) : wideTotalTime;
+    }
+
+    /**
+     * Indicates whether the self or total time has overflowed a long, in which case the primitive accessors return a
+     * saturated value.
+     * <p>
+     * @return true if the self or total time has overflowed a long
+     */
+    public boolean isOverflowed()
+    {
+        return wideSelfTime != null || wideTotalTime != null;
+    }
+
     /**
      * Returns the self sample count for the method or aggregated set of methods.
      * <p>
      * @return the self sample count for the method or aggregated set of methods
      */
-    public int getSelfCnt()
+    public long getSelfCnt()
     {
         return selfCnt;
     }
@@ -105,7 +150,7 @@ public class NumericInfo
      * <p>
      * @return the total sample count for the method or aggregated set of methods
      */
-    public int getTotalCnt()
+    public long getTotalCnt()
     {
         return totalCnt;
     }
@@ -125,14 +170,12 @@ public class NumericInfo
      */
     public NumericInfo add(long nanos, boolean self)
     {
-        BigInteger converted = BigInteger.valueOf(nanos);
-
-        totalTime = totalTime.add(converted);
+        addTotalTime(nanos, null);
         totalCnt++;
 
         if (self)
         {
-            selfTime = selfTime.add(converted);
+            addSelfTime(nanos, null);
             selfCnt++;
         }
 
@@ -148,13 +191,48 @@ public class NumericInfo
      */
     public NumericInfo add(NumericInfo other)
     {
-        selfTime = selfTime.add(other.selfTime);
-        totalTime = totalTime.add(other.totalTime);
+        addSelfTime(other.selfTime, other.wideSelfTime);
+        addTotalTime(other.totalTime, other.wideTotalTime);
         selfCnt += other.selfCnt;
         totalCnt += other.totalCnt;
         return this;
     }
 
+    /**
+     * Aggregation method for aggregating amounts which are stored as primitives, e.g. in a {@link LeanTree}, into this
+     * NumericInfo without wrapping them into a NumericInfo first.
+     * <p>
+     * @param selfTime the self time to be added
+     * @param totalTime the total time to be added
+     * @param selfCnt the self sample count to be added
+     * @param totalCnt the total sample count to be added
+     * @return this object
+     */
+    public NumericInfo add(long selfTime, long totalTime, long selfCnt, long totalCnt)
+    {
+        addSelfTime(selfTime, null);
+        addTotalTime(totalTime, null);
+        this.selfCnt += selfCnt;
+        this.totalCnt += totalCnt;
+        return this;
+    }
+
+    /**
+     * Aggregation method for removing another NumericInfo, which was previously aggregated into this one, from this
+     * one. The values of the other NumericInfo are subtracted from the corresponding values.
+     * <p>
+     * @param other the NumericInfo object to be removed from this one
+     * @return this object
+     */
+    public NumericInfo subtract(NumericInfo other)
+    {
+        addSelfTime(-other.selfTime, negate(other.wideSelfTime, other.selfTime));
+        addTotalTime(-other.totalTime, negate(other.wideTotalTime, other.totalTime));
+        selfCnt -= other.selfCnt;
+        totalCnt -= other.totalCnt;
+        return this;
+    }
+
     // Copy Methods
 
     /**
@@ -167,11 +245,79 @@ public class NumericInfo
         return new NumericInfo(this);
     }
 
+    // Helper Methods
+
+    /**
+     * Adds an amount to the self time, escalating to the wide representation if the sum overflows.
+     * <p>
+     * @param nanos the amount to be added, saturated if the amount is wide
+     * @param wideNanos the exact amount to be added, or null if it fits in a long
+     */
+    private void addSelfTime(long nanos, BigInteger wideNanos)
+    {
+        long sum = selfTime + nanos;
+        if (wideSelfTime == null && wideNanos == null && !overflows(selfTime, nanos, sum))
+        {
+            selfTime = sum;
+            return;
+        }
+        wideSelfTime = exact(wideSelfTime, selfTime).add(exact(wideNanos, nanos));
+        selfTime = saturate(wideSelfTime);
+    }
+
+    /**
+     * Adds an amount to the total time, escalating to the wide representation if the sum overflows.
+     * <p>
+     * @param nanos the amount to be added, saturated if the amount is wide
+     * @param wideNanos the exact amount to be added, or null if it fits in a long
+     */
+    private void addTotalTime(long nanos, BigInteger wideNanos)
+    {
+        long sum = totalTime + nanos;
+        if (wideTotalTime == null && wideNanos == null && !overflows(totalTime, nanos, sum))
+        {
+            totalTime = sum;
+            return;
+        }
+        wideTotalTime = exact(wideTotalTime, totalTime).add(exact(wideNanos, nanos));
+        totalTime = saturate(wideTotalTime);
+    }
+
+    private static boolean overflows(long a, long b, long sum)
+    {
+        // The sum overflowed if its sign differs from the signs of both operands
+        return ((a ^ sum) & (b ^ sum)) < 0;
+    }
+
+    private static BigInteger exact(BigInteger wide, long value)
+    {
+        return wide == null ? BigInteger.valueOf(value) : wide;
+    }
+
+    private static BigInteger negate(BigInteger wide, long value)
+    {
+        // The negation of Long.MIN_VALUE doesn't fit in a long.
+        if (wide == null && value != Long.MIN_VALUE)
+        {
+            return null;
+        }
+        return exact(wide, value).negate();
+    }
+
+    private static long saturate(BigInteger value)
+    {
+        if (value.bitLength() < Long.SIZE)
+        {
+            return value.longValue();
+        }
+        return value.signum() > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+    }
+
     // Object Implementation
 
     @Override
     public String toString()
     {
-        return "data[" + selfTime + ":" + totalTime + ":" + selfCnt + ":" + totalCnt + "]";
+        return "data[" + getExactSelfTime() + ":" + getExactTotalTime() + ":" + selfCnt + ":" + totalCnt + "]";
     }
 }
@@ -0,0 +1,459 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean.info;
+
+import static java.lang.Math.floorDiv;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.arraycopy;
+import static java.util.Arrays.binarySearch;
+import static java.util.Arrays.copyOf;
+
+/**
+ * SampleTimeline is a histogram of the number of samples over time, with buckets of a fixed duration. It is used to
+ * record when the samples aggregated into a node were taken.
+ * <p>
+ * The histogram picks the cheaper of two encodings as it grows. The dense encoding stores a count for every bucket
+ * between the first and the last non-empty one, which is compact for nodes which are sampled continuously. The sparse
+ * encoding stores the offsets and counts of the non-empty buckets only, which is compact for nodes which are sampled
+ * now and then.
+ * <p>
+ * The number of buckets is bounded. When a sample would exceed the bound, the resolution is halved by merging pairs of
+ * adjacent buckets. Bucket boundaries are multiples of the bucket duration, so histograms which started out with the
+ * same resolution can always be added together, at the coarser of their resolutions.
+ */
+public class SampleTimeline
+{
+    // Class Properties
+
+    /**
+     * The maximum number of buckets (dense) or non-empty buckets (sparse) a SampleTimeline stores.
+     */
+    public static final int MAX_BUCKETS = 512;
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    // Instance Properties
+
+    private long bucketNanos;
+    // The index of the first bucket, counted in bucketNanos since the epoch of the timestamps.
+    private long start;
+
+    // Dense : counts[i] is the count of bucket start + i, for i < size. Sparse : counts[i] is the count of bucket
+    // start + offsets[i], for i < size, with ascending offsets.
+    private int[] counts;
+    private int[] offsets;
+    private int size;
+    // The number of non-empty buckets.
+    private int filled;
+
+    // Instance Constructors
+
+    /**
+     * Constructor for an empty SampleTimeline with the specified bucket duration.
+     * <p>
+     * @param bucketNanos the duration of the buckets in nanoseconds
+     */
+    public SampleTimeline(long bucketNanos)
+    {
+        if (bucketNanos < 1)
+        {
+            throw new IllegalArgumentException("The bucket duration must be positive.");
+        }
+        this.bucketNanos = bucketNanos;
+        counts = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Copy constructor.
+     * <p>
+     * @param source the SampleTimeline which is being copied
+     */
+    private SampleTimeline(SampleTimeline source)
+    {
+        bucketNanos = source.bucketNanos;
+        start = source.start;
+        counts = copyOf(source.counts, source.size);
+        offsets = source.offsets == null ? null : copyOf(source.offsets, source.size);
+        size = source.size;
+        filled = source.filled;
+    }
+
+    // Instance Accessors
+
+    /**
+     * Returns the current duration of the buckets in nanoseconds, which may be a multiple of the initial duration if
+     * the resolution was reduced.
+     * <p>
+     * @return the duration of the buckets in nanoseconds
+     */
+    public long getBucketNanos()
+    {
+        return bucketNanos;
+    }
+
+    /**
+     * Returns the number of buckets which contain at least one sample.
+     * <p>
+     * @return the number of non-empty buckets
+     */
+    public int getFilledBuckets()
+    {
+        return filled;
+    }
+
+    /**
+     * Returns a boolean indicating whether the non-empty buckets are stored sparsely.
+     * <p>
+     * @return a boolean indicating whether the non-empty buckets are stored sparsely
+     */
+    public boolean isSparse()
+    {
+        return offsets != null;
+    }
+
+    /**
+     * Returns the total number of samples in the histogram.
+     * <p>
+     * @return the total number of samples
+     */
+    public long getTotalCnt()
+    {
+        long result = 0;
+        for (int i = 0; i < size; i++)
+        {
+            result += counts[i];
+        }
+        return result;
+    }
+
+    /**
+     * Passes the start time and the count of every non-empty bucket, in chronological order, to the specified
+     * {@link BucketConsumer}.
+     * <p>
+     * @param consumer the {@link BucketConsumer} receiving the buckets
+     */
+    public void forEachBucket(BucketConsumer consumer)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (counts[i] > 0)
+            {
+                consumer.accept((start + offset(i)) * bucketNanos, counts[i]);
+            }
+        }
+    }
+
+    // Aggregation Methods
+
+    /**
+     * Adds a sample taken at the specified time.
+     * <p>
+     * @param timestampNanos the time at which the sample was taken, in nanoseconds
+     * @return this object
+     */
+    public SampleTimeline add(long timestampNanos)
+    {
+        addToBucket(floorDiv(timestampNanos, bucketNanos), 1);
+        return this;
+    }
+
+    /**
+     * Adds the samples of another SampleTimeline to this one. The result has the coarser of both resolutions. Both
+     * SampleTimelines must have been constructed with the same bucket duration.
+     * <p>
+     * @param other the SampleTimeline whose samples are added
+     * @return this object
+     * @throws IllegalArgumentException if the bucket durations of the SampleTimelines aren't compatible
+     */
+    public SampleTimeline add(SampleTimeline other)
+    {
+        while (bucketNanos < other.bucketNanos)
+        {
+            coarsen();
+        }
+        if (bucketNanos % other.bucketNanos != 0)
+        {
+            throw new IllegalArgumentException("The bucket durations of the timelines aren't compatible.");
+        }
+
+        for (int i = 0; i < other.size; i++)
+        {
+            if (other.counts[i] > 0)
+            {
+                // The ratio is recalculated every time, since adding a bucket may reduce the resolution.
+                long ratio = bucketNanos / other.bucketNanos;
+                addToBucket(floorDiv(other.start + other.offset(i), ratio), other.counts[i]);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns a copy of this object.
+     * <p>
+     * @return a copy of this object
+     */
+    public SampleTimeline copy()
+    {
+        return new SampleTimeline(this);
+    }
+
+    // Helper Methods
+
+    private long offset(int i)
+    {
+        return offsets == null ? i : offsets[i];
+    }
+
+    /**
+     * Adds a number of samples to the specified bucket, switching encodings or reducing the resolution as needed.
+     * <p>
+     * @param bucket the index of the bucket
+     * @param count the number of samples
+     */
+    private void addToBucket(long bucket, int count)
+    {
+        if (size == 0)
+        {
+            start = bucket;
+        }
+
+        while (true)
+        {
+            // Rebase if the bucket precedes the first one, which only happens if samples arrive out of order.
+            if (bucket < start && !rebase(bucket))
+            {
+                coarsen();
+                bucket = floorDiv(bucket, 2);
+                continue;
+            }
+
+            long offset = bucket - start;
+            boolean added = offsets == null ? addDense(offset, count) : addSparse(offset, count);
+            if (added)
+            {
+                return;
+            }
+
+            coarsen();
+            bucket = floorDiv(bucket, 2);
+        }
+    }
+
+    private boolean addDense(long offset, int count)
+    {
+        if (offset < size)
+        {
+            filled += counts[(int)offset] == 0 ? 1 : 0;
+            counts[(int)offset] += count;
+            return true;
+        }
+
+        long span = offset + 1;
+        // Switch to the sparse encoding if it takes less memory (2 ints per non-empty bucket).
+        if (span > 2 * (filled + 1))
+        {
+            toSparse();
+            return addSparse(offset, count);
+        }
+        if (span > MAX_BUCKETS)
+        {
+            return false;
+        }
+
+        ensureCapacity((int)span);
+        size = (int)span;
+        counts[(int)offset] = count;
+        filled++;
+        return true;
+    }
+
+    private boolean addSparse(long offset, int count)
+    {
+        int last = size - 1;
+        int index = size > 0 && offsets[last] == offset ? last
+            : size > 0 && offsets[last] > offset ? binarySearch(offsets, 0, size, (int)offset) : -size - 1;
+
+        if (index >= 0)
+        {
+            counts[index] += count;
+            return true;
+        }
+
+        if (size == MAX_BUCKETS || offset > Integer.MAX_VALUE)
+        {
+            return false;
+        }
+
+        int insert = -index - 1;
+        ensureCapacity(size + 1);
+        arraycopy(offsets, insert, offsets, insert + 1, size - insert);
+        arraycopy(counts, insert, counts, insert + 1, size - insert);
+        offsets[insert] = (int)offset;
+        counts[insert] = count;
+        size++;
+        filled++;
+
+        // Switch to the dense encoding if it takes no more memory.
+        if (offsets[size - 1] + 1 <= min(2 * size, MAX_BUCKETS))
+        {
+            toDense();
+        }
+        return true;
+    }
+
+    /**
+     * Moves the start to an earlier bucket.
+     * <p>
+     * @param bucket the new first bucket
+     * @return false if the resulting span would exceed the bounds, in which case nothing changed
+     */
+    private boolean rebase(long bucket)
+    {
+        long shift = start - bucket;
+        long span = shift + (size == 0 ? 0 : offset(size - 1) + 1);
+
+        if (offsets == null)
+        {
+            if (span > MAX_BUCKETS)
+            {
+                return false;
+            }
+            ensureCapacity((int)span);
+            arraycopy(counts, 0, counts, (int)shift, size);
+            for (int i = 0; i < shift; i++)
+            {
+                counts[i] = 0;
+            }
+            size = (int)span;
+        }
+        else
+        {
+            if (span > Integer.MAX_VALUE)
+            {
+                return false;
+            }
+            for (int i = 0; i < size; i++)
+            {
+                offsets[i] += shift;
+            }
+        }
+
+        start = bucket;
+        return true;
+    }
+
+    /**
+     * Halves the resolution by merging pairs of adjacent buckets.
+     */
+    private void coarsen()
+    {
+        long newStart = floorDiv(start, 2);
+        int[] newCounts = new int[counts.length];
+        int[] newOffsets = offsets == null ? null : new int[offsets.length];
+        int newSize = 0;
+        int newFilled = 0;
+
+        for (int i = 0; i < size; i++)
+        {
+            if (counts[i] == 0)
+            {
+                continue;
+            }
+
+            long offset = floorDiv(start + offset(i), 2) - newStart;
+            if (newOffsets == null)
+            {
+                newFilled += newCounts[(int)offset] == 0 ? 1 : 0;
+                newCounts[(int)offset] += counts[i];
+                newSize = (int)offset + 1;
+            }
+            else if (newSize > 0 && newOffsets[newSize - 1] == offset)
+            {
+                newCounts[newSize - 1] += counts[i];
+            }
+            else
+            {
+                newOffsets[newSize] = (int)offset;
+                newCounts[newSize++] = counts[i];
+                newFilled++;
+            }
+        }
+
+        bucketNanos *= 2;
+        start = newStart;
+        counts = newCounts;
+        offsets = newOffsets;
+        size = newSize;
+        filled = newFilled;
+    }
+
+    private void toSparse()
+    {
+        int[] newCounts = new int[max(filled + 1, INITIAL_CAPACITY)];
+        int[] newOffsets = new int[newCounts.length];
+        int newSize = 0;
+
+        for (int i = 0; i < size; i++)
+        {
+            if (counts[i] > 0)
+            {
+                newOffsets[newSize] = i;
+                newCounts[newSize++] = counts[i];
+            }
+        }
+
+        counts = newCounts;
+        offsets = newOffsets;
+        size = newSize;
+    }
+
+    private void toDense()
+    {
+        int span = offsets[size - 1] + 1;
+        int[] newCounts = new int[max(span, INITIAL_CAPACITY)];
+        for (int i = 0; i < size; i++)
+        {
+            newCounts[offsets[i]] = counts[i];
+        }
+
+        counts = newCounts;
+        offsets = null;
+        size = span;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > counts.length)
+        {
+            int newCapacity = max(capacity, counts.length * 2);
+            counts = copyOf(counts, newCapacity);
+            if (offsets != null)
+            {
+                offsets = copyOf(offsets, newCapacity);
+            }
+        }
+    }
+
+    // Object Implementation
+
+    @Override
+    public String toString()
+    {
+        return "timeline[" + filled + " x " + bucketNanos + "ns" + (offsets == null ? "" : ", sparse") + "]";
+    }
+
+    /**
+     * Functional interface for receiving the buckets of a SampleTimeline.
+     */
+    @FunctionalInterface
+    public static interface BucketConsumer
+    {
+        /**
+         * Receives a non-empty bucket.
+         * <p>
+         * @param startNanos the start time of the bucket in nanoseconds
+         * @param count the number of samples in the bucket
+         */
+        void accept(long startNanos, long count);
+    }
+}
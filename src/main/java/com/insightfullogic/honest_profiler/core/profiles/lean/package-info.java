@@ -178,5 +178,16 @@
  *                                                                      -- MAP : FrameInfo -> LeanNode --- ...
  * }
  * </pre>
+ * <p>
+ * Alternatively, the trees of all threads can be stored in a single
+ * {@link com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree}, an arena of parallel primitive arrays in
+ * which a node is an index rather than a set of objects. Its nodes are read through a
+ * {@link com.insightfullogic.honest_profiler.core.profiles.lean.LeanNodeCursor}, and are only turned into
+ * {@link com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode} trees when a consumer asks for them. The
+ * arrays are paged and copied on write, so a profile can hold a snapshot of the tree which shares all unmodified pages
+ * with the tree the collector keeps adding to. The difference between two snapshots can be emitted as a
+ * {@link com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfileDelta}, which a
+ * {@link com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfileMirror} applies to its own copy of the tree
+ * instead of processing a full profile on every refresh.
  */
 package com.insightfullogic.honest_profiler.core.profiles.lean;
\ No newline at end of file
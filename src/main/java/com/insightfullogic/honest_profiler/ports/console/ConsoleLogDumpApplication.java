@@ -23,6 +23,7 @@
 package com.insightfullogic.honest_profiler.ports.console;
 
 import com.insightfullogic.honest_profiler.core.Monitor;
+import com.insightfullogic.honest_profiler.core.parser.AgentStats;
 import com.insightfullogic.honest_profiler.core.parser.LogEventListener;
 import com.insightfullogic.honest_profiler.core.parser.Method;
 import com.insightfullogic.honest_profiler.core.parser.StackFrame;
@@ -195,6 +196,17 @@ public class ConsoleLogDumpApplication
                 threadNames.put(tid, name);
             }
 
+            @Override
+            public void handle(AgentStats agentStats)
+            {
+                out.printf("AgentStats: written=%d,dropped=%d,highWaterMark=%d,drainLatencyNanos=%d,"
+                        + "maxDrainLatencyNanos=%d,jvmtiLookupNanos=%d,bytesWritten=%d\n",
+                    agentStats.getSamplesWritten(), agentStats.getSamplesDropped(),
+                    agentStats.getQueueHighWaterMark(), agentStats.getDrainLatencyNanos(),
+                    agentStats.getMaxDrainLatencyNanos(), agentStats.getJvmtiLookupNanos(),
+                    agentStats.getBytesWritten());
+            }
+
             @Override
             public void endOfLog()
             {
@@ -21,6 +21,7 @@
  **/
 package com.insightfullogic.honest_profiler.ports.console;
 
+import com.insightfullogic.honest_profiler.core.parser.AgentStats;
 import com.insightfullogic.honest_profiler.core.profiles.Profile;
 import com.insightfullogic.honest_profiler.core.profiles.ProfileListener;
 
@@ -30,6 +31,7 @@ import static com.insightfullogic.honest_profiler.ports.console.ProfileFormat.AL
 
 public class ProfileView implements ProfileListener
 {
+    private static final double NANOS_TO_MILLIS = 1000.0 * 1000.0;
 
     private final Console output;
 
@@ -54,6 +56,25 @@ public class ProfileView implements ProfileListener
     {
         out.print("Number of stack traces: ");
         out.print(Integer.toString(profile.getTraceCount()));
+
+        AgentStats stats = profile.getAgentStats();
+        if (stats != null)
+        {
+            out.println();
+            printAgentStats(stats, out);
+        }
+    }
+
+    private void printAgentStats(AgentStats stats, PrintStream out)
+    {
+        out.printf("Dropped samples: %d (%.2f%%)", stats.getSamplesDropped(), stats.getDropRate() * 100);
+        out.printf(", queue high-water mark: %d", stats.getQueueHighWaterMark());
+        out.printf(
+            ", queue latency avg/max: %.3f/%.3f ms",
+            stats.getAverageDrainLatencyNanos() / NANOS_TO_MILLIS,
+            stats.getMaxDrainLatencyNanos() / NANOS_TO_MILLIS);
+        out.printf(", JVMTI lookups: %.3f ms", stats.getJvmtiLookupNanos() / NANOS_TO_MILLIS);
+        out.printf(", log bytes: %d", stats.getBytesWritten());
     }
 
     public void setProfileFormat(ProfileFormat profileFormat)
@@ -0,0 +1,47 @@
+package com.insightfullogic.honest_profiler.ports.javafx;
+
+/**
+ * The lengths of the sliding window a live profile can be restricted to.
+ */
+public enum WindowLength
+{
+    ALL("Whole Profile", 0),
+    LAST_MINUTE("Last Minute", 60),
+    LAST_5_MINUTES("Last 5 Minutes", 300),
+    LAST_15_MINUTES("Last 15 Minutes", 900);
+
+    private String name;
+    private int seconds;
+
+    private WindowLength(String displayName, int seconds)
+    {
+        name = displayName;
+        this.seconds = seconds;
+    }
+
+    /**
+     * Returns the length of the window in seconds, or 0 if the profile isn't restricted to a window.
+     * <p>
+     * @return the length of the window in seconds
+     */
+    public int getSeconds()
+    {
+        return seconds;
+    }
+
+    /**
+     * Returns the length in seconds of the longest window.
+     * <p>
+     * @return the length in seconds of the longest window
+     */
+    public static int getMaxSeconds()
+    {
+        return LAST_15_MINUTES.seconds;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
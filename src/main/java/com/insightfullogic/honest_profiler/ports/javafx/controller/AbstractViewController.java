@@ -2,7 +2,6 @@ package com.insightfullogic.honest_profiler.ports.javafx.controller;
 
 import static com.insightfullogic.honest_profiler.core.aggregation.grouping.CombinedGrouping.combine;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.StyleUtil.doubleDiffStyler;
-import static com.insightfullogic.honest_profiler.ports.javafx.util.StyleUtil.intDiffStyler;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.StyleUtil.longDiffStyler;
 import static com.insightfullogic.honest_profiler.ports.javafx.view.Icon.FUNNEL_16;
 import static com.insightfullogic.honest_profiler.ports.javafx.view.Icon.FUNNEL_ACTIVE_16;
@@ -316,7 +315,7 @@ public abstract class AbstractViewController<T> extends AbstractController
         String title)
     {
         column.setCellValueFactory(new PropertyValueFactory<>(propertyName));
-        column.setCellFactory(col -> new CountTableCell<>(intDiffStyler));
+        column.setCellFactory(col -> new CountTableCell<>(longDiffStyler));
         setColumnHeader(column, title, null);
     }
 
@@ -423,7 +422,7 @@ public abstract class AbstractViewController<T> extends AbstractController
         String title)
     {
         column.setCellValueFactory(new TreeItemPropertyValueFactory<>(propertyName));
-        column.setCellFactory(col -> new CountTreeTableCell<>(intDiffStyler));
+        column.setCellFactory(col -> new CountTreeTableCell<>(longDiffStyler));
         setColumnHeader(column, title, null);
     }
 
@@ -36,12 +36,17 @@ import static com.insightfullogic.honest_profiler.ports.javafx.util.BindUtil.FLA
 import static com.insightfullogic.honest_profiler.ports.javafx.util.BindUtil.flatExtractor;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.BindUtil.treeExtractor;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.ConversionUtil.getStringConverterForType;
+import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.CONTENT_LABEL_AGENTSTATS;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.CONTENT_LABEL_PROFILESAMPLECOUNT;
+import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.CONTENT_LABEL_PRUNESTATS;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.INFO_BUTTON_COMPARE;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.INFO_BUTTON_FREEZE_FROZEN;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.INFO_BUTTON_FREEZE_UNFROZEN;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.INFO_CHOICE_VIEWTYPE;
+import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.INFO_CHOICE_WINDOW;
+import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.INFO_LABEL_AGENTSTATS;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.INFO_LABEL_PROFILESAMPLECOUNT;
+import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.INFO_LABEL_PRUNESTATS;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.TOOLTIP_BUTTON_FREEZE_FROZEN;
 import static com.insightfullogic.honest_profiler.ports.javafx.util.ResourceUtil.TOOLTIP_BUTTON_FREEZE_UNFROZEN;
 import static com.insightfullogic.honest_profiler.ports.javafx.view.Icon.FREEZE_16;
@@ -53,7 +58,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.insightfullogic.honest_profiler.core.aggregation.AggregationProfile;
+import com.insightfullogic.honest_profiler.core.parser.AgentStats;
+import com.insightfullogic.honest_profiler.core.profiles.lean.PruneStats;
 import com.insightfullogic.honest_profiler.ports.javafx.ViewType;
+import com.insightfullogic.honest_profiler.ports.javafx.WindowLength;
 import com.insightfullogic.honest_profiler.ports.javafx.model.ApplicationContext;
 import com.insightfullogic.honest_profiler.ports.javafx.model.ProfileContext;
 
@@ -74,9 +83,13 @@ import javafx.scene.layout.AnchorPane;
  */
 public class ProfileRootController extends AbstractController
 {
+    private static final double NANOS_TO_MILLIS = 1000.0 * 1000.0;
+
     @FXML
     private ChoiceBox<ViewType> viewChoice;
     @FXML
+    private ChoiceBox<WindowLength> windowChoice;
+    @FXML
     private Button freezeButton;
     @FXML
     private Tooltip freezeTooltip;
@@ -85,6 +98,10 @@ public class ProfileRootController extends AbstractController
     @FXML
     private Label profileSampleCount;
     @FXML
+    private Label agentStats;
+    @FXML
+    private Label pruneStats;
+    @FXML
     private AnchorPane content;
     @FXML
     private FlatViewController flatController;
@@ -177,20 +194,9 @@ public class ProfileRootController extends AbstractController
         flameController.setProfileContext(prCtx);
         flameController.bind(prCtx.flameGraphProperty(), FLAME_EXTRACTOR);
 
-        // Bind the profile sample count display
-        prCtx.profileProperty().addListener(
-            (property, oldValue, newValue) -> profileSampleCount.setText(
-                newValue == null ? null : getText(
-                    CONTENT_LABEL_PROFILESAMPLECOUNT,
-                    newValue.getGlobalData().getTotalCnt())));
-
-        if (prCtx.getProfile() != null)
-        {
-            profileSampleCount.setText(
-                getText(
-                    CONTENT_LABEL_PROFILESAMPLECOUNT,
-                    prCtx.getProfile().getGlobalData().getTotalCnt()));
-        }
+        // Bind the profile sample count and agent stats display
+        prCtx.profileProperty().addListener((property, oldValue, newValue) -> showProfileInfo(newValue));
+        showProfileInfo(prCtx.getProfile());
 
         // Configure the View choice
         viewChoice.setConverter(getStringConverterForType(ViewType.class));
@@ -199,11 +205,50 @@ public class ProfileRootController extends AbstractController
         viewChoice.getItems().addAll(ViewType.values());
         viewChoice.getSelectionModel().select(FLAT);
 
+        // Configure the window choice, which only applies to live profiles
+        windowChoice.setConverter(getStringConverterForType(WindowLength.class));
+        windowChoice.getItems().addAll(WindowLength.values());
+        windowChoice.getSelectionModel().select(WindowLength.ALL);
+        windowChoice.getSelectionModel().selectedItemProperty()
+            .addListener((property, oldValue, newValue) -> prCtx.setWindow(newValue.getSeconds()));
+        windowChoice.setDisable(prCtx.getMode() != LIVE);
+
         freezeButton.setDisable(prCtx.getMode() != LIVE);
     }
 
     // View Methods
 
+    /**
+     * Show the number of samples in the profile, the sample loss and overhead reported by the agent, and how much of
+     * the profile was pruned to stay within the node budget.
+     * <p>
+     *
+     * @param profile the {@link AggregationProfile} being shown, possibly null
+     */
+    private void showProfileInfo(AggregationProfile profile)
+    {
+        profileSampleCount.setText(
+            profile == null ? null : getText(CONTENT_LABEL_PROFILESAMPLECOUNT, profile.getGlobalData().getTotalCnt()));
+
+        AgentStats stats = profile == null ? null : profile.getSource().getAgentStats();
+        agentStats.setText(
+            stats == null ? null : getText(
+                CONTENT_LABEL_AGENTSTATS,
+                stats.getSamplesDropped(),
+                stats.getDropRate(),
+                stats.getAverageDrainLatencyNanos() / NANOS_TO_MILLIS,
+                stats.getMaxDrainLatencyNanos() / NANOS_TO_MILLIS,
+                stats.getJvmtiLookupNanos() / NANOS_TO_MILLIS));
+
+        PruneStats pruned = profile == null ? null : profile.getSource().getPruneStats();
+        pruneStats.setText(
+            pruned == null || pruned.getPruneCount() == 0 ? null : getText(
+                CONTENT_LABEL_PRUNESTATS,
+                pruned.getPrunedSamples(),
+                pruned.getNodeCount(),
+                pruned.getNodeBudget()));
+    }
+
     /**
      * Show the selected View.
      * <p>
@@ -227,6 +272,7 @@ public class ProfileRootController extends AbstractController
         // Needed to actually display the Flame view.
         if (viewType == FLAME)
         {
+            profileContext.requestFlameGraph();
             flameController.refreshFlameView();
         }
     }
@@ -237,9 +283,12 @@ public class ProfileRootController extends AbstractController
     protected void initializeInfoText()
     {
         info(viewChoice, INFO_CHOICE_VIEWTYPE);
+        info(windowChoice, INFO_CHOICE_WINDOW);
         info(compareButton, INFO_BUTTON_COMPARE);
         info(freezeButton, INFO_BUTTON_FREEZE_UNFROZEN);
         info(profileSampleCount, INFO_LABEL_PROFILESAMPLECOUNT);
+        info(agentStats, INFO_LABEL_AGENTSTATS);
+        info(pruneStats, INFO_LABEL_PRUNESTATS);
     }
 
     @Override
@@ -169,7 +169,7 @@ public class TreeViewController extends AbstractProfileViewController<Tree, Node
         }
         else
         {
-            treeTable.setRoot(new NodeTreeItem(getTarget().filter(getFilterSpecification())));
+            treeTable.setRoot(new NodeTreeItem(appCtx(), getTarget().filter(getFilterSpecification())));
             expandPartial(treeTable.getRoot(), 2);
         }
         treeTable.sort();
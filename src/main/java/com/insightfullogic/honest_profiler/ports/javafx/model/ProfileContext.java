@@ -14,6 +14,7 @@ import com.insightfullogic.honest_profiler.core.profiles.FlameGraphListener;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfileListener;
 import com.insightfullogic.honest_profiler.ports.javafx.model.task.AggregateProfileTask;
+import com.insightfullogic.honest_profiler.ports.javafx.model.task.CollectFlameGraphTask;
 
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
@@ -56,9 +57,14 @@ public class ProfileContext
 
     private final SimpleObjectProperty<AggregationProfile> profile;
     private final SimpleObjectProperty<FlameGraph> flameGraph;
+    // Indicates whether the FlameGraph of a non-live log file has been requested, since it is collected on demand.
+    private boolean flameGraphRequested;
 
     private boolean frozen;
 
+    // The length in seconds of the sliding window the profiles are restricted to, 0 for the whole profile.
+    private int windowSeconds;
+
     private Duration refreshInterval;
     private Timeline timeline;
 
@@ -142,6 +148,33 @@ public class ProfileContext
         updateTimeline();
     }
 
+    /**
+     * Returns the length in seconds of the sliding window the {@link LeanProfile}s are restricted to.
+     * <p>
+     * @return the length in seconds of the sliding window, or 0 if the profiles contain all samples
+     */
+    public int getWindow()
+    {
+        return windowSeconds;
+    }
+
+    /**
+     * Restricts the {@link LeanProfile}s to the samples from a sliding window covering the most recent part of the
+     * profile, and requests an updated {@link LeanProfile} from the {@link ProfileSource}. This has no effect if the
+     * {@link ProfileSource} doesn't support windows.
+     * <p>
+     * @param seconds the length in seconds of the sliding window, or 0 if the profiles should contain all samples
+     */
+    public void setWindow(int seconds)
+    {
+        windowSeconds = seconds;
+        if (profileSource != null)
+        {
+            profileSource.setWindow(seconds);
+            profileSource.requestProfile();
+        }
+    }
+
     /**
      * Returns the unique id of this ProfileContext.
      * <p>
@@ -202,6 +235,19 @@ public class ProfileContext
         return flameGraph;
     }
 
+    /**
+     * Requests the {@link FlameGraph} for a non-live log file, which is collected in the background the first time it
+     * is requested. This has no effect for live profiles. This method may only be called on the FX thread.
+     */
+    public void requestFlameGraph()
+    {
+        if (mode == ProfileMode.LOG && !flameGraphRequested)
+        {
+            flameGraphRequested = true;
+            appCtx.execute(new CollectFlameGraphTask(this));
+        }
+    }
+
     /**
      * Returns a boolean indicating whether the ProfileContext is currently frozen, i.e. not requesting any
      * {@link LeanProfile} updates from the {@link ProfileSource}.
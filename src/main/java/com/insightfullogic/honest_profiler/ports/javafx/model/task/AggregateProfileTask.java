@@ -14,6 +14,11 @@ import javafx.concurrent.Task;
  * accept(LeanProfile) method from the front-end threads : the task will be submitted for processing on a worker thread
  * by the back-end thread. When the task finishes, it invokes its succeeded() method on the FX thread.
  * </p>
+ * <p>
+ * The {@link AggregationProfile} is created from the current one of the {@link ProfileContext}, so the aggregations
+ * which are in use are updated from the changes since the previous {@link LeanProfile} rather than recalculated. They
+ * are prepared by the task, so the views don't need to aggregate anything on the FX thread when they show them.
+ * </p>
  */
 public class AggregateProfileTask extends Task<AggregationProfile>
 {
@@ -41,7 +46,9 @@ public class AggregateProfileTask extends Task<AggregationProfile>
     @Override
     protected AggregationProfile call() throws Exception
     {
-        return new AggregationProfile(leanProfile);
+        AggregationProfile profile = new AggregationProfile(leanProfile, context.getProfile());
+        profile.prepare();
+        return profile;
     }
 
     // Guaranteed to be called on the FX thread.
@@ -0,0 +1,56 @@
+package com.insightfullogic.honest_profiler.ports.javafx.model.task;
+
+import static com.insightfullogic.honest_profiler.core.Monitor.pipe;
+
+import com.insightfullogic.honest_profiler.core.collector.FlameGraphCollector;
+import com.insightfullogic.honest_profiler.core.profiles.FlameGraph;
+import com.insightfullogic.honest_profiler.ports.javafx.model.ProfileContext;
+import com.insightfullogic.honest_profiler.ports.sources.FileLogSource;
+
+import javafx.concurrent.Task;
+
+/**
+ * Background task which collects the {@link FlameGraph} for the non-live log file of a {@link ProfileContext}, and
+ * emits it to the {@link ProfileContext}.
+ * <p>
+ * The flame graph merges consecutive identical stacks, so unlike the profile it is collected by a sequential pass over
+ * the file. The task is only executed once the flame graph is requested, so opening a log file doesn't pay for that
+ * pass unless the Flame view is shown.
+ */
+public class CollectFlameGraphTask extends Task<Void>
+{
+    // Instance Properties
+
+    private final ProfileContext context;
+
+    // Instance Constructors
+
+    /**
+     * Constructor which specifies the {@link ProfileContext} for whose log file the {@link FlameGraph} is collected.
+     * <p>
+     * @param context the {@link ProfileContext} which will receive the resulting {@link FlameGraph}
+     */
+    public CollectFlameGraphTask(ProfileContext context)
+    {
+        super();
+        this.context = context;
+    }
+
+    @Override
+    protected Void call() throws Exception
+    {
+        try (FileLogSource source = new FileLogSource(context.getFile()))
+        {
+            pipe(source, new FlameGraphCollector(context.getFlameGraphListener()), false).run();
+        }
+        return null;
+    }
+
+    // Guaranteed to be called on the FX thread.
+    @Override
+    protected void failed()
+    {
+        super.failed();
+        getException().printStackTrace();
+    }
+}
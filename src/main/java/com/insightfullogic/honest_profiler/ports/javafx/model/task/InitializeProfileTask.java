@@ -4,15 +4,18 @@ import static com.insightfullogic.honest_profiler.core.Monitor.pipe;
 import static com.insightfullogic.honest_profiler.core.Monitor.pipeFile;
 import static com.insightfullogic.honest_profiler.ports.javafx.model.ProfileContext.ProfileMode.LIVE;
 import static com.insightfullogic.honest_profiler.ports.javafx.model.ProfileContext.ProfileMode.LOG;
+import static java.util.concurrent.ForkJoinPool.commonPool;
 
 import java.io.File;
 
-import com.insightfullogic.honest_profiler.core.collector.FlameGraphCollector;
+import com.insightfullogic.honest_profiler.core.collector.lean.CollectorOptions;
 import com.insightfullogic.honest_profiler.core.collector.lean.LeanLogCollector;
-import com.insightfullogic.honest_profiler.core.parser.LogEventListener;
-import com.insightfullogic.honest_profiler.core.parser.LogEventPublisher;
+import com.insightfullogic.honest_profiler.core.collector.lean.ParallelLogCollector;
+import com.insightfullogic.honest_profiler.core.collector.lean.ShardedLogCollector;
 import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
 import com.insightfullogic.honest_profiler.core.sources.VirtualMachine;
+import com.insightfullogic.honest_profiler.ports.javafx.WindowLength;
 import com.insightfullogic.honest_profiler.ports.javafx.model.ApplicationContext;
 import com.insightfullogic.honest_profiler.ports.javafx.model.ProfileContext;
 import com.insightfullogic.honest_profiler.ports.javafx.model.ProfileContext.ProfileMode;
@@ -26,6 +29,13 @@ import javafx.concurrent.Task;
  */
 public class InitializeProfileTask extends Task<ProfileContext>
 {
+    // Class Properties
+
+    // The maximum number of nodes in the profile of a live VM, to bound memory use in long sessions. 0 means unbounded.
+    private static final int LIVE_NODE_BUDGET = Integer.getInteger("liveNodeBudget", 0);
+    // The initial resolution in ms of the sample timelines recorded for the profile of a live VM. 0 means none.
+    private static final int LIVE_TIMELINE_MILLIS = Integer.getInteger("liveTimelineMillis", 0);
+
     // Instance Properties
 
     private final ApplicationContext appCtx;
@@ -92,14 +102,17 @@ public class InitializeProfileTask extends Task<ProfileContext>
     }
 
     /**
-     * Returns a {@link LeanLogCollector} which emits {@link LeanProfile}s to the specified {@link ProfileContext}.
+     * Returns the {@link CollectorOptions} for the collectors of a non-live log file. The profile of a non-live log
+     * file is emitted once and never modified afterwards, so it is stored in a compact {@link LeanTree}, which the
+     * aggregations read through a cursor.
      * <p>
-     * @param context the {@link ProfileContext} which will receive the emitted {@link LeanProfile}s
-     * @return a new {@link LeanLogCollector}
+     * @return the {@link CollectorOptions} for the collectors of a non-live log file
      */
-    private LeanLogCollector getCollector(ProfileContext context)
+    private CollectorOptions getLogOptions()
     {
-        return new LeanLogCollector(context.getProfileListener());
+        return new CollectorOptions()
+            .withCompact(true)
+            .withThreadIntervalFromLog(true);
     }
 
     /**
@@ -129,7 +142,11 @@ public class InitializeProfileTask extends Task<ProfileContext>
 
     /**
      * Returns a {@link ProfileContext} which monitors {@link LeanProfile}s emitted by a {@link LeanLogCollector} based
-     * on a live log file.
+     * on a live log file. If the "liveNodeBudget" system property is set, the number of nodes in the profile is
+     * bounded by pruning the least-sampled subtrees, and if the "liveTimelineMillis" system property is set, the nodes
+     * record sample timelines with that resolution. If the log states the sampling interval of the agent, the time of
+     * every sample is based on the previous sample of its own thread. The collector supports the sliding windows which
+     * can be selected in the {@link ProfileContext}.
      * <p>
      * @param fileLogSource the live log file from which the log events for constructing the {@link LeanProfile} are
      *            sourced
@@ -138,7 +155,13 @@ public class InitializeProfileTask extends Task<ProfileContext>
     private ProfileContext monitor(FileLogSource fileLogSource)
     {
         ProfileContext profileContext = newProfileContext(LIVE, fileLogSource);
-        LeanLogCollector collector = getCollector(profileContext);
+        LeanLogCollector collector = new LeanLogCollector(
+            profileContext.getProfileListener(),
+            new CollectorOptions()
+                .withNodeBudget(LIVE_NODE_BUDGET)
+                .withMaxWindowSeconds(WindowLength.getMaxSeconds())
+                .withTimelineNanos(LIVE_TIMELINE_MILLIS * 1000L * 1000L)
+                .withThreadIntervalFromLog(true));
         profileContext.setProfileSource(collector);
         pipeFile(fileLogSource, collector, profileContext.getProfileListener());
 
@@ -148,19 +171,27 @@ public class InitializeProfileTask extends Task<ProfileContext>
     /**
      * Returns a {@link ProfileContext} which will emit {@link LeanProfile}s produced by consuming a non-live log file.
      * <p>
+     * The {@link LeanProfile} is collected by a {@link ParallelLogCollector}. Compressed logs can't be split into
+     * segments, so they are parsed by a sequential pass, and the stacks are aggregated by the worker threads of a
+     * {@link ShardedLogCollector}. The flame graph isn't collected here,
+     * the {@link ProfileContext} collects it when it is first requested.
+     * <p>
      * @param fileLogSource the non-live log file which will be processed
      * @return a new {@link ProfileContext} for non-live log file comsumption
      */
     private ProfileContext consume(FileLogSource fileLogSource)
     {
         ProfileContext profileContext = newProfileContext(LOG, fileLogSource);
-        final LogEventListener collector = new LogEventPublisher()
-            // Multiplex Log Events to the LeanLogCollector
-            .publishTo(getCollector(profileContext))
-            // Multiplex Log Events to the FlameGraphCollector
-            .publishTo(new FlameGraphCollector(profileContext.getFlameGraphListener()));
 
-        pipe(fileLogSource, collector, false).run();
+        if (fileLogSource.isCompressed())
+        {
+            pipe(fileLogSource, new ShardedLogCollector(profileContext.getProfileListener(), getLogOptions()), false)
+                .run();
+            return profileContext;
+        }
+
+        new ParallelLogCollector(profileContext.getProfileListener(), commonPool(), getLogOptions())
+            .collect(fileLogSource.getFile());
 
         return profileContext;
     }
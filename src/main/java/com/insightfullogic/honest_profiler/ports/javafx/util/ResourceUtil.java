@@ -27,6 +27,7 @@ public final class ResourceUtil
 
     // -- For the ChoiceBoxes
     public static final String INFO_CHOICE_VIEWTYPE = "choice.viewtype.info";
+    public static final String INFO_CHOICE_WINDOW = "choice.window.info";
     public static final String INFO_CHOICE_FILTERTYPE = "choice.filtertype.info";
     public static final String INFO_CHOICE_FILTERTARGET = "choice.filtertarget.info";
     public static final String INFO_CHOICE_COMPARISONOPERATOR = "choice.comparisonOperator.info";
@@ -49,6 +50,8 @@ public final class ResourceUtil
 
     // -- For Labels
     public static final String INFO_LABEL_PROFILESAMPLECOUNT = "label.profileSampleCount.info";
+    public static final String INFO_LABEL_AGENTSTATS = "label.agentStats.info";
+    public static final String INFO_LABEL_PRUNESTATS = "label.pruneStats.info";
     public static final String INFO_LABEL_BASESOURCE = "label.baseSource.info";
     public static final String INFO_LABEL_NEWSOURCE = "label.newSource.info";
 
@@ -74,6 +77,8 @@ public final class ResourceUtil
 
     // -- For Labels
     public static final String CONTENT_LABEL_PROFILESAMPLECOUNT = "label.profileSampleCount.content";
+    public static final String CONTENT_LABEL_AGENTSTATS = "label.agentStats.content";
+    public static final String CONTENT_LABEL_PRUNESTATS = "label.pruneStats.content";
     public static final String CONTENT_LABEL_EXCEPTION = "label.exception.content";
 
     // -- For Tab headers
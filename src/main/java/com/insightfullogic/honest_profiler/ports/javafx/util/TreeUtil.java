@@ -1,5 +1,7 @@
 package com.insightfullogic.honest_profiler.ports.javafx.util;
 
+import com.insightfullogic.honest_profiler.ports.javafx.view.tree.NodeTreeItem;
+
 import javafx.collections.ObservableList;
 import javafx.scene.control.TreeItem;
 import javafx.scene.control.TreeView;
@@ -10,12 +12,19 @@ import javafx.scene.control.TreeView;
 public final class TreeUtil
 {
     /**
-     * Expands the specified {@link TreeItem} and all of its descendants.
+     * Expands the specified {@link TreeItem} and all of its descendants. The descendants of a {@link NodeTreeItem} are
+     * expanded as their children are created.
      * <p>
      * @param treeItem the {@link TreeItem} to be expanded
      */
     public static void expandFully(TreeItem<?> treeItem)
     {
+        if (treeItem instanceof NodeTreeItem)
+        {
+            ((NodeTreeItem)treeItem).expand(Integer.MAX_VALUE);
+            return;
+        }
+
         treeItem.setExpanded(true);
         treeItem.getChildren().forEach(item -> expandFully(item));
     }
@@ -44,13 +53,19 @@ public final class TreeUtil
 
     /**
      * Expands the specified {@link TreeItem} and any descendants up to the specified depth. If the depth is 0 or
-     * negative, nothing happens.
+     * negative, nothing happens. The descendants of a {@link NodeTreeItem} are expanded as their children are created.
      * <p>
      * @param treeItem the {@link TreeItem} to be partially expanded
      * @param depth the depthe of the expansion
      */
     public static void expandPartial(TreeItem<?> treeItem, int depth)
     {
+        if (treeItem instanceof NodeTreeItem)
+        {
+            ((NodeTreeItem)treeItem).expand(depth);
+            return;
+        }
+
         if (depth > 0)
         {
             treeItem.setExpanded(true);
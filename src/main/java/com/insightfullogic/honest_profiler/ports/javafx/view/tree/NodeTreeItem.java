@@ -1,21 +1,153 @@
 package com.insightfullogic.honest_profiler.ports.javafx.view.tree;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.insightfullogic.honest_profiler.core.aggregation.result.Aggregation;
 import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Node;
+import com.insightfullogic.honest_profiler.ports.javafx.model.ApplicationContext;
 
+import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.scene.control.TreeItem;
 
+/**
+ * TreeItem wrapping a {@link Node}. The TreeItems for the children are only created when the children are first
+ * requested, i.e. when the item is expanded, so the {@link Node} tree is only materialized as far as it is shown.
+ * <p>
+ * Materializing the children of a lazy {@link Node} aggregates them, so it is done by a background task rather than on
+ * the FX thread. The children are added to the item when the task finishes, and expansions requested through
+ * {@link #expand(int)} in the meantime are applied to them then.
+ */
 public class NodeTreeItem extends TreeItem<Node>
 {
-    public NodeTreeItem(Aggregation<Node> profile)
+    // Instance Properties
+
+    private final ApplicationContext appCtx;
+    // The root Nodes if this is the root item, null otherwise.
+    private final Aggregation<Node> profile;
+    private final boolean leaf;
+
+    private boolean childrenRequested;
+    private boolean childrenCreated;
+    // The number of levels of descendants to expand when the children have been created.
+    private int pendingDepth;
+
+    // Instance Constructors
+
+    /**
+     * Constructor for the root item, whose children wrap the root {@link Node}s of the {@link Aggregation}.
+     * <p>
+     * @param appCtx the {@link ApplicationContext} executing the background tasks
+     * @param profile the {@link Aggregation} whose root {@link Node}s are shown
+     */
+    public NodeTreeItem(ApplicationContext appCtx, Aggregation<Node> profile)
     {
         super(null);
-        profile.getData().forEach(child -> getChildren().add(new NodeTreeItem(child)));
+        this.appCtx = appCtx;
+        this.profile = profile;
+        leaf = false;
     }
 
-    public NodeTreeItem(Node node)
+    /**
+     * Constructor for the item wrapping a {@link Node}. Whether the {@link Node} has children is determined by the
+     * caller, so that doesn't need to be calculated on the FX thread either.
+     * <p>
+     * @param appCtx the {@link ApplicationContext} executing the background tasks
+     * @param node the wrapped {@link Node}
+     * @param leaf a boolean specifying whether the {@link Node} has no children
+     */
+    private NodeTreeItem(ApplicationContext appCtx, Node node, boolean leaf)
     {
         super(node);
-        node.getChildren().forEach(child -> getChildren().add(new NodeTreeItem(child)));
+        this.appCtx = appCtx;
+        this.profile = null;
+        this.leaf = leaf;
+    }
+
+    // TreeItem Implementation
+
+    @Override
+    public ObservableList<TreeItem<Node>> getChildren()
+    {
+        if (!childrenRequested && !leaf)
+        {
+            childrenRequested = true;
+            appCtx.execute(new ChildrenTask());
+        }
+        return super.getChildren();
+    }
+
+    @Override
+    public boolean isLeaf()
+    {
+        return childrenCreated ? super.getChildren().isEmpty() : leaf;
+    }
+
+    // Expansion Methods
+
+    /**
+     * Expands the item and its descendants up to the specified depth. Descendants whose children are still being
+     * materialized are expanded once the children have been created. If the depth is 0 or negative, nothing happens.
+     * <p>
+     * @param depth the depth of the expansion, {@link Integer#MAX_VALUE} for expanding all descendants
+     */
+    public void expand(int depth)
+    {
+        if (depth <= 0)
+        {
+            return;
+        }
+
+        setExpanded(true);
+        if (childrenCreated)
+        {
+            super.getChildren().forEach(child -> ((NodeTreeItem)child).expand(depth - 1));
+        }
+        else
+        {
+            pendingDepth = Math.max(pendingDepth, depth - 1);
+            getChildren();
+        }
+    }
+
+    // Helper Classes
+
+    /**
+     * Task which materializes the children of the wrapped {@link Node} on a worker thread, and creates the items for
+     * them. The items are added on the FX thread when the task finishes.
+     */
+    private class ChildrenTask extends Task<List<NodeTreeItem>>
+    {
+        @Override
+        protected List<NodeTreeItem> call() throws Exception
+        {
+            List<NodeTreeItem> result = new ArrayList<>();
+            List<Node> children = profile == null ? NodeTreeItem.this.getValue().getChildren() : profile.getData();
+            children.forEach(child -> result.add(new NodeTreeItem(appCtx, child, !child.hasChildren())));
+            return result;
+        }
+
+        // Guaranteed to be called on the FX thread.
+        @Override
+        protected void succeeded()
+        {
+            super.succeeded();
+            childrenCreated = true;
+            NodeTreeItem.super.getChildren().setAll(getValue());
+            if (isExpanded())
+            {
+                getValue().forEach(child -> child.expand(pendingDepth));
+            }
+            pendingDepth = 0;
+        }
+
+        // Guaranteed to be called on the FX thread.
+        @Override
+        protected void failed()
+        {
+            super.failed();
+            getException().printStackTrace();
+        }
     }
-}
\ No newline at end of file
+}
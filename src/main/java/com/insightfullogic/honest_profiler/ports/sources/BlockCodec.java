@@ -0,0 +1,316 @@
+package com.insightfullogic.honest_profiler.ports.sources;
+
+import static java.lang.Math.min;
+import static java.util.Arrays.fill;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Codec for the block-compressed log format written by the agent when the compressLog option is enabled.
+ * <p>
+ * A compressed log starts with the {@link #MAGIC} number, followed by independently compressed blocks of the raw log.
+ * Every block starts with a header of two big-endian ints : the size of the data following the header, and the
+ * uncompressed size. If the {@link #STORED_FLAG} bit of the first int is set, the data is stored uncompressed. Blocks
+ * don't respect record boundaries, a record may span several blocks.
+ * <p>
+ * The blocks are compressed in the LZ4 block format : a sequence of literal runs, each followed by a back-reference of
+ * at least 4 bytes into the preceding 64 KB of the block.
+ */
+public final class BlockCodec
+{
+    // Class Properties
+
+    public static final int MAGIC = 0x48504C5A; // "HPLZ"
+    public static final int STORED_FLAG = 0x80000000;
+    public static final int BLOCK_HEADER_SIZE = 8;
+
+    /**
+     * The uncompressed size of the blocks written by the agent.
+     */
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 12;
+
+    // Class Methods
+
+    /**
+     * Returns the maximum size of the compressed form of the specified number of bytes.
+     * <p>
+     * @param length the number of bytes to be compressed
+     * @return the maximum size of the compressed data
+     */
+    public static int maxCompressedSize(int length)
+    {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Decompresses an LZ4 block.
+     * <p>
+     * @param src the array containing the compressed block
+     * @param srcOffset the offset of the compressed block in the source array
+     * @param srcLength the size of the compressed block
+     * @param dst the array receiving the decompressed data
+     * @param dstOffset the offset in the destination array at which the decompressed data is stored
+     * @param dstLength the maximum number of bytes which may be stored in the destination array
+     * @return the size of the decompressed data
+     * @throws IllegalArgumentException if the block is corrupt or decompresses to more than dstLength bytes
+     */
+    public static int decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength)
+    {
+        int in = srcOffset;
+        int inEnd = srcOffset + srcLength;
+        int out = dstOffset;
+        int outEnd = dstOffset + dstLength;
+
+        try
+        {
+            while (in < inEnd)
+            {
+                int token = src[in++] & 0xFF;
+
+                int literalLength = token >>> 4;
+                if (literalLength == 15)
+                {
+                    int next;
+                    do
+                    {
+                        next = src[in++] & 0xFF;
+                        literalLength += next;
+                    }
+                    while (next == 255);
+                }
+                if (in + literalLength > inEnd || out + literalLength > outEnd)
+                {
+                    throw corrupt();
+                }
+                System.arraycopy(src, in, dst, out, literalLength);
+                in += literalLength;
+                out += literalLength;
+
+                if (in == inEnd)
+                {
+                    // The last sequence only contains literals.
+                    break;
+                }
+
+                int offset = (src[in] & 0xFF) | (src[in + 1] & 0xFF) << 8;
+                in += 2;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15)
+                {
+                    int next;
+                    do
+                    {
+                        next = src[in++] & 0xFF;
+                        matchLength += next;
+                    }
+                    while (next == 255);
+                }
+                matchLength += MIN_MATCH;
+
+                int from = out - offset;
+                if (offset == 0 || from < dstOffset || out + matchLength > outEnd)
+                {
+                    throw corrupt();
+                }
+                if (offset >= matchLength)
+                {
+                    System.arraycopy(dst, from, dst, out, matchLength);
+                    out += matchLength;
+                }
+                else
+                {
+                    // Overlapping match, repeating the last offset bytes.
+                    for (int i = 0; i < matchLength; i++)
+                    {
+                        dst[out++] = dst[from + i];
+                    }
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e)
+        {
+            throw corrupt();
+        }
+
+        return out - dstOffset;
+    }
+
+    /**
+     * Compresses data into an LZ4 block, in the same way as the agent does.
+     * <p>
+     * @param src the array containing the data
+     * @param srcOffset the offset of the data in the source array
+     * @param srcLength the size of the data
+     * @param dst the array receiving the compressed block, which must have room for
+     *            {@link #maxCompressedSize(int)} bytes
+     * @param dstOffset the offset in the destination array at which the compressed block is stored
+     * @return the size of the compressed block
+     */
+    public static int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset)
+    {
+        int out = dstOffset;
+        int anchor = srcOffset;
+        int end = srcOffset + srcLength;
+
+        if (srcLength > MATCH_FIND_LIMIT)
+        {
+            int[] hashTable = new int[1 << HASH_BITS];
+            fill(hashTable, -1);
+
+            int matchLimit = end - LAST_LITERALS;
+            int position = srcOffset;
+            while (position < end - MATCH_FIND_LIMIT)
+            {
+                int sequence = readInt(src, position);
+                int slot = (sequence * -1640531535) >>> (32 - HASH_BITS);
+                int candidate = hashTable[slot];
+                hashTable[slot] = position;
+
+                if (candidate < 0 || position - candidate > MAX_OFFSET || readInt(src, candidate) != sequence)
+                {
+                    position++;
+                    continue;
+                }
+
+                int matchLength = MIN_MATCH;
+                while (position + matchLength < matchLimit && src[candidate + matchLength] == src[position + matchLength])
+                {
+                    matchLength++;
+                }
+
+                out = writeSequence(src, anchor, position - anchor, position - candidate, matchLength, dst, out);
+                position += matchLength;
+                anchor = position;
+            }
+        }
+
+        out = writeSequence(src, anchor, end - anchor, 0, 0, dst, out);
+        return out - dstOffset;
+    }
+
+    /**
+     * Writes a compressed copy of a raw log file.
+     * <p>
+     * @param source the raw log file
+     * @param target the file the compressed log is written to
+     * @throws IOException when a file can't be read or written
+     */
+    public static void compressLog(File source, File target) throws IOException
+    {
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] compressed = new byte[maxCompressedSize(BLOCK_SIZE)];
+
+        try (InputStream in = new FileInputStream(source);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target))))
+        {
+            out.writeInt(MAGIC);
+
+            int length;
+            while ((length = readBlock(in, block)) > 0)
+            {
+                int compressedLength = compress(block, 0, length, compressed, 0);
+                if (compressedLength < length)
+                {
+                    out.writeInt(compressedLength);
+                    out.writeInt(length);
+                    out.write(compressed, 0, compressedLength);
+                }
+                else
+                {
+                    out.writeInt(length | STORED_FLAG);
+                    out.writeInt(length);
+                    out.write(block, 0, length);
+                }
+            }
+        }
+    }
+
+    // Helper Methods
+
+    private static IllegalArgumentException corrupt()
+    {
+        return new IllegalArgumentException("Corrupt compressed block");
+    }
+
+    private static int readBlock(InputStream in, byte[] block) throws IOException
+    {
+        int length = 0;
+        int read;
+        while (length < block.length && (read = in.read(block, length, block.length - length)) > 0)
+        {
+            length += read;
+        }
+        return length;
+    }
+
+    private static int readInt(byte[] src, int position)
+    {
+        return (src[position] & 0xFF)
+            | (src[position + 1] & 0xFF) << 8
+            | (src[position + 2] & 0xFF) << 16
+            | (src[position + 3] & 0xFF) << 24;
+    }
+
+    private static int writeSequence(byte[] src,
+                                     int literals,
+                                     int literalLength,
+                                     int offset,
+                                     int matchLength,
+                                     byte[] dst,
+                                     int out)
+    {
+        int token = out++;
+        dst[token] = (byte)(min(literalLength, 15) << 4);
+        if (literalLength >= 15)
+        {
+            out = writeLength(dst, out, literalLength - 15);
+        }
+        System.arraycopy(src, literals, dst, out, literalLength);
+        out += literalLength;
+
+        if (matchLength == 0)
+        {
+            return out;
+        }
+
+        dst[out++] = (byte)offset;
+        dst[out++] = (byte)(offset >>> 8);
+        matchLength -= MIN_MATCH;
+        dst[token] |= (byte)min(matchLength, 15);
+        if (matchLength >= 15)
+        {
+            out = writeLength(dst, out, matchLength - 15);
+        }
+        return out;
+    }
+
+    private static int writeLength(byte[] dst, int out, int length)
+    {
+        while (length >= 255)
+        {
+            dst[out++] = (byte)255;
+            length -= 255;
+        }
+        dst[out++] = (byte)length;
+        return out;
+    }
+
+    // Instance Constructors
+
+    private BlockCodec()
+    {
+        // Utility class
+    }
+}
@@ -0,0 +1,270 @@
+package com.insightfullogic.honest_profiler.ports.sources;
+
+import static com.insightfullogic.honest_profiler.ports.sources.BlockCodec.BLOCK_HEADER_SIZE;
+import static com.insightfullogic.honest_profiler.ports.sources.BlockCodec.MAGIC;
+import static com.insightfullogic.honest_profiler.ports.sources.BlockCodec.STORED_FLAG;
+import static com.insightfullogic.honest_profiler.ports.sources.BlockCodec.maxCompressedSize;
+import static java.lang.Math.max;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.insightfullogic.honest_profiler.core.sources.CantReadFromSourceException;
+import com.insightfullogic.honest_profiler.core.sources.LogSource;
+
+/**
+ * LogSource implementation which decompresses a log written in the block-compressed format described by
+ * {@link BlockCodec}. Like the {@link FileLogSource}, it can tail a log which is still being written : blocks are only
+ * decompressed once they have been written entirely, and new blocks are picked up on subsequent reads.
+ * <p>
+ * The decompressed data is kept in a heap buffer of initially {@value #BUFFER_SIZE} bytes. It is refilled whenever
+ * less than {@value #LOW_WATER_MARK} bytes remain, or the parser didn't manage to read a complete record from it, in
+ * which case the remaining bytes are moved to the start of the buffer and followed by the newly available blocks. The
+ * buffer grows if a single record doesn't fit.
+ */
+public class CompressedLogSource implements LogSource
+{
+    // Class Properties
+
+    private static final int BUFFER_SIZE = 1024 * 1024 * 2; // 2 MB
+    private static final int LOW_WATER_MARK = 1024 * 64; // 64 KB
+
+    // Sanity limit for block sizes, blocks written by the agent are much smaller.
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024 * 16; // 16 MB
+
+    // Instance Properties
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final File file;
+
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    private ByteBuffer compressed = ByteBuffer.allocate(maxCompressedSize(BlockCodec.BLOCK_SIZE));
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    // The offset in the file of the next block.
+    private long nextBlock = 4;
+    private int previousPosition = -1;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the compressed log file.
+     * <p>
+     * @param file the compressed log file
+     */
+    public CompressedLogSource(final File file)
+    {
+        this.file = file;
+        try
+        {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+        }
+        catch (IOException e)
+        {
+            throw new CantReadFromSourceException(e);
+        }
+        buffer.limit(0);
+    }
+
+    // Class Methods
+
+    /**
+     * Checks whether the file read by the specified channel starts with the {@link BlockCodec#MAGIC} number identifying
+     * compressed logs.
+     * <p>
+     * @param channel the channel reading the log file
+     * @return a boolean indicating whether the file is a compressed log, or null if the file only contains a prefix of
+     *         the magic number, so it is too short to decide
+     * @throws IOException when the file can't be read
+     */
+    static Boolean isCompressed(FileChannel channel) throws IOException
+    {
+        ByteBuffer start = ByteBuffer.allocate(4);
+        while (start.hasRemaining() && channel.read(start, start.position()) > 0)
+        {
+            // Keep reading until the magic number is complete or the end of the file is reached
+        }
+
+        for (int i = 0; i < start.capacity(); i++)
+        {
+            if (i == start.position())
+            {
+                return null;
+            }
+            if (start.get(i) != (byte)(MAGIC >>> (24 - 8 * i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Instance Accessors
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    // LogSource Implementation
+
+    @Override
+    public ByteBuffer read()
+    {
+        int position = buffer.position();
+        if (position == previousPosition || buffer.remaining() < LOW_WATER_MARK)
+        {
+            try
+            {
+                fill();
+            }
+            catch (IOException | IllegalArgumentException e)
+            {
+                throw new CantReadFromSourceException(e);
+            }
+        }
+        previousPosition = buffer.position();
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        buffer = null;
+        raf.close();
+    }
+
+    // Helper Methods
+
+    /**
+     * Moves the unread data to the start of the buffer, and appends the decompressed data of all blocks which have been
+     * written entirely, as long as they fit. The buffer is grown if not even the next block fits. Nothing happens if no
+     * complete block is available.
+     * <p>
+     * @throws IOException when the file can't be read
+     * @throws IllegalArgumentException when the file contains a corrupt block
+     */
+    private void fill() throws IOException
+    {
+        long fileSize = channel.size();
+        if (!readBlockHeader(fileSize))
+        {
+            return;
+        }
+
+        buffer.compact();
+        int blocks = 0;
+
+        do
+        {
+            int storedSize = blockHeader.getInt(0);
+            int rawSize = blockHeader.getInt(4);
+            boolean stored = (storedSize & STORED_FLAG) != 0;
+            storedSize &= ~STORED_FLAG;
+
+            if (buffer.remaining() < rawSize)
+            {
+                if (blocks > 0)
+                {
+                    break;
+                }
+                grow(rawSize);
+            }
+
+            if (stored)
+            {
+                buffer.limit(buffer.position() + storedSize);
+                readFully(buffer, nextBlock + BLOCK_HEADER_SIZE);
+                buffer.limit(buffer.capacity());
+            }
+            else
+            {
+                if (compressed.capacity() < storedSize)
+                {
+                    compressed = ByteBuffer.allocate(storedSize);
+                }
+                compressed.clear().limit(storedSize);
+                readFully(compressed, nextBlock + BLOCK_HEADER_SIZE);
+
+                int size = BlockCodec.decompress(
+                    compressed.array(),
+                    0,
+                    storedSize,
+                    buffer.array(),
+                    buffer.position(),
+                    buffer.remaining());
+                if (size != rawSize)
+                {
+                    throw new IllegalArgumentException("Corrupt block at " + nextBlock + " in " + file);
+                }
+                buffer.position(buffer.position() + size);
+            }
+
+            nextBlock += BLOCK_HEADER_SIZE + storedSize;
+            blocks++;
+        }
+        while (readBlockHeader(fileSize));
+
+        buffer.flip();
+    }
+
+    /**
+     * Reads the header of the next block, if the entire block has been written.
+     * <p>
+     * @param fileSize the current size of the file
+     * @return a boolean indicating whether the next block has been written entirely
+     * @throws IOException when the file can't be read
+     * @throws IllegalArgumentException when the block header is corrupt
+     */
+    private boolean readBlockHeader(long fileSize) throws IOException
+    {
+        if (nextBlock + BLOCK_HEADER_SIZE > fileSize)
+        {
+            return false;
+        }
+
+        blockHeader.clear();
+        readFully(blockHeader, nextBlock);
+        int storedSize = blockHeader.getInt(0) & ~STORED_FLAG;
+        int rawSize = blockHeader.getInt(4);
+
+        if (rawSize < 0 || rawSize > MAX_BLOCK_SIZE || storedSize > maxCompressedSize(rawSize))
+        {
+            throw new IllegalArgumentException("Corrupt block header at " + nextBlock + " in " + file);
+        }
+        return nextBlock + BLOCK_HEADER_SIZE + storedSize <= fileSize;
+    }
+
+    private void grow(int required)
+    {
+        ByteBuffer larger = ByteBuffer.allocate(max(buffer.capacity() * 2, buffer.position() + required));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+
+    private void readFully(ByteBuffer target, long offset) throws IOException
+    {
+        while (target.hasRemaining())
+        {
+            int read = channel.read(target, offset);
+            if (read < 0)
+            {
+                throw new EOFException("Block beyond the end of " + file);
+            }
+            offset += read;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CompressedLogSource{" + "file=" + file + '}';
+    }
+}
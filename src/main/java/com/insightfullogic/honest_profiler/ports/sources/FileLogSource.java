@@ -42,6 +42,9 @@ import com.insightfullogic.honest_profiler.core.sources.LogSource;
  * Conductor will sleep for a bit. So ideally, BUFFER_SIZE - ELASTICITY should be large enough so that an "entire
  * record" (i.e. an entire stack) which might start at the last byte within the ELASTICITY portion still would fit into
  * the remains of the buffer.
+ * <p>
+ * Logs written with the agent's compressLog option are recognized by their magic number, and read through a
+ * {@link CompressedLogSource}. As long as the file is too short to tell the formats apart, no data is returned.
  */
 public class FileLogSource implements LogSource
 {
@@ -52,6 +55,8 @@ public class FileLogSource implements LogSource
     // Remap if more than ELASTICITY has been read from the current buffer
     private static final int ELASTICITY = 1024 * 1024 * 1; // 1 MB
 
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
     // Instance Properties
 
     private final RandomAccessFile raf;
@@ -64,6 +69,10 @@ public class FileLogSource implements LogSource
 
     private int previousPosition;
 
+    // Whether the format of the file has been determined, and the source decompressing it if it is compressed
+    private boolean formatKnown;
+    private CompressedLogSource compressedSource;
+
     // Instance Constructors
 
     public FileLogSource(final File file)
@@ -73,6 +82,7 @@ public class FileLogSource implements LogSource
         {
             raf = new RandomAccessFile(file, "r");
             channel = raf.getChannel();
+            detectFormat();
             mapBuffer(0);
         }
         catch (IOException e)
@@ -88,6 +98,16 @@ public class FileLogSource implements LogSource
         return file;
     }
 
+    /**
+     * Indicates whether the file is a compressed log. Files which are too short to tell are considered uncompressed.
+     * <p>
+     * @return a boolean indicating whether the file is a compressed log
+     */
+    public boolean isCompressed()
+    {
+        return compressedSource != null;
+    }
+
     // LogSource Implementation
 
     @Override
@@ -95,6 +115,19 @@ public class FileLogSource implements LogSource
     {
         try
         {
+            if (!formatKnown)
+            {
+                detectFormat();
+                if (!formatKnown)
+                {
+                    return EMPTY;
+                }
+            }
+            if (compressedSource != null)
+            {
+                return compressedSource.read();
+            }
+
             int position = buffer.position();
             boolean hasRemaining = buffer.hasRemaining();
             long channelSize = channel.size();
@@ -133,6 +166,30 @@ public class FileLogSource implements LogSource
     {
         buffer = null;
         raf.close();
+        if (compressedSource != null)
+        {
+            compressedSource.close();
+        }
+    }
+
+    /**
+     * Checks the first bytes of the file for the magic number of compressed logs, and sets up a
+     * {@link CompressedLogSource} if it is found. The format stays unknown as long as the file only contains a prefix of
+     * the magic number.
+     * <p>
+     * @throws IOException any I/O exceptions encountered trying to read the start of the file
+     */
+    private void detectFormat() throws IOException
+    {
+        Boolean compressed = CompressedLogSource.isCompressed(channel);
+        if (compressed != null)
+        {
+            formatKnown = true;
+            if (compressed)
+            {
+                compressedSource = new CompressedLogSource(file);
+            }
+        }
     }
 
     // Shame there's no simple abstraction for reading over both files and
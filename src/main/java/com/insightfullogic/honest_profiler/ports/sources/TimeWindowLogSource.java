@@ -0,0 +1,197 @@
+package com.insightfullogic.honest_profiler.ports.sources;
+
+import static com.insightfullogic.honest_profiler.ports.sources.CompressedLogSource.isCompressed;
+import static java.lang.Boolean.TRUE;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.insightfullogic.honest_profiler.core.parser.LogHeader;
+import com.insightfullogic.honest_profiler.core.parser.LogIndex;
+import com.insightfullogic.honest_profiler.core.sources.CantReadFromSourceException;
+import com.insightfullogic.honest_profiler.core.sources.LogSource;
+
+/**
+ * LogSource implementation which exposes the samples taken in a time window of a completed log file. The window is
+ * located using the {@link LogIndex} of the file, so opening it takes time proportional to the size of the window rather
+ * than to the size of the file.
+ * <p>
+ * The source first serves a {@link LogHeader} record describing the decoding state of the log at the start of the
+ * window, and the method, thread and stack metadata records written before the window which the samples in the window
+ * refer to, so those can be decoded and resolved, followed by the records from the first trace start at or after the
+ * start of the window up to the first trace start at or after the end of the window. Window times are expressed in nanoseconds relative to the
+ * first sample in the log.
+ * <p>
+ * Like the {@link FileLogSource}, the window is read through a memory-mapped buffer ({@value #BUFFER_SIZE} bytes) which
+ * is moved along once more than {@value #ELASTICITY} bytes of it have been read. Compressed logs can't be read at
+ * arbitrary offsets, and are therefore not supported.
+ */
+public class TimeWindowLogSource implements LogSource
+{
+    // Class Properties
+
+    // Fixed buffer size
+    private static final int BUFFER_SIZE = 1024 * 1024 * 2; // 2 MB
+    // Remap if more than ELASTICITY has been read from the current buffer
+    private static final int ELASTICITY = 1024 * 1024 * 1; // 1 MB
+
+    // Instance Properties
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final File file;
+
+    private final long windowStart;
+    private final long windowEnd;
+
+    private ByteBuffer metadata;
+    private ByteBuffer buffer;
+    // the offset in the file where the current buffer starts.
+    private long currentOffset;
+
+    // Instance Constructors
+
+    /**
+     * Constructor specifying the log file and the time window.
+     * <p>
+     * @param file the completed log file
+     * @param fromNanos the start of the window, in nanoseconds relative to the first sample in the log
+     * @param toNanos the end (exclusive) of the window, in nanoseconds relative to the first sample in the log
+     */
+    public TimeWindowLogSource(final File file, long fromNanos, long toNanos)
+    {
+        this.file = file;
+        try
+        {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            if (TRUE.equals(isCompressed(channel)))
+            {
+                raf.close();
+                throw new IOException("Time windows aren't supported for compressed log " + file);
+            }
+
+            LogIndex index = LogIndex.open(file);
+
+            long firstTime = index.getFirstTime();
+            windowStart = index.seek(channel, firstTime + fromNanos);
+            windowEnd = max(windowStart, index.seek(channel, firstTime + toNanos));
+
+            metadata = readMetadata(index);
+            currentOffset = windowStart;
+            mapBuffer(currentOffset);
+        }
+        catch (IOException e)
+        {
+            throw new CantReadFromSourceException(e);
+        }
+    }
+
+    // Instance Accessors
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    // LogSource Implementation
+
+    @Override
+    public ByteBuffer read()
+    {
+        if (metadata.hasRemaining())
+        {
+            return metadata;
+        }
+
+        int position = buffer.position();
+        if (position > ELASTICITY)
+        {
+            try
+            {
+                currentOffset += position;
+                mapBuffer(currentOffset);
+            }
+            catch (IOException e)
+            {
+                throw new CantReadFromSourceException(e);
+            }
+        }
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        metadata = null;
+        buffer = null;
+        raf.close();
+    }
+
+    // Helper Methods
+
+    /**
+     * Reads the header for the window and the metadata records preceding the window which the window refers to into a
+     * single buffer.
+     * <p>
+     * @param index the {@link LogIndex} for the log file
+     * @return a {@link ByteBuffer} containing the header and the metadata records needed for the window
+     * @throws IOException any I/O exceptions encountered while reading the metadata records
+     */
+    private ByteBuffer readMetadata(LogIndex index) throws IOException
+    {
+        LogHeader windowHeader = index.headerAt(channel, windowStart);
+        ByteBuffer header = windowHeader.encode();
+        int[] records = index.metadataFor(channel, windowHeader, windowStart, windowEnd);
+
+        int size = header.remaining();
+        for (int record : records)
+        {
+            size += index.getMetadataLength(record);
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(size);
+        result.put(header);
+        for (int record : records)
+        {
+            long offset = index.getMetadataOffset(record);
+            result.limit(result.position() + index.getMetadataLength(record));
+            while (result.hasRemaining())
+            {
+                int read = channel.read(result, offset);
+                if (read < 0)
+                {
+                    throw new EOFException("Metadata record beyond the end of " + file);
+                }
+                offset += read;
+            }
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Replaces the current buffer by a new ByteBuffer which is memory-mapped onto a window of at most BUFFER_SIZE bytes
+     * starting at the specified offset, and not extending beyond the end of the time window.
+     * <p>
+     * @param offset the offset in the file of the area which will be mapped into the buffer
+     * @throws IOException any I/O exceptions encountered trying to map a portion of the file into memory
+     */
+    private void mapBuffer(long offset) throws IOException
+    {
+        buffer = channel.map(READ_ONLY, offset, min(BUFFER_SIZE, windowEnd - offset));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TimeWindowLogSource{" + "file=" + file + ", window=" + windowStart + ":" + windowEnd + '}';
+    }
+}
@@ -76,6 +76,33 @@ TEST_FIXTURE(GivenQueue, CantOverWriteUnreadInput) {
   CHECK(!pop(0));
 }
 
+TEST_FIXTURE(GivenQueue, TracksHighWaterMark) {
+  for (int i = 0; i < 3; i++) {
+    pushLocalTraceOnto(*queue, 5);
+  }
+  CHECK(pop(5));
+  pushLocalTraceOnto(*queue, 5);
+  CHECK_EQUAL(3, queue->highWaterMark());
+
+  while (pop(5)) {
+  }
+  CHECK_EQUAL(3, queue->highWaterMark());
+}
+
+TEST_FIXTURE(GivenQueue, MeasuresDrainLatency) {
+  givenStackTrace(5);
+  timespec now;
+  TimeUtils::current_utc_time(&now);
+  timespec earlier = {now.tv_sec - 2, now.tv_nsec};
+  CHECK(queue->push(earlier, trace));
+  CHECK(queue->push(now, trace));
+
+  CHECK(pop(5));
+  CHECK(pop(5));
+  CHECK(queue->maxDrainLatencyNanos() >= 2000000000ULL);
+  CHECK(queue->drainLatencyNanos() >= queue->maxDrainLatencyNanos());
+}
+
 /* Prevent floating point exception for GCC < 4.7 */
 const int THREAD_COUNT = std::thread::hardware_concurrency() ?
   std::thread::hardware_concurrency() : 1;
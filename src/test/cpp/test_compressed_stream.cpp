@@ -0,0 +1,141 @@
+#include <sstream>
+#include <string>
+#include "test.h"
+#include "../../main/cpp/compressed_stream.h"
+
+using std::ostringstream;
+using std::string;
+
+// Reference decoder for the LZ4 block format
+static string decompressBlock(const char *src, size_t length) {
+    string result;
+    size_t in = 0;
+    while (in < length) {
+        unsigned char token = src[in++];
+        size_t literalLength = token >> 4;
+        if (literalLength == 15) {
+            unsigned char next;
+            do {
+                next = src[in++];
+                literalLength += next;
+            } while (next == 255);
+        }
+        result.append(src + in, literalLength);
+        in += literalLength;
+        if (in >= length) {
+            break;
+        }
+
+        size_t offset = (unsigned char) src[in] | ((unsigned char) src[in + 1] << 8);
+        in += 2;
+        size_t matchLength = token & 15;
+        if (matchLength == 15) {
+            unsigned char next;
+            do {
+                next = src[in++];
+                matchLength += next;
+            } while (next == 255);
+        }
+        matchLength += 4;
+        size_t from = result.size() - offset;
+        for (size_t i = 0; i < matchLength; i++) {
+            result.push_back(result[from + i]);
+        }
+    }
+    return result;
+}
+
+static uint32_t readHeaderValue(const string &data, size_t index) {
+    return ((uint32_t) (unsigned char) data[index] << 24) | ((uint32_t) (unsigned char) data[index + 1] << 16)
+           | ((uint32_t) (unsigned char) data[index + 2] << 8) | (uint32_t) (unsigned char) data[index + 3];
+}
+
+static string repetitiveData(size_t length) {
+    string result;
+    for (size_t i = 0; result.size() < length; i++) {
+        result.append("frame");
+        result.push_back((char) ('0' + i % 7));
+    }
+    result.resize(length);
+    return result;
+}
+
+TEST(CompressesRepetitiveData) {
+    string data = repetitiveData(10000);
+    vector<char> compressed(maxCompressedSize(data.size()));
+    vector<int32_t> hashTable(COMPRESSION_HASH_SIZE);
+
+    size_t length = compressBlock(data.data(), data.size(), compressed.data(), hashTable.data());
+
+    CHECK(length < data.size() / 10);
+    CHECK(data == decompressBlock(compressed.data(), length));
+}
+
+TEST(RoundTripsIncompressibleData) {
+    string data;
+    uint32_t random = 12345;
+    for (int i = 0; i < 5000; i++) {
+        random = random * 1103515245 + 12345;
+        data.push_back((char) (random >> 16));
+    }
+    vector<char> compressed(maxCompressedSize(data.size()));
+    vector<int32_t> hashTable(COMPRESSION_HASH_SIZE);
+
+    size_t length = compressBlock(data.data(), data.size(), compressed.data(), hashTable.data());
+
+    CHECK(length <= maxCompressedSize(data.size()));
+    CHECK(data == decompressBlock(compressed.data(), length));
+}
+
+TEST(WritesFullBlocksAndTheRestOnClose) {
+    string data = repetitiveData(COMPRESSED_BLOCK_SIZE + 100);
+    ostringstream sink;
+    {
+        BlockCompressingBuffer buffer(sink, 60 * 60 * 1000);
+        ostream output(&buffer);
+        output.write(data.data(), data.size());
+        output.flush();
+
+        // Only the full block has been written, the rest waits for the delay
+        string written = sink.str();
+        CHECK_EQUAL(COMPRESSED_LOG_MAGIC, readHeaderValue(written, 0));
+        uint32_t size = readHeaderValue(written, 4);
+        CHECK_EQUAL(COMPRESSED_BLOCK_SIZE, readHeaderValue(written, 8));
+        CHECK_EQUAL(4 + BLOCK_HEADER_SIZE + size, written.size());
+    }
+
+    string written = sink.str();
+    string decompressed;
+    size_t index = 4;
+    while (index < written.size()) {
+        uint32_t size = readHeaderValue(written, index);
+        uint32_t rawSize = readHeaderValue(written, index + 4);
+        index += BLOCK_HEADER_SIZE;
+        if (size & STORED_BLOCK_FLAG) {
+            decompressed.append(written, index, size & ~STORED_BLOCK_FLAG);
+            index += size & ~STORED_BLOCK_FLAG;
+        } else {
+            string block = decompressBlock(written.data() + index, size);
+            CHECK_EQUAL(rawSize, block.size());
+            decompressed.append(block);
+            index += size;
+        }
+    }
+    CHECK(data == decompressed);
+}
+
+TEST(WritesPartialBlockOnFlushOnceDelayPassed) {
+    ostringstream sink;
+    BlockCompressingBuffer buffer(sink, 0);
+    ostream output(&buffer);
+
+    output.write("abc", 3);
+    output.flush();
+
+    // Too small to compress, so stored as is
+    string written = sink.str();
+    CHECK_EQUAL(4 + BLOCK_HEADER_SIZE + 3, written.size());
+    CHECK_EQUAL(3 | STORED_BLOCK_FLAG, readHeaderValue(written, 4));
+    CHECK_EQUAL(3, readHeaderValue(written, 8));
+    CHECK(written.substr(4 + BLOCK_HEADER_SIZE) == "abc");
+}
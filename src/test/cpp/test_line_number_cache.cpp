@@ -0,0 +1,128 @@
+#include <stdlib.h>
+#include "test.h"
+#include "../../main/cpp/line_number_cache.h"
+
+static int lineNumberTableCalls = 0;
+
+// Serves an unsorted table for method 1, and no line number information for other methods
+static jvmtiError JNICALL fakeGetLineNumberTable(jvmtiEnv *env, jmethodID method, jint *entryCount,
+                                                 jvmtiLineNumberEntry **table) {
+    lineNumberTableCalls++;
+    if (method != (jmethodID) 1) {
+        return JVMTI_ERROR_ABSENT_INFORMATION;
+    }
+
+    *entryCount = 3;
+    *table = (jvmtiLineNumberEntry *) malloc(3 * sizeof(jvmtiLineNumberEntry));
+    (*table)[0].start_location = 10;
+    (*table)[0].line_number = 12;
+    (*table)[1].start_location = 0;
+    (*table)[1].line_number = 11;
+    (*table)[2].start_location = 20;
+    (*table)[2].line_number = 13;
+    return JVMTI_ERROR_NONE;
+}
+
+static jvmtiError JNICALL fakeDeallocate(jvmtiEnv *env, unsigned char *memory) {
+    free(memory);
+    return JVMTI_ERROR_NONE;
+}
+
+#define givenLineNumberCache(capacity)                                         \
+  jvmtiInterface_1_ functions = {};                                            \
+  functions.GetLineNumberTable = &fakeGetLineNumberTable;                      \
+  functions.Deallocate = &fakeDeallocate;                                      \
+  _jvmtiEnv jvmti;                                                             \
+  jvmti.functions = &functions;                                                \
+  LineNumberCache cache(&jvmti, capacity);                                     \
+  lineNumberTableCalls = 0;
+
+TEST(MapsBciToLineOfPrecedingEntry) {
+  LineNumberEntry table[] = { {0, 11}, {10, 12}, {20, 13} };
+
+  CHECK_EQUAL(11, bci2line(5, table, 3));
+  CHECK_EQUAL(12, bci2line(10, table, 3));
+  CHECK_EQUAL(13, bci2line(25, table, 3));
+  CHECK_EQUAL(-102, bci2line(5, table + 1, 2));
+  CHECK_EQUAL(-101, bci2line(5, table, 0));
+}
+
+TEST(LooksUpLineNumberTableOnlyOnce) {
+  givenLineNumberCache(10);
+
+  CHECK_EQUAL(12, cache.lineNumber(15, (jmethodID) 1));
+  CHECK_EQUAL(11, cache.lineNumber(3, (jmethodID) 1));
+  CHECK_EQUAL(13, cache.lineNumber(20, (jmethodID) 1));
+
+  CHECK_EQUAL(1, lineNumberTableCalls);
+  CHECK_EQUAL(1, cache.misses());
+  CHECK_EQUAL(2, cache.hits());
+}
+
+TEST(CachesMissingLineNumberInformation) {
+  givenLineNumberCache(10);
+
+  CHECK_EQUAL(-100, cache.lineNumber(15, (jmethodID) 2));
+  CHECK_EQUAL(-100, cache.lineNumber(15, (jmethodID) 2));
+
+  CHECK_EQUAL(1, lineNumberTableCalls);
+}
+
+TEST(EvictsEntriesWhenFull) {
+  givenLineNumberCache(2);
+
+  cache.lineNumber(15, (jmethodID) 1);
+  cache.lineNumber(15, (jmethodID) 2);
+  cache.lineNumber(15, (jmethodID) 3);
+
+  CHECK_EQUAL(2, cache.size());
+  CHECK_EQUAL(3, cache.misses());
+}
+
+TEST(ReloadsInvalidatedEntries) {
+  givenLineNumberCache(10);
+
+  cache.lineNumber(15, (jmethodID) 1);
+  cache.lineNumber(15, (jmethodID) 2);
+  cache.invalidate((jmethodID) 1);
+  cache.lineNumber(15, (jmethodID) 1);
+  cache.lineNumber(15, (jmethodID) 2);
+  CHECK_EQUAL(3, lineNumberTableCalls);
+
+  cache.invalidateAll();
+  cache.lineNumber(15, (jmethodID) 1);
+  cache.lineNumber(15, (jmethodID) 2);
+  CHECK_EQUAL(5, lineNumberTableCalls);
+}
+
+TEST(ReportsTheMethodsOfRedefinedClassesOnlyOnce) {
+  givenLineNumberCache(2);
+  vector<jmethodID> methods;
+
+  CHECK(!cache.hasInvalidated());
+  cache.invalidate((jmethodID) 1);
+  cache.invalidateAll();
+  CHECK(cache.hasInvalidated());
+
+  // Also applied by lookups, which still leaves them to be taken
+  cache.lineNumber(15, (jmethodID) 1);
+  CHECK(cache.hasInvalidated());
+  CHECK(cache.takeInvalidated(methods));
+  CHECK_EQUAL(1, methods.size());
+  CHECK_EQUAL((jmethodID) 1, methods[0]);
+  CHECK(!cache.hasInvalidated());
+
+  // Unloaded classes aren't reported
+  methods.clear();
+  cache.invalidateAll();
+  CHECK(cache.takeInvalidated(methods));
+  CHECK_EQUAL(0, methods.size());
+
+  // Beyond the capacity, only the overflow is reported
+  cache.invalidate((jmethodID) 1);
+  cache.invalidate((jmethodID) 2);
+  cache.invalidate((jmethodID) 3);
+  CHECK(!cache.takeInvalidated(methods));
+  CHECK_EQUAL(0, methods.size());
+  CHECK(!cache.hasInvalidated());
+}
@@ -4,10 +4,15 @@
 #include "fixtures.h"
 #include "ostreambuf.h"
 #include "test.h"
+#include <sstream>
+#include <thread>
+#include <chrono>
 #include "../../main/cpp/log_writer.h"
+#include "../../main/cpp/compressed_stream.h"
 
 using std::ostream;
 using std::ofstream;
+using std::ostringstream;
 
 #define copyString(from, to)                                                   \
   to = (char *)malloc(sizeof(from));                                           \
@@ -167,6 +172,299 @@ TEST(ExtractsStackTraceInformation) {
   done();
 }
 
+TEST(WritesRepeatedStacksAsReferences) {
+  givenStackTrace();
+  timespec tspec = {44, 55};
+
+  char buffer[256] = {};
+  ostreambuf<char> outputBuffer(buffer, sizeof(buffer));
+  ostream output(&outputBuffer);
+  LogWriter logWriter(output, &stubFrameInformation, NULL, true);
+
+  logWriter.record(tspec, trace);
+  logWriter.record(tspec, trace);
+
+  int index = 0;
+
+  // The stack records aren't part of version 1, so the log starts with a header
+  CHECK_EQUAL(LOG_HEADER, buffer[index++]);
+  CHECK_EQUAL('G', buffer[intThen]);
+  CHECK_EQUAL(LOG_VERSION_STACK_DICTIONARY, buffer[intThen]);
+  CHECK_EQUAL(0, buffer[longThen]);
+  CHECK_EQUAL(0, buffer[longThen]);
+
+  CHECK_EQUAL(THREAD_META, buffer[index++]);
+  CHECK_EQUAL(-5 & 0x000000ff, buffer[longThen]);
+  CHECK_EQUAL(0, buffer[intThen]);
+
+  CHECK_EQUAL(TRACE_WITH_TIME, buffer[index++]);
+  CHECK_EQUAL(2, buffer[intThen]);
+  CHECK_EQUAL(-5 & 0x000000ff, buffer[longThen]);
+  CHECK_EQUAL(44, buffer[longThen]);
+  CHECK_EQUAL(55, buffer[longThen]);
+
+  // The methods are defined before the stack using them
+  CHECK_EQUAL(NEW_METHOD, buffer[index++]);
+  CHECK_EQUAL(1, buffer[longThen]);
+  index += 3 * (4 + 1);
+  CHECK_EQUAL(NEW_METHOD, buffer[index++]);
+  CHECK_EQUAL(2, buffer[longThen]);
+  index += 3 * (4 + 1);
+
+  CHECK_EQUAL(NEW_STACK, buffer[index++]);
+  CHECK_EQUAL(0, buffer[longThen]);
+  CHECK_EQUAL(2, buffer[intThen]);
+  CHECK_EQUAL(0, buffer[intThen]);
+  CHECK_EQUAL(ERR_NO_LINE_INFO & 0x000000ff, buffer[intThen]);
+  CHECK_EQUAL(1, buffer[longThen]);
+  CHECK_EQUAL(0, buffer[intThen]);
+  CHECK_EQUAL(ERR_NO_LINE_INFO & 0x000000ff, buffer[intThen]);
+  CHECK_EQUAL(2, buffer[longThen]);
+
+  CHECK_EQUAL(STACK_REF, buffer[index++]);
+  CHECK_EQUAL(0, buffer[longThen]);
+
+  // The second sample only refers to the known stack
+  CHECK_EQUAL(TRACE_WITH_TIME, buffer[index++]);
+  index += 4 + 8 + 8 + 8;
+  CHECK_EQUAL(STACK_REF, buffer[index++]);
+  CHECK_EQUAL(0, buffer[longThen]);
+  CHECK_EQUAL(0, buffer[index]);
+}
+
+TEST(DefinesStacksAgainOnceTheirMethodsAreRedefined) {
+  givenStackTrace();
+  timespec tspec = {44, 55};
+
+  char buffer[512] = {};
+  ostreambuf<char> outputBuffer(buffer, sizeof(buffer));
+  ostream output(&outputBuffer);
+  // The frames have no bci, so no line numbers are looked up
+  LineNumberCache lineNumbers(NULL);
+  LogWriter logWriter(output, &stubFrameInformation, NULL, true, false, 0, 0, &lineNumbers);
+
+  logWriter.record(tspec, trace);
+  // Neither unloading a class nor redefining one outside the stack affects it
+  lineNumbers.invalidateAll();
+  lineNumbers.invalidate((jmethodID)7);
+  logWriter.record(tspec, trace);
+  lineNumbers.invalidate((jmethodID)2);
+  logWriter.record(tspec, trace);
+
+  // Header, thread, first trace start, both methods, the stack definition and the reference to it
+  int index = 25 + 13 + 29 + 2 * 24 + 45 + 9;
+
+  CHECK_EQUAL(TRACE_WITH_TIME, buffer[index]);
+  index += 29;
+  CHECK_EQUAL(STACK_REF, buffer[index++]);
+  CHECK_EQUAL(0, buffer[longThen]);
+
+  CHECK_EQUAL(TRACE_WITH_TIME, buffer[index]);
+  index += 29;
+  CHECK_EQUAL(NEW_STACK, buffer[index++]);
+  CHECK_EQUAL(1, buffer[longThen]);
+  CHECK_EQUAL(2, buffer[intThen]);
+  index += 2 * (4 + 4 + 8);
+  CHECK_EQUAL(STACK_REF, buffer[index++]);
+  CHECK_EQUAL(1, buffer[longThen]);
+  CHECK_EQUAL(0, buffer[index]);
+}
+
+TEST(WritesANewHeaderWhenTheSamplingIntervalChanges) {
+  char buffer[256] = {};
+  ostreambuf<char> outputBuffer(buffer, sizeof(buffer));
+  ostream output(&outputBuffer);
+  LogWriter logWriter(output, &stubFrameInformation, NULL, true, false, 0, 0, nullptr, 1000000);
+
+  logWriter.setSamplingInterval(1000000);
+  logWriter.setSamplingInterval(3000000);
+  logWriter.flush();
+
+  int index = 0;
+
+  // 1000000 is 0x0F4240
+  CHECK_EQUAL(LOG_HEADER, buffer[index++]);
+  index += 4 + 4 + 8;
+  CHECK_EQUAL(0x0F, buffer[index + 5]);
+  CHECK_EQUAL(0x42, buffer[index + 6]);
+  CHECK_EQUAL(0x40, buffer[longThen]);
+
+  // 3000000 is 0x2DC6C0
+  CHECK_EQUAL(LOG_HEADER, buffer[index++]);
+  CHECK_EQUAL('G', buffer[intThen]);
+  CHECK_EQUAL(LOG_VERSION_STACK_DICTIONARY, buffer[intThen]);
+  CHECK_EQUAL(0, buffer[longThen]);
+  CHECK_EQUAL(0x2D, buffer[index + 5]);
+  CHECK_EQUAL(0xC6, (unsigned char) buffer[index + 6]);
+  CHECK_EQUAL(0xC0, (unsigned char) buffer[longThen]);
+
+  CHECK_EQUAL(0, buffer[index]);
+}
+
+TEST(WritesCompactRecords) {
+  JVMPI_CallFrame frame0 = {};
+  frame0.lineno = 0;
+  frame0.method_id = (jmethodID)0x7f0012345678;
+
+  JVMPI_CallFrame frame1 = {};
+  frame1.lineno = 0;
+  frame1.method_id = (jmethodID)0x7f0087654321;
+
+  JVMPI_CallFrame frames[] = { frame0, frame1 };
+
+  JVMPI_CallTrace trace = {};
+  trace.env_id = (JNIEnv *)5;
+  trace.num_frames = 2;
+  trace.frames = frames;
+
+  char buffer[256] = {};
+  ostreambuf<char> outputBuffer(buffer, sizeof(buffer));
+  ostream output(&outputBuffer);
+  LogWriter logWriter(output, &stubFrameInformation, NULL, false, true);
+
+  timespec first = {0, 55};
+  timespec second = {0, 60};
+  logWriter.record(first, trace);
+  logWriter.record(second, trace);
+
+  int index = 0;
+
+  CHECK_EQUAL(LOG_HEADER, buffer[index++]);
+  CHECK_EQUAL('G', buffer[intThen]);
+  CHECK_EQUAL(LOG_VERSION_COMPACT, buffer[intThen]);
+  CHECK_EQUAL(0, buffer[longThen]);
+  CHECK_EQUAL(0, buffer[longThen]);
+
+  // Zig-zag varints : -5 -> 9, 2 -> 4
+  CHECK_EQUAL(THREAD_META, buffer[index++]);
+  CHECK_EQUAL(9, buffer[index++]);
+  CHECK_EQUAL(0, buffer[index++]);
+
+  // The first timestamp is relative to the time base in the header
+  CHECK_EQUAL(TRACE_WITH_TIME, buffer[index++]);
+  CHECK_EQUAL(4, buffer[index++]);
+  CHECK_EQUAL(9, buffer[index++]);
+  CHECK_EQUAL(110, buffer[index++]);
+
+  // Method ids are remapped to dense ids
+  CHECK_EQUAL(FRAME_BCI_ONLY, buffer[index++]);
+  CHECK_EQUAL(0, buffer[index++]);
+  CHECK_EQUAL(1, buffer[index++]);
+
+  CHECK_EQUAL(NEW_METHOD, buffer[index++]);
+  CHECK_EQUAL(1, buffer[index++]);
+  CHECK_EQUAL(1, buffer[index++]);
+  CHECK_EQUAL('c', buffer[index++]);
+  CHECK_EQUAL(1, buffer[index++]);
+  CHECK_EQUAL('b', buffer[index++]);
+  CHECK_EQUAL(1, buffer[index++]);
+  CHECK_EQUAL('a', buffer[index++]);
+
+  CHECK_EQUAL(FRAME_BCI_ONLY, buffer[index++]);
+  CHECK_EQUAL(0, buffer[index++]);
+  CHECK_EQUAL(2, buffer[index++]);
+
+  CHECK_EQUAL(NEW_METHOD, buffer[index++]);
+  CHECK_EQUAL(2, buffer[index++]);
+  index += 3 * (1 + 1);
+
+  // The second timestamp is relative to the first one
+  CHECK_EQUAL(TRACE_WITH_TIME, buffer[index++]);
+  CHECK_EQUAL(4, buffer[index++]);
+  CHECK_EQUAL(9, buffer[index++]);
+  CHECK_EQUAL(10, buffer[index++]);
+
+  CHECK_EQUAL(FRAME_BCI_ONLY, buffer[index++]);
+  CHECK_EQUAL(0, buffer[index++]);
+  CHECK_EQUAL(1, buffer[index++]);
+  CHECK_EQUAL(FRAME_BCI_ONLY, buffer[index++]);
+  CHECK_EQUAL(0, buffer[index++]);
+  CHECK_EQUAL(2, buffer[index++]);
+  CHECK_EQUAL(0, buffer[index]);
+}
+
+TEST(BuffersRecordsUntilFlushThresholdIsReached) {
+  char buffer[100] = {};
+  ostreambuf<char> outputBuffer(buffer, sizeof(buffer));
+  ostream output(&outputBuffer);
+  LogWriter logWriter(output, &stubFrameInformation, NULL, false, false, 16, 60 * 60 * 1000);
+
+  // 9 bytes, below the threshold
+  logWriter.recordStackRef(3);
+  CHECK_EQUAL(0, buffer[0]);
+
+  // 18 bytes, both records are written at once
+  logWriter.recordStackRef(4);
+  CHECK_EQUAL(STACK_REF, buffer[0]);
+  CHECK_EQUAL(3, buffer[8]);
+  CHECK_EQUAL(STACK_REF, buffer[9]);
+  CHECK_EQUAL(4, buffer[17]);
+}
+
+TEST(FlushWritesBufferedRecords) {
+  char buffer[100] = {};
+  ostreambuf<char> outputBuffer(buffer, sizeof(buffer));
+  ostream output(&outputBuffer);
+  LogWriter logWriter(output, &stubFrameInformation, NULL, false, false, 1024, 60 * 60 * 1000);
+
+  logWriter.recordFrame(5, 6);
+  logWriter.flushIfDue();
+  CHECK_EQUAL(0, buffer[0]);
+
+  logWriter.flush();
+  CHECK_EQUAL(FRAME_BCI_ONLY, buffer[0]);
+  CHECK_EQUAL(5, buffer[4]);
+  CHECK_EQUAL(6, buffer[12]);
+}
+
+TEST(FlushIfDueWritesPendingCompressedBlockWithoutNewRecords) {
+  ostringstream sink;
+  BlockCompressingBuffer compressing(sink, 20);
+  ostream output(&compressing);
+  LogWriter logWriter(output, &stubFrameInformation, NULL, false, false, 0, 0);
+
+  // The record is flushed to the compressed stream, which holds the partial block back for the delay
+  logWriter.recordStackRef(3);
+  size_t headerOnly = sink.str().size();
+  CHECK_EQUAL(4, headerOnly);
+
+  // Without any new records, the periodic flush writes the block once the delay has passed
+  std::this_thread::sleep_for(std::chrono::milliseconds(30));
+  logWriter.flushIfDue();
+  CHECK(sink.str().size() > headerOnly);
+}
+
+TEST(WritesAgentStats) {
+  char buffer[200] = {};
+  ostreambuf<char> outputBuffer(buffer, sizeof(buffer));
+  ostream output(&outputBuffer);
+  LogWriter logWriter(output, &stubFrameInformation, NULL);
+
+  AgentStats stats = {300, 7, 40, 50, 6, 70, 80};
+  logWriter.recordAgentStats(stats);
+
+  int index = 0;
+  CHECK_EQUAL(AGENT_STATS, buffer[index++]);
+  CHECK_EQUAL(7, buffer[intThen]);
+  CHECK_EQUAL(STAT_SAMPLES_WRITTEN, buffer[intThen]);
+  CHECK_EQUAL(1, buffer[index + 6]);
+  CHECK_EQUAL(300 & 0xff, buffer[longThen]);
+  CHECK_EQUAL(STAT_SAMPLES_DROPPED, buffer[intThen]);
+  CHECK_EQUAL(7, buffer[longThen]);
+  CHECK_EQUAL(STAT_QUEUE_HIGH_WATER_MARK, buffer[intThen]);
+  CHECK_EQUAL(40, buffer[longThen]);
+  CHECK_EQUAL(STAT_DRAIN_LATENCY_NANOS, buffer[intThen]);
+  CHECK_EQUAL(50, buffer[longThen]);
+  CHECK_EQUAL(STAT_MAX_DRAIN_LATENCY_NANOS, buffer[intThen]);
+  CHECK_EQUAL(6, buffer[longThen]);
+  CHECK_EQUAL(STAT_JVMTI_LOOKUP_NANOS, buffer[intThen]);
+  CHECK_EQUAL(70, buffer[longThen]);
+  CHECK_EQUAL(STAT_BYTES_WRITTEN, buffer[intThen]);
+  CHECK_EQUAL(80, buffer[longThen]);
+  CHECK_EQUAL(0, buffer[index]);
+  CHECK_EQUAL(index, logWriter.bytesWritten());
+}
+
 bool dumpStubFrameInformation(const JVMPI_CallFrame &frame, jvmtiEnv *jvmti,
                               MethodListener &listener) {
   method_id id = (method_id)frame.method_id;
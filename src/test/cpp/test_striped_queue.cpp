@@ -0,0 +1,131 @@
+#include <vector>
+#include <stdlib.h>
+#include "test.h"
+#include "../../main/cpp/striped_queue.h"
+
+class EnvRecorder : public QueueListener {
+public:
+  virtual void record(const timespec &ts, const JVMPI_CallTrace &trace, ThreadBucket *info) {
+    envIds.push_back((long) trace.env_id);
+    sequence.push_back(trace.frames[0].lineno);
+    seconds.push_back(ts.tv_sec);
+  }
+
+  std::vector<long> envIds;
+  std::vector<int> sequence;
+  std::vector<long> seconds;
+};
+
+static bool pushTrace(StripedQueue &queue, long envId, int sequence = 0, long seconds = 0) {
+  JVMPI_CallFrame frames[1] = {};
+  frames[0].lineno = sequence;
+  frames[0].method_id = (jmethodID)1;
+
+  JVMPI_CallTrace trace = {};
+  trace.env_id = (JNIEnv *)envId;
+  trace.num_frames = 1;
+  trace.frames = frames;
+  if (seconds == 0) {
+    return queue.push(trace);
+  }
+  timespec ts = {};
+  ts.tv_sec = seconds;
+  return queue.push(ts, trace);
+}
+
+TEST(DrainsAllStripes) {
+  EnvRecorder recorder;
+  StripedQueue queue(recorder, DEFAULT_MAX_FRAMES_TO_CAPTURE, 4, 16);
+
+  for (long envId = 1; envId <= 32; envId++) {
+    CHECK(pushTrace(queue, envId * 16));
+  }
+  while (queue.pop()) {
+  }
+
+  CHECK_EQUAL(32, recorder.envIds.size());
+  CHECK_EQUAL(32, queue.popped());
+  CHECK_EQUAL(0, queue.dropped());
+}
+
+TEST(KeepsTracesOfAThreadInOrder) {
+  EnvRecorder recorder;
+  StripedQueue queue(recorder, DEFAULT_MAX_FRAMES_TO_CAPTURE, 4, 80);
+
+  for (int i = 0; i < 10; i++) {
+    for (long envId = 1; envId <= 8; envId++) {
+      CHECK(pushTrace(queue, envId * 16, i));
+    }
+  }
+  while (queue.pop()) {
+  }
+
+  // The same thread always uses the same stripe
+  CHECK_EQUAL(80, recorder.envIds.size());
+  for (long envId = 1; envId <= 8; envId++) {
+    int expected = 0;
+    for (size_t i = 0; i < recorder.envIds.size(); i++) {
+      if (recorder.envIds[i] == envId * 16) {
+        CHECK_EQUAL(expected++, recorder.sequence[i]);
+      }
+    }
+    CHECK_EQUAL(10, expected);
+  }
+}
+
+TEST(PopsTheTracesOfAllStripesInTimestampOrder) {
+  EnvRecorder recorder;
+  StripedQueue queue(recorder, DEFAULT_MAX_FRAMES_TO_CAPTURE, 4, 200);
+
+  // Bursts of traces of a few threads at a time, so the stripes fill up unevenly
+  unsigned int seed = 7;
+  for (long seconds = 1; seconds <= 400; seconds++) {
+    long envId = (1 + rand_r(&seed) % (seconds % 50 < 25 ? 2 : 8)) * 16;
+    CHECK(pushTrace(queue, envId, 0, seconds));
+  }
+  while (queue.pop()) {
+  }
+
+  CHECK_EQUAL(400, recorder.seconds.size());
+  for (size_t i = 0; i < recorder.seconds.size(); i++) {
+    CHECK_EQUAL((long) i + 1, recorder.seconds[i]);
+  }
+}
+
+TEST(CountsDroppedTraces) {
+  EnvRecorder recorder;
+  StripedQueue queue(recorder, DEFAULT_MAX_FRAMES_TO_CAPTURE, 1, 2);
+
+  CHECK(pushTrace(queue, 16));
+  CHECK(pushTrace(queue, 32));
+  CHECK(!pushTrace(queue, 48));
+  CHECK_EQUAL(1, queue.dropped());
+
+  while (queue.pop()) {
+  }
+  CHECK_EQUAL(2, queue.popped());
+  CHECK_EQUAL(1, queue.dropped());
+}
+
+TEST(SplitsTheCapacityAcrossTheStripes) {
+  CHECK_EQUAL(256, StripedQueue::stripeSizeFor(4, DEFAULT_QUEUE_SIZE, DEFAULT_MAX_FRAMES_TO_CAPTURE));
+  CHECK_EQUAL(DEFAULT_QUEUE_SIZE, StripedQueue::stripeSizeFor(1, DEFAULT_QUEUE_SIZE, DEFAULT_MAX_FRAMES_TO_CAPTURE));
+
+  // Every stripe keeps a minimum size
+  size_t stripeSize = StripedQueue::stripeSizeFor(MAX_DEFAULT_QUEUE_STRIPES, DEFAULT_QUEUE_SIZE,
+                                                 DEFAULT_MAX_FRAMES_TO_CAPTURE);
+  CHECK_EQUAL(MIN_QUEUE_STRIPE_SIZE, stripeSize);
+}
+
+TEST(BoundsTheFrameMemoryOfTheStripes) {
+  int stripes = StripedQueue::stripesFor(256, MAX_FRAMES_TO_CAPTURE);
+  CHECK(stripes >= 1);
+  CHECK(stripes < 256);
+
+  size_t stripeSize = StripedQueue::stripeSizeFor(stripes, 1024 * 1024, MAX_FRAMES_TO_CAPTURE);
+  CHECK(stripeSize >= MIN_QUEUE_STRIPE_SIZE);
+  CHECK(stripes * stripeSize * MAX_FRAMES_TO_CAPTURE * sizeof(JVMPI_CallFrame) <= MAX_QUEUE_FRAME_BYTES);
+
+  CHECK_EQUAL(3, StripedQueue::stripesFor(3, DEFAULT_MAX_FRAMES_TO_CAPTURE));
+  CHECK(StripedQueue::stripesFor(0, DEFAULT_MAX_FRAMES_TO_CAPTURE) >= 1);
+}
@@ -22,13 +22,19 @@
 package com.insightfullogic.honest_profiler.core;
 
 import com.insightfullogic.honest_profiler.core.parser.*;
+import com.insightfullogic.honest_profiler.ports.sources.FileLogSource;
 import com.insightfullogic.honest_profiler.ports.web.store.LogSaver;
 import com.insightfullogic.lambdabehave.JunitSuiteRunner;
 import org.junit.runner.RunWith;
 import org.slf4j.Logger;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
 import static com.insightfullogic.lambdabehave.Suite.describe;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 @RunWith(JunitSuiteRunner.class)
@@ -70,6 +76,156 @@ public class ConductorTest
 
                 verify(listener).endOfLog();
             });
+
+            it.should("parse a basic log without allocating events", expect -> {
+                PrimitiveLogEventListener listener = mock(PrimitiveLogEventListener.class);
+                Logger logger = mock(Logger.class);
+                LogParser parser = new LogParser(logger, listener);
+                Conductor consumer = new Conductor(logger, Util.log0Source(), parser, false);
+
+                expect.that(consumer.poll()).is(true);
+                verify(listener).onTraceStart(2, 5, 0, 0);
+
+                expect.that(consumer.poll()).is(true);
+                verify(listener).onFrame(52, StackFrame.ERR_NO_LINE_INFO, 1);
+
+                expect.that(consumer.poll()).is(true);
+                verify(listener).onNewMethod(1, PRINT_STREAM_JAVA, PRINTSTREAM, "printf");
+
+                expect.that(consumer.poll()).is(true);
+                verify(listener).onFrame(42, StackFrame.ERR_NO_LINE_INFO, 2);
+
+                expect.that(consumer.poll()).is(true);
+                verify(listener).onNewMethod(2, PRINT_STREAM_JAVA, PRINTSTREAM, "append");
+
+                // Next record
+                expect.that(consumer.poll()).is(true);
+                expect.that(consumer.poll()).is(true);
+                expect.that(consumer.poll()).is(true);
+                expect.that(consumer.poll()).is(false);
+
+                verify(listener).endOfLog();
+            });
+
+            it.should("expand references to known stacks", expect -> {
+                File file = File.createTempFile("stacks", ".hpl");
+                file.deleteOnExit();
+                try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file)))
+                {
+                    // LOG_HEADER : magic, fixed width version with stack records, time base, sampling interval
+                    out.writeByte(7);
+                    out.writeInt(0x48504C47);
+                    out.writeInt(LogHeader.STACK_DICTIONARY_VERSION);
+                    out.writeLong(0);
+                    out.writeLong(0);
+                    for (int second = 1; second <= 2; second++)
+                    {
+                        // TRACE_WITH_TIME
+                        out.writeByte(11);
+                        out.writeInt(2);
+                        out.writeLong(7);
+                        out.writeLong(second);
+                        out.writeLong(0);
+                        if (second == 1)
+                        {
+                            // NEW_STACK
+                            out.writeByte(5);
+                            out.writeLong(0);
+                            out.writeInt(2);
+                            out.writeInt(10);
+                            out.writeInt(20);
+                            out.writeLong(1);
+                            out.writeInt(30);
+                            out.writeInt(40);
+                            out.writeLong(2);
+                        }
+                        // STACK_REF
+                        out.writeByte(6);
+                        out.writeLong(0);
+                    }
+                }
+
+                LogEventListener listener = mock(LogEventListener.class);
+                Logger logger = mock(Logger.class);
+                LogParser parser = new LogParser(logger, listener);
+                new Conductor(logger, new FileLogSource(file), parser, false).run();
+
+                verify(listener).handle(new TraceStart(2, 7, 1, 0));
+                verify(listener).handle(new TraceStart(2, 7, 2, 0));
+                verify(listener, times(2)).handle(new StackFrame(10, 20, 1));
+                verify(listener, times(2)).handle(new StackFrame(30, 40, 2));
+                verify(listener).endOfLog();
+            });
+
+            it.should("decode logs using the compact encoding", expect -> {
+                File file = File.createTempFile("compact", ".hpl");
+                file.deleteOnExit();
+                try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file)))
+                {
+                    // LOG_HEADER : magic, version, time base, sampling interval
+                    out.writeByte(7);
+                    out.writeInt(0x48504C47);
+                    out.writeInt(2);
+                    out.writeLong(5_000_000_000L);
+                    out.writeLong(1_000_000L);
+                    // NEW_METHOD : dense method id, then sizes as varints
+                    out.writeByte(3);
+                    out.write(new byte[] { 1, 1, 'F', 3, 'L', 'C', ';', 1, 'm' });
+                    // TRACE_WITH_TIME : 1 frame, thread 7, 100 ns after the time base, all zig-zag encoded
+                    out.writeByte(11);
+                    out.write(new byte[] { 2, 14, (byte)0xC8, 1 });
+                    // STACK_FRAME_FULL : bci 10, line -100
+                    out.writeByte(21);
+                    out.write(new byte[] { 20, (byte)0xC7, 1, 1 });
+                    // TRACE_WITH_TIME : 50 ns before the previous trace
+                    out.writeByte(11);
+                    out.write(new byte[] { 2, 14, 99 });
+                    // STACK_FRAME_BCI_ONLY : bci 0
+                    out.writeByte(2);
+                    out.write(new byte[] { 0, 1 });
+                }
+
+                LogEventListener listener = mock(LogEventListener.class);
+                Logger logger = mock(Logger.class);
+                LogParser parser = new LogParser(logger, listener);
+                new Conductor(logger, new FileLogSource(file), parser, false).run();
+
+                verify(listener).handle(new Method(1, "F", "LC;", "m"));
+                verify(listener).handle(new TraceStart(1, 7, 5, 100));
+                verify(listener).handle(new StackFrame(10, -100, 1));
+                verify(listener).handle(new TraceStart(1, 7, 5, 50));
+                verify(listener).handle(new StackFrame(0, 1));
+                verify(listener).endOfLog();
+            });
+
+            it.should("decode agent stats and ignore unknown counters", expect -> {
+                File file = File.createTempFile("stats", ".hpl");
+                file.deleteOnExit();
+                try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file)))
+                {
+                    // AGENT_STATS : number of counters, then (id, value) pairs
+                    out.writeByte(8);
+                    out.writeInt(3);
+                    out.writeInt(AgentStats.SAMPLES_WRITTEN);
+                    out.writeLong(300);
+                    out.writeInt(99);
+                    out.writeLong(5);
+                    out.writeInt(AgentStats.SAMPLES_DROPPED);
+                    out.writeLong(100);
+                }
+
+                LogEventListener listener = mock(LogEventListener.class);
+                Logger logger = mock(Logger.class);
+                LogParser parser = new LogParser(logger, listener);
+                new Conductor(logger, new FileLogSource(file), parser, false).run();
+
+                AgentStats expected = new AgentStats()
+                    .with(AgentStats.SAMPLES_WRITTEN, 300)
+                    .with(AgentStats.SAMPLES_DROPPED, 100);
+                verify(listener).handle(expected);
+                verify(listener).endOfLog();
+                expect.that(expected.getDropRate()).is(0.25);
+            });
         });
 
     }}
@@ -0,0 +1,355 @@
+package com.insightfullogic.honest_profiler.core.aggregation;
+
+import static com.insightfullogic.honest_profiler.core.aggregation.grouping.CombinedGrouping.combine;
+import static com.insightfullogic.honest_profiler.core.aggregation.grouping.FrameGrouping.BY_FQMN;
+import static com.insightfullogic.honest_profiler.core.aggregation.grouping.ThreadGrouping.ALL_TOGETHER;
+import static com.insightfullogic.honest_profiler.core.aggregation.grouping.ThreadGrouping.BY_ID;
+import static com.insightfullogic.lambdabehave.Suite.describe;
+import static java.util.concurrent.ForkJoinPool.commonPool;
+import static java.util.stream.Collectors.joining;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.honest_profiler.core.aggregation.aggregator.FlatProfileAggregator;
+import com.insightfullogic.honest_profiler.core.aggregation.aggregator.TreeProfileAggregator;
+import com.insightfullogic.honest_profiler.core.aggregation.filter.FilterSpecification;
+import com.insightfullogic.honest_profiler.core.aggregation.grouping.CombinedGrouping;
+import com.insightfullogic.honest_profiler.core.aggregation.grouping.FrameGrouping;
+import com.insightfullogic.honest_profiler.core.aggregation.grouping.ThreadGrouping;
+import com.insightfullogic.honest_profiler.core.aggregation.result.ItemType;
+import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Entry;
+import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Node;
+import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Tree;
+import com.insightfullogic.honest_profiler.core.parser.Method;
+import com.insightfullogic.honest_profiler.core.parser.ThreadMeta;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanTree;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.MethodInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.ThreadInfo;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class AggregationProfileTest
+{
+    private static final CombinedGrouping BY_THREAD = combine(BY_ID, BY_FQMN);
+    private static final CombinedGrouping ALL = combine(ALL_TOGETHER, BY_FQMN);
+
+    {
+        describe("the aggregation profile", it -> {
+
+            it.should("update the cached aggregations from the threads which changed", expect -> {
+                Map<Long, MethodInfo> methods = new HashMap<>();
+                for (long id = 1; id <= 3; id++)
+                {
+                    methods.put(id, new MethodInfo(new Method(id, "A.java", "La/A;", "m" + id)));
+                }
+                Map<Long, ThreadInfo> threadInfos = new HashMap<>();
+                threadInfos.put(1L, new ThreadInfo(new ThreadMeta(1, "main")));
+                threadInfos.put(2L, new ThreadInfo(new ThreadMeta(2, "worker")));
+
+                LeanThreadNode main = new LeanThreadNode();
+                main.add(10, new FrameInfo(1, 0, 1), false).add(10, new FrameInfo(2, 0, 2), true);
+                LeanThreadNode worker = new LeanThreadNode();
+                worker.add(10, new FrameInfo(1, 0, 1), true);
+                Map<Long, LeanThreadNode> threads = new HashMap<>();
+                threads.put(1L, main);
+                threads.put(2L, worker);
+
+                LeanProfile first = new LeanProfile(methods, threadInfos, threads, null, null);
+                AggregationProfile previous = new AggregationProfile(first, null);
+                previous.getFlat(ALL);
+                Tree previousTree = previous.getTree(BY_THREAD);
+                previous.getTree(ALL);
+
+                // The trees are shared with the first profile, so the changed thread is modified like a collector does.
+                LeanThreadNode changed = worker.unshare();
+                changed.add(10, new FrameInfo(1, 0, 1), false).add(10, new FrameInfo(3, 0, 3), true);
+                threads.put(2L, changed);
+                LeanProfile second = new LeanProfile(methods, threadInfos, threads, null, first);
+                AggregationProfile updated = new AggregationProfile(second, previous);
+                AggregationProfile full = new AggregationProfile(second);
+
+                expect.that(summary(updated.getFlat(ALL).getData())).is(summary(full.getFlat(ALL).getData()));
+                expect.that(summary(updated.getTree(BY_THREAD).getData()))
+                    .is(summary(full.getTree(BY_THREAD).getData()));
+                expect.that(summary(updated.getTree(ALL).getData()))
+                    .is(summary(full.getTree(ALL).getData()));
+
+                // The Node tree of the unchanged thread is reused, with the reference of the new profile.
+                Node mainNode = find(updated.getTree(BY_THREAD).getData(), threadInfos.get(1L).getIdentification());
+                expect.that(mainNode).is(find(previousTree.getData(), threadInfos.get(1L).getIdentification()));
+                expect.that(mainNode.getRefCnt()).is(3L);
+                expect.that(mainNode.getAggregation() == (Object)updated.getTree(BY_THREAD)).is(true);
+
+                // The partial aggregations are carried forward through snapshots whose aggregations aren't requested.
+                LeanProfile third = new LeanProfile(methods, threadInfos, threads, null, second);
+                AggregationProfile skipped = new AggregationProfile(third, new AggregationProfile(third, previous));
+                expect.that(find(skipped.getTree(BY_THREAD).getData(), threadInfos.get(1L).getIdentification()))
+                    .is(mainNode);
+                expect.that(summary(skipped.getFlat(ALL).getData())).is(summary(full.getFlat(ALL).getData()));
+                expect.that(skipped.getKeyTable(ALL).getGrouping()).is(ALL);
+
+                // Preparing brings the aggregations requested from the previous snapshot up to date up front.
+                AggregationProfile prepared = new AggregationProfile(third, updated);
+                prepared.prepare();
+                expect.that(summary(prepared.getTree(BY_THREAD).getData()))
+                    .is(summary(full.getTree(BY_THREAD).getData()));
+            });
+
+            it.should("aggregate trees lazily into the same tree as the eager aggregation", expect -> {
+                Map<Long, MethodInfo> methods = new HashMap<>();
+                for (long id = 1; id <= 3; id++)
+                {
+                    methods.put(id, new MethodInfo(new Method(id, "A.java", "La/A;", "m" + id)));
+                }
+                Map<Long, ThreadInfo> threadInfos = new HashMap<>();
+                threadInfos.put(1L, new ThreadInfo(new ThreadMeta(1, "main")));
+                threadInfos.put(2L, new ThreadInfo(new ThreadMeta(2, "worker")));
+
+                LeanThreadNode main = new LeanThreadNode();
+                main.add(10, new FrameInfo(1, 0, 1), false).add(10, new FrameInfo(2, 0, 2), false)
+                    .add(10, new FrameInfo(3, 0, 3), true);
+                LeanThreadNode worker = new LeanThreadNode();
+                worker.add(10, new FrameInfo(1, 0, 1), false).add(10, new FrameInfo(3, 0, 3), true);
+                Map<Long, LeanThreadNode> threads = new HashMap<>();
+                threads.put(1L, main);
+                threads.put(2L, worker);
+
+                LeanProfile profile = new LeanProfile(methods, threadInfos, threads, null, null);
+                AggregationProfile lazy = new AggregationProfile(profile);
+
+                for (CombinedGrouping grouping : new CombinedGrouping[] { BY_THREAD, ALL })
+                {
+                    Tree expected = new TreeProfileAggregator().aggregate(new AggregationProfile(profile), grouping);
+                    expect.that(summary(lazy.getTree(grouping).getData())).is(summary(expected.getData()));
+                }
+
+                // Filtering keeps the accepted Nodes, and the Nodes with accepted descendants.
+                Tree filtered = lazy.getTree(ALL).filter(new FilterSpecification<>(ItemType.ENTRY));
+                expect.that(summary(filtered.getData())).is(summary(lazy.getTree(ALL).getData()));
+                Node root = lazy.getTree(ALL).getData().get(0);
+                expect.that(root.hasChildren()).is(true);
+                expect.that(summary(root.copyWithFilter(node -> node.getKey().contains("m2")).getChildren()))
+                    .is("[a.A.m1=2/0/2[a.A.m2=1/0/1[]]]");
+            });
+
+            it.should("aggregate a profile stored in a LeanTree like the same profile made of LeanNodes", expect -> {
+                Map<Long, MethodInfo> methods = new HashMap<>();
+                for (long id = 1; id <= 3; id++)
+                {
+                    methods.put(id, new MethodInfo(new Method(id, "A.java", "La/A;", "m" + id)));
+                }
+                Map<Long, ThreadInfo> threadInfos = new HashMap<>();
+                threadInfos.put(1L, new ThreadInfo(new ThreadMeta(1, "main")));
+                threadInfos.put(2L, new ThreadInfo(new ThreadMeta(2, "worker")));
+
+                LeanTree tree = new LeanTree();
+                Map<Long, LeanThreadNode> threads = new HashMap<>();
+                threads.put(1L, new LeanThreadNode());
+                threads.put(2L, new LeanThreadNode());
+                sample(tree, threads, 1, 1, 2, 3);
+                sample(tree, threads, 1, 1, 2);
+                sample(tree, threads, 1, 1, 3);
+                sample(tree, threads, 2, 1, 3);
+                sample(tree, threads, 2, 2, 3, 1);
+
+                AggregationProfile nodes = new AggregationProfile(
+                    new LeanProfile(methods, threadInfos, threads, null, null));
+                LeanProfile compactProfile = new LeanProfile(methods, threadInfos, tree, null);
+                AggregationProfile compact = new AggregationProfile(compactProfile);
+
+                for (CombinedGrouping grouping : new CombinedGrouping[] { BY_THREAD, ALL })
+                {
+                    expect.that(summary(compact.getFlat(grouping).getData()))
+                        .is(summary(nodes.getFlat(grouping).getData()));
+                    expect.that(summary(compact.getTree(grouping).getData()))
+                        .is(summary(nodes.getTree(grouping).getData()));
+                    expect.that(summary(new TreeProfileAggregator().aggregate(compact, grouping).getData()))
+                        .is(summary(nodes.getTree(grouping).getData()));
+                    expect.that(summary(new FlatProfileAggregator().aggregate(compact, grouping).getData()))
+                        .is(summary(nodes.getFlat(grouping).getData()));
+                }
+
+                // The aggregated nodes are views on the LeanTree, which know their parents.
+                Entry m3 = compact.getFlat(ALL).getData().stream().filter(entry -> entry.getKey().equals("a.A.m3"))
+                    .findFirst().get();
+                expect.that(m3.getAggregatedNodes().size()).is(4);
+                for (LeanNode node : m3.getAggregatedNodes())
+                {
+                    expect.that(node.getTreeIndex() != LeanTree.NO_NODE).is(true);
+                    expect.that(compactProfile.getNode(node.getTreeIndex()).getFrame()).is(node.getFrame());
+                    expect.that(compactProfile.getParent(node) != null).is(true);
+                }
+                LeanThreadNode root = compactProfile.getThreads().get(1L);
+                expect.that(compactProfile.getParent(root) == null).is(true);
+                expect.that(compactProfile.getNode(root.getTreeIndex()) == root).is(true);
+                expect.that(root.getThreadInfo()).is(threadInfos.get(1L));
+            });
+
+            it.should("aggregate in parallel like a sequential aggregation for all groupings", expect -> {
+                Map<Long, MethodInfo> methods = new HashMap<>();
+                for (long id = 1; id <= 10; id++)
+                {
+                    methods.put(id, new MethodInfo(new Method(id, "A.java", "La/A;", "m" + (id % 7))));
+                }
+                // Two threads share a name, so grouping by name differs from grouping by id.
+                Map<Long, ThreadInfo> threadInfos = new HashMap<>();
+                threadInfos.put(1L, new ThreadInfo(new ThreadMeta(1, "main")));
+                threadInfos.put(2L, new ThreadInfo(new ThreadMeta(2, "worker")));
+                threadInfos.put(3L, new ThreadInfo(new ThreadMeta(3, "worker")));
+                threadInfos.put(4L, new ThreadInfo(new ThreadMeta(4, "io")));
+
+                // A limited set of stacks, sampled often enough for the subtrees to be split into several tasks.
+                Random random = new Random(42);
+                long[][] stacks = new long[200][];
+                int[][] stackBcis = new int[stacks.length][];
+                for (int i = 0; i < stacks.length; i++)
+                {
+                    stacks[i] = new long[1 + random.nextInt(8)];
+                    stackBcis[i] = new int[stacks[i].length];
+                    for (int j = 0; j < stacks[i].length; j++)
+                    {
+                        stacks[i][j] = 1 + random.nextInt(j == 0 ? 3 : 10);
+                        stackBcis[i][j] = random.nextInt(3);
+                    }
+                }
+                LeanTree tree = new LeanTree();
+                Map<Long, LeanThreadNode> threads = new HashMap<>();
+                for (long threadId = 1; threadId <= 4; threadId++)
+                {
+                    threads.put(threadId, new LeanThreadNode());
+                }
+                for (int i = 0; i < 80000; i++)
+                {
+                    int stack = random.nextInt(stacks.length);
+                    sample(tree, threads, 1 + random.nextInt(4), stacks[stack], stackBcis[stack]);
+                }
+
+                AggregationProfile nodes = new AggregationProfile(
+                    new LeanProfile(methods, threadInfos, threads, null, null));
+                AggregationProfile compact = new AggregationProfile(
+                    new LeanProfile(methods, threadInfos, tree, null));
+                Map<LeanNode, Integer> ids = new IdentityHashMap<>();
+                new TreeMap<>(threads).values().forEach(thread -> number(thread, ids));
+
+                ForkJoinPool sequential = new ForkJoinPool(1);
+                ForkJoinPool parallel = new ForkJoinPool(4);
+                try
+                {
+                    for (ThreadGrouping threadGrouping : ThreadGrouping.values())
+                    {
+                        for (FrameGrouping frameGrouping : FrameGrouping.values())
+                        {
+                            CombinedGrouping grouping = combine(threadGrouping, frameGrouping);
+                            for (AggregationProfile profile : new AggregationProfile[] { nodes, compact })
+                            {
+                                String flat = orderedSummary(
+                                    new FlatProfileAggregator(sequential).aggregate(profile, grouping).getData(),
+                                    ids);
+                                String eager = orderedSummary(
+                                    new TreeProfileAggregator(sequential).aggregate(profile, grouping).getData(),
+                                    ids);
+                                for (ForkJoinPool pool : new ForkJoinPool[] { parallel, commonPool() })
+                                {
+                                    expect.that(
+                                        orderedSummary(
+                                            new FlatProfileAggregator(pool).aggregate(profile, grouping).getData(),
+                                            ids))
+                                        .is(flat);
+                                    expect.that(
+                                        orderedSummary(
+                                            new TreeProfileAggregator(pool).aggregate(profile, grouping).getData(),
+                                            ids))
+                                        .is(eager);
+                                }
+                            }
+                        }
+                    }
+                }
+                finally
+                {
+                    sequential.shutdown();
+                    parallel.shutdown();
+                }
+            });
+        });
+    }
+
+    // Aggregates a sample into the LeanTree and into the LeanThreadNode for the thread.
+    private static void sample(LeanTree tree, Map<Long, LeanThreadNode> threads, long threadId, long... methodIds)
+    {
+        int index = tree.root(threadId);
+        LeanNode node = threads.get(threadId);
+        for (int i = 0; i < methodIds.length; i++)
+        {
+            boolean last = i == methodIds.length - 1;
+            index = tree.add(index, 10, methodIds[i], 0, (int)methodIds[i], last);
+            node = node.add(10, new FrameInfo(methodIds[i], 0, (int)methodIds[i]), last);
+        }
+    }
+
+    // Aggregates a sample with the specified byte code indices into the LeanTree and into the LeanThreadNode.
+    private static void sample(LeanTree tree, Map<Long, LeanThreadNode> threads, long threadId, long[] methodIds,
+        int[] bcis)
+    {
+        int index = tree.root(threadId);
+        LeanNode node = threads.get(threadId);
+        for (int i = 0; i < methodIds.length; i++)
+        {
+            boolean last = i == methodIds.length - 1;
+            int lineNr = (int)methodIds[i] * 10 + bcis[i];
+            index = tree.add(index, 10 + i, methodIds[i], bcis[i], lineNr, last);
+            node = node.add(10 + i, new FrameInfo(methodIds[i], bcis[i], lineNr), last);
+        }
+    }
+
+    // Numbers the LeanNodes in depth-first order, so aggregated LeanNodes can be identified.
+    private static void number(LeanNode node, Map<LeanNode, Integer> ids)
+    {
+        ids.put(node, ids.size());
+        node.getChildren().forEach(child -> number(child, ids));
+    }
+
+    // Describes the Entries, and the descendants of Nodes, in the order of the aggregation, including the identity
+    // and order of the aggregated LeanNodes.
+    private static String orderedSummary(List<? extends Entry> entries, Map<LeanNode, Integer> ids)
+    {
+        return entries.stream()
+            .map(
+                entry -> entry.getKey() + "=" + entry.getTotalCnt() + "/" + entry.getSelfCnt() + "/"
+                    + entry.getTotalTime() + "/" + entry.getSelfTime() + "/" + entry.getRefCnt()
+                    + entry.getAggregatedNodes().stream()
+                        .map(node -> node.getTreeIndex() == LeanTree.NO_NODE ? "#" + ids.get(node)
+                            : "@" + node.getTreeIndex())
+                        .collect(joining(",", "{", "}"))
+                    + (entry instanceof Node ? orderedSummary(((Node)entry).getChildren(), ids) : ""))
+            .collect(joining(",", "[", "]"));
+    }
+
+    private static Node find(List<Node> nodes, String key)
+    {
+        return nodes.stream().filter(node -> node.getKey().equals(key)).findFirst().get();
+    }
+
+    // Describes the Entries, and the descendants of Nodes, in key order.
+    private static String summary(List<? extends Entry> entries)
+    {
+        return entries.stream().sorted((e1, e2) -> e1.getKey().compareTo(e2.getKey()))
+            .map(
+                entry -> entry.getKey() + "=" + entry.getTotalCnt() + "/" + entry.getSelfCnt() + "/"
+                    + entry.getAggregatedNodes().size()
+                    + (entry instanceof Node ? summary(((Node)entry).getChildren()) : ""))
+            .collect(joining(",", "[", "]"));
+    }
+}
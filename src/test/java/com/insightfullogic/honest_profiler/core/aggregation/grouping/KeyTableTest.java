@@ -0,0 +1,144 @@
+package com.insightfullogic.honest_profiler.core.aggregation.grouping;
+
+import static com.insightfullogic.honest_profiler.core.aggregation.grouping.CombinedGrouping.combine;
+import static com.insightfullogic.honest_profiler.core.aggregation.grouping.FrameGrouping.BY_FQMN;
+import static com.insightfullogic.honest_profiler.core.aggregation.grouping.ThreadGrouping.BY_ID;
+import static com.insightfullogic.lambdabehave.Suite.describe;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.honest_profiler.core.aggregation.AggregationProfile;
+import com.insightfullogic.honest_profiler.core.parser.Method;
+import com.insightfullogic.honest_profiler.core.parser.ThreadMeta;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.MethodInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.ThreadInfo;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class KeyTableTest
+{
+    private static final CombinedGrouping GROUPING = combine(BY_ID, BY_FQMN);
+
+    // More methods than the initial capacity of the KeyTable, so the keys array grows.
+    private static final int METHODS = 1000;
+
+    {
+        describe("the key table", it -> {
+
+            it.should("share the id and the String instance between nodes with the same key", expect -> {
+                Map<Long, MethodInfo> methods = methods(METHODS);
+                LeanThreadNode thread = new LeanThreadNode();
+                // Equal but distinct FrameInfos, and a frame of the same method on another line.
+                LeanNode first = thread.add(10, new FrameInfo(1, 0, 10), true);
+                LeanNode same = thread.add(10, new FrameInfo(2, 0, 20), false).add(10, new FrameInfo(1, 0, 10), true);
+                LeanNode otherLine = thread.add(10, new FrameInfo(1, 5, 15), true);
+                LeanNode other = thread.add(10, new FrameInfo(3, 0, 30), true);
+
+                KeyTable table = new KeyTable(profile(methods, thread), GROUPING);
+
+                expect.that(table.idOf(same)).is(table.idOf(first));
+                expect.that(table.idOf(otherLine)).is(table.idOf(first));
+                expect.that(table.idOf(other) == table.idOf(first)).is(false);
+                expect.that(table.keyOf(same) == table.keyOf(first)).is(true);
+                expect.that(table.keyOf(otherLine) == table.keyOf(first)).is(true);
+                expect.that(table.keyOf(first)).is("a.A.m1");
+
+                // Thread nodes are keyed by the thread grouping.
+                expect.that(table.keyOf(thread)).is(new ThreadInfo(new ThreadMeta(1, "main")).getIdentification());
+                expect.that(table.idOf(thread)).is(table.idOf(thread));
+                expect.that(table.size()).is(3);
+            });
+
+            it.should("keep ids and keys after the keys array grows", expect -> {
+                Map<Long, MethodInfo> methods = methods(METHODS);
+                LeanThreadNode thread = new LeanThreadNode();
+                List<LeanNode> nodes = frames(thread, 1, METHODS);
+
+                KeyTable table = new KeyTable(profile(methods, thread), GROUPING);
+                List<String> keys = new ArrayList<>();
+                for (int i = 0; i < nodes.size(); i++)
+                {
+                    expect.that(table.idOf(nodes.get(i))).is(i);
+                    keys.add(table.keyOf(i));
+                }
+
+                expect.that(table.size()).is(METHODS);
+                for (int i = 0; i < nodes.size(); i++)
+                {
+                    expect.that(table.idOf(nodes.get(i))).is(i);
+                    expect.that(table.keyOf(i) == keys.get(i)).is(true);
+                    expect.that(table.keyOf(i)).is("a.A.m" + (i + 1));
+                }
+            });
+
+            it.should("keep the ids of the previous table when it is carried over to a later snapshot", expect -> {
+                Map<Long, MethodInfo> methods = methods(2 * METHODS);
+                LeanThreadNode thread = new LeanThreadNode();
+                List<LeanNode> nodes = frames(thread, 1, METHODS);
+                KeyTable previous = new KeyTable(profile(methods, thread), GROUPING);
+                nodes.forEach(previous::idOf);
+
+                // The later snapshot contains the known frames, and frames which weren't seen before.
+                LeanThreadNode later = thread.unshare();
+                List<LeanNode> known = frames(later, 1, METHODS);
+                List<LeanNode> added = frames(later, METHODS + 1, 2 * METHODS);
+                KeyTable table = new KeyTable(profile(methods, later), previous);
+
+                expect.that(table.getGrouping()).is(GROUPING);
+                expect.that(table.size()).is(METHODS);
+                for (int i = 0; i < known.size(); i++)
+                {
+                    expect.that(table.idOf(known.get(i))).is(previous.idOf(nodes.get(i)));
+                    expect.that(table.keyOf(i) == previous.keyOf(i)).is(true);
+                }
+                for (int i = 0; i < added.size(); i++)
+                {
+                    expect.that(table.idOf(added.get(i))).is(METHODS + i);
+                }
+
+                // New keys aren't added to the previous table.
+                expect.that(table.size()).is(2 * METHODS);
+                expect.that(previous.size()).is(METHODS);
+            });
+        });
+    }
+
+    private static Map<Long, MethodInfo> methods(int count)
+    {
+        Map<Long, MethodInfo> methods = new HashMap<>();
+        for (long id = 1; id <= count; id++)
+        {
+            methods.put(id, new MethodInfo(new Method(id, "A.java", "La/A;", "m" + id)));
+        }
+        return methods;
+    }
+
+    // Adds a frame child to the thread node for every method id in the range, in order.
+    private static List<LeanNode> frames(LeanThreadNode thread, long from, long to)
+    {
+        List<LeanNode> result = new ArrayList<>();
+        for (long id = from; id <= to; id++)
+        {
+            result.add(thread.add(10, new FrameInfo(id, 0, (int)id), true));
+        }
+        return result;
+    }
+
+    private static AggregationProfile profile(Map<Long, MethodInfo> methods, LeanThreadNode thread)
+    {
+        Map<Long, ThreadInfo> threadInfos = new HashMap<>();
+        threadInfos.put(1L, new ThreadInfo(new ThreadMeta(1, "main")));
+        Map<Long, LeanThreadNode> threads = new HashMap<>();
+        threads.put(1L, thread);
+        return new AggregationProfile(new LeanProfile(methods, threadInfos, threads, null, null));
+    }
+}
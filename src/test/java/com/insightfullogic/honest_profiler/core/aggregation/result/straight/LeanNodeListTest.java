@@ -0,0 +1,81 @@
+package com.insightfullogic.honest_profiler.core.aggregation.result.straight;
+
+import static com.insightfullogic.lambdabehave.Suite.describe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class LeanNodeListTest
+{
+    {
+        describe("the lean node list", it -> {
+
+            it.should("keep the appended nodes in order across segments, copies and combined lists", expect -> {
+                List<LeanNode> expected = new ArrayList<>();
+                LeanNodeList list = new LeanNodeList();
+                for (int i = 0; i < 2500; i++)
+                {
+                    LeanNode node = new LeanThreadNode();
+                    list.append(node);
+                    expected.add(node);
+                }
+
+                LeanNodeList copy = list.copy();
+                LeanNode extra = new LeanThreadNode();
+                list.append(extra);
+
+                LeanNodeList combined = new LeanNodeList();
+                combined.append(extra);
+                combined.appendAll(copy);
+                combined.appendAll(copy);
+
+                List<LeanNode> expectedCombined = new ArrayList<>();
+                expectedCombined.add(extra);
+                expectedCombined.addAll(expected);
+                expectedCombined.addAll(expected);
+
+                expect.that(copy.asList(null).equals(expected)).is(true);
+                expect.that(combined.asList(null).equals(expectedCombined)).is(true);
+                expect.that(combined.asList(null).get(2600)).is(expectedCombined.get(2600));
+                expected.add(extra);
+                expect.that(list.asList(null).equals(expected)).is(true);
+                expect.that(list.asList(null).get(2500)).is(extra);
+            });
+
+            it.should("keep the appended node indices in order across segments, copies and combined lists", expect -> {
+                LeanNodeList list = new LeanNodeList();
+                for (int i = 0; i < 2500; i++)
+                {
+                    list.append(i);
+                }
+
+                LeanNodeList copy = list.copy();
+                list.append(9999);
+
+                LeanNodeList combined = new LeanNodeList();
+                combined.append(7);
+                combined.appendAll(copy);
+                combined.appendAll(new LeanNodeList());
+                combined.appendAll(copy);
+
+                int[] indices = combined.toIndices();
+                expect.that(combined.isIndexed()).is(true);
+                expect.that(indices.length).is(5001);
+                expect.that(indices[0]).is(7);
+                expect.that(indices[2600]).is(99);
+                expect.that(indices[5000]).is(2499);
+                expect.that(copy.toIndices().length).is(2500);
+                expect.that(list.toIndices()[2500]).is(9999);
+
+                expect.exception(IllegalArgumentException.class, () -> combined.append(new LeanThreadNode()));
+            });
+        });
+    }
+}
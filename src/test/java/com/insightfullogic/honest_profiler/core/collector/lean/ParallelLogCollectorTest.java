@@ -0,0 +1,241 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import static com.insightfullogic.honest_profiler.core.Monitor.consumeFile;
+import static com.insightfullogic.lambdabehave.Suite.describe;
+import static java.util.stream.Collectors.joining;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.honest_profiler.core.Box;
+import com.insightfullogic.honest_profiler.core.parser.LogHeader;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.ports.sources.FileLogSource;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class ParallelLogCollectorTest
+{
+    private static final int METHODS = 6;
+    private static final int THREADS = 3;
+    private static final int STACKS = 8;
+    private static final long TIME_BASE = 1500000000L * 1000 * 1000 * 1000;
+    private static final long INTERVAL = 1000 * 1000;
+
+    {
+        describe("the parallel log collector", it -> {
+
+            it.should("emit the same profile as a sequential collector", expect -> {
+                File file = File.createTempFile("parallel", ".hpl");
+                file.deleteOnExit();
+                writeCompactLog(file, 3000);
+
+                ForkJoinPool pool = new ForkJoinPool(4);
+                try
+                {
+                    CollectorOptions[] optionsList = {
+                        new CollectorOptions(),
+                        new CollectorOptions().withCompact(true).withThreadIntervalNanos(INTERVAL) };
+                    for (CollectorOptions options : optionsList)
+                    {
+                        Box<LeanProfile> sequential = new Box<>();
+                        try (FileLogSource source = new FileLogSource(file))
+                        {
+                            consumeFile(source, new LeanLogCollector(sequential::accept, options));
+                        }
+
+                        // Small segments, so many samples refer to stacks defined in earlier segments.
+                        Box<LeanProfile> parallel = new Box<>();
+                        new ParallelLogCollector(parallel::accept, pool, options).collect(file, 1024);
+
+                        expect.that(parallel.get().getThreads().size()).is(THREADS);
+                        expect.that(summary(parallel.get())).is(summary(sequential.get()));
+                    }
+                }
+                finally
+                {
+                    pool.shutdown();
+                }
+            });
+
+            it.should("attribute time per thread based on the sampling interval stated by the log", expect -> {
+                File file = File.createTempFile("parallel", ".hpl");
+                file.deleteOnExit();
+                writeCompactLog(file, 3000);
+
+                ForkJoinPool pool = new ForkJoinPool(4);
+                try
+                {
+                    Box<LeanProfile> specified = new Box<>();
+                    try (FileLogSource source = new FileLogSource(file))
+                    {
+                        consumeFile(source, new LeanLogCollector(
+                            specified::accept,
+                            new CollectorOptions().withCompact(true).withThreadIntervalNanos(INTERVAL)));
+                    }
+
+                    // Every segment starts with the header in effect there, which states the interval.
+                    Box<LeanProfile> fromLog = new Box<>();
+                    new ParallelLogCollector(
+                        fromLog::accept,
+                        pool,
+                        new CollectorOptions().withCompact(true).withThreadIntervalFromLog(true)).collect(file, 1024);
+
+                    Box<LeanProfile> global = new Box<>();
+                    new ParallelLogCollector(global::accept, pool, new CollectorOptions().withCompact(true))
+                        .collect(file, 1024);
+
+                    expect.that(summary(fromLog.get())).is(summary(specified.get()));
+                    expect.that(summary(global.get()).equals(summary(specified.get()))).is(false);
+                }
+                finally
+                {
+                    pool.shutdown();
+                }
+            });
+        });
+    }
+
+    /**
+     * Writes a log with a compact header stating a sampling interval of {@link #INTERVAL}, in which samples either list their frames or refer to a stack defined the
+     * first time it is used.
+     */
+    private static void writeCompactLog(File file, int samples) throws IOException
+    {
+        Random random = new Random(42);
+        List<long[]> stacks = new ArrayList<>();
+        for (int i = 0; i < STACKS; i++)
+        {
+            stacks.add(randomStack(random));
+        }
+        boolean[] defined = new boolean[STACKS];
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file)))
+        {
+            out.write(new LogHeader(LogHeader.COMPACT_VERSION, TIME_BASE, INTERVAL).encode().array());
+
+            for (long id = 1; id <= METHODS; id++)
+            {
+                // NEW_METHOD
+                out.writeByte(3);
+                writeVarLong(out, id);
+                writeString(out, "A.java");
+                writeString(out, "La/A;");
+                writeString(out, "m" + id);
+            }
+            for (long id = 1; id <= THREADS; id++)
+            {
+                // THREAD_META
+                out.writeByte(4);
+                writeSignedVarLong(out, id);
+                writeString(out, "thread-" + id);
+            }
+
+            for (int i = 0; i < samples; i++)
+            {
+                long threadId = 1 + random.nextInt(THREADS);
+                int stackId = random.nextInt(STACKS + 2);
+                long[] frames = stackId < STACKS ? stacks.get(stackId) : randomStack(random);
+
+                if (stackId < STACKS && !defined[stackId])
+                {
+                    // NEW_STACK
+                    out.writeByte(5);
+                    writeVarLong(out, stackId);
+                    writeVarLong(out, frames.length);
+                    for (long methodId : frames)
+                    {
+                        writeFrame(out, methodId);
+                    }
+                    defined[stackId] = true;
+                }
+
+                // TRACE_WITH_TIME
+                out.writeByte(11);
+                writeSignedVarLong(out, frames.length);
+                writeSignedVarLong(out, threadId);
+                writeSignedVarLong(out, 1000 * 1000 + random.nextInt(1000 * 1000));
+
+                if (stackId < STACKS)
+                {
+                    // STACK_REF
+                    out.writeByte(6);
+                    writeVarLong(out, stackId);
+                }
+                else
+                {
+                    for (long methodId : frames)
+                    {
+                        // STACK_FRAME_FULL
+                        out.writeByte(21);
+                        writeFrame(out, methodId);
+                    }
+                }
+            }
+        }
+    }
+
+    private static long[] randomStack(Random random)
+    {
+        long[] frames = new long[1 + random.nextInt(4)];
+        for (int i = 0; i < frames.length; i++)
+        {
+            frames[i] = 1 + random.nextInt(METHODS);
+        }
+        return frames;
+    }
+
+    private static void writeFrame(DataOutputStream out, long methodId) throws IOException
+    {
+        // BCI, line number and method id, the line number is derived from the method id to keep frames distinct.
+        writeSignedVarLong(out, 0);
+        writeSignedVarLong(out, (int)methodId * 10);
+        writeVarLong(out, methodId);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        writeVarLong(out, value.length());
+        out.writeBytes(value);
+    }
+
+    private static void writeSignedVarLong(DataOutputStream out, long value) throws IOException
+    {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException
+    {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0)
+        {
+            out.writeByte((int)((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.writeByte((int)remaining);
+    }
+
+    // Describes the threads of the profile and their trees, with the children in a fixed order.
+    private static String summary(LeanProfile profile)
+    {
+        return new TreeMap<>(profile.getThreads()).entrySet().stream()
+            .map(entry -> entry.getKey() + ":" + entry.getValue().getThreadInfo().getName() + summary(entry.getValue()))
+            .collect(joining(","));
+    }
+
+    private static String summary(LeanNode node)
+    {
+        return node.toString() + node.getChildren().stream().map(ParallelLogCollectorTest::summary).sorted()
+            .collect(joining(",", "[", "]"));
+    }
+}
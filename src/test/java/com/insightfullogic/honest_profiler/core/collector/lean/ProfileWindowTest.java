@@ -0,0 +1,131 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import static com.insightfullogic.honest_profiler.core.profiles.lean.NodeBudget.PRUNED_FRAME;
+import static com.insightfullogic.lambdabehave.Suite.describe;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class ProfileWindowTest
+{
+    private static final FrameInfo MAIN = new FrameInfo(1, 0, 1);
+    private static final FrameInfo WORK = new FrameInfo(2, 0, 2);
+
+    {
+        describe("the profile window", it -> {
+
+            it.should("only aggregate samples while a window is selected", expect -> {
+                ProfileWindow window = new ProfileWindow(3, 1, 0);
+                window.advance(0, 0);
+                sample(window, 1, MAIN, WORK);
+                expect.that(window.getWindowData() == null).is(true);
+
+                window.select(2);
+                expect.that(window.getWindowData().isEmpty()).is(true);
+                sample(window, 1, MAIN, WORK);
+                expect.that(count(window, 1)).is(1L);
+
+                window.select(0);
+                sample(window, 1, MAIN, WORK);
+                expect.that(window.getWindowData() == null).is(true);
+            });
+
+            it.should("subtract the epochs which leave the window", expect -> {
+                ProfileWindow window = new ProfileWindow(3, 1, 0);
+                window.select(2);
+
+                expect.that(window.advance(0, 0)).is(false);
+                sample(window, 1, MAIN, WORK);
+                expect.that(window.advance(1, 500)).is(false);
+                sample(window, 1, MAIN);
+                sample(window, 2, WORK);
+                expect.that(count(window, 1)).is(2L);
+                expect.that(count(window, 2)).is(1L);
+
+                expect.that(window.advance(2, 0)).is(true);
+                expect.that(count(window, 1)).is(1L);
+                expect.that(child(window.getWindowData().get(1L), MAIN).getChildren().isEmpty()).is(true);
+
+                expect.that(window.advance(1, 0)).is(false);
+                expect.that(window.advance(10, 0)).is(true);
+                expect.that(window.getWindowData().isEmpty()).is(true);
+            });
+
+            it.should("rebuild the window from the ring when another length is selected", expect -> {
+                ProfileWindow window = new ProfileWindow(3, 1, 0);
+                window.select(1);
+                for (int second = 0; second < 5; second++)
+                {
+                    window.advance(second, 0);
+                    for (int i = 0; i <= second; i++)
+                    {
+                        sample(window, 1, MAIN, WORK);
+                    }
+                }
+                expect.that(count(window, 1)).is(5L);
+
+                window.select(3);
+                expect.that(count(window, 1)).is(12L);
+
+                // Windows are capped at the maximum length, which the ring covers.
+                window.select(10);
+                expect.that(count(window, 1)).is(12L);
+
+                window.select(2);
+                expect.that(count(window, 1)).is(9L);
+                window.advance(5, 0);
+                expect.that(count(window, 1)).is(5L);
+            });
+
+            it.should("keep the ring within the node budget and the window consistent with it", expect -> {
+                ProfileWindow window = new ProfileWindow(2, 1, 10);
+                window.select(2);
+
+                window.advance(0, 0);
+                for (int i = 0; i < 20; i++)
+                {
+                    sample(window, 1, MAIN, new FrameInfo(100 + i, 0, 1));
+                    window.pruneIfNeeded();
+                }
+                expect.that(window.pruneIfNeeded()).is(false);
+
+                LeanThreadNode thread = window.getWindowData().get(1L);
+                expect.that(thread.getData().getTotalCnt()).is(20L);
+                expect.that(thread.flatten().count() <= 10).is(true);
+                expect.that(child(child(thread, MAIN), PRUNED_FRAME) != null).is(true);
+
+                window.advance(1, 0);
+                sample(window, 1, MAIN, WORK);
+                expect.that(count(window, 1)).is(21L);
+                window.advance(2, 0);
+                expect.that(count(window, 1)).is(1L);
+                expect.that(child(window.getWindowData().get(1L), MAIN).getChildren().size()).is(1);
+            });
+        });
+    }
+
+    private static void sample(ProfileWindow window, long threadId, FrameInfo... frames)
+    {
+        window.startStack(threadId);
+        for (int i = 0; i < frames.length; i++)
+        {
+            window.add(10, frames[i], i == frames.length - 1);
+        }
+    }
+
+    private static long count(ProfileWindow window, long threadId)
+    {
+        LeanThreadNode thread = window.getWindowData().get(threadId);
+        return thread == null ? 0 : thread.getData().getTotalCnt();
+    }
+
+    private static LeanNode child(LeanNode node, FrameInfo frame)
+    {
+        return node.getChildren().stream().filter(child -> frame.equals(child.getFrame())).findFirst().orElse(null);
+    }
+}
@@ -0,0 +1,64 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import static com.insightfullogic.lambdabehave.Suite.describe;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class SampleClockTest
+{
+    {
+        describe("the sample clock", it -> {
+
+            it.should("attribute the time until the next trace start of any thread", expect -> {
+                SampleClock clock = new SampleClock(0);
+                clock.advance(5, 100);
+                expect.that(clock.getNanosSpent()).is(0L);
+                clock.advance(6, 50);
+                expect.that(clock.getNanosSpent()).is(999999950L);
+            });
+
+            it.should("attribute no time to a trace start preceding the previous one", expect -> {
+                SampleClock clock = new SampleClock(0);
+                clock.advance(5, 100);
+                clock.advance(4, 900);
+                expect.that(clock.getNanosSpent()).is(0L);
+                clock.advance(4, 1000);
+                expect.that(clock.getNanosSpent()).is(100L);
+            });
+
+            it.should("attribute time per thread once the log states the sampling interval", expect -> {
+                SampleClock clock = new SampleClock(0, true);
+                clock.advance(1, 0);
+                clock.startStack(1, 1000000000L);
+                clock.advance(1, 300);
+                clock.startStack(2, 1000000300L);
+                expect.that(clock.getNanosSpent()).is(300L);
+
+                // The samples seen so far are known to the per thread attribution.
+                clock.setSamplingInterval(1000);
+                clock.advance(1, 1200);
+                clock.startStack(1, 1000001200L);
+                expect.that(clock.getNanosSpent()).is(1200L);
+
+                // A header which doesn't state the interval falls back to the specified one.
+                clock.setSamplingInterval(0);
+                clock.advance(1, 1500);
+                clock.startStack(2, 1000001500L);
+                expect.that(clock.getNanosSpent()).is(300L);
+            });
+
+            it.should("ignore the interval stated by the log unless it was asked to use it", expect -> {
+                SampleClock clock = new SampleClock(0);
+                clock.setSamplingInterval(1000);
+                clock.advance(1, 0);
+                clock.startStack(1, 1000000000L);
+                clock.advance(1, 300);
+                clock.startStack(1, 1000000300L);
+                expect.that(clock.getNanosSpent()).is(300L);
+            });
+        });
+    }
+}
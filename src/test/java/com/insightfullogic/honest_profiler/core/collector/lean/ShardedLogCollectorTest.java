@@ -0,0 +1,197 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import static com.insightfullogic.lambdabehave.Suite.describe;
+import static java.util.stream.Collectors.joining;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.honest_profiler.core.Box;
+import com.insightfullogic.honest_profiler.core.parser.PrimitiveLogEventListener;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanNode;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanThreadNode;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class ShardedLogCollectorTest
+{
+    private static final int METHODS = 6;
+    private static final int THREADS = 7;
+    private static final long START_SECONDS = 1500000000L;
+
+    {
+        describe("the sharded log collector", it -> {
+
+            it.should("emit consistent profiles while they are requested concurrently", expect -> {
+                CollectorOptions[] optionsList = {
+                    new CollectorOptions(),
+                    new CollectorOptions().withCompact(true).withThreadIntervalNanos(1000 * 1000) };
+                for (CollectorOptions options : optionsList)
+                {
+                    List<LeanProfile> profiles = new ArrayList<>();
+                    List<Map<Long, Long>> countsAtEmission = new ArrayList<>();
+                    ShardedLogCollector sharded = new ShardedLogCollector(
+                        profile ->
+                        {
+                            // Profiles are emitted by the worker threads, but never concurrently.
+                            synchronized (profiles)
+                            {
+                                profiles.add(profile);
+                                countsAtEmission.add(counts(profile));
+                            }
+                        },
+                        3,
+                        options);
+
+                    AtomicBoolean done = new AtomicBoolean(false);
+                    Thread requester = new Thread(() ->
+                    {
+                        while (!done.get())
+                        {
+                            sharded.requestProfile();
+                            Thread.yield();
+                        }
+                    });
+                    requester.start();
+
+                    Box<LeanProfile> sequential = new Box<>();
+                    LeanLogCollector collector = new LeanLogCollector(sequential::accept, options);
+
+                    // Keep feeding the same samples to both collectors until several profiles have been emitted.
+                    Random random = new Random(42);
+                    long nanos = 0;
+                    int samples = 0;
+                    while (samples < 20000 || (emitted(profiles) < 5 && samples < 5000000))
+                    {
+                        nanos += 100000 + random.nextInt(1000000);
+                        long threadId = 1 + random.nextInt(THREADS);
+                        long[] frames = new long[1 + random.nextInt(4)];
+                        for (int i = 0; i < frames.length; i++)
+                        {
+                            frames[i] = 1 + random.nextInt(METHODS);
+                        }
+                        sample(sharded, threadId, nanos, frames, random.nextBoolean());
+                        sample(collector, threadId, nanos, frames, false);
+                        samples++;
+                    }
+
+                    done.set(true);
+                    requester.join();
+                    sharded.endOfLog();
+                    collector.endOfLog();
+
+                    expect.that(profiles.size() > 5).is(true);
+                    for (int i = 0; i < profiles.size(); i++)
+                    {
+                        LeanProfile profile = profiles.get(i);
+                        Map<Long, Long> counts = counts(profile);
+
+                        // Later samples didn't change the emitted profiles.
+                        expect.that(counts).is(countsAtEmission.get(i));
+                        for (LeanThreadNode thread : profile.getThreads().values())
+                        {
+                            expect.that(childCount(thread)).is(thread.getData().getTotalCnt());
+                        }
+                        if (i > 0)
+                        {
+                            Map<Long, Long> previous = countsAtEmission.get(i - 1);
+                            previous.forEach((threadId, count) -> expect.that(counts.get(threadId) >= count).is(true));
+                        }
+                    }
+
+                    LeanProfile last = profiles.get(profiles.size() - 1);
+                    expect.that(counts(last).values().stream().mapToLong(Long::longValue).sum()).is((long)samples);
+                    expect.that(summary(last)).is(summary(sequential.get()));
+                }
+            });
+
+            it.should("not start any threads until stacks are handed over", expect -> {
+                ShardedLogCollector sharded = new ShardedLogCollector(profile -> {}, 4, new CollectorOptions());
+                expect.that(workerCount()).is(0L);
+                sharded.onThreadMeta(1, "main");
+                expect.that(workerCount()).is(0L);
+                sharded.endOfLog();
+                expect.that(workerCount()).is(0L);
+            });
+
+            it.should("reject the options it doesn't support", expect -> {
+                expect.exception(
+                    IllegalArgumentException.class,
+                    () -> new ShardedLogCollector(profile -> {}, 2, new CollectorOptions().withNodeBudget(10)));
+                expect.exception(
+                    IllegalArgumentException.class,
+                    () -> new ShardedLogCollector(profile -> {}, 0, new CollectorOptions()));
+            });
+        });
+    }
+
+    // Feeds a sample to a collector, the frames either as separate frames or as a reference to a known stack.
+    private static void sample(PrimitiveLogEventListener listener, long threadId, long nanos, long[] frames,
+        boolean asStack)
+    {
+        long seconds = START_SECONDS + nanos / (1000 * 1000 * 1000);
+        listener.onTraceStart(frames.length, threadId, seconds, nanos % (1000 * 1000 * 1000));
+        if (asStack)
+        {
+            int[] lineNrs = new int[frames.length];
+            for (int i = 0; i < frames.length; i++)
+            {
+                lineNrs[i] = (int)frames[i] * 10;
+            }
+            listener.onStack(frames.length, new int[frames.length], lineNrs, frames);
+            return;
+        }
+        for (long methodId : frames)
+        {
+            listener.onFrame(0, (int)methodId * 10, methodId);
+        }
+    }
+
+    private static long workerCount()
+    {
+        return Thread.getAllStackTraces().keySet().stream()
+            .filter(thread -> thread.getName().startsWith(ShardedLogCollector.class.getSimpleName())).count();
+    }
+
+    private static int emitted(List<LeanProfile> profiles)
+    {
+        synchronized (profiles)
+        {
+            return profiles.size();
+        }
+    }
+
+    private static Map<Long, Long> counts(LeanProfile profile)
+    {
+        Map<Long, Long> result = new HashMap<>();
+        profile.getThreads().forEach((threadId, thread) -> result.put(threadId, thread.getData().getTotalCnt()));
+        return result;
+    }
+
+    private static long childCount(LeanNode node)
+    {
+        return node.getChildren().stream().mapToLong(child -> child.getData().getTotalCnt()).sum();
+    }
+
+    // Describes the threads of the profile and their trees, with the children in a fixed order.
+    private static String summary(LeanProfile profile)
+    {
+        return new TreeMap<>(profile.getThreads()).entrySet().stream()
+            .map(entry -> entry.getKey() + summary(entry.getValue()))
+            .collect(joining(","));
+    }
+
+    private static String summary(LeanNode node)
+    {
+        return node.toString() + node.getChildren().stream().map(ShardedLogCollectorTest::summary).sorted()
+            .collect(joining(",", "[", "]"));
+    }
+}
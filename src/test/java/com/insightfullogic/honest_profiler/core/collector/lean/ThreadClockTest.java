@@ -0,0 +1,80 @@
+package com.insightfullogic.honest_profiler.core.collector.lean;
+
+import static com.insightfullogic.lambdabehave.Suite.describe;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.honest_profiler.core.parser.ThreadTimestamps;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class ThreadClockTest
+{
+    private static final long INTERVAL = 1000;
+
+    {
+        describe("the thread clock", it -> {
+
+            it.should("attribute the interval to the first sample of a thread", expect -> {
+                ThreadClock clock = new ThreadClock(INTERVAL);
+                expect.that(clock.elapsed(1, 5000)).is(INTERVAL);
+                expect.that(clock.elapsed(2, 5100)).is(INTERVAL);
+            });
+
+            it.should("attribute the time since the previous sample of the same thread", expect -> {
+                ThreadClock clock = new ThreadClock(INTERVAL);
+                clock.elapsed(1, 5000);
+                clock.elapsed(2, 5300);
+                expect.that(clock.elapsed(1, 6200)).is(1200L);
+                expect.that(clock.elapsed(2, 6000)).is(700L);
+            });
+
+            it.should("cap the time attributed to a thread which didn't run", expect -> {
+                ThreadClock clock = new ThreadClock(INTERVAL);
+                clock.elapsed(1, 5000);
+                expect.that(clock.elapsed(1, 5000 + 60 * INTERVAL)).is(ThreadClock.MAX_GAP_INTERVALS * INTERVAL);
+                expect.that(clock.elapsed(1, 5000 + 61 * INTERVAL)).is(INTERVAL);
+            });
+
+            it.should("attribute no time to a sample preceding the previous one", expect -> {
+                ThreadClock clock = new ThreadClock(INTERVAL);
+                clock.elapsed(1, 5000);
+                expect.that(clock.elapsed(1, 4500)).is(0L);
+                expect.that(clock.elapsed(1, 5500)).is(500L);
+            });
+
+            it.should("attribute the interval to samples without a timestamp", expect -> {
+                ThreadClock clock = new ThreadClock(INTERVAL);
+                expect.that(clock.elapsed(1, 0)).is(INTERVAL);
+                clock.elapsed(1, 5000);
+                expect.that(clock.elapsed(1, 0)).is(INTERVAL);
+                expect.that(clock.elapsed(1, 5800)).is(800L);
+            });
+
+            it.should("resume from the timestamps preceding a segment without modifying them", expect -> {
+                ThreadTimestamps previous = new ThreadTimestamps();
+                previous.update(1, 5000);
+
+                ThreadClock clock = new ThreadClock(INTERVAL);
+                clock.elapsed(1, 90000);
+                clock.resume(previous);
+                expect.that(clock.elapsed(1, 5400)).is(400L);
+                expect.that(clock.elapsed(2, 5400)).is(INTERVAL);
+                expect.that(previous.get(1)).is(5000L);
+                expect.that(previous.size()).is(1);
+            });
+
+            it.should("keep the timestamps of many threads apart", expect -> {
+                ThreadClock clock = new ThreadClock(INTERVAL);
+                for (long threadId = 1; threadId <= 1000; threadId++)
+                {
+                    clock.elapsed(threadId, threadId * 10);
+                }
+                for (long threadId = 1; threadId <= 1000; threadId++)
+                {
+                    expect.that(clock.elapsed(threadId, threadId * 10 + 100 + threadId % 7)).is(100 + threadId % 7);
+                }
+            });
+        });
+    }
+}
@@ -0,0 +1,107 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import static com.insightfullogic.lambdabehave.Suite.describe;
+import static java.util.stream.Collectors.joining;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.honest_profiler.core.Box;
+import com.insightfullogic.honest_profiler.core.collector.lean.CollectorOptions;
+import com.insightfullogic.honest_profiler.core.collector.lean.LeanLogCollector;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class LeanProfileMirrorTest
+{
+    private static final int METHODS = 50;
+    private static final int THREADS = 5;
+    private static final int SAMPLES = 50000;
+
+    {
+        describe("the lean profile mirror", it -> {
+
+            it.should("mirror the profile of a collector by applying the deltas it emits", expect -> {
+                Box<LeanProfile> collected = new Box<>();
+                List<LeanProfileDelta> deltas = new ArrayList<>();
+                LeanProfileMirror mirror = new LeanProfileMirror(null);
+                LeanLogCollector collector = new LeanLogCollector(
+                    collected::accept,
+                    delta ->
+                    {
+                        deltas.add(delta);
+                        mirror.accept(delta);
+                    },
+                    new CollectorOptions().withCompact(true));
+
+                Random random = new Random(7);
+                for (int i = 0; i < SAMPLES; i++)
+                {
+                    long threadId = 1 + random.nextInt(THREADS);
+                    long methodId = 1 + random.nextInt(METHODS);
+                    // Metadata keeps arriving along the way, and threads get renamed.
+                    collector.onNewMethod(methodId, "A.java", "La/A;", "m" + methodId);
+                    collector.onThreadMeta(threadId, i < SAMPLES / 2 ? "" : "thread-" + threadId);
+
+                    collector.onTraceStart(3, threadId, 1, i * 1000L);
+                    collector.onFrame(random.nextInt(3), 10, methodId);
+                    collector.onFrame(0, 20, 1 + random.nextInt(METHODS / 10));
+                    collector.onFrame(0, 30, 1 + random.nextInt(2));
+
+                    if (i % 5000 == 4999)
+                    {
+                        collector.requestProfileDelta();
+                    }
+                }
+                collector.requestProfile();
+                collector.endOfLog();
+
+                LeanProfile expected = collected.get();
+                LeanProfile mirrored = mirror.getProfile();
+                expect.that(deltas.size()).is(SAMPLES / 5000);
+                expect.that(summary(mirrored)).is(summary(expected));
+                expect.that(mirrored.getMethodInfoMap().keySet()).is(expected.getMethodInfoMap().keySet());
+                for (long threadId = 1; threadId <= THREADS; threadId++)
+                {
+                    expect.that(mirrored.getThreadInfo(threadId).getName()).is("thread-" + threadId);
+                }
+
+                // Once the tree is complete, the deltas only contain the nodes which changed.
+                LeanProfileDelta last = deltas.get(deltas.size() - 1);
+                expect.that(last.getBaseSize() > 0).is(true);
+                expect.that(last.size() < mirrored.getTree().size()).is(true);
+                expect.that(last.getMethodInfoMap().isEmpty()).is(true);
+            });
+
+            it.should("only be created by a collector working in compact mode", expect -> {
+                expect.exception(
+                    IllegalArgumentException.class,
+                    () -> new LeanLogCollector(null, new LeanProfileMirror(null), new CollectorOptions()));
+                expect.exception(
+                    IllegalArgumentException.class,
+                    () -> new LeanLogCollector(
+                        null,
+                        new LeanProfileMirror(null),
+                        new CollectorOptions().withCompact(true).withNodeBudget(100)));
+            });
+        });
+    }
+
+    // Describes the threads of the profile and their trees, with the children in a fixed order.
+    private static String summary(LeanProfile profile)
+    {
+        return new TreeMap<>(profile.getThreads()).entrySet().stream()
+            .map(entry -> entry.getKey() + summary(entry.getValue()))
+            .collect(joining(","));
+    }
+
+    private static String summary(LeanNode node)
+    {
+        return node.toString() + node.getChildren().stream().map(LeanProfileMirrorTest::summary).sorted()
+            .collect(joining(",", "[", "]"));
+    }
+}
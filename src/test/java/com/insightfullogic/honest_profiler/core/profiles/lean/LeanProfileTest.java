@@ -0,0 +1,93 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import static com.insightfullogic.honest_profiler.core.profiles.lean.NodeBudget.PRUNED_FRAME;
+import static com.insightfullogic.lambdabehave.Suite.describe;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class LeanProfileTest
+{
+    private static final FrameInfo MAIN = new FrameInfo(1, 0, 1);
+    private static final FrameInfo HOT = new FrameInfo(2, 0, 2);
+    private static final FrameInfo COLD = new FrameInfo(3, 0, 3);
+    private static final FrameInfo LEAF = new FrameInfo(4, 0, 4);
+
+    {
+        describe("the lean profile", it -> {
+
+            it.should("share the unchanged nodes and copy the changed paths of later snapshots", expect -> {
+                Map<Long, LeanThreadNode> threads = new HashMap<>();
+                LeanThreadNode thread = new LeanThreadNode();
+                thread.add(10, MAIN, false).add(10, HOT, false).add(10, LEAF, true);
+                thread.add(10, MAIN, false).add(10, COLD, true);
+                threads.put(1L, thread);
+
+                LeanProfile first = new LeanProfile(new HashMap<>(), new HashMap<>(), threads);
+                expect.that(first.getThreads().get(1L) == thread).is(true);
+
+                LeanThreadNode changed = thread.unshare();
+                changed.add(10, MAIN, false).add(10, HOT, false).add(10, LEAF, true);
+                threads.put(1L, changed);
+                LeanProfile second = new LeanProfile(new HashMap<>(), new HashMap<>(), threads);
+
+                LeanNode firstMain = child(first.getThreads().get(1L), MAIN);
+                LeanNode secondMain = child(second.getThreads().get(1L), MAIN);
+                expect.that(firstMain.getData().getTotalCnt()).is(2L);
+                expect.that(child(child(firstMain, HOT), LEAF).getData().getSelfCnt()).is(1L);
+                expect.that(secondMain.getData().getTotalCnt()).is(3L);
+                expect.that(child(child(secondMain, HOT), LEAF).getData().getSelfCnt()).is(2L);
+
+                // The changed path is copied, keeping the ids, and the other subtrees are shared.
+                expect.that(firstMain != secondMain).is(true);
+                expect.that(firstMain.getId()).is(secondMain.getId());
+                expect.that(child(firstMain, COLD) == child(secondMain, COLD)).is(true);
+
+                // Every profile knows the parents in its own trees.
+                expect.that(first.getParent(child(firstMain, HOT)) == firstMain).is(true);
+                expect.that(second.getParent(child(secondMain, HOT)) == secondMain).is(true);
+                expect.that(second.getParent(child(secondMain, COLD)) == secondMain).is(true);
+                expect.that(second.getParent(second.getThreads().get(1L)) == null).is(true);
+
+                // An unchanged thread is shared as a whole.
+                LeanProfile third = new LeanProfile(new HashMap<>(), new HashMap<>(), threads);
+                expect.that(third.getThreads().get(1L) == second.getThreads().get(1L)).is(true);
+            });
+
+            it.should("not modify the snapshots when the shared trees are pruned", expect -> {
+                Map<Long, LeanThreadNode> threads = new HashMap<>();
+                LeanThreadNode thread = new LeanThreadNode();
+                for (int i = 0; i < 5; i++)
+                {
+                    thread.add(10, MAIN, false).add(10, HOT, true);
+                }
+                thread.add(10, MAIN, false).add(10, COLD, false).add(10, LEAF, true);
+                threads.put(1L, thread);
+
+                LeanProfile first = new LeanProfile(new HashMap<>(), new HashMap<>(), threads);
+
+                LeanThreadNode changed = thread.unshare();
+                expect.that(changed.prune(1, PRUNED_FRAME)).is(1);
+                LeanNode prunedMain = child(changed, MAIN);
+                expect.that(child(prunedMain, COLD) == null).is(true);
+                expect.that(child(prunedMain, PRUNED_FRAME).getData().getTotalCnt()).is(1L);
+
+                LeanNode firstMain = child(first.getThreads().get(1L), MAIN);
+                expect.that(firstMain.getChildren().size()).is(2);
+                expect.that(child(child(firstMain, COLD), LEAF).getData().getSelfCnt()).is(1L);
+                expect.that(child(firstMain, HOT) == child(prunedMain, HOT)).is(true);
+            });
+        });
+    }
+
+    private static LeanNode child(LeanNode node, FrameInfo frame)
+    {
+        return node.getChildren().stream().filter(child -> frame.equals(child.getFrame())).findFirst().orElse(null);
+    }
+}
@@ -0,0 +1,144 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import static com.insightfullogic.lambdabehave.Suite.describe;
+import static java.util.Collections.emptyMap;
+
+import java.util.Map;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.MethodInfo;
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.ThreadInfo;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class LeanTreeTest
+{
+    {
+        describe("the compact lean tree", it -> {
+
+            it.should("aggregate stacks and expose them through a cursor", expect -> {
+                LeanTree tree = new LeanTree();
+                int root = tree.root(7);
+                int outer = tree.add(root, 10, 1, 0, 5, false);
+                tree.add(outer, 10, 2, 3, 8, true);
+                int outerAgain = tree.add(tree.root(7), 20, 1, 0, 5, true);
+
+                expect.that(outerAgain).is(outer);
+                expect.that(tree.size()).is(3);
+
+                LeanNodeCursor cursor = tree.cursor().moveTo(root);
+                expect.that(cursor.isThreadNode()).is(true);
+                expect.that(cursor.getTotalTime()).is(30L);
+                expect.that(cursor.getTotalCnt()).is(2L);
+
+                expect.that(cursor.toFirstChild()).is(true);
+                expect.that(cursor.getMethodId()).is(1L);
+                expect.that(cursor.getSelfCnt()).is(1L);
+                expect.that(cursor.getTotalTime()).is(30L);
+                expect.that(cursor.toNextSibling()).is(false);
+
+                expect.that(cursor.toFirstChild()).is(true);
+                expect.that(cursor.getBci()).is(3);
+                expect.that(cursor.getLineNr()).is(8);
+                expect.that(cursor.getSelfTime()).is(10L);
+                expect.that(cursor.toFirstChild()).is(false);
+
+                expect.that(cursor.toParent()).is(true);
+                expect.that(cursor.toParent()).is(true);
+                expect.that(cursor.toParent()).is(false);
+            });
+
+            it.should("merge trees and materialize the same nodes as a LeanNode tree", expect -> {
+                LeanTree left = new LeanTree();
+                left.add(left.add(left.root(1), 10, 1, 0, 5, false), 10, 2, 0, 6, true);
+                LeanTree right = new LeanTree();
+                right.add(right.add(right.root(1), 5, 1, 0, 5, false), 5, 3, 0, 7, true);
+                right.add(right.root(2), 5, 1, 0, 5, true);
+
+                LeanThreadNode expected = new LeanThreadNode();
+                expected.add(10, new FrameInfo(1, 0, 5), false).add(10, new FrameInfo(2, 0, 6), true);
+                expected.add(5, new FrameInfo(1, 0, 5), false).add(5, new FrameInfo(3, 0, 7), true);
+
+                left.merge(right);
+                LeanThreadNode actual = left.toThreadNode(left.getRoots().get(1L));
+
+                expect.that(left.size()).is(6);
+                expect.that(actual.getData().toString()).is(expected.getData().toString());
+                expect.that(actual.getData().getTotalCnt()).is(2L);
+                expect.that(actual.getChildren().size()).is(1);
+                expect.that(actual.getChildren().iterator().next().getChildren().size()).is(2);
+                expect.that(actual.flatten().count()).is(4L);
+            });
+
+            it.should("keep snapshots unaffected by later modifications", expect -> {
+                LeanTree tree = new LeanTree();
+                int outer = tree.add(tree.root(1), 10, 1, 0, 5, false);
+                tree.add(outer, 10, 2, 0, 6, true);
+
+                LeanTree snapshot = tree.snapshot();
+
+                tree.add(tree.add(tree.root(1), 5, 1, 0, 5, false), 5, 3, 0, 7, true);
+                for (int i = 0; i < 1000; i++)
+                {
+                    tree.add(tree.root(2), 1, i, 0, i, true);
+                }
+
+                expect.that(snapshot.isSnapshot()).is(true);
+                expect.that(snapshot.snapshot()).is(snapshot);
+                expect.that(snapshot.size()).is(3);
+                expect.that(snapshot.getRoots().size()).is(1);
+
+                LeanNodeCursor cursor = snapshot.cursor().moveTo(snapshot.getRoots().get(1L));
+                expect.that(cursor.getTotalTime()).is(10L);
+                expect.that(cursor.getTotalCnt()).is(1L);
+                expect.that(cursor.toFirstChild()).is(true);
+                expect.that(cursor.toFirstChild()).is(true);
+                expect.that(cursor.getMethodId()).is(2L);
+                expect.that(cursor.toNextSibling()).is(false);
+
+                expect.that(tree.size()).is(1005);
+                expect.that(tree.cursor().moveTo(tree.getRoots().get(1L)).getTotalCnt()).is(2L);
+                expect.exception(UnsupportedOperationException.class, () -> snapshot.root(1));
+            });
+
+            it.should("mirror a tree by applying the deltas between its snapshots", expect -> {
+                LeanTree tree = new LeanTree();
+                LeanTree mirror = new LeanTree();
+                Map<Long, MethodInfo> noMethods = emptyMap();
+                Map<Long, ThreadInfo> noThreads = emptyMap();
+
+                tree.add(tree.add(tree.root(1), 10, 1, 0, 5, false), 10, 2, 0, 6, true);
+                LeanTree first = tree.snapshot();
+                LeanProfileDelta delta = new LeanProfileDelta(noMethods, noThreads, null, first, null);
+                mirror.apply(delta);
+
+                expect.that(delta.size()).is(3);
+                expect.that(delta.getNewRoots().get(1L)).is(0);
+
+                for (int i = 0; i < 600; i++)
+                {
+                    tree.add(tree.root(2), 1, i, 0, i, true);
+                }
+                tree.add(tree.root(1), 5, 1, 0, 5, true);
+                LeanTree second = tree.snapshot();
+                delta = new LeanProfileDelta(noMethods, noThreads, null, second, first);
+                mirror.apply(delta);
+
+                expect.that(delta.getBaseSize()).is(3);
+                expect.that(delta.size()).is(603);
+                expect.that(delta.isNew(0)).is(false);
+                expect.that(delta.getTotalCnt(0)).is(1L);
+                expect.that(delta.getSelfTime(1)).is(5L);
+
+                expect.that(mirror.size()).is(tree.size());
+                expect.that(mirror.toThreadNode(mirror.getRoots().get(1L)).flatten().count()).is(3L);
+                expect.that(mirror.cursor().moveTo(mirror.getRoots().get(1L)).getTotalCnt()).is(2L);
+                expect.that(mirror.cursor().moveTo(mirror.getRoots().get(2L)).getTotalTime()).is(600L);
+                expect.exception(IllegalStateException.class, () -> new LeanTree().apply(
+                    new LeanProfileDelta(noMethods, noThreads, null, second, first)));
+            });
+        });
+    }
+}
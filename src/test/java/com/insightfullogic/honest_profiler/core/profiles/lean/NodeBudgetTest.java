@@ -0,0 +1,56 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean;
+
+import static com.insightfullogic.honest_profiler.core.profiles.lean.NodeBudget.PRUNED_FRAME;
+import static com.insightfullogic.lambdabehave.Suite.describe;
+import static java.util.Collections.singleton;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.honest_profiler.core.profiles.lean.info.FrameInfo;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class NodeBudgetTest
+{
+    {
+        describe("the node budget", it -> {
+
+            it.should("collapse the least-sampled subtrees into a pruned node keeping their totals", expect -> {
+                LeanThreadNode thread = new LeanThreadNode();
+                for (int i = 0; i < 10; i++)
+                {
+                    thread.add(10, new FrameInfo(1, 0, 1), true);
+                }
+                thread.add(5, new FrameInfo(2, 0, 2), false).add(5, new FrameInfo(3, 0, 3), true);
+                thread.add(7, new FrameInfo(4, 0, 4), true);
+
+                NodeBudget budget = new NodeBudget(4);
+                for (int i = 0; i < 5; i++)
+                {
+                    budget.nodeAdded();
+                }
+                expect.that(budget.isExceeded()).is(true);
+
+                budget.prune(singleton(thread));
+
+                expect.that(budget.isExceeded()).is(false);
+                expect.that(thread.flatten().count()).is(3L);
+                expect.that(thread.getData().getTotalCnt()).is(12L);
+                expect.that(thread.getData().getTotalTime()).is(112L);
+
+                LeanNode pruned = thread.getChildren().stream()
+                    .filter(child -> PRUNED_FRAME.equals(child.getFrame())).findFirst().get();
+                expect.that(pruned.getData().getSelfCnt()).is(2L);
+                expect.that(pruned.getData().getTotalCnt()).is(2L);
+                expect.that(pruned.getData().getSelfTime()).is(12L);
+                expect.that(pruned.getChildren().isEmpty()).is(true);
+
+                PruneStats stats = budget.getStats();
+                expect.that(stats.getNodeCount()).is(3);
+                expect.that(stats.getPruneCount()).is(1);
+                expect.that(stats.getPrunedNodes()).is(2L);
+                expect.that(stats.getPrunedSamples()).is(2L);
+            });
+        });
+    }
+}
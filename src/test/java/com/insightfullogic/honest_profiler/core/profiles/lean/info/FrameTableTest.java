@@ -0,0 +1,63 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean.info;
+
+import static com.insightfullogic.lambdabehave.Suite.describe;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class FrameTableTest
+{
+    // Enough frames to grow the frame arrays and rehash the table several times.
+    private static final int FRAMES = 10000;
+
+    {
+        describe("the frame table", it -> {
+
+            it.should("return the same FrameInfo for the same frame and distinct ones for different frames", expect -> {
+                FrameTable table = new FrameTable();
+                FrameInfo frame = table.intern(1, 2, 3);
+
+                expect.that(table.intern(1, 2, 3) == frame).is(true);
+                expect.that(table.intern(1, 2, 4) == frame).is(false);
+                expect.that(table.intern(1, 3, 3) == frame).is(false);
+                expect.that(table.intern(2, 2, 3) == frame).is(false);
+                expect.that(table.size()).is(4);
+
+                expect.that(frame.getMethodId()).is(1L);
+                expect.that(frame.getBci()).is(2);
+                expect.that(frame.getLineNr()).is(3);
+            });
+
+            it.should("assign ids sequentially in the order in which the frames were first seen", expect -> {
+                FrameTable table = new FrameTable();
+
+                expect.that(table.idOf(5, 0, 50)).is(0);
+                expect.that(table.idOf(6, 0, 60)).is(1);
+                expect.that(table.idOf(5, 0, 50)).is(0);
+                expect.that(table.idOf(5, 1, 50)).is(2);
+                expect.that(table.get(1) == table.intern(6, 0, 60)).is(true);
+            });
+
+            it.should("keep ids and FrameInfo identities after growing and rehashing", expect -> {
+                FrameTable table = new FrameTable();
+                FrameInfo[] frames = new FrameInfo[FRAMES];
+                for (int i = 0; i < FRAMES; i++)
+                {
+                    // Frames which only differ in BCI or line number, so their hashes are close.
+                    frames[i] = table.intern(i / 100, i % 10, i % 100);
+                }
+
+                expect.that(table.size()).is(FRAMES);
+                for (int i = 0; i < FRAMES; i++)
+                {
+                    expect.that(table.idOf(i / 100, i % 10, i % 100)).is(i);
+                    expect.that(table.intern(i / 100, i % 10, i % 100) == frames[i]).is(true);
+                    expect.that(table.get(i) == frames[i]).is(true);
+                }
+                expect.that(table.size()).is(FRAMES);
+            });
+        });
+    }
+}
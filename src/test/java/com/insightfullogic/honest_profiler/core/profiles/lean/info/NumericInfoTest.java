@@ -0,0 +1,62 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean.info;
+
+import static com.insightfullogic.lambdabehave.Suite.describe;
+import static java.math.BigInteger.valueOf;
+
+import java.math.BigInteger;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class NumericInfoTest
+{
+    {
+        describe("the numeric info", it -> {
+
+            it.should("accumulate times and counts", expect -> {
+                NumericInfo info = new NumericInfo().add(10, true).add(5, false);
+
+                expect.that(info.getSelfTime()).is(10L);
+                expect.that(info.getTotalTime()).is(15L);
+                expect.that(info.getSelfCnt()).is(1L);
+                expect.that(info.getTotalCnt()).is(2L);
+                expect.that(info.isOverflowed()).is(false);
+            });
+
+            it.should("keep the exact time once a long overflows", expect -> {
+                NumericInfo info = new NumericInfo().add(Long.MAX_VALUE, true).add(10, false);
+                BigInteger expected = valueOf(Long.MAX_VALUE).add(valueOf(10));
+
+                expect.that(info.isOverflowed()).is(true);
+                expect.that(info.getTotalTime()).is(Long.MAX_VALUE);
+                expect.that(info.getExactTotalTime()).is(expected);
+                expect.that(info.getSelfTime()).is(Long.MAX_VALUE);
+                expect.that(info.getExactSelfTime()).is(valueOf(Long.MAX_VALUE));
+            });
+
+            it.should("carry overflowed times over when aggregating and copying", expect -> {
+                NumericInfo wide = new NumericInfo().add(Long.MAX_VALUE, true).add(Long.MAX_VALUE, true);
+                NumericInfo info = new NumericInfo().add(1, true).add(wide).copy();
+                BigInteger expected = valueOf(Long.MAX_VALUE).shiftLeft(1).add(valueOf(1));
+
+                expect.that(info.getExactSelfTime()).is(expected);
+                expect.that(info.getExactTotalTime()).is(expected);
+                expect.that(info.getTotalCnt()).is(3L);
+                expect.that(info.getSelfTime()).is(Long.MAX_VALUE);
+            });
+
+            it.should("remove previously aggregated amounts when subtracting", expect -> {
+                NumericInfo removed = new NumericInfo().add(Long.MAX_VALUE, true).add(Long.MAX_VALUE, false);
+                NumericInfo info = new NumericInfo().add(7, true).add(removed).subtract(removed);
+
+                expect.that(info.getSelfTime()).is(7L);
+                expect.that(info.getTotalTime()).is(7L);
+                expect.that(info.getExactTotalTime()).is(valueOf(7));
+                expect.that(info.getSelfCnt()).is(1L);
+                expect.that(info.getTotalCnt()).is(1L);
+            });
+        });
+    }
+}
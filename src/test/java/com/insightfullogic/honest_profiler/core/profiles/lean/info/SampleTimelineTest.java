@@ -0,0 +1,70 @@
+package com.insightfullogic.honest_profiler.core.profiles.lean.info;
+
+import static com.insightfullogic.honest_profiler.core.profiles.lean.info.SampleTimeline.MAX_BUCKETS;
+import static com.insightfullogic.lambdabehave.Suite.describe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.runner.RunWith;
+
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+
+@RunWith(JunitSuiteRunner.class)
+public class SampleTimelineTest
+{
+    {
+        describe("the sample timeline", it -> {
+
+            it.should("count samples per bucket in chronological order", expect -> {
+                SampleTimeline timeline = new SampleTimeline(10).add(25).add(21).add(3).add(47);
+                List<Long> buckets = new ArrayList<>();
+                timeline.forEachBucket((start, count) ->
+                {
+                    buckets.add(start);
+                    buckets.add(count);
+                });
+
+                expect.that(buckets.toString()).is("[0, 1, 20, 2, 40, 1]");
+                expect.that(timeline.getTotalCnt()).is(4L);
+                expect.that(timeline.isSparse()).is(false);
+            });
+
+            it.should("switch to the sparse encoding for scattered samples", expect -> {
+                SampleTimeline timeline = new SampleTimeline(10).add(0).add(10_000).add(5_000);
+
+                expect.that(timeline.isSparse()).is(true);
+                expect.that(timeline.getFilledBuckets()).is(3);
+                expect.that(timeline.getBucketNanos()).is(10L);
+            });
+
+            it.should("reduce the resolution when the span exceeds the bound", expect -> {
+                SampleTimeline timeline = new SampleTimeline(1);
+                for (int i = 0; i < 4 * MAX_BUCKETS; i++)
+                {
+                    timeline.add(i);
+                }
+
+                expect.that(timeline.getBucketNanos()).is(4L);
+                expect.that(timeline.getFilledBuckets()).is(MAX_BUCKETS);
+                expect.that(timeline.getTotalCnt()).is(4L * MAX_BUCKETS);
+            });
+
+            it.should("add timelines at the coarser resolution", expect -> {
+                SampleTimeline fine = new SampleTimeline(1).add(1).add(2).add(3);
+                SampleTimeline coarse = new SampleTimeline(2).add(0);
+                SampleTimeline sum = fine.copy().add(coarse);
+                List<Long> buckets = new ArrayList<>();
+                sum.forEachBucket((start, count) ->
+                {
+                    buckets.add(start);
+                    buckets.add(count);
+                });
+
+                expect.that(sum.getBucketNanos()).is(2L);
+                expect.that(buckets.toString()).is("[0, 2, 2, 2]");
+                expect.that(fine.getTotalCnt()).is(3L);
+            });
+        });
+    }
+}
@@ -22,6 +22,7 @@
 package com.insightfullogic.honest_profiler.ports.console;
 
 import com.insightfullogic.honest_profiler.core.collector.FlatProfileEntry;
+import com.insightfullogic.honest_profiler.core.parser.AgentStats;
 import com.insightfullogic.honest_profiler.core.profiles.Profile;
 import com.insightfullogic.honest_profiler.core.profiles.ProfileNode;
 import com.insightfullogic.honest_profiler.core.profiles.ProfileTree;
@@ -74,4 +75,20 @@ public class ProfileViewTest
         console.outputContains("100.0");
     }
 
+    @Test
+    public void rendersAgentStats()
+    {
+        ProfileNode root = new ProfileNode(ProfileFixtures.printf, 1, 1);
+        AgentStats stats = new AgentStats()
+            .with(AgentStats.SAMPLES_WRITTEN, 3)
+            .with(AgentStats.SAMPLES_DROPPED, 1)
+            .with(AgentStats.QUEUE_HIGH_WATER_MARK, 17);
+        Profile profile = new Profile(2, asList(new FlatProfileEntry(ProfileFixtures.printf, 1, 0, 1)), asList(new FlatProfileEntry(ProfileFixtures.printf, 1, 0, 1)), toTrees(root), stats);
+
+        ui.accept(profile);
+
+        console.outputContains("Dropped samples: 1 (25.00%)");
+        console.outputContains("queue high-water mark: 17");
+    }
+
 }
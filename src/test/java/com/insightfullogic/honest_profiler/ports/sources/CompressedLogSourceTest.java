@@ -0,0 +1,168 @@
+package com.insightfullogic.honest_profiler.ports.sources;
+
+import com.insightfullogic.honest_profiler.core.Conductor;
+import com.insightfullogic.honest_profiler.core.parser.LogParser;
+import com.insightfullogic.honest_profiler.core.parser.PrimitiveLogEventListener;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static com.insightfullogic.honest_profiler.core.parser.LogParser.AmountRead.COMPLETE_RECORD;
+import static com.insightfullogic.honest_profiler.ports.sources.BlockCodec.MAGIC;
+import static com.insightfullogic.honest_profiler.ports.sources.BlockCodec.maxCompressedSize;
+import static com.insightfullogic.lambdabehave.Suite.describe;
+import static java.util.Arrays.copyOfRange;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(JunitSuiteRunner.class)
+public class CompressedLogSourceTest
+{
+    {
+
+        describe("Compressed Log Source", it -> {
+
+            it.should("decompress a log recognized by the file log source", expect -> {
+                // Given
+                File raw = tempFile();
+                File compressed = tempFile();
+                try (FileOutputStream out = new FileOutputStream(raw))
+                {
+                    out.write(rawLog(1000));
+                }
+                BlockCodec.compressLog(raw, compressed);
+
+                PrimitiveLogEventListener listener = mock(PrimitiveLogEventListener.class);
+                Logger logger = mock(Logger.class);
+
+                // when
+                try (FileLogSource source = new FileLogSource(compressed))
+                {
+                    expect.that(source.isCompressed()).is(true);
+                    new Conductor(logger, source, new LogParser(logger, listener), false).run();
+                }
+
+                // then
+                expect.that(compressed.length() < raw.length()).is(true);
+                verify(listener).onNewMethod(1, "Foo.java", "LFoo;", "foo");
+                verify(listener).onTraceStart(1, 7, 1, 0);
+                verify(listener).onTraceStart(1, 7, 1000, 0);
+                verify(listener, times(1000)).onFrame(10, 20, 1);
+                verify(listener).endOfLog();
+            });
+
+            it.should("pick up blocks once they have been written entirely", expect -> {
+                // Given
+                File file = tempFile();
+                byte[] log = rawLog(10);
+                byte[] firstBlock = block(copyOfRange(log, 0, 100));
+                byte[] secondBlock = block(copyOfRange(log, 100, log.length));
+
+                PrimitiveLogEventListener listener = mock(PrimitiveLogEventListener.class);
+                LogParser parser = new LogParser(mock(Logger.class), listener);
+
+                try (RandomAccessFile out = new RandomAccessFile(file, "rw");
+                    FileLogSource source = new FileLogSource(file))
+                {
+                    // when the magic number is incomplete
+                    out.writeShort(MAGIC >>> 16);
+                    expect.that(parseAll(source, parser)).is(0);
+
+                    // and when the first block has been written, the records it contains entirely are read
+                    out.writeShort(MAGIC);
+                    out.write(firstBlock);
+                    expect.that(parseAll(source, parser)).is(3);
+                    expect.that(source.isCompressed()).is(true);
+
+                    // and when the second block has only been written partially, nothing more is read
+                    out.write(secondBlock, 0, secondBlock.length - 1);
+                    expect.that(parseAll(source, parser)).is(0);
+
+                    // and when the second block has been written entirely, the remaining records are read
+                    out.write(secondBlock, secondBlock.length - 1, 1);
+                    expect.that(parseAll(source, parser)).is(18);
+                }
+
+                // then
+                verify(listener).onTraceStart(1, 7, 1, 0);
+                verify(listener).onTraceStart(1, 7, 10, 0);
+                verify(listener, times(10)).onFrame(10, 20, 1);
+            });
+        });
+
+    }
+
+    private static File tempFile() throws IOException
+    {
+        File file = File.createTempFile("compressed", ".hpl");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static int parseAll(FileLogSource source, LogParser parser)
+    {
+        int records = 0;
+        ByteBuffer buffer = source.read();
+        while (parser.readRecord(buffer) == COMPLETE_RECORD)
+        {
+            records++;
+            buffer = source.read();
+        }
+        return records;
+    }
+
+    private static byte[] block(byte[] data)
+    {
+        byte[] compressed = new byte[maxCompressedSize(data.length)];
+        int length = BlockCodec.compress(data, 0, data.length, compressed, 0);
+
+        ByteBuffer result = ByteBuffer.allocate(BlockCodec.BLOCK_HEADER_SIZE + length);
+        result.putInt(length).putInt(data.length).put(compressed, 0, length);
+        return result.array();
+    }
+
+    private static byte[] rawLog(int samples) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            // NEW_METHOD
+            out.writeByte(3);
+            out.writeLong(1);
+            writeString(out, "Foo.java");
+            writeString(out, "LFoo;");
+            writeString(out, "foo");
+
+            for (long second = 1; second <= samples; second++)
+            {
+                // TRACE_WITH_TIME
+                out.writeByte(11);
+                out.writeInt(1);
+                out.writeLong(7);
+                out.writeLong(second);
+                out.writeLong(0);
+                // STACK_FRAME_FULL
+                out.writeByte(21);
+                out.writeInt(10);
+                out.writeInt(20);
+                out.writeLong(1);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        out.writeInt(value.length());
+        out.writeBytes(value);
+    }
+}
@@ -0,0 +1,240 @@
+package com.insightfullogic.honest_profiler.ports.sources;
+
+import com.insightfullogic.honest_profiler.core.Conductor;
+import com.insightfullogic.honest_profiler.core.parser.LogHeader;
+import com.insightfullogic.honest_profiler.core.parser.LogIndex;
+import com.insightfullogic.honest_profiler.core.parser.LogParser;
+import com.insightfullogic.honest_profiler.core.parser.PrimitiveLogEventListener;
+import com.insightfullogic.lambdabehave.JunitSuiteRunner;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static com.insightfullogic.lambdabehave.Suite.describe;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(JunitSuiteRunner.class)
+public class TimeWindowLogSourceTest
+{
+    private static final long SECOND = 1000 * 1000 * 1000;
+
+    // Sizes in bytes of the NEW_METHOD record and of every sample written by writeLog.
+    private static final int METHOD_SIZE = 1 + 8 + 4 + 8 + 4 + 5 + 4 + 3;
+    private static final int SAMPLE_SIZE = 1 + 4 + 8 + 8 + 8 + 1 + 4 + 4 + 8;
+
+    {
+
+        describe("Time Window Log Source", it -> {
+
+            it.should("only read the samples in the window, preceded by the earlier metadata", expect -> {
+                // Given
+                File file = File.createTempFile("window", ".hpl");
+                file.deleteOnExit();
+                LogIndex.indexFileFor(file).deleteOnExit();
+                writeLog(file);
+
+                PrimitiveLogEventListener listener = mock(PrimitiveLogEventListener.class);
+                Logger logger = mock(Logger.class);
+
+                // when
+                try (TimeWindowLogSource source = new TimeWindowLogSource(file, 3 * SECOND, 5 * SECOND))
+                {
+                    new Conductor(logger, source, new LogParser(logger, listener), false).run();
+                }
+
+                // then
+                verify(listener).onNewMethod(1, "Foo.java", "LFoo;", "foo");
+                verify(listener).onTraceStart(1, 7, 4, 0);
+                verify(listener).onTraceStart(1, 7, 5, 0);
+                verify(listener, never()).onTraceStart(anyInt(), anyLong(), eq(3L), anyLong());
+                verify(listener, never()).onTraceStart(anyInt(), anyLong(), eq(6L), anyLong());
+                verify(listener).endOfLog();
+                expect.that(LogIndex.indexFileFor(file).isFile()).is(true);
+            });
+
+            it.should("only replay the earlier metadata the samples in the window refer to", expect -> {
+                // Given
+                File file = File.createTempFile("window", ".hpl");
+                file.deleteOnExit();
+                LogIndex.indexFileFor(file).deleteOnExit();
+                writeStackLog(file);
+
+                PrimitiveLogEventListener listener = mock(PrimitiveLogEventListener.class);
+                Logger logger = mock(Logger.class);
+
+                // when
+                try (TimeWindowLogSource source = new TimeWindowLogSource(file, 3 * SECOND, 5 * SECOND))
+                {
+                    new Conductor(logger, source, new LogParser(logger, listener), false).run();
+                }
+
+                // then
+                verify(listener).onNewMethod(1, "Foo.java", "LFoo;", "m1");
+                verify(listener).onNewMethod(2, "Foo.java", "LFoo;", "m2");
+                verify(listener).onNewMethod(3, "Foo.java", "LFoo;", "m3");
+                verify(listener, never()).onNewMethod(eq(4L), anyString(), anyString(), anyString());
+                verify(listener, never()).onNewMethod(eq(5L), anyString(), anyString(), anyString());
+                verify(listener).onThreadMeta(7, "main");
+                verify(listener, never()).onThreadMeta(eq(8L), anyString());
+                // Once for every reference in the window.
+                verify(listener, times(2)).onStack(eq(2), any(int[].class), any(int[].class), aryEq(new long[] { 2, 3 }));
+                verify(listener).onTraceStart(2, 7, 4, 0);
+                verify(listener).onTraceStart(2, 7, 5, 0);
+                verify(listener, never()).onTraceStart(anyInt(), anyLong(), eq(6L), anyLong());
+            });
+
+            it.should("rebuild the index of a log rewritten with the same size", expect -> {
+                // Given
+                File file = File.createTempFile("window", ".hpl");
+                file.deleteOnExit();
+                LogIndex.indexFileFor(file).deleteOnExit();
+                writeLog(file);
+                LogIndex before = LogIndex.open(file);
+
+                // The same records, with all timestamps 100 seconds later.
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+                {
+                    for (long second = 1; second <= 10; second++)
+                    {
+                        raf.seek(METHOD_SIZE + (second - 1) * SAMPLE_SIZE + 1 + 4 + 8);
+                        raf.writeLong(second + 100);
+                    }
+                }
+                file.setLastModified(before.getLogModified() + 10000);
+
+                // when
+                LogIndex after = LogIndex.open(file);
+
+                // then
+                expect.that(after.getLogSize()).is(before.getLogSize());
+                expect.that(after.getFirstTime()).is(101 * SECOND);
+                expect.that(LogIndex.read(LogIndex.indexFileFor(file)).getFirstTime()).is(101 * SECOND);
+            });
+        });
+
+    }
+
+    private static void writeLog(File file) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file)))
+        {
+            // NEW_METHOD
+            out.writeByte(3);
+            out.writeLong(1);
+            writeString(out, "Foo.java");
+            writeString(out, "LFoo;");
+            writeString(out, "foo");
+
+            for (long second = 1; second <= 10; second++)
+            {
+                // TRACE_WITH_TIME
+                out.writeByte(11);
+                out.writeInt(1);
+                out.writeLong(7);
+                out.writeLong(second);
+                out.writeLong(0);
+                // STACK_FRAME_FULL
+                out.writeByte(21);
+                out.writeInt(10);
+                out.writeInt(20);
+                out.writeLong(1);
+            }
+        }
+    }
+
+    /**
+     * Writes a log in which every second thread 7 is sampled in method 1, and from the fourth second on also in the
+     * stack defined at the start, consisting of methods 2 and 3. Methods 4 and 5 and thread 8 are defined at the start
+     * too, but only thread 8 is sampled in method 4, in the first second.
+     */
+    private static void writeStackLog(File file) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file)))
+        {
+            out.write(new LogHeader(LogHeader.STACK_DICTIONARY_VERSION, 0).encode().array());
+            for (long methodId = 1; methodId <= 5; methodId++)
+            {
+                // NEW_METHOD
+                out.writeByte(3);
+                out.writeLong(methodId);
+                writeString(out, "Foo.java");
+                writeString(out, "LFoo;");
+                writeString(out, "m" + methodId);
+            }
+            for (long threadId = 7; threadId <= 8; threadId++)
+            {
+                // THREAD_META
+                out.writeByte(4);
+                out.writeLong(threadId);
+                writeString(out, threadId == 7 ? "main" : "other");
+            }
+            // NEW_STACK
+            out.writeByte(5);
+            out.writeLong(0);
+            out.writeInt(2);
+            for (long methodId = 2; methodId <= 3; methodId++)
+            {
+                out.writeInt(0);
+                out.writeInt(10);
+                out.writeLong(methodId);
+            }
+
+            for (long second = 1; second <= 10; second++)
+            {
+                writeSample(out, 7, second, 1);
+                if (second == 1)
+                {
+                    writeSample(out, 8, second, 4);
+                }
+                if (second >= 4)
+                {
+                    // TRACE_WITH_TIME
+                    out.writeByte(11);
+                    out.writeInt(2);
+                    out.writeLong(7);
+                    out.writeLong(second);
+                    out.writeLong(0);
+                    // STACK_REF
+                    out.writeByte(6);
+                    out.writeLong(0);
+                }
+            }
+        }
+    }
+
+    private static void writeSample(DataOutputStream out, long threadId, long second, long methodId)
+        throws IOException
+    {
+        // TRACE_WITH_TIME
+        out.writeByte(11);
+        out.writeInt(1);
+        out.writeLong(threadId);
+        out.writeLong(second);
+        out.writeLong(0);
+        // STACK_FRAME_FULL
+        out.writeByte(21);
+        out.writeInt(10);
+        out.writeInt(20);
+        out.writeLong(methodId);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        out.writeInt(value.length());
+        out.writeBytes(value);
+    }
+}
@@ -0,0 +1,185 @@
+package com.insightfullogic.honest_profiler.testing_utilities;
+
+import static com.insightfullogic.honest_profiler.core.aggregation.grouping.FrameGrouping.BY_FQMN_LINENR;
+import static com.insightfullogic.honest_profiler.core.aggregation.grouping.ThreadGrouping.BY_ID;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toMap;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import com.insightfullogic.honest_profiler.core.aggregation.AggregationProfile;
+import com.insightfullogic.honest_profiler.core.aggregation.aggregator.FlatProfileAggregator;
+import com.insightfullogic.honest_profiler.core.aggregation.aggregator.TreeProfileAggregator;
+import com.insightfullogic.honest_profiler.core.aggregation.grouping.CombinedGrouping;
+import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Entry;
+import com.insightfullogic.honest_profiler.core.aggregation.result.straight.Node;
+import com.insightfullogic.honest_profiler.core.collector.lean.LeanLogCollector;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+
+/**
+ * Compares the sequential and the parallel aggregation of a {@link LeanProfile} into Flat and Tree aggregations, for
+ * profiles of increasing size. The sequential aggregation runs on a {@link ForkJoinPool} with parallelism 1, the
+ * parallel one on the common pool. The results of both are checked to be identical, as is the lazily aggregated Tree
+ * once it is fully materialized.
+ * <p>
+ * Usage : AggregationBenchmark [max samples] [iterations]
+ */
+public class AggregationBenchmark
+{
+    private static final int THREADS = 8;
+    private static final int METHODS = 2000;
+    private static final int MAX_DEPTH = 12;
+
+    private static final CombinedGrouping GROUPING = CombinedGrouping.combine(BY_ID, BY_FQMN_LINENR);
+
+    public static void main(String[] args)
+    {
+        int maxSamples = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        ForkJoinPool sequentialPool = new ForkJoinPool(1);
+        ForkJoinPool parallelPool = ForkJoinPool.commonPool();
+
+        FlatProfileAggregator sequentialFlat = new FlatProfileAggregator(sequentialPool);
+        FlatProfileAggregator parallelFlat = new FlatProfileAggregator(parallelPool);
+        TreeProfileAggregator sequentialTree = new TreeProfileAggregator(sequentialPool);
+        TreeProfileAggregator parallelTree = new TreeProfileAggregator(parallelPool);
+        TreeProfileAggregator lazyTree = new TreeProfileAggregator(parallelPool, true);
+
+        System.out.printf("Parallelism : %d%n", parallelPool.getParallelism());
+
+        for (int samples = maxSamples / 100; samples <= maxSamples; samples *= 10)
+        {
+            LeanProfile profile = profile(samples);
+
+            check(
+                "parallel flat",
+                sameFlat(
+                    sequentialFlat.aggregate(new AggregationProfile(profile), GROUPING).getData(),
+                    parallelFlat.aggregate(new AggregationProfile(profile), GROUPING).getData()));
+            check(
+                "parallel tree",
+                sameTree(
+                    sequentialTree.aggregate(new AggregationProfile(profile), GROUPING).getData(),
+                    parallelTree.aggregate(new AggregationProfile(profile), GROUPING).getData()));
+            check(
+                "lazy tree",
+                sameTree(
+                    sequentialTree.aggregate(new AggregationProfile(profile), GROUPING).getData(),
+                    lazyTree.aggregate(new AggregationProfile(profile), GROUPING).getData()));
+
+            System.out.printf(
+                "%,d samples : flat %d / %d ms, tree %d / %d ms (sequential / parallel)%n",
+                samples,
+                time(iterations, input -> sequentialFlat.aggregate(input, GROUPING), profile),
+                time(iterations, input -> parallelFlat.aggregate(input, GROUPING), profile),
+                time(iterations, input -> sequentialTree.aggregate(input, GROUPING), profile),
+                time(iterations, input -> parallelTree.aggregate(input, GROUPING), profile));
+        }
+        sequentialPool.shutdown();
+    }
+
+    /**
+     * Returns the median time in milliseconds of the specified number of aggregations. Every aggregation uses a new
+     * {@link AggregationProfile}, so no interned keys are reused.
+     */
+    private static long time(int iterations, Function<AggregationProfile, ?> aggregation, LeanProfile profile)
+    {
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++)
+        {
+            AggregationProfile input = new AggregationProfile(profile);
+            long start = System.nanoTime();
+            aggregation.apply(input);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[iterations / 2] / 1000000;
+    }
+
+    private static void check(String name, boolean same)
+    {
+        if (!same)
+        {
+            throw new AssertionError("The " + name + " aggregation differs from the sequential one.");
+        }
+    }
+
+    // The Entries of a Flat are compared in order.
+    private static boolean sameFlat(List<Entry> expected, List<Entry> actual)
+    {
+        if (expected.size() != actual.size())
+        {
+            return false;
+        }
+
+        Iterator<Entry> it = actual.iterator();
+        return expected.stream().allMatch(entry -> same(entry, it.next()));
+    }
+
+    // The Nodes in a Tree are unordered, and are compared by key.
+    private static boolean sameTree(List<Node> expected, List<Node> actual)
+    {
+        if (expected.size() != actual.size())
+        {
+            return false;
+        }
+
+        Map<String, Node> nodes = actual.stream().collect(toMap(Node::getKey, identity()));
+        return expected.stream().allMatch(node ->
+        {
+            Node other = nodes.get(node.getKey());
+            return other != null && same(node, other) && sameTree(node.getChildren(), other.getChildren());
+        });
+    }
+
+    private static boolean same(Entry expected, Entry actual)
+    {
+        return expected.getKey().equals(actual.getKey())
+            && expected.getTotalCnt() == actual.getTotalCnt()
+            && expected.getSelfCnt() == actual.getSelfCnt()
+            && expected.getTotalTime() == actual.getTotalTime()
+            && expected.getSelfTime() == actual.getSelfTime()
+            && expected.getRefCnt() == actual.getRefCnt()
+            && expected.getAggregatedNodes().equals(actual.getAggregatedNodes());
+    }
+
+    private static LeanProfile profile(int samples)
+    {
+        LeanProfile[] result = new LeanProfile[1];
+        LeanLogCollector collector = new LeanLogCollector(profile -> result[0] = profile);
+
+        for (int methodId = 1; methodId <= METHODS; methodId++)
+        {
+            collector.onNewMethod(methodId, "Bench.java", "Lbench/Bench" + (methodId % 50) + ";", "run" + methodId);
+        }
+        for (int threadId = 0; threadId < THREADS; threadId++)
+        {
+            collector.onThreadMeta(threadId, "worker-" + threadId);
+        }
+
+        // Method ids are drawn from a skewed distribution, so some frames are much more common than others, and the
+        // trees contain both large and small subtrees.
+        Random random = new Random(samples);
+        long nanos = 0;
+        for (int sample = 0; sample < samples; sample++)
+        {
+            nanos += 1_000_000;
+            int depth = 1 + random.nextInt(MAX_DEPTH);
+            collector.onTraceStart(depth, random.nextInt(THREADS), nanos / 1_000_000_000, nanos % 1_000_000_000);
+            for (int frame = 0; frame < depth; frame++)
+            {
+                long methodId = 1 + (long)Math.abs(random.nextGaussian() * METHODS / 20) % METHODS;
+                collector.onFrame(random.nextInt(4), random.nextInt(3), methodId);
+            }
+        }
+        collector.endOfLog();
+        return result[0];
+    }
+}
@@ -0,0 +1,95 @@
+package com.insightfullogic.honest_profiler.testing_utilities;
+
+import static com.insightfullogic.honest_profiler.core.Monitor.consumeFile;
+
+import java.io.File;
+
+import com.insightfullogic.honest_profiler.core.parser.PrimitiveLogEventListener;
+import com.insightfullogic.honest_profiler.ports.sources.BlockCodec;
+import com.insightfullogic.honest_profiler.ports.sources.FileLogSource;
+
+/**
+ * Compares a raw log with its block-compressed form : the number of bytes written, and the time needed to parse each of
+ * them. The compressed log is written next to the raw log, with an additional ".lz" extension.
+ * <p>
+ * Usage : CompressedLogBenchmark &lt;log file&gt; [iterations]
+ */
+public class CompressedLogBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        File raw = new File(args[0]);
+        File compressed = new File(args[0] + ".lz");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        long start = System.nanoTime();
+        BlockCodec.compressLog(raw, compressed);
+        long compressionMillis = (System.nanoTime() - start) / 1000000;
+
+        System.out.printf(
+            "Raw : %,d bytes, compressed : %,d bytes (%.1f%%) in %d ms%n",
+            raw.length(),
+            compressed.length(),
+            100.0 * compressed.length() / raw.length(),
+            compressionMillis);
+
+        for (int i = 0; i < iterations; i++)
+        {
+            report("Raw       ", raw, raw.length());
+            report("Compressed", compressed, raw.length());
+        }
+    }
+
+    private static void report(String name, File file, long rawSize)
+    {
+        CountingListener listener = new CountingListener();
+
+        long start = System.nanoTime();
+        consumeFile(new FileLogSource(file), listener);
+        long nanos = System.nanoTime() - start;
+
+        System.out.printf(
+            "%s : %,d traces, %,d frames in %d ms, %.1f MB/s of raw log%n",
+            name,
+            listener.traces,
+            listener.frames,
+            nanos / 1000000,
+            rawSize * 1000.0 / nanos);
+    }
+
+    private static class CountingListener implements PrimitiveLogEventListener
+    {
+        private long traces;
+        private long frames;
+
+        @Override
+        public void onTraceStart(int numberOfFrames, long threadId, long timeSec, long timeNano)
+        {
+            traces++;
+        }
+
+        @Override
+        public void onFrame(int bci, int lineNumber, long methodId)
+        {
+            frames++;
+        }
+
+        @Override
+        public void onNewMethod(long methodId, String fileName, String className, String methodName)
+        {
+            // Not counted
+        }
+
+        @Override
+        public void onThreadMeta(long threadId, String threadName)
+        {
+            // Not counted
+        }
+
+        @Override
+        public void endOfLog()
+        {
+            // Nothing to do
+        }
+    }
+}
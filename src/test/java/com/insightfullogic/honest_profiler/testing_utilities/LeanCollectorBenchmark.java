@@ -0,0 +1,81 @@
+package com.insightfullogic.honest_profiler.testing_utilities;
+
+import com.insightfullogic.honest_profiler.core.collector.lean.CollectorOptions;
+import com.insightfullogic.honest_profiler.core.collector.lean.LeanLogCollector;
+import com.insightfullogic.honest_profiler.core.profiles.lean.LeanProfile;
+
+/**
+ * Measures the throughput of the {@link LeanLogCollector}, by feeding it synthetic samples directly, without any
+ * parsing. The samples are spread over a number of threads, and their stacks share a common root, so that every
+ * sample updates the numeric data of a full path of existing nodes, which is the common case when profiling.
+ * <p>
+ * Usage : LeanCollectorBenchmark [samples] [iterations] [stack depth] [compact]
+ */
+public class LeanCollectorBenchmark
+{
+    private static final int THREADS = 8;
+    private static final int METHODS = 64;
+    private static final int VARIANTS = 16;
+
+    public static void main(String[] args)
+    {
+        int samples = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 24;
+        boolean compact = args.length > 3 && Boolean.parseBoolean(args[3]);
+
+        for (int i = 0; i < iterations; i++)
+        {
+            LeanProfile[] result = new LeanProfile[1];
+            LeanLogCollector collector = new LeanLogCollector(
+                profile -> result[0] = profile,
+                new CollectorOptions().withCompact(compact));
+
+            long start = System.nanoTime();
+            feed(collector, samples, depth);
+            long nanos = System.nanoTime() - start;
+
+            System.out.printf(
+                "%,d samples of %d frames in %d ms, %,.0f samples/s (%,d nodes in profile)%n",
+                samples,
+                depth,
+                nanos / 1000000,
+                samples * 1e9 / nanos,
+                nodeCount(result[0]));
+        }
+    }
+
+    private static long nodeCount(LeanProfile profile)
+    {
+        return profile.getTree() != null ? profile.getTree().size()
+            : profile.getThreads().values().stream().mapToLong(node -> node.flatten().count()).sum();
+    }
+
+    private static void feed(LeanLogCollector collector, int samples, int depth)
+    {
+        for (int methodId = 0; methodId < METHODS; methodId++)
+        {
+            collector.onNewMethod(methodId, "Bench.java", "Lbench/Bench" + methodId + ";", "run");
+        }
+        for (int threadId = 0; threadId < THREADS; threadId++)
+        {
+            collector.onThreadMeta(threadId, "worker-" + threadId);
+        }
+
+        long nanos = 0;
+        for (int sample = 0; sample < samples; sample++)
+        {
+            nanos += 1_000_000;
+            collector.onTraceStart(depth, sample % THREADS, nanos / 1_000_000_000, nanos % 1_000_000_000);
+
+            // The innermost frames vary between samples, the outermost ones are shared
+            int variant = sample % VARIANTS;
+            for (int frame = 0; frame < depth; frame++)
+            {
+                long methodId = frame < 4 ? (variant + frame) % METHODS : frame % METHODS;
+                collector.onFrame(frame, frame + 1, methodId);
+            }
+        }
+        collector.endOfLog();
+    }
+}